@@ -0,0 +1,177 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Bench;
+
+import Blender.Blender;
+import Jondo.Jondo;
+import Jondo.JondoDriver;
+import Model.Configuration;
+import Model.Vote;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares casting ballots one VOTE_CAST at a time with batching them. For each batch window we join a crowd to a
+ * fresh Blender on loopback, cast the ballots from a thread per Jondo and report how long until the Blender had
+ * tallied all of them. A window of 0 is single ballot mode. A second table times the Blender tallying the same
+ * ballots one call per ballot and one call per batch, without the network.
+ * <p>
+ * Usage: BallotBench [basePort] [ballots] [jondos] [window ...]
+ */
+public class BallotBench {
+    /**
+     * Longest we wait for the Blender to tally every ballot
+     */
+    private static final long TALLY_TIMEOUT = 30000;
+    /**
+     * Ballots per batch, also the batch the in process tally is given
+     */
+    private static final int BATCH_SIZE = 256;
+    /**
+     * Options ballots are spread over
+     */
+    private static final String[] OPTIONS = {"a", "b", "c", "d"};
+
+    /**
+     * Where results are printed, System.out is silenced while ballots are tallied
+     */
+    private static PrintStream out = System.out;
+
+    public static void main(String[] args) throws Exception {
+        int basePort = args.length > 0 ? Integer.parseInt(args[0]) : 21000;
+        int ballots = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int jondos = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+        List<Integer> windows = new ArrayList<>();
+        for (int i = 3; i < args.length; i++) {
+            windows.add(Integer.parseInt(args[i]));
+        }
+        if (windows.isEmpty()) {
+            windows = List.of(0, 2, 10, 50);
+        }
+
+        // the Blender prints a line per ballot it tallies, which would drown the results
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        out.printf("%-10s %8s %7s %12s %14s%n", "window ms", "ballots", "jondos", "tallied ms", "ballots/s");
+        for (int window : windows) {
+            crowd(basePort, ballots, jondos, window);
+            basePort += jondos + 1;
+        }
+
+        out.println();
+        out.printf("%-10s %8s %12s %14s%n", "tally", "ballots", "best ms", "ballots/s");
+        tally(ballots);
+        System.exit(0);
+    }
+
+    /**
+     * Casts ballots through a crowd and prints one row of results
+     *
+     * @param basePort int port of the Blender, Jondos use the ports after it
+     * @param ballots  int number of ballots to cast
+     * @param jondos   int number of Jondos, each casts its share from its own thread
+     * @param window   int batch window in millis, 0 for single ballots
+     * @throws InterruptedException if interrupted while waiting for the tally
+     */
+    private static void crowd(int basePort, int ballots, int jondos, int window) throws InterruptedException {
+        Blender blender = new Blender(new Configuration.Builder("blender").setAddr("127.0.0.1").setPort(basePort)
+                .setThreads(4).setServer("nio").setEventLoops(1).build());
+        Thread.sleep(200);
+
+        List<Jondo> crowd = new ArrayList<>();
+        for (int i = 1; i <= jondos; i++) {
+            crowd.add(new Jondo(new Configuration.Builder("jondo").setAddr("127.0.0.1").setPort(basePort + i)
+                    .setThreads(2).setServer("nio").setEventLoops(1).setBlender("127.0.0.1", basePort)
+                    .setVoteBatchWindow(window).setVoteBatchSize(BATCH_SIZE).build(), new JondoDriver()));
+        }
+        // let the later joins reach the earlier Jondos
+        Thread.sleep(500);
+
+        String voteId = "bench-" + window;
+        long start = System.nanoTime();
+
+        List<Thread> voters = new ArrayList<>();
+        for (int j = 0; j < jondos; j++) {
+            Jondo jondo = crowd.get(j);
+            int first = j;
+            Thread voter = new Thread(() -> {
+                for (int i = first; i < ballots; i += jondos) {
+                    jondo.sendVoteCast(voteId, OPTIONS[i % OPTIONS.length]);
+                }
+            });
+            voter.start();
+            voters.add(voter);
+        }
+        for (Thread voter : voters) {
+            voter.join();
+        }
+
+        long tallied = 0;
+        long deadline = start + TALLY_TIMEOUT * 1000000;
+        while (System.nanoTime() < deadline) {
+            tallied = 0;
+            for (int votes : blender.getVoteResults(voteId).values()) {
+                tallied += votes;
+            }
+            if (tallied == ballots) {
+                break;
+            }
+            Thread.sleep(1);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        if (tallied == ballots) {
+            out.printf("%-10d %8d %7d %12.1f %14.0f%n", window, ballots, jondos, elapsed / 1e6,
+                    ballots / (elapsed / 1e9));
+        } else {
+            out.printf("%-10d %8d %7d %12s %14s%n", window, ballots, jondos, "> " + TALLY_TIMEOUT,
+                    tallied + " tallied");
+        }
+    }
+
+    /**
+     * Times the Blender tallying ballots one call per ballot and one call per batch, best of a few runs each
+     *
+     * @param ballots int number of ballots to tally
+     */
+    private static void tally(int ballots) {
+        List<Vote> all = new ArrayList<>();
+        for (int i = 0; i < ballots; i++) {
+            all.add(new Vote.Builder("bench").setSelection(OPTIONS[i % OPTIONS.length]).build());
+        }
+
+        Blender blender = new Blender(new Configuration.Builder("blender").setAddr("127.0.0.1").setPort(0)
+                .setThreads(1).setServer("nio").setEventLoops(1).build());
+
+        long single = Long.MAX_VALUE;
+        long batched = Long.MAX_VALUE;
+        for (int run = 0; run < 10; run++) {
+            long start = System.nanoTime();
+            for (Vote ballot : all) {
+                blender.tallyVote(ballot.getVoteId(), ballot.getSelection());
+            }
+            single = Math.min(single, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < ballots; i += BATCH_SIZE) {
+                blender.tallyVotes(all.subList(i, Math.min(i + BATCH_SIZE, ballots)));
+            }
+            batched = Math.min(batched, System.nanoTime() - start);
+        }
+
+        out.printf("%-10s %8d %12.2f %14.0f%n", "single", ballots, single / 1e6, ballots / (single / 1e9));
+        out.printf("%-10s %8d %12.2f %14.0f%n", "batch " + BATCH_SIZE, ballots, batched / 1e6,
+                ballots / (batched / 1e9));
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Bench;
+
+import Blender.BallotLog;
+import Model.Vote;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+/**
+ * Measures the ballot log. First how many ballots a second it logs when each caster waits for its ballot to be synced,
+ * for growing numbers of casters, and how many ballots each fsync covered. Then how long a restart takes to recover
+ * the tallies of a large log, replaying every ballot and replaying from a snapshot.
+ * <p>
+ * Usage: BallotLogBench [recoverBallots] [snapshotInterval] [threads ...]
+ */
+public class BallotLogBench {
+    /**
+     * Time in millis each append run lasts
+     */
+    private static final long APPEND_MILLIS = 2000;
+    /**
+     * Ballots per append when filling the log for recovery
+     */
+    private static final int FILL_BATCH = 7000;
+    private static final String[] OPTIONS = {"a", "b", "c", "d"};
+
+    public static void main(String[] args) throws Exception {
+        int recoverBallots = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        int snapshotInterval = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+        List<Integer> threads = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            threads.add(Integer.parseInt(args[i]));
+        }
+        if (threads.isEmpty()) {
+            threads = List.of(1, 4, 16, 64);
+        }
+
+        System.out.printf("%-8s %12s %10s %16s%n", "casters", "ballots/s", "syncs/s", "ballots per sync");
+        for (int count : threads) {
+            append(count);
+        }
+
+        System.out.println();
+        System.out.printf("%-10s %10s %10s %12s %14s%n", "recovery", "ballots", "files", "disk MB", "recover ms");
+        recover("replay all", recoverBallots, Integer.MAX_VALUE);
+        recover("snapshot", recoverBallots, snapshotInterval);
+        System.exit(0);
+    }
+
+    /**
+     * Casts single ballots from a number of threads, each waiting for its ballot to be synced, and prints a row
+     *
+     * @param casters int number of casting threads
+     * @throws Exception if the log cannot be written
+     */
+    private static void append(int casters) throws Exception {
+        Path dir = Files.createTempDirectory("ballot-log");
+        BallotLog log = new BallotLog(dir, Integer.MAX_VALUE);
+        long end = System.currentTimeMillis() + APPEND_MILLIS;
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < casters; t++) {
+            int first = t;
+            Thread thread = new Thread(() -> {
+                for (int i = first; System.currentTimeMillis() < end; i++) {
+                    Vote ballot = new Vote.Builder("bench").setSelection(OPTIONS[i % OPTIONS.length]).build();
+                    log.append(List.of(ballot)).join();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        log.close();
+        System.out.printf("%-8d %12.0f %10.0f %16.1f%n", casters, log.getBallots() / seconds,
+                log.getSyncs() / seconds, (double) log.getBallots() / log.getSyncs());
+        delete(dir);
+    }
+
+    /**
+     * Fills a log, reopens it and prints how long recovering the tallies took
+     *
+     * @param name             String name of the case
+     * @param ballots          int ballots to log
+     * @param snapshotInterval int ballots between snapshots
+     * @throws Exception if the log cannot be written or read
+     */
+    private static void recover(String name, int ballots, int snapshotInterval) throws Exception {
+        Path dir = Files.createTempDirectory("ballot-log");
+
+        List<Vote> batch = new ArrayList<>();
+        for (int i = 0; i < FILL_BATCH; i++) {
+            batch.add(new Vote.Builder("bench").setSelection(OPTIONS[i % OPTIONS.length]).build());
+        }
+
+        BallotLog log = new BallotLog(dir, snapshotInterval);
+        CompletableFuture<Void> last = null;
+        for (int written = 0; written < ballots; written += FILL_BATCH) {
+            last = log.append(written + FILL_BATCH <= ballots ? batch : batch.subList(0, ballots - written));
+        }
+        last.join();
+        log.close();
+
+        long files;
+        long bytes = 0;
+        try (Stream<Path> list = Files.list(dir)) {
+            List<Path> paths = list.toList();
+            files = paths.size();
+            for (Path path : paths) {
+                bytes += Files.size(path);
+            }
+        }
+
+        System.gc();
+        long start = System.nanoTime();
+        BallotLog reopened = new BallotLog(dir, snapshotInterval);
+        long elapsed = System.nanoTime() - start;
+
+        long recovered = 0;
+        for (HashMap<String, Long> options : reopened.getRecovered().values()) {
+            for (long votes : options.values()) {
+                recovered += votes;
+            }
+        }
+        reopened.close();
+        if (recovered != ballots) {
+            throw new IllegalStateException("Recovered " + recovered + " of " + ballots + " ballots");
+        }
+
+        System.out.printf("%-10s %10d %10d %12.1f %14.1f%n", name, recovered, files, bytes / (1024.0 * 1024.0),
+                elapsed / 1e6);
+        delete(dir);
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Bench;
+
+import Model.Node;
+import Model.NodeId;
+import Model.RoutingIndex;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+
+/**
+ * Compares the heap a routing table of each crowd size keeps alive and how long it takes to build, for three layouts:
+ * <ul>
+ *     <li>uid map, how Jondos stored the crowd before node ids: Node objects with a Base64 UID string hashed with a
+ *     fresh MessageDigest, in a map keyed by that string plus the snapshot array and slot map the old routing index
+ *     kept alongside it</li>
+ *     <li>id map, a map of Node keyed by NodeId as the Blender keeps its table</li>
+ *     <li>columns, a RoutingIndex as Jondos keep their table</li>
+ *     <li>picked, the same RoutingIndex once every row has been picked and keeps its Node</li>
+ * </ul>
+ * Heap is measured as the heap in use after a full GC with the table alive less the heap in use before building it,
+ * so it is only as exact as System.gc makes it. Build time includes hashing every UID.
+ * <p>
+ * Usage: FootprintBench [size ...]
+ */
+public class FootprintBench {
+    /**
+     * Written with each table so the JIT and GC cannot drop it before it is measured
+     */
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        List<Integer> sizes = new ArrayList<>();
+        for (String arg : args) {
+            sizes.add(Integer.parseInt(arg));
+        }
+        if (sizes.isEmpty()) {
+            sizes = List.of(10000, 100000, 1000000);
+        }
+
+        // the first build of each layout is slower while the JIT warms up
+        for (int i = 0; i < 3; i++) {
+            uidMap(20000);
+            idMap(20000);
+            columns(20000);
+            picked(20000);
+        }
+
+        System.out.printf("%-10s %8s %12s %12s %12s%n", "layout", "nodes", "heap MB", "bytes/node", "build ns/node");
+        for (int size : sizes) {
+            run("uid map", size, FootprintBench::uidMap);
+            run("id map", size, FootprintBench::idMap);
+            run("columns", size, FootprintBench::columns);
+            run("picked", size, FootprintBench::picked);
+        }
+    }
+
+    /**
+     * Builds one layout and prints its row
+     *
+     * @param name  String name of the layout
+     * @param size  int nodes in the table
+     * @param build IntFunction building a table of size nodes
+     */
+    private static void run(String name, int size, IntFunction<Object> build) {
+        sink = null;
+        long before = used();
+        long start = System.nanoTime();
+        sink = build.apply(size);
+        long elapsed = System.nanoTime() - start;
+        long heap = used() - before;
+
+        System.out.printf("%-10s %8d %12.1f %12.1f %12.1f%n", name, size, heap / 1e6, (double) heap / size,
+                (double) elapsed / size);
+        sink = null;
+    }
+
+    /**
+     * Gets the heap in use once the garbage has been collected
+     *
+     * @return long bytes in use
+     */
+    private static long used() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    private static String addr(int i) {
+        return "10." + (i >> 16 & 0xFF) + "." + (i >> 8 & 0xFF) + "." + (i & 0xFF);
+    }
+
+    private static int port(int i) {
+        return 5000 + i % 1000;
+    }
+
+    private static Object uidMap(int size) {
+        ConcurrentHashMap<String, UidNode> nodes = new ConcurrentHashMap<>();
+        for (int i = 0; i < size; i++) {
+            UidNode node = new UidNode(addr(i), port(i));
+            nodes.put(node.uid, node);
+        }
+        UidNode[] snapshot = nodes.values().toArray(new UidNode[0]);
+        HashMap<String, Integer> slots = new HashMap<>();
+        for (int i = 0; i < snapshot.length; i++) {
+            slots.put(snapshot[i].uid, i);
+        }
+        return new Object[] {nodes, snapshot, slots};
+    }
+
+    private static Object idMap(int size) {
+        ConcurrentHashMap<NodeId, Node> nodes = new ConcurrentHashMap<>();
+        for (int i = 0; i < size; i++) {
+            Node node = new Node(addr(i), port(i));
+            nodes.put(node.getId(), node);
+        }
+        return nodes;
+    }
+
+    private static Object columns(int size) {
+        RoutingIndex index = new RoutingIndex();
+        for (int i = 0; i < size; i++) {
+            index.putIfAbsent(new Node(addr(i), port(i)));
+        }
+        return index;
+    }
+
+    private static Object picked(int size) {
+        RoutingIndex index = (RoutingIndex) columns(size);
+        // a sample of the whole crowd reads every row
+        index.sample(size, new Random(1));
+        return index;
+    }
+
+    /**
+     * A node as it was before node ids, an address, a port and the Base64 of its SHA-1 UID
+     */
+    private static class UidNode {
+        private String addr;
+        private int port;
+        private String uid;
+
+        private UidNode(String _addr, int _port) {
+            addr = _addr;
+            port = _port;
+
+            ByteBuffer buff = ByteBuffer.allocate(4);
+            buff.putInt(port);
+            try {
+                MessageDigest hash = MessageDigest.getInstance("SHA-1");
+                hash.update(addr.getBytes());
+                hash.update(buff.array());
+                uid = Base64.getEncoder().encodeToString(hash.digest());
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Bench;
+
+import Model.Frame;
+import Model.Message;
+import Model.MessageCodec;
+import Model.Vote;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the work a Jondo does on each message it passes on, three ways:
+ * <ul>
+ *     <li>eager payload, decoding the whole frame into a Message, counting the hop and encoding every field again, as
+ *     every hop used to</li>
+ *     <li>lazy payload, decoding only the header of the Message, counting the hop and writing the payload as it
+ *     arrived, what a hop that has to change the message does now</li>
+ *     <li>header only, reading only the routing header into a Frame and sending the bytes it arrived as</li>
+ * </ul>
+ * Each case is warmed up and then run for a fixed time, we report time and heap allocated per hop.
+ * <p>
+ * Usage: ForwardBench [ballots per batch]
+ */
+public class ForwardBench {
+    /**
+     * Time in millis each case runs untimed so the JIT settles
+     */
+    private static final long WARMUP = 1000;
+    /**
+     * Time in millis each case is measured for
+     */
+    private static final long MEASURE = 2000;
+
+    /**
+     * Written by every case so the JIT cannot drop the work
+     */
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws IOException {
+        int ballots = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+
+        Vote ballot = new Vote.Builder(Message.newId(new java.util.Random(1))).setQuestion("Who should lead?")
+                .setOptions(List.of("Alice", "Bob", "Carol", "Dave")).setSelection("Carol").setVoterId("voter-1")
+                .setTimestamp("2024-11-05T12:00:00Z").build();
+        List<Vote> batch = new ArrayList<>();
+        for (int i = 0; i < ballots; i++) {
+            batch.add(ballot);
+        }
+
+        List<Message> messages = List.of(
+                new Message.Builder("DATA").setData("10.0.0.2", 80, "x".repeat(64)).setId("0123456789abcdef")
+                        .build(),
+                new Message.Builder("DATA").setData("10.0.0.2", 80, "x".repeat(4096)).setId("0123456789abcdef")
+                        .build(),
+                new Message.Builder("VOTE_CAST").setVoteCast("127.0.0.1", 5000, ballot).build(),
+                new Message.Builder("VOTE_CAST_BATCH").setVoteCastBatch("127.0.0.1", 5000, batch).build());
+        String[] names = {"DATA 64B", "DATA 4KB", "VOTE_CAST", "BATCH " + ballots};
+
+        System.out.printf("%-16s %-7s %-14s %12s %10s %10s%n", "message", "codec", "hop", "ops", "ns/op", "bytes/op");
+        for (String codec : List.of(MessageCodec.JSON, MessageCodec.BINARY)) {
+            for (int i = 0; i < messages.size(); i++) {
+                byte[] frame = MessageCodec.encode(messages.get(i), codec);
+                if (Frame.parse(frame, 0, frame.length) == null) {
+                    throw new IllegalStateException(names[i] + " in " + codec + " cannot be passed on as a frame");
+                }
+
+                run(names[i], codec, "eager payload", () -> MessageCodec.encode(
+                        eager(MessageCodec.decode(frame, 0, frame.length)), codec));
+                run(names[i], codec, "lazy payload", () -> {
+                    Message message = MessageCodec.decode(frame, 0, frame.length);
+                    return MessageCodec.encode(new Message.Builder(message).setHops(message.getHops() + 1).build(),
+                            codec);
+                });
+                run(names[i], codec, "header only", () -> Frame.parse(frame, 0, frame.length).getBytes());
+            }
+        }
+    }
+
+    /**
+     * Counts a hop the way it was done before payloads were decoded lazily, reading the payload and setting it again
+     * so it is encoded from its fields
+     *
+     * @param message Message that was read
+     * @return Message to pass on
+     */
+    private static Message eager(Message message) {
+        Message.Builder builder = new Message.Builder(message).setHops(message.getHops() + 1);
+        switch (message.getType()) {
+            case "DATA":
+                return builder.setData(message.getDstAddr(), message.getDstPort(), message.getData()).build();
+            case "VOTE_CAST":
+                return builder.setVoteCast(message.getDstAddr(), message.getDstPort(), message.getVote()).build();
+            default:
+                return builder.setVoteCastBatch(message.getDstAddr(), message.getDstPort(), message.getVotes())
+                        .build();
+        }
+    }
+
+    /**
+     * Runs one case and prints its row
+     *
+     * @param message String name of the message
+     * @param codec   String codec of the frame
+     * @param name    String name of the case
+     * @param op      Hop one hop
+     */
+    private static void run(String message, String codec, String name, Hop op) throws IOException {
+        loop(op, WARMUP);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        long ops = loop(op, MEASURE);
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+        System.out.printf("%-16s %-7s %-14s %12d %10.1f %10.1f%n", message, codec, name, ops, (double) elapsed / ops,
+                (double) allocated / ops);
+    }
+
+    /**
+     * Repeats a hop for a while, checking the clock every few hops so the clock is not what we measure
+     *
+     * @param op       Hop one hop
+     * @param duration long time in millis to run for
+     * @return long number of hops run
+     */
+    private static long loop(Hop op, long duration) throws IOException {
+        long deadline = System.nanoTime() + duration * 1000000;
+        long ops = 0;
+        do {
+            for (int i = 0; i < 64; i++) {
+                sink = op.run();
+            }
+            ops += 64;
+        } while (System.nanoTime() < deadline);
+        return ops;
+    }
+
+    /**
+     * One hop of a frame, returns the bytes that would be sent on
+     */
+    private interface Hop {
+        byte[] run() throws IOException;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Bench;
+
+import Blender.Blender;
+import Jondo.Jondo;
+import Jondo.JondoDriver;
+import Model.Configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares spreading membership by Blender broadcast and by gossip. For each crowd size we join that many Jondos to a
+ * fresh Blender on loopback and report how many membership messages the Blender sent, how many SYNCs it answered and
+ * how long after the last join every Jondo knew the whole crowd.
+ * <p>
+ * Usage: GossipBench [basePort] [fanout] [size ...]
+ */
+public class GossipBench {
+    /**
+     * Longest we wait for a crowd to converge
+     */
+    private static final long CONVERGE_TIMEOUT = 10000;
+    /**
+     * Background SYNC interval of the Jondos, short so Jondos the gossip missed catch up within the timeout
+     */
+    private static final int SYNC_INTERVAL = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int basePort = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int fanout = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        List<Integer> sizes = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            sizes.add(Integer.parseInt(args[i]));
+        }
+        if (sizes.isEmpty()) {
+            sizes = List.of(8, 16, 32, 64);
+        }
+
+        System.out.printf("%-10s %6s %14s %10s %8s %12s %11s %10s %14s%n", "membership", "jondos", "blender sends",
+                "per join", "syncs", "jondo sends", "duplicates", "converged", "converge ms");
+
+        for (int size : sizes) {
+            for (String membership : new String[] {"broadcast", "gossip"}) {
+                run(basePort, membership, fanout, size);
+                basePort += size + 1;
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Joins a crowd and prints one row of results
+     *
+     * @param basePort   int port of the Blender, Jondos use the ports after it
+     * @param membership String broadcast or gossip
+     * @param fanout     int gossip fanout
+     * @param size       int number of Jondos to join
+     * @throws InterruptedException if interrupted while waiting for the crowd
+     */
+    private static void run(int basePort, String membership, int fanout, int size) throws InterruptedException {
+        Blender blender = new Blender(new Configuration.Builder("blender").setAddr("127.0.0.1").setPort(basePort)
+                .setThreads(4).setServer("nio").setEventLoops(1).setMembership(membership).setGossipFanout(fanout)
+                .build());
+        Thread.sleep(200);
+
+        List<Jondo> crowd = new ArrayList<>();
+        for (int i = 1; i <= size; i++) {
+            crowd.add(new Jondo(new Configuration.Builder("jondo").setAddr("127.0.0.1").setPort(basePort + i)
+                    .setThreads(2).setServer("nio").setEventLoops(1).setBlender("127.0.0.1", basePort)
+                    .setSyncInterval(SYNC_INTERVAL).build(), new JondoDriver()));
+        }
+        long lastJoin = System.nanoTime();
+
+        // wait until every Jondo knows every Jondo
+        int converged = 0;
+        long deadline = lastJoin + CONVERGE_TIMEOUT * 1000000;
+        while (System.nanoTime() < deadline) {
+            converged = 0;
+            for (Jondo jondo : crowd) {
+                if (jondo.getRoutingTable().size() == size) {
+                    converged++;
+                }
+            }
+            if (converged == size) {
+                break;
+            }
+            Thread.sleep(2);
+        }
+        long convergeMillis = (System.nanoTime() - lastJoin) / 1000000;
+
+        long forwarded = 0;
+        long duplicates = 0;
+        for (Jondo jondo : crowd) {
+            forwarded += jondo.getRoutingSync().getGossipForwarded();
+            duplicates += jondo.getRoutingSync().getGossipDuplicates();
+        }
+
+        System.out.printf("%-10s %6d %14d %10.1f %8d %12d %11d %9d%% %14s%n", membership, size,
+                blender.getMembershipSends(), (double) blender.getMembershipSends() / size, blender.getSyncsServed(),
+                forwarded, duplicates, converged * 100 / size,
+                converged == size ? String.valueOf(convergeMillis) : "> " + CONVERGE_TIMEOUT);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Bench;
+
+import Model.Message;
+import Model.MessageCodec;
+import Model.MessageReader;
+import Model.Node;
+import Model.NodeId;
+import Model.RoutingIndex;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Measures how long a joining Jondo takes to decode the WELCOME and how much heap it needs to do it, for growing
+ * routing tables. Compares reading the whole frame and parsing it into a JSONObject (MessageReader.read) with
+ * streaming it into the rows of a routing index (MessageReader.readWelcome), in both codecs. The WELCOME is read from memory
+ * so the times are decode cost without the network.
+ * <p>
+ * Usage: JoinBench [size ...]
+ */
+public class JoinBench {
+    /**
+     * Number of timed decodes per case, the best is reported
+     */
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws IOException {
+        List<Integer> sizes = new ArrayList<>();
+        for (String arg : args) {
+            sizes.add(Integer.parseInt(arg));
+        }
+        if (sizes.isEmpty()) {
+            sizes = List.of(1000, 10000, 100000);
+        }
+
+        System.out.printf("%-7s %-9s %8s %12s %10s %14s%n", "codec", "decode", "nodes", "frame bytes", "best ms",
+                "peak heap MB");
+
+        for (int size : sizes) {
+            ConcurrentHashMap<NodeId, Node> table = new ConcurrentHashMap<>();
+            for (int i = 0; i < size; i++) {
+                Node node = new Node("10." + (i >> 16 & 0xFF) + "." + (i >> 8 & 0xFF) + "." + (i & 0xFF),
+                        5000 + i % 1000);
+                table.put(node.getId(), node);
+            }
+            Message welcome = new Message.Builder("WELCOME").setWelcome(table).setCodec(MessageCodec.JSON)
+                    .setEpoch(size).build();
+
+            for (String codec : new String[] {MessageCodec.JSON, MessageCodec.BINARY}) {
+                byte[] frame = MessageCodec.encode(welcome, codec);
+                run(codec, "whole", frame, size, false);
+                run(codec, "streamed", frame, size, true);
+            }
+        }
+    }
+
+    /**
+     * Decodes a frame RUNS times and prints the best time and the peak heap used by a decode
+     *
+     * @param codec    String codec of the frame
+     * @param decode   String name of the decode path
+     * @param frame    byte[] WELCOME frame
+     * @param size     int nodes in the frame
+     * @param streamed boolean true to use readWelcome, false to use read
+     * @throws IOException if the frame does not decode
+     */
+    private static void run(String codec, String decode, byte[] frame, int size, boolean streamed)
+            throws IOException {
+        long best = Long.MAX_VALUE;
+        long peak = 0;
+
+        for (int run = 0; run < RUNS; run++) {
+            System.gc();
+            long before = heapUsed();
+            resetPeaks();
+
+            long start = System.nanoTime();
+            MessageReader reader = new MessageReader(new ByteArrayInputStream(frame));
+            int decoded;
+            if (streamed) {
+                RoutingIndex.Builder rows = new RoutingIndex.Builder();
+                reader.readWelcome(rows);
+                decoded = rows.build().size();
+            } else {
+                decoded = reader.read().getRoutingTable().size();
+            }
+            long elapsed = System.nanoTime() - start;
+
+            if (decoded != size) {
+                throw new IllegalStateException("Decoded " + decoded + " of " + size);
+            }
+
+            best = Math.min(best, elapsed);
+            peak = Math.max(peak, heapPeak() - before);
+        }
+
+        System.out.printf("%-7s %-9s %8d %12d %10.1f %14.1f%n", codec, decode, size, frame.length, best / 1e6,
+                peak / (1024.0 * 1024.0));
+    }
+
+    /**
+     * Gets heap in use now
+     *
+     * @return long bytes
+     */
+    private static long heapUsed() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Gets the sum of the peak use of each heap pool since the last reset, pools peak at different times so this
+     * can overstate the true peak but never understates it
+     *
+     * @return long bytes
+     */
+    private static long heapPeak() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static void resetPeaks() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+}
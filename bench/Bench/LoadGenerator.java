@@ -0,0 +1,431 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Bench;
+
+import Blender.Blender;
+import Jondo.Jondo;
+import Model.Configuration;
+import Model.EventLoopServer;
+import Model.Message;
+import Model.MessageCodec;
+import merrimackutil.cli.LongOption;
+import merrimackutil.cli.OptionParser;
+import merrimackutil.util.Tuple;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Load tests a crowd without starting drivers by hand. Starts a Blender, a number of Jondos and a destination on
+ * loopback, then sends DATA and VOTE_CAST at fixed rates from random Jondos for a while. DATA goes through the crowd
+ * to the destination, which records how many hops it took and answers it, VOTE_CAST goes to the Blender.
+ * <p>
+ * Sends are paced on a schedule rather than waiting for replies, and each DATA is timed from when it was due to be
+ * sent, so a crowd that falls behind shows it in the latency rather than by quietly sending less. With replies relayed
+ * the latency is end to end, with ack it only covers the first hop. Hops are only counted when they are capped, the
+ * default cap of 32 is hit by about one message in a million at a forward probability of 66.
+ * <p>
+ * Reports DATA and ballot throughput, DATA latency percentiles, the hop count distribution and the threads and file
+ * descriptors (mostly sockets) the process used, which is what sizing threads and the crowd needs.
+ * <p>
+ * Usage: LoadGenerator [--jondos n] [--port base] [--data rate] [--votes rate] [--duration s] [--warmup s]
+ * [--threads n] [--server nio|blocking] [--codec json|binary] [--replies relay|ack] [--max-hops n] [--traces dir]
+ * <p>
+ * With --traces every Jondo traces the messages it sends and writes its hops to dir/trace-port.jsonl at the end,
+ * see TraceStitcher to put them together.
+ */
+public class LoadGenerator {
+    /**
+     * Time in millis between pacing ticks
+     */
+    private static final long TICK = 1;
+    /**
+     * Longest we wait for outstanding DATA and ballots once sending stops
+     */
+    private static final long DRAIN_TIMEOUT = 30000;
+    /**
+     * Vote ballots are cast in
+     */
+    private static final String VOTE_ID = "load";
+    /**
+     * Options ballots are spread over
+     */
+    private static final String[] OPTIONS = {"a", "b", "c", "d"};
+    /**
+     * Hops each Jondo keeps when tracing
+     */
+    private static final int TRACE_BUFFER = 1 << 18;
+
+    private static int jondos = 8;
+    private static int basePort = 22000;
+    private static int dataRate = 1000;
+    private static int voteRate = 100;
+    private static int duration = 10;
+    private static int warmup = 2;
+    private static int threads = 4;
+    private static String server = "nio";
+    private static String codec = MessageCodec.BINARY;
+    private static String replies = "relay";
+    private static int maxHops = 32;
+    private static String traceDir = null;
+
+    /**
+     * Where results are printed, System.out is silenced while the crowd runs
+     */
+    private static PrintStream out = System.out;
+
+    /**
+     * DATA latencies in nanos of the measured part of the run, filled up to recorded
+     */
+    private static long[] latencies;
+    private static AtomicInteger recorded = new AtomicInteger();
+    private static AtomicLong dataSent = new AtomicLong();
+    private static AtomicLong dataDone = new AtomicLong();
+    private static AtomicLong dataFailed = new AtomicLong();
+    /**
+     * DATA the destination received by hop count
+     */
+    private static AtomicLongArray hops;
+    /**
+     * True while the measured part of the run goes on
+     */
+    private static volatile boolean measuring;
+
+    private static void usage() {
+        out.println("Usage:");
+        out.println("   LoadGenerator [options]");
+        out.println("Options:");
+        out.println("  -j, --jondos\t\tNumber of Jondos in the crowd, default 8");
+        out.println("  -p, --port\t\tPort of the Blender, the Jondos and destination use the ports after it");
+        out.println("  -d, --data\t\tDATA sent per second, default 1000");
+        out.println("  -v, --votes\t\tVOTE_CAST sent per second, default 100");
+        out.println("  -s, --duration\tSeconds measured, default 10");
+        out.println("  -w, --warmup\t\tSeconds of load before measuring, default 2");
+        out.println("  -t, --threads\t\tThreads of the Blender and each Jondo, default 4");
+        out.println("  -e, --server\t\tnio or blocking, default nio");
+        out.println("  -c, --codec\t\tjson or binary, default binary");
+        out.println("  -r, --replies\t\trelay or ack, default relay");
+        out.println("  -m, --max-hops\tCap on hops so they are counted, 0 for none, default 32");
+        out.println("  -T, --traces\t\tDirectory to write the trace of each Jondo to, default no tracing");
+        out.println("  -h, --help\t\tDisplays the usage");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        parseArgs(args);
+
+        // the Blender prints a line per ballot it tallies, which would drown the results
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        String addr = "127.0.0.1";
+        int sinkPort = basePort + jondos + 1;
+        latencies = new long[(int) Math.min(Integer.MAX_VALUE - 8, (long) dataRate * duration + dataRate)];
+        hops = new AtomicLongArray(maxHops + 2);
+
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        ThreadMXBean threadMX = ManagementFactory.getThreadMXBean();
+        long baseThreads = threadMX.getThreadCount();
+        long baseFds = openFiles(os);
+
+        Blender blender = new Blender(new Configuration.Builder("blender").setAddr(addr).setPort(basePort)
+                .setThreads(threads).setServer(server).setCodec(codec).build());
+        EventLoopServer sink = startSink(sinkPort);
+
+        List<Jondo> crowd = new ArrayList<>();
+        for (int i = 1; i <= jondos; i++) {
+            crowd.add(new Jondo(new Configuration.Builder("jondo").setAddr(addr).setPort(basePort + i)
+                    .setThreads(threads).setServer(server).setCodec(codec).setReplies(replies).setMaxHops(maxHops)
+                    .setTraceBuffer(traceDir == null ? 0 : TRACE_BUFFER).setBlender(addr, basePort).build(), null));
+        }
+        waitForCrowd(crowd);
+
+        out.printf("crowd of %d Jondos on %s, %s codec, %s replies, %d threads each, max hops %d%n", jondos, server,
+                codec, replies, threads, maxHops);
+        out.printf("sending %d DATA/s and %d VOTE_CAST/s for %ds after %ds of warmup%n", dataRate, voteRate,
+                duration, warmup);
+
+        long start = System.nanoTime();
+        long measureStart = start + warmup * 1000000000L;
+        long end = measureStart + duration * 1000000000L;
+        AtomicLong votesSent = new AtomicLong();
+        long[] peaks = {0, 0};
+
+        ScheduledExecutorService pacer = Executors.newSingleThreadScheduledExecutor();
+        pacer.scheduleAtFixedRate(() -> {
+            long now = Math.min(System.nanoTime(), end);
+            measuring = now >= measureStart;
+            long dueData = (now - start) * dataRate / 1000000000L;
+            for (long i = dataSent.get(); i < dueData; i = dataSent.incrementAndGet()) {
+                sendData(crowd, start + i * 1000000000L / dataRate, measureStart, sinkPort);
+            }
+            long dueVotes = (now - start) * voteRate / 1000000000L;
+            for (long i = votesSent.get(); i < dueVotes; i = votesSent.incrementAndGet()) {
+                crowd.get((int) (i % jondos)).sendVoteCast(VOTE_ID, OPTIONS[(int) (i % OPTIONS.length)]);
+            }
+        }, 0, TICK, TimeUnit.MILLISECONDS);
+
+        // sample usage once the warmup has opened every connection it is going to
+        while (System.nanoTime() < end) {
+            Thread.sleep(100);
+            if (System.nanoTime() >= measureStart) {
+                peaks[0] = Math.max(peaks[0], threadMX.getThreadCount());
+                peaks[1] = Math.max(peaks[1], openFiles(os));
+            }
+        }
+        pacer.shutdown();
+        pacer.awaitTermination(1, TimeUnit.SECONDS);
+        long sendEnd = System.nanoTime();
+
+        // wait out what is still in flight
+        long deadline = sendEnd + DRAIN_TIMEOUT * 1000000;
+        long tallied = 0;
+        while (System.nanoTime() < deadline) {
+            tallied = 0;
+            for (int votes : blender.getVoteResults(VOTE_ID).values()) {
+                tallied += votes;
+            }
+            if (tallied >= votesSent.get() && dataDone.get() + dataFailed.get() >= dataSent.get()) {
+                break;
+            }
+            Thread.sleep(5);
+        }
+        long drained = System.nanoTime() - sendEnd;
+
+        report(votesSent.get(), tallied, sendEnd - start, drained);
+        out.printf("%nthreads %d (%d before the crowd started), file descriptors %d (%d before)%n", peaks[0],
+                baseThreads, peaks[1], baseFds);
+
+        if (traceDir != null) {
+            Files.createDirectories(Path.of(traceDir));
+            for (int i = 0; i < crowd.size(); i++) {
+                crowd.get(i).getTraces().write(Path.of(traceDir, "trace-" + (basePort + 1 + i) + ".jsonl"));
+            }
+            out.printf("traces written to %s%n", traceDir);
+        }
+
+        sink.close();
+        System.exit(0);
+    }
+
+    /**
+     * Sends one DATA from a random Jondo and records its latency once it is answered
+     *
+     * @param crowd        List of Jondos to send from
+     * @param due          long nanos the DATA was due to be sent at, its latency is measured from then
+     * @param measureStart long nanos the measured part of the run starts at
+     * @param sinkPort     int port of the destination
+     */
+    private static void sendData(List<Jondo> crowd, long due, long measureStart, int sinkPort) {
+        Jondo jondo = crowd.get(ThreadLocalRandom.current().nextInt(crowd.size()));
+        jondo.sendAsync("load " + due, "127.0.0.1", sinkPort).whenComplete((reply, error) -> {
+            long latency = System.nanoTime() - due;
+            if (error != null) {
+                dataFailed.incrementAndGet();
+                return;
+            }
+
+            dataDone.incrementAndGet();
+            if (due >= measureStart) {
+                int slot = recorded.getAndIncrement();
+                if (slot < latencies.length) {
+                    latencies[slot] = latency;
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts the destination of every DATA, which counts its hops and answers it
+     *
+     * @param port int port to listen on
+     * @return EventLoopServer of the destination
+     * @throws IOException if the port cannot be bound
+     */
+    private static EventLoopServer startSink(int port) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        EventLoopServer sink = new EventLoopServer(port, 1, workers, () -> (message, reply) -> {
+            if (!message.getType().equals("DATA")) {
+                return true;
+            }
+
+            if (measuring) {
+                hops.incrementAndGet(Math.min(message.getHops(), hops.length() - 1));
+            }
+            reply.reply(new Message.Builder("ACK").setAck("127.0.0.1", port).setId(message.getId())
+                    .setReplyData("ok").build());
+            return true;
+        });
+        sink.start();
+        return sink;
+    }
+
+    /**
+     * Waits until every Jondo has heard of every other, the later joins take a moment to reach the earlier Jondos
+     *
+     * @param crowd List of Jondos
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static void waitForCrowd(List<Jondo> crowd) throws InterruptedException {
+        long deadline = System.nanoTime() + DRAIN_TIMEOUT * 1000000;
+        for (Jondo jondo : crowd) {
+            while (jondo.getRoutingTable().size() < crowd.size() && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    /**
+     * Prints throughput, latency percentiles and the hop distribution
+     *
+     * @param votesSent long VOTE_CAST sent
+     * @param tallied   long ballots the Blender tallied
+     * @param sending   long nanos spent sending
+     * @param drained   long nanos from when sending stopped until everything was answered or tallied
+     */
+    private static void report(long votesSent, long tallied, long sending, long drained) {
+        int count = Math.min(recorded.get(), latencies.length);
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+
+        out.println();
+        out.printf("%-10s %10s %10s %10s %12s%n", "", "sent", "done", "failed", "per second");
+        out.printf("%-10s %10d %10d %10d %12.0f%n", "DATA", dataSent.get(), dataDone.get(), dataFailed.get(),
+                dataDone.get() / ((sending + drained) / 1e9));
+        out.printf("%-10s %10d %10d %10d %12.0f%n", "VOTE_CAST", votesSent, tallied, votesSent - tallied,
+                tallied / ((sending + drained) / 1e9));
+        out.printf("in flight when sending stopped were done %.1f ms later%n", drained / 1e6);
+
+        out.println();
+        out.printf("DATA latency over %d measured, ms%n", count);
+        out.printf("%10s %10s %10s %10s %10s %10s%n", "p50", "p90", "p99", "p99.9", "max", "mean");
+        if (count > 0) {
+            double sum = 0;
+            for (long latency : sorted) {
+                sum += latency;
+            }
+            out.printf("%10.2f %10.2f %10.2f %10.2f %10.2f %10.2f%n", percentile(sorted, 0.5),
+                    percentile(sorted, 0.9), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                    sorted[count - 1] / 1e6, sum / count / 1e6);
+        }
+
+        long total = 0;
+        for (int i = 0; i < hops.length(); i++) {
+            total += hops.get(i);
+        }
+        out.println();
+        if (maxHops == 0) {
+            out.println("hops are not counted without a cap, run with --max-hops to see them");
+            return;
+        }
+        out.printf("%-6s %10s %8s%n", "hops", "DATA", "share");
+        for (int i = 0; i < hops.length(); i++) {
+            if (hops.get(i) > 0) {
+                out.printf("%-6d %10d %7.2f%%%n", i, hops.get(i), 100.0 * hops.get(i) / total);
+            }
+        }
+    }
+
+    /**
+     * Gets a percentile of sorted latencies
+     *
+     * @param sorted   long[] latencies in nanos sorted ascending, not empty
+     * @param fraction double percentile as a fraction
+     * @return double latency in millis
+     */
+    private static double percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    /**
+     * Gets the number of open file descriptors of the process, -1 where the JVM cannot tell
+     *
+     * @param os OperatingSystemMXBean of the JVM
+     * @return long open file descriptors
+     */
+    private static long openFiles(OperatingSystemMXBean os) {
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+            return ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the options into the static fields
+     *
+     * @param args String[] command line
+     */
+    private static void parseArgs(String[] args) {
+        OptionParser parser = new OptionParser(args);
+        LongOption[] opts = {
+                new LongOption("help", false, 'h'),
+                new LongOption("jondos", true, 'j'),
+                new LongOption("port", true, 'p'),
+                new LongOption("data", true, 'd'),
+                new LongOption("votes", true, 'v'),
+                new LongOption("duration", true, 's'),
+                new LongOption("warmup", true, 'w'),
+                new LongOption("threads", true, 't'),
+                new LongOption("server", true, 'e'),
+                new LongOption("codec", true, 'c'),
+                new LongOption("replies", true, 'r'),
+                new LongOption("max-hops", true, 'm'),
+                new LongOption("traces", true, 'T'),
+        };
+        parser.setLongOpts(opts);
+        parser.setOptString("hj:p:d:v:s:w:t:e:c:r:m:T:");
+
+        try {
+            while (parser.getOptIdx() != args.length) {
+                Tuple<Character, String> currOpt = parser.getLongOpt(false);
+                switch (currOpt.getFirst()) {
+                    case 'j' -> jondos = Integer.parseInt(currOpt.getSecond());
+                    case 'p' -> basePort = Integer.parseInt(currOpt.getSecond());
+                    case 'd' -> dataRate = Integer.parseInt(currOpt.getSecond());
+                    case 'v' -> voteRate = Integer.parseInt(currOpt.getSecond());
+                    case 's' -> duration = Integer.parseInt(currOpt.getSecond());
+                    case 'w' -> warmup = Integer.parseInt(currOpt.getSecond());
+                    case 't' -> threads = Integer.parseInt(currOpt.getSecond());
+                    case 'e' -> server = currOpt.getSecond();
+                    case 'c' -> codec = currOpt.getSecond();
+                    case 'r' -> replies = currOpt.getSecond();
+                    case 'm' -> maxHops = Integer.parseInt(currOpt.getSecond());
+                    case 'T' -> traceDir = currOpt.getSecond();
+                    default -> usage();
+                }
+            }
+        } catch (NumberFormatException e) {
+            out.println("Options take whole numbers: " + e.getMessage());
+            usage();
+        }
+
+        if (jondos < 2 || dataRate < 0 || voteRate < 0 || duration < 1 || warmup < 0 || threads < 1
+                || maxHops < 0) {
+            usage();
+        }
+    }
+}
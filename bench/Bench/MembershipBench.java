@@ -0,0 +1,110 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Bench;
+
+import Blender.MembershipStore;
+import Blender.VersionedRoutingTable;
+import Model.Node;
+import Model.NodeId;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Measures how fast a restarted Blender gets its crowd back. For each crowd size we join that many Jondos to a table
+ * saved in a membership store, then time loading the store, which keeps each UID, against building the same table
+ * from addresses and ports, which hashes every UID again.
+ * <p>
+ * Usage: MembershipBench [size ...]
+ */
+public class MembershipBench {
+    /**
+     * Number of timed loads per case, the best is reported
+     */
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws IOException {
+        List<Integer> sizes = new ArrayList<>();
+        for (String arg : args) {
+            sizes.add(Integer.parseInt(arg));
+        }
+        if (sizes.isEmpty()) {
+            sizes = List.of(1000, 10000, 100000);
+        }
+
+        System.out.printf("%8s %12s %10s %12s %12s%n", "jondos", "store bytes", "join ms", "load ms", "rehash ms");
+        for (int size : sizes) {
+            run(size);
+        }
+    }
+
+    /**
+     * Fills a store, times loading it and rebuilding it, and prints a row
+     *
+     * @param size int number of Jondos in the crowd
+     * @throws IOException if the store cannot be written or read
+     */
+    private static void run(int size) throws IOException {
+        Path dir = Files.createTempDirectory("membership");
+        List<Node> crowd = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            crowd.add(new Node("10." + (i >> 16 & 0xFF) + "." + (i >> 8 & 0xFF) + "." + (i & 0xFF), 5000 + i % 1000));
+        }
+
+        // every join is synced on its own, as the Blender does
+        long start = System.nanoTime();
+        VersionedRoutingTable table = new VersionedRoutingTable(VersionedRoutingTable.DEFAULT_HISTORY,
+                new MembershipStore(dir));
+        for (Node node : crowd) {
+            table.add(node);
+        }
+        long join = System.nanoTime() - start;
+
+        long bytes = 0;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path path : files.toList()) {
+                bytes += Files.size(path);
+            }
+        }
+
+        long load = Long.MAX_VALUE;
+        long rehash = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            start = System.nanoTime();
+            MembershipStore store = new MembershipStore(dir);
+            load = Math.min(load, System.nanoTime() - start);
+            if (store.getNodes().size() != size) {
+                throw new IllegalStateException("Loaded " + store.getNodes().size() + " of " + size);
+            }
+
+            start = System.nanoTime();
+            ConcurrentHashMap<NodeId, Node> rebuilt = new ConcurrentHashMap<>();
+            for (Node node : crowd) {
+                Node copy = new Node(node.getAddr(), node.getPort());
+                rebuilt.put(copy.getId(), copy);
+            }
+            rehash = Math.min(rehash, System.nanoTime() - start);
+        }
+
+        System.out.printf("%8d %12d %10.1f %12.1f %12.1f%n", size, bytes, join / 1e6, load / 1e6, rehash / 1e6);
+
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
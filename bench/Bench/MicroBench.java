@@ -0,0 +1,337 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Bench;
+
+import Blender.Blender;
+import Jondo.CoinFlipPolicy;
+import Model.Configuration;
+import Model.Message;
+import Model.MessageCodec;
+import Model.Metrics;
+import Model.Node;
+import Model.NodeId;
+import Model.RoutingIndex;
+import Model.Vote;
+import merrimackutil.json.types.JSONArray;
+import merrimackutil.json.types.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.function.IntFunction;
+
+/**
+ * Benchmarks the hot paths under load: encoding and decoding every message type in both codecs, computing a Node UID,
+ * picking a random next hop, flipping the forwarding coin, tallying a vote and recording the metrics of a message. All
+ * but the codecs run on 1 to 64 threads at once so we see how they hold up under contention.
+ * <p>
+ * Each case is warmed up, then measured for a few iterations of fixed length. Every thread counts its operations and
+ * the heap it allocated, a row reports the mean operations per second over the iterations, with the slowest and
+ * fastest, and time and bytes per operation for each thread. Results are printed as a table and written as JSON so
+ * runs can be compared over time.
+ * <p>
+ * Usage: MicroBench [out.json] [threads ...]
+ */
+public class MicroBench {
+    /**
+     * Time in millis each case runs untimed so the JIT settles
+     */
+    private static final long WARMUP = 1000;
+    /**
+     * Time in millis of each measured iteration
+     */
+    private static final long MEASURE = 1000;
+    /**
+     * Measured iterations per case
+     */
+    private static final int ITERATIONS = 3;
+    /**
+     * Jondos in the routing tables we pick from and the large WELCOME
+     */
+    private static final int CROWD = 10000;
+    /**
+     * Options votes are spread over
+     */
+    private static final String[] OPTIONS = {"a", "b", "c", "d"};
+
+    /**
+     * Never returned by an operation, each result is compared against it so the JIT cannot drop the work
+     */
+    private static final Object MARKER = new Object();
+    /**
+     * Written once per thread when a result matched MARKER, which never happens
+     */
+    private static volatile boolean sink;
+    /**
+     * Where results are printed, System.out is silenced while the Blender runs
+     */
+    private static PrintStream out = System.out;
+    /**
+     * Rows written out as JSON
+     */
+    private static JSONArray results = new JSONArray();
+
+    public static void main(String[] args) throws Exception {
+        Path output = Path.of(args.length > 0 ? args[0] : "bench-results.json");
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            threadCounts.add(Integer.parseInt(args[i]));
+        }
+        if (threadCounts.isEmpty()) {
+            threadCounts = List.of(1, 2, 4, 8, 16, 32, 64);
+        }
+
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        out.printf("%-16s %-26s %7s %14s %12s %12s %12s%n", "benchmark", "params", "threads", "ops/s", "+-",
+                "ns/op", "bytes/op");
+
+        codecs();
+        contended(threadCounts);
+
+        JSONObject report = new JSONObject();
+        report.put("java", System.getProperty("java.version"));
+        report.put("cores", Runtime.getRuntime().availableProcessors());
+        report.put("timestamp", System.currentTimeMillis());
+        report.put("warmupMillis", WARMUP);
+        report.put("measureMillis", MEASURE);
+        report.put("iterations", ITERATIONS);
+        report.put("results", results);
+        // getFormattedJSON drops the exponent of large and small doubles, toJSON keeps it
+        Files.write(output, (report.toJSON() + "\n").getBytes(StandardCharsets.UTF_8));
+        out.println();
+        out.println("Results written to " + output.toAbsolutePath());
+        System.exit(0);
+    }
+
+    /**
+     * Encodes and decodes a message of every type in both codecs on one thread
+     *
+     * @throws IOException if a message does not decode
+     */
+    private static void codecs() throws IOException {
+        ConcurrentHashMap<NodeId, Node> small = crowd(10);
+        ConcurrentHashMap<NodeId, Node> large = crowd(CROWD);
+        Vote ballot = new Vote.Builder("bench").setSelection("a").build();
+        Vote vote = new Vote.Builder("bench").setQuestion("Which option?").setOptions(List.of(OPTIONS)).build();
+        Vote result = new Vote.Builder("bench").setResults(List.of("a: 25", "b: 25", "c: 25", "d: 25")).build();
+        List<Vote> ballots = new ArrayList<>();
+        for (int i = 0; i < 256; i++) {
+            ballots.add(new Vote.Builder("bench").setSelection(OPTIONS[i % OPTIONS.length]).build());
+        }
+        Node node = new Node("10.0.0.1", 5000);
+
+        List<Message> messages = new ArrayList<>();
+        messages.add(new Message.Builder("HELLO").setHello("10.0.0.1", 5000).setCodec(MessageCodec.BINARY).build());
+        messages.add(new Message.Builder("WELCOME").setWelcome(small).setEpoch(10).build());
+        messages.add(new Message.Builder("WELCOME").setWelcome(large).setEpoch(CROWD).build());
+        messages.add(new Message.Builder("BROADCAST").setBroadcast(node).setEpoch(1).build());
+        messages.add(new Message.Builder("DATA").setData("10.0.0.2", 80, "GET / HTTP/1.1").setId("1").build());
+        messages.add(new Message.Builder("VOTE_BROADCAST").setVoteBroadcast(vote).build());
+        messages.add(new Message.Builder("VOTE_CAST").setVoteCast("10.0.0.3", 5000, ballot).build());
+        messages.add(new Message.Builder("VOTE_CAST_BATCH").setVoteCastBatch("10.0.0.3", 5000, ballots).build());
+        messages.add(new Message.Builder("VOTE_RESULTS_QUERY")
+                .setVoteResultsQuery("10.0.0.3", 5000, ballot, "10.0.0.1", 5000).build());
+        messages.add(new Message.Builder("VOTE_RESULTS")
+                .setVoteResults(result, "10.0.0.1", 5000, "10.0.0.3", 5000).build());
+        messages.add(new Message.Builder("ACK").setAck("10.0.0.2", 80).setId("1").setReplyData("200 OK").build());
+        messages.add(new Message.Builder("LEAVE").setLeave("10.0.0.1", 5000).build());
+        messages.add(new Message.Builder("SYNC").setId("1").setEpoch(10).build());
+        messages.add(new Message.Builder("SYNC_DELTA").setSyncDelta(12, false, List.of(node), List.of(node))
+                .setId("1").build());
+        messages.add(new Message.Builder("PATH_OPEN").setPath("p1").build());
+
+        for (String codec : List.of(MessageCodec.JSON, MessageCodec.BINARY)) {
+            for (Message message : messages) {
+                String params = message.getType() + " " + codec;
+                if (message.getRoutingTable() != null) {
+                    params += " " + message.getRoutingTable().size();
+                }
+                byte[] frame = MessageCodec.encode(message, codec);
+
+                run("serialize", params, 1, i -> MessageCodec.encode(message, codec));
+                run("deserialize", params, 1, i -> {
+                    try {
+                        return MessageCodec.decode(frame, 0, frame.length);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Runs the cases threads share state in at each number of threads
+     *
+     * @param threadCounts List of numbers of threads to run each case on
+     */
+    private static void contended(List<Integer> threadCounts) {
+        RoutingIndex index = new RoutingIndex(crowd(CROWD).values());
+        CoinFlipPolicy policy = new CoinFlipPolicy(66, 0);
+        Message data = new Message.Builder("DATA").setData("10.0.0.2", 80, "GET / HTTP/1.1").build();
+        Blender blender = new Blender(new Configuration.Builder("blender").setAddr("127.0.0.1").setPort(0)
+                .setThreads(1).setServer("nio").setEventLoops(1).build());
+        Metrics metrics = new Metrics();
+        Metrics.Histogram handlerTimes = metrics.histogram("handler.nanos");
+
+        for (int threads : threadCounts) {
+            run("uid", "", threads, i -> new Node("10.0.0.1", i & 0xFFFF).getId());
+            run("selectRandomNode", "crowd " + CROWD, threads, i -> policy.pickNextHop(index));
+            run("flipCoin", "66%", threads, i -> policy.shouldForward(data));
+            run("tallyVote", "1 vote", threads, i -> {
+                blender.tallyVote("bench", OPTIONS[i & 3]);
+                return null;
+            });
+            // what a connection handler records for every message
+            run("recordMetrics", "type + handler time", threads, i -> {
+                long start = System.nanoTime();
+                metrics.counter("messages", "DATA").increment();
+                handlerTimes.since(start);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Warms up and measures one case, prints its row and adds it to the results
+     *
+     * @param benchmark String name of the case
+     * @param params    String what the case was run with
+     * @param threads   int number of threads running the operation at once
+     * @param op        IntFunction one operation, given a count that goes up by one each call on that thread
+     */
+    private static void run(String benchmark, String params, int threads, IntFunction<Object> op) {
+        iteration(threads, op, WARMUP);
+
+        JSONArray scores = new JSONArray();
+        double sum = 0;
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        long ops = 0;
+        long allocated = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long[] counts = iteration(threads, op, MEASURE);
+            double score = counts[0] / (counts[1] / 1e9);
+            scores.add(score);
+            sum += score;
+            min = Math.min(min, score);
+            max = Math.max(max, score);
+            ops += counts[0];
+            allocated += counts[2];
+        }
+
+        double score = sum / ITERATIONS;
+        double nsPerOp = threads * 1e9 / score;
+        double bytesPerOp = (double) allocated / ops;
+        out.printf("%-16s %-26s %7d %14.0f %12.0f %12.1f %12.1f%n", benchmark, params, threads, score,
+                (max - min) / 2, nsPerOp, bytesPerOp);
+
+        JSONObject row = new JSONObject();
+        row.put("benchmark", benchmark);
+        row.put("params", params);
+        row.put("threads", threads);
+        row.put("opsPerSecond", score);
+        row.put("min", min);
+        row.put("max", max);
+        row.put("nsPerOp", nsPerOp);
+        row.put("bytesPerOp", bytesPerOp);
+        row.put("scores", scores);
+        results.add(row);
+    }
+
+    /**
+     * Runs an operation on a number of threads for a while, all starting together
+     *
+     * @param threads  int number of threads
+     * @param op       IntFunction one operation
+     * @param duration long time in millis to run for
+     * @return long[] operations run, nanos from the start until the last thread stopped and bytes allocated
+     */
+    private static long[] iteration(int threads, IntFunction<Object> op, long duration) {
+        long[] ops = new long[threads];
+        long[] allocated = new long[threads];
+        CyclicBarrier start = new CyclicBarrier(threads + 1);
+        List<Thread> workers = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            int worker = t;
+            Thread thread = new Thread(() -> {
+                com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory
+                        .getThreadMXBean();
+                try {
+                    start.await();
+                } catch (Exception e) {
+                    return;
+                }
+                long allocatedBefore = mx.getCurrentThreadAllocatedBytes();
+                long deadline = System.nanoTime() + duration * 1000000;
+                int count = 0;
+                boolean matched = false;
+                do {
+                    for (int i = 0; i < 64; i++) {
+                        matched |= op.apply(count++) == MARKER;
+                    }
+                } while (System.nanoTime() < deadline);
+                if (matched) {
+                    sink = true;
+                }
+                ops[worker] = count & 0xFFFFFFFFL;
+                allocated[worker] = mx.getCurrentThreadAllocatedBytes() - allocatedBefore;
+            }, "bench-" + t);
+            thread.start();
+            workers.add(thread);
+        }
+
+        long begin;
+        try {
+            start.await();
+            begin = System.nanoTime();
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        long[] totals = {0, elapsed, 0};
+        for (int t = 0; t < threads; t++) {
+            totals[0] += ops[t];
+            totals[2] += allocated[t];
+        }
+        return totals;
+    }
+
+    /**
+     * Builds a routing table of Jondos with distinct addresses
+     *
+     * @param size int number of Jondos
+     * @return ConcurrentHashMap key is UID of Jondo and value is Jondo
+     */
+    private static ConcurrentHashMap<NodeId, Node> crowd(int size) {
+        ConcurrentHashMap<NodeId, Node> table = new ConcurrentHashMap<>();
+        Random rand = new Random(42);
+        for (int i = 0; i < size; i++) {
+            Node node = new Node("10." + (i >> 16 & 0xFF) + "." + (i >> 8 & 0xFF) + "." + (i & 0xFF),
+                    5000 + rand.nextInt(1000));
+            table.put(node.getId(), node);
+        }
+        return table;
+    }
+}
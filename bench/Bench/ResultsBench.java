@@ -0,0 +1,138 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Bench;
+
+import Blender.BroadcastDispatcher;
+import Blender.ResultsPublisher;
+import Blender.VoteTally;
+import Model.ConnectionPool;
+import Model.Metrics;
+import Model.Vote;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compares answering results queries by reading and formatting the tally every time, as the Blender used to, with
+ * answering them from the versioned snapshot of the vote. Each row casts one ballot every so many queries, the more
+ * queries per ballot the more often the snapshot is still current. We report time and heap allocated per query.
+ * <p>
+ * Usage: ResultsBench [options] [queries per ballot ...]
+ */
+public class ResultsBench {
+    /**
+     * Time in millis each case runs untimed so the JIT settles
+     */
+    private static final long WARMUP = 1000;
+    /**
+     * Time in millis each case is measured for
+     */
+    private static final long MEASURE = 2000;
+
+    /**
+     * Written by every query so the JIT cannot drop the work
+     */
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        int options = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        List<Integer> ratios = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            ratios.add(Integer.parseInt(args[i]));
+        }
+        if (ratios.isEmpty()) {
+            ratios = List.of(1, 10, 100, 1000);
+        }
+
+        String[] names = new String[options];
+        for (int i = 0; i < options; i++) {
+            names[i] = "option " + i;
+        }
+
+        System.out.printf("%-10s %8s %12s %10s %10s%n", "answer", "q/ballot", "queries", "ns/query", "bytes/query");
+        for (int ratio : ratios) {
+            run("rebuild", ratio, names, false);
+            run("snapshot", ratio, names, true);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Runs one case and prints its row
+     *
+     * @param name     String name of the case
+     * @param ratio    int queries per ballot
+     * @param names    String[] options ballots are cast for
+     * @param snapshot boolean true to answer from snapshots
+     */
+    private static void run(String name, int ratio, String[] names, boolean snapshot) {
+        ConcurrentHashMap<String, VoteTally> tallies = new ConcurrentHashMap<>();
+        VoteTally tally = new VoteTally();
+        tallies.put("vote", tally);
+        for (String option : names) {
+            tally.cast(option, 1000);
+        }
+
+        Metrics metrics = new Metrics();
+        ResultsPublisher publisher = new ResultsPublisher(tallies, new BroadcastDispatcher(new ConnectionPool(), 1,
+                metrics.histogram("fanout")), "127.0.0.1", 0, 1000, metrics);
+
+        loop(publisher, tally, ratio, names, snapshot, WARMUP);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        long queries = loop(publisher, tally, ratio, names, snapshot, MEASURE);
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+        System.out.printf("%-10s %8d %12d %10.1f %10.1f%n", name, ratio, queries, (double) elapsed / queries,
+                (double) allocated / queries);
+    }
+
+    /**
+     * Answers queries for a while, casting a ballot every ratio queries
+     *
+     * @return long number of queries answered
+     */
+    private static long loop(ResultsPublisher publisher, VoteTally tally, int ratio, String[] names,
+                             boolean snapshot, long duration) {
+        long deadline = System.nanoTime() + duration * 1000000;
+        long queries = 0;
+        do {
+            for (int i = 0; i < ratio; i++) {
+                sink = snapshot ? publisher.get("vote").getResults() : rebuild(tally);
+            }
+            tally.cast(names[(int) (queries / ratio % names.length)]);
+            queries += ratio;
+        } while (System.nanoTime() < deadline);
+        return queries;
+    }
+
+    /**
+     * Answers a query the way the Blender did before snapshots
+     *
+     * @param tally VoteTally of the vote
+     * @return Vote with the formatted results
+     */
+    private static Vote rebuild(VoteTally tally) {
+        HashMap<String, Integer> results = tally.snapshot();
+        List<String> formattedResults = new ArrayList<>();
+        for (Entry<String, Integer> entry : results.entrySet()) {
+            formattedResults.add(entry.getKey() + ": " + entry.getValue());
+        }
+        return new Vote.Builder("vote").setResults(formattedResults).build();
+    }
+}
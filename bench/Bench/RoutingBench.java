@@ -0,0 +1,120 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Bench;
+
+import Model.Node;
+import Model.NodeId;
+import Model.RoutingIndex;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Compares picking a random next hop by copying the routing tables keys into a list, as Jondos used to, with picking
+ * a row of a RoutingIndex. Also times a join and leave on the index, the price of changing its columns.
+ * Each case is warmed up and then run for a fixed time, we report time and heap allocated per operation.
+ * <p>
+ * Usage: RoutingBench [size ...]
+ */
+public class RoutingBench {
+    /**
+     * Time in millis each case runs untimed so the JIT settles
+     */
+    private static final long WARMUP = 1000;
+    /**
+     * Time in millis each case is measured for
+     */
+    private static final long MEASURE = 2000;
+
+    /**
+     * Written by every case so the JIT cannot drop the work
+     */
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        List<Integer> sizes = new ArrayList<>();
+        for (String arg : args) {
+            sizes.add(Integer.parseInt(arg));
+        }
+        if (sizes.isEmpty()) {
+            sizes = List.of(1000, 100000, 1000000);
+        }
+
+        System.out.printf("%-14s %8s %12s %14s %14s%n", "case", "nodes", "ops", "ns/op", "bytes/op");
+
+        for (int size : sizes) {
+            ConcurrentHashMap<NodeId, Node> table = new ConcurrentHashMap<>();
+            for (int i = 0; i < size; i++) {
+                Node node = new Node("10." + (i >> 16 & 0xFF) + "." + (i >> 8 & 0xFF) + "." + (i & 0xFF),
+                        5000 + i % 1000);
+                table.put(node.getId(), node);
+            }
+            RoutingIndex index = new RoutingIndex(table.values());
+            Random rand = new Random(42);
+
+            run("copy keys", size, () -> {
+                ArrayList<NodeId> keys = new ArrayList<>(table.keySet());
+                return table.get(keys.get(rand.nextInt(keys.size())));
+            });
+            run("index pick", size, () -> index.pick(rand));
+
+            Node joining = new Node("192.168.0.1", 4000);
+            run("index churn", size, () -> {
+                index.putIfAbsent(joining);
+                return index.remove(joining.getId());
+            });
+        }
+    }
+
+    /**
+     * Runs one case and prints its row
+     *
+     * @param name String name of the case
+     * @param size int nodes in the routing table
+     * @param op   Supplier one operation
+     */
+    private static void run(String name, int size, Supplier<Object> op) {
+        loop(op, WARMUP);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        long ops = loop(op, MEASURE);
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+        System.out.printf("%-14s %8d %12d %14.1f %14.1f%n", name, size, ops, (double) elapsed / ops,
+                (double) allocated / ops);
+    }
+
+    /**
+     * Repeats an operation for a while, checking the clock every few operations so the clock is not what we measure
+     *
+     * @param op       Supplier one operation
+     * @param duration long time in millis to run for
+     * @return long number of operations run
+     */
+    private static long loop(Supplier<Object> op, long duration) {
+        long deadline = System.nanoTime() + duration * 1000000;
+        long ops = 0;
+        do {
+            for (int i = 0; i < 64; i++) {
+                sink = op.get();
+            }
+            ops += 64;
+        } while (System.nanoTime() < deadline);
+        return ops;
+    }
+}
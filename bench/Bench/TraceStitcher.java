@@ -0,0 +1,322 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Bench;
+
+import merrimackutil.cli.LongOption;
+import merrimackutil.cli.OptionParser;
+import merrimackutil.json.types.JSONObject;
+import merrimackutil.util.Tuple;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static merrimackutil.json.JsonIO.readObject;
+
+/**
+ * Stitches the trace buffers of a test crowd together by trace id and shows where the time of each traced message
+ * went. Each Jondo only knows its own hop, so the time between one hop writing a message and the next reading it is
+ * worked out here from their clocks, which only works for Jondos on the same host or with synced clocks.
+ * <p>
+ * The latency of a trace is from when its sender started sending it until the last Jondo wrote it to the
+ * destination, and is split into decode (reading the frame into a Message), queue (waiting for a handler thread),
+ * work (coin flip, routing and building the onward message), connect, write (encoding and writing to the next hop)
+ * and wire (in the kernel and on the network between hops). Traces whose first hop is no longer in any buffer are
+ * left out.
+ * <p>
+ * Usage: TraceStitcher [--slowest n] trace...  where each trace is a JSON lines file written by
+ * TraceBuffer.write, a directory of them or the /traces URL of a Jondo serving metrics
+ */
+public class TraceStitcher {
+    private static final String[] PARTS = {"decode", "queue", "work", "connect", "write", "wire"};
+
+    private static PrintStream out = System.out;
+    private static int slowest = 5;
+
+    private static void usage() {
+        out.println("Usage:");
+        out.println("   TraceStitcher [options] trace...");
+        out.println("Options:");
+        out.println("  -n, --slowest\t\tNumber of slowest traces to show hop by hop, default 5");
+        out.println("  -h, --help\t\tDisplays the usage");
+        out.println("Each trace is a trace-port.jsonl file, a directory of them or http://127.0.0.1:port/traces");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> sources = parseArgs(args);
+
+        Map<String, List<JSONObject>> traces = new HashMap<>();
+        int hops = 0;
+        for (String source : sources) {
+            for (String line : readLines(source)) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                JSONObject hop = readObject(line);
+                traces.computeIfAbsent(hop.getString("trace"), id -> new ArrayList<>()).add(hop);
+                hops++;
+            }
+        }
+
+        List<Trace> stitched = new ArrayList<>();
+        for (List<JSONObject> trace : traces.values()) {
+            trace.sort(Comparator.comparingLong(Trace::at));
+            if (trace.get(0).containsKey("first")) {
+                stitched.add(new Trace(trace));
+            }
+        }
+        out.printf("stitched %d hops into %d traces, %d left out without their first hop%n", hops,
+                stitched.size(), traces.size() - stitched.size());
+        if (stitched.isEmpty()) {
+            return;
+        }
+
+        report(stitched);
+
+        stitched.sort(Comparator.comparingLong((Trace trace) -> trace.latency).reversed());
+        for (int i = 0; i < Math.min(slowest, stitched.size()); i++) {
+            stitched.get(i).print();
+        }
+    }
+
+    /**
+     * Prints trace latency percentiles and the share of it each part took
+     *
+     * @param stitched List of traces
+     */
+    private static void report(List<Trace> stitched) {
+        long[] latencies = new long[stitched.size()];
+        long[][] parts = new long[PARTS.length][];
+        long[] totals = new long[PARTS.length];
+        for (int p = 0; p < PARTS.length; p++) {
+            parts[p] = new long[stitched.size()];
+        }
+
+        Map<Integer, Integer> lengths = new HashMap<>();
+        long sum = 0;
+        for (int i = 0; i < stitched.size(); i++) {
+            Trace trace = stitched.get(i);
+            latencies[i] = trace.latency;
+            sum += trace.latency;
+            for (int p = 0; p < PARTS.length; p++) {
+                parts[p][i] = trace.parts[p];
+                totals[p] += trace.parts[p];
+            }
+            lengths.merge(trace.hops.size(), 1, Integer::sum);
+        }
+
+        out.println();
+        out.printf("trace latency, ms%n");
+        out.printf("%10s %10s %10s %10s %10s%n", "p50", "p90", "p99", "max", "mean");
+        Arrays.sort(latencies);
+        out.printf("%10.3f %10.3f %10.3f %10.3f %10.3f%n", percentile(latencies, 0.5) / 1e6,
+                percentile(latencies, 0.9) / 1e6, percentile(latencies, 0.99) / 1e6,
+                latencies[latencies.length - 1] / 1e6, sum / 1e6 / latencies.length);
+
+        out.println();
+        out.printf("where the time went, per trace in ms%n");
+        out.printf("%-8s %8s %10s %10s %10s%n", "", "share", "p50", "p99", "max");
+        for (int p = 0; p < PARTS.length; p++) {
+            Arrays.sort(parts[p]);
+            out.printf("%-8s %7.1f%% %10.3f %10.3f %10.3f%n", PARTS[p], sum == 0 ? 0 : 100.0 * totals[p] / sum,
+                    percentile(parts[p], 0.5) / 1e6, percentile(parts[p], 0.99) / 1e6,
+                    parts[p][parts[p].length - 1] / 1e6);
+        }
+
+        out.println();
+        out.printf("%-6s %10s%n", "hops", "traces");
+        lengths.keySet().stream().sorted().forEach(length -> out.printf("%-6d %10d%n", length, lengths.get(length)));
+    }
+
+    /**
+     * Gets a percentile of sorted values
+     *
+     * @param sorted   long[] values sorted ascending, not empty
+     * @param fraction double percentile as a fraction
+     * @return long value
+     */
+    private static long percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    /**
+     * Reads the lines of a trace file, every trace file in a directory or a /traces URL
+     *
+     * @param source String path or URL
+     * @return List of lines
+     * @throws IOException if the source cannot be read
+     */
+    private static List<String> readLines(String source) throws IOException {
+        if (source.startsWith("http://") || source.startsWith("https://")) {
+            try (InputStream in = new URL(source).openStream()) {
+                return new String(in.readAllBytes(), StandardCharsets.UTF_8).lines().toList();
+            }
+        }
+
+        Path path = Path.of(source);
+        if (!Files.isDirectory(path)) {
+            return Files.readAllLines(path, StandardCharsets.UTF_8);
+        }
+
+        List<String> lines = new ArrayList<>();
+        try (Stream<Path> files = Files.list(path)) {
+            for (Path file : files.filter(file -> file.toString().endsWith(".jsonl")).sorted().toList()) {
+                lines.addAll(Files.readAllLines(file, StandardCharsets.UTF_8));
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Reads the options and returns the traces to read
+     *
+     * @param args String[] command line
+     * @return List of trace files, directories or URLs
+     */
+    private static List<String> parseArgs(String[] args) {
+        OptionParser parser = new OptionParser(args);
+        LongOption[] opts = {
+                new LongOption("help", false, 'h'),
+                new LongOption("slowest", true, 'n'),
+        };
+        parser.setLongOpts(opts);
+        parser.setOptString("hn:");
+
+        List<String> sources = new ArrayList<>();
+        try {
+            while (parser.getOptIdx() != args.length) {
+                if (!args[parser.getOptIdx()].startsWith("-")) {
+                    break;
+                }
+                Tuple<Character, String> currOpt = parser.getLongOpt(false);
+                switch (currOpt.getFirst()) {
+                    case 'n' -> slowest = Integer.parseInt(currOpt.getSecond());
+                    default -> usage();
+                }
+            }
+        } catch (NumberFormatException e) {
+            out.println("Options take whole numbers: " + e.getMessage());
+            usage();
+        }
+
+        sources.addAll(Arrays.asList(args).subList(parser.getOptIdx(), args.length));
+        if (sources.isEmpty() || slowest < 0) {
+            usage();
+        }
+        return sources;
+    }
+
+    /**
+     * Hops of one traced message in the order they happened, with its latency split into parts
+     */
+    private static class Trace {
+        private List<JSONObject> hops;
+        private long latency;
+        /**
+         * Nanos spent in each of PARTS
+         */
+        private long[] parts;
+
+        /**
+         * Stitches the hops of a trace
+         *
+         * @param _hops List of hops sorted by when they reached their Jondo, the first sent the message
+         */
+        private Trace(List<JSONObject> _hops) {
+            hops = _hops;
+            parts = new long[PARTS.length];
+
+            long start = at(hops.get(0));
+            long end = start;
+            for (int i = 0; i < hops.size(); i++) {
+                JSONObject hop = hops.get(i);
+                long decode = number(hop, "decode");
+                long queue = number(hop, "queue");
+                long connect = hop.containsKey("next") ? number(hop, "connect") : 0;
+                long write = hop.containsKey("next") ? number(hop, "write") : 0;
+                // a hop that passed nothing on, such as one whose connect failed, ends when its handler did
+                long done = hop.containsKey("next") ? number(hop, "sent") : decode + queue + number(hop, "handle");
+
+                parts[0] += decode;
+                parts[1] += queue;
+                parts[2] += Math.max(0, done - decode - queue - connect - write);
+                parts[3] += connect;
+                parts[4] += write;
+
+                end = at(hop) + done;
+                if (i + 1 < hops.size()) {
+                    parts[5] += Math.max(0, at(hops.get(i + 1)) - end);
+                }
+            }
+            latency = end - start;
+        }
+
+        /**
+         * Gets a time of a hop, JSON numbers are read back as doubles which hold them exactly
+         *
+         * @param hop JSONObject of hop
+         * @param key String name of time
+         * @return long time
+         */
+        private static long number(JSONObject hop, String key) {
+            return hop.getDouble(key).longValue();
+        }
+
+        /**
+         * Gets when a hop reached its Jondo
+         *
+         * @param hop JSONObject of hop
+         * @return long wall clock nanos, only as precise as the micros it was recorded in
+         */
+        private static long at(JSONObject hop) {
+            return number(hop, "at") * 1000;
+        }
+
+        /**
+         * Prints the hops of the trace, times in micros
+         */
+        private void print() {
+            out.println();
+            out.printf("trace %s %s, %.3f ms over %d hops%n", hops.get(0).getString("trace"),
+                    hops.get(0).getString("type"), latency / 1e6, hops.size());
+            out.printf("  %-22s %9s %9s %9s %9s %9s %9s %9s  %s%n", "node", "at", "decode", "queue", "handle",
+                    "connect", "write", "wire", "next");
+
+            long start = at(hops.get(0));
+            for (int i = 0; i < hops.size(); i++) {
+                JSONObject hop = hops.get(i);
+                boolean passed = hop.containsKey("next");
+                String wire = "";
+                if (passed && i + 1 < hops.size()) {
+                    wire = String.format("%.1f", (at(hops.get(i + 1)) - at(hop) - number(hop, "sent")) / 1e3);
+                }
+                out.printf("  %-22s %9.1f %9.1f %9.1f %9.1f %9s %9s %9s  %s%n", hop.getString("node"),
+                        (at(hop) - start) / 1e3, number(hop, "decode") / 1e3, number(hop, "queue") / 1e3,
+                        number(hop, "handle") / 1e3,
+                        passed ? String.format("%.1f", number(hop, "connect") / 1e3) : "",
+                        passed ? String.format("%.1f", number(hop, "write") / 1e3) : "", wire,
+                        passed ? hop.getString("next") : "");
+            }
+        }
+    }
+}
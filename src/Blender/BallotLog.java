@@ -0,0 +1,731 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Blender;
+
+import Model.MessageCodec;
+import Model.Vote;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+/**
+ * Append only log of the ballots the Blender counted, so the tallies survive a crash or restart. Ballots are written
+ * by a single thread through a FileChannel. Whatever ballots arrive while it waits on the disk are written and synced
+ * together next time round (group commit), so under load one fsync covers many ballots and syncing does not cap how
+ * fast votes can be cast. A ballot only completes once it is synced, the Blender counts it then.
+ * <p>
+ * The log is split into segments. After snapshotInterval ballots we start a new segment and write a snapshot of the
+ * tallies of every segment before it, then delete those segments. Recovery reads the snapshot and replays the
+ * segments after it, so it never replays more than about one interval of ballots. A segment ending in a record that
+ * was only partly written when we crashed is cut back to its last whole record, those ballots were never counted.
+ * <p>
+ * Segments are a sequence of records, one or more per sync: int length, int CRC32C of the payload, then the payload
+ * of an int ballot count and each ballots voteId and selection as binary codec strings.
+ */
+public class BallotLog {
+    /**
+     * First int of a snapshot file
+     */
+    private static final int SNAPSHOT_MAGIC = 0x42414C53;
+    private static final String SNAPSHOT = "tallies.snapshot";
+    private static final String SEGMENT_PREFIX = "ballots-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    /**
+     * Size in bytes we start a new record at when writing a big batch
+     */
+    private static final int RECORD_BYTES = 1 << 20;
+    /**
+     * Largest record we accept on recovery, a full record plus one more ballot, anything larger is a corrupt length
+     */
+    private static final int MAX_RECORD = RECORD_BYTES + MessageCodec.MAX_FRAME;
+    /**
+     * Distinct options of a vote we count by their raw bytes while replaying a record
+     */
+    private static final int RECORD_OPTIONS = 16;
+    /**
+     * Queued by close to stop the writer once everything before it is written
+     */
+    private static final Pending CLOSE = new Pending(Collections.emptyList());
+
+    /**
+     * Directory the snapshot and segments are in
+     */
+    private Path dir;
+    /**
+     * Ballots written to a segment before we start the next one and snapshot
+     */
+    private long snapshotInterval;
+    /**
+     * Ballots waiting for the writer
+     */
+    private LinkedBlockingQueue<Pending> queue;
+    /**
+     * Segment being written, only touched by the writer
+     */
+    private FileChannel segment;
+    private long segmentSeq;
+    private long segmentBallots;
+    /**
+     * Tallies of every ballot in the log, key is voteId then option, only touched by the writer once it starts
+     */
+    private HashMap<String, HashMap<String, Long>> tallies;
+    /**
+     * Copy of the tallies as recovered when the log was opened
+     */
+    private HashMap<String, HashMap<String, Long>> recovered;
+    /**
+     * Number of ballots and syncs written since the log was opened
+     */
+    private LongAdder ballots;
+    private LongAdder syncs;
+    private Thread writer;
+    private volatile boolean closed;
+
+    /**
+     * Opens the log in a directory, recovering the tallies from the snapshot and segments already there
+     *
+     * @param _dir              Path of the directory, created if it does not exist
+     * @param _snapshotInterval long ballots per segment before we snapshot
+     * @throws IOException if the log cannot be read or a segment before the last is corrupt
+     */
+    public BallotLog(Path _dir, long _snapshotInterval) throws IOException {
+        dir = _dir;
+        snapshotInterval = _snapshotInterval;
+        queue = new LinkedBlockingQueue<>();
+        tallies = new HashMap<>();
+        ballots = new LongAdder();
+        syncs = new LongAdder();
+
+        Files.createDirectories(dir);
+        long nextSeq = recover();
+        recovered = copy(tallies);
+
+        openSegment(nextSeq);
+
+        writer = new Thread(this::writeLoop, "ballot-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Gets the tallies recovered when the log was opened
+     *
+     * @return HashMap key is voteId, value is the number of ballots for each option
+     */
+    public HashMap<String, HashMap<String, Long>> getRecovered() {
+        return recovered;
+    }
+
+    /**
+     * Logs ballots, they are written with whatever else is waiting and synced in one go
+     *
+     * @param _ballots List of ballots each with a voteId and selection
+     * @return CompletableFuture that completes once the ballots are on disk, fails if they could not be written
+     */
+    public CompletableFuture<Void> append(List<Vote> _ballots) {
+        Pending pending = new Pending(_ballots);
+        if (closed) {
+            pending.done.completeExceptionally(new IOException("Ballot log is closed"));
+            return pending.done;
+        }
+
+        queue.add(pending);
+        return pending.done;
+    }
+
+    /**
+     * Gets number of ballots written since the log was opened
+     *
+     * @return long ballots
+     */
+    public long getBallots() {
+        return ballots.sum();
+    }
+
+    /**
+     * Gets number of syncs since the log was opened, ballots over syncs is how many ballots each fsync covered
+     *
+     * @return long syncs
+     */
+    public long getSyncs() {
+        return syncs.sum();
+    }
+
+    /**
+     * Writes everything already appended and closes the log
+     *
+     * @throws InterruptedException if interrupted waiting for the writer
+     */
+    public void close() throws InterruptedException {
+        closed = true;
+        queue.add(CLOSE);
+        writer.join();
+    }
+
+    /**
+     * Writes and syncs whatever is waiting until the log is closed
+     */
+    private void writeLoop() {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        List<Pending> batch = new ArrayList<>();
+
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+
+            boolean closing = batch.remove(CLOSE);
+            if (!batch.isEmpty()) {
+                commit(batch, record);
+            }
+            batch.clear();
+
+            if (closing) {
+                try {
+                    segment.close();
+                } catch (IOException e) {
+                    System.err.println("Blender: Error closing ballot log " + e.getMessage());
+                }
+                // fail anything that raced close into the queue
+                for (Pending late : queue) {
+                    late.done.completeExceptionally(new IOException("Ballot log is closed"));
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes the ballots of a batch as one record, syncs it and completes them
+     *
+     * @param batch  List of pending appends
+     * @param record ByteArrayOutputStream reused for the record
+     */
+    private void commit(List<Pending> batch, ByteArrayOutputStream record) {
+        int count = 0;
+        for (Pending pending : batch) {
+            count += pending.ballots.size();
+        }
+
+        long start = -1;
+        try {
+            start = segment.position();
+            record.reset();
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeLong(0);
+            out.writeInt(0);
+
+            // a big batch is split into records of about RECORD_BYTES, all synced together
+            int inRecord = 0;
+            for (Pending pending : batch) {
+                for (Vote ballot : pending.ballots) {
+                    MessageCodec.writeString(out, ballot.getVoteId());
+                    MessageCodec.writeString(out, ballot.getSelection());
+                    inRecord++;
+
+                    if (record.size() >= RECORD_BYTES) {
+                        writeRecord(record, inRecord);
+                        record.reset();
+                        out.writeLong(0);
+                        out.writeInt(0);
+                        inRecord = 0;
+                    }
+                }
+            }
+            if (inRecord > 0) {
+                writeRecord(record, inRecord);
+            }
+            segment.force(false);
+        } catch (IOException e) {
+            System.err.println("Blender: Unable to write " + count + " ballots to the log " + e.getMessage());
+            // cut off whatever part of the record made it so later records are not stuck behind it
+            try {
+                if (start >= 0) {
+                    segment.truncate(start);
+                }
+            } catch (IOException truncateError) {
+                System.err.println("Blender: Unable to cut back ballot log " + truncateError.getMessage());
+            }
+            for (Pending pending : batch) {
+                pending.done.completeExceptionally(e);
+            }
+            return;
+        }
+
+        for (Pending pending : batch) {
+            for (Vote ballot : pending.ballots) {
+                addVotes(tallies, ballot.getVoteId(), ballot.getSelection(), 1);
+            }
+            pending.done.complete(null);
+        }
+        ballots.add(count);
+        syncs.increment();
+
+        segmentBallots += count;
+        if (segmentBallots >= snapshotInterval) {
+            try {
+                roll();
+            } catch (IOException e) {
+                // the log is still whole, only recovery gets slower until the next snapshot works
+                System.err.println("Blender: Unable to snapshot ballot tallies " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Fills in the header of a record and writes it to the segment
+     *
+     * @param record ByteArrayOutputStream of the record, 12 bytes of header to fill then the ballots
+     * @param count  int number of ballots in the record
+     * @throws IOException if writing fails
+     */
+    private void writeRecord(ByteArrayOutputStream record, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(record.toByteArray());
+        buffer.putInt(8, count);
+
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), 8, buffer.limit() - 8);
+        buffer.putInt(0, buffer.limit() - 8);
+        buffer.putInt(4, (int) crc.getValue());
+
+        while (buffer.hasRemaining()) {
+            segment.write(buffer);
+        }
+    }
+
+    /**
+     * Starts the next segment, snapshots the tallies of every segment before it and deletes them
+     *
+     * @throws IOException if the segment or snapshot cannot be written
+     */
+    private void roll() throws IOException {
+        segment.close();
+        openSegment(segmentSeq + 1);
+
+        writeSnapshot(segmentSeq);
+        for (Entry<Long, Path> old : listSegments()) {
+            if (old.getKey() < segmentSeq) {
+                Files.deleteIfExists(old.getValue());
+            }
+        }
+    }
+
+    /**
+     * Opens a new empty segment for writing
+     *
+     * @param seq long sequence number of the segment
+     * @throws IOException if the segment cannot be created
+     */
+    private void openSegment(long seq) throws IOException {
+        segmentSeq = seq;
+        segmentBallots = 0;
+        segment = FileChannel.open(segmentPath(seq), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        syncDirectory();
+    }
+
+    /**
+     * Writes the tallies to a new snapshot and moves it over the old one, so there is always one whole snapshot
+     *
+     * @param nextSeq long first segment the snapshot does not cover
+     * @throws IOException if the snapshot cannot be written
+     */
+    private void writeSnapshot(long nextSeq) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(0);
+        out.writeLong(nextSeq);
+        MessageCodec.writeVarInt(out, tallies.size());
+        for (Entry<String, HashMap<String, Long>> vote : tallies.entrySet()) {
+            MessageCodec.writeString(out, vote.getKey());
+            MessageCodec.writeVarInt(out, vote.getValue().size());
+            for (Entry<String, Long> option : vote.getValue().entrySet()) {
+                MessageCodec.writeString(out, option.getKey());
+                out.writeLong(option.getValue());
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), 8, buffer.limit() - 8);
+        buffer.putInt(4, (int) crc.getValue());
+
+        Path tmp = dir.resolve(SNAPSHOT + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, dir.resolve(SNAPSHOT), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+    }
+
+    /**
+     * Loads the snapshot and replays the segments after it into tallies
+     *
+     * @return long sequence number for the next segment
+     * @throws IOException if the snapshot or a segment before the last is corrupt
+     */
+    private long recover() throws IOException {
+        long nextSeq = readSnapshot();
+
+        List<Entry<Long, Path>> segments = listSegments();
+        for (int i = 0; i < segments.size(); i++) {
+            long seq = segments.get(i).getKey();
+            if (seq < nextSeq) {
+                // covered by the snapshot, we crashed before deleting it
+                Files.deleteIfExists(segments.get(i).getValue());
+                continue;
+            }
+            replay(segments.get(i).getValue(), i == segments.size() - 1);
+            nextSeq = seq + 1;
+        }
+        dropIncomplete();
+        return nextSeq;
+    }
+
+    /**
+     * Drops ballots without a voteId or selection from the tallies. Blenders only log whole ballots now, but one
+     * logged before they checked would otherwise keep the Blender from starting, a tally cannot count a null option.
+     */
+    private void dropIncomplete() {
+        long dropped = 0;
+        HashMap<String, Long> noVote = tallies.remove(null);
+        if (noVote != null) {
+            for (long votes : noVote.values()) {
+                dropped += votes;
+            }
+        }
+        for (HashMap<String, Long> options : tallies.values()) {
+            Long votes = options.remove(null);
+            if (votes != null) {
+                dropped += votes;
+            }
+        }
+        if (dropped > 0) {
+            System.err.println("Blender: Dropped " + dropped + " ballots without a vote id or selection from the "
+                    + "ballot log in " + dir);
+        }
+    }
+
+    /**
+     * Reads the snapshot into tallies
+     *
+     * @return long first segment the snapshot does not cover, 0 if there is no snapshot
+     * @throws IOException if the snapshot is corrupt, the segments it covered are gone so we cannot go on without it
+     */
+    private long readSnapshot() throws IOException {
+        Path path = dir.resolve(SNAPSHOT);
+        if (!Files.exists(path)) {
+            return 0;
+        }
+
+        byte[] bytes = Files.readAllBytes(path);
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 8, Math.max(0, bytes.length - 8));
+        ByteBuffer header = ByteBuffer.wrap(bytes);
+        if (bytes.length < 16 || header.getInt(0) != SNAPSHOT_MAGIC || header.getInt(4) != (int) crc.getValue()) {
+            throw new InvalidObjectException("Ballot snapshot " + path + " is corrupt");
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 8, bytes.length - 8));
+        long nextSeq = in.readLong();
+        int votes = MessageCodec.readVarInt(in);
+        for (int i = 0; i < votes; i++) {
+            String voteId = MessageCodec.readString(in);
+            int options = MessageCodec.readVarInt(in);
+            for (int j = 0; j < options; j++) {
+                addVotes(tallies, voteId, MessageCodec.readString(in), in.readLong());
+            }
+        }
+        return nextSeq;
+    }
+
+    /**
+     * Replays the records of a segment into tallies
+     *
+     * @param path Path of the segment
+     * @param last boolean true if this is the newest segment, the only one a crash can leave a torn record in
+     * @throws IOException if the segment cannot be read, or is not the last and is corrupt
+     */
+    private void replay(Path path, boolean last) throws IOException {
+        long good = 0;
+        String torn = null;
+
+        try (InputStream file = Files.newInputStream(path)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(file, 1 << 16));
+            CRC32C crc = new CRC32C();
+            byte[] payload = new byte[0];
+
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                try {
+                    int expected = in.readInt();
+                    if (length < 0 || length > MAX_RECORD) {
+                        torn = "bad record length " + length;
+                        break;
+                    }
+                    if (payload.length < length) {
+                        payload = new byte[Math.max(length, payload.length * 2)];
+                    }
+                    in.readFully(payload, 0, length);
+
+                    crc.reset();
+                    crc.update(payload, 0, length);
+                    if ((int) crc.getValue() != expected) {
+                        torn = "bad checksum";
+                        break;
+                    }
+                } catch (EOFException e) {
+                    torn = "record cut short";
+                    break;
+                }
+
+                replayRecord(payload, length);
+                good += 8 + length;
+            }
+        }
+
+        if (torn != null) {
+            if (!last) {
+                throw new InvalidObjectException("Ballot log segment " + path + " is corrupt, " + torn);
+            }
+            System.err.println("Blender: Ballot log " + path + " ends in a partly written record, " + torn
+                    + ", cutting it back to " + good + " bytes");
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(good);
+                channel.force(true);
+            }
+        }
+    }
+
+    /**
+     * Counts the ballots of one record. Ballots of a record are nearly always for the same vote and one of a few
+     * options, so rather than decode two strings per ballot we compare raw bytes with the ones already seen in the
+     * record and only decode each distinct string once
+     *
+     * @param payload byte[] record payload
+     * @param length  int length of the payload
+     * @throws IOException if the payload is malformed
+     */
+    private void replayRecord(byte[] payload, int length) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(payload, 0, length);
+        int[] starts = new int[RECORD_OPTIONS];
+        int[] lengths = new int[RECORD_OPTIONS];
+        long[] votes = new long[RECORD_OPTIONS];
+        int distinct = 0;
+
+        int idStart = 0;
+        int idLength = -2;
+        HashMap<String, Long> options = null;
+
+        try {
+            int count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                int stringLength = readLength(in);
+                int start = skip(in, stringLength);
+                if (!sameBytes(payload, idStart, idLength, start, stringLength)) {
+                    countOptions(options, payload, starts, lengths, votes, distinct);
+                    distinct = 0;
+                    idStart = start;
+                    idLength = stringLength;
+                    options = tallies.computeIfAbsent(decode(payload, start, stringLength), k -> new HashMap<>());
+                }
+
+                stringLength = readLength(in);
+                start = skip(in, stringLength);
+                int option = 0;
+                while (option < distinct && !sameBytes(payload, starts[option], lengths[option], start, stringLength)) {
+                    option++;
+                }
+                if (option == RECORD_OPTIONS) {
+                    // more options than we track in one record, count this one the slow way
+                    options.merge(decode(payload, start, stringLength), 1L, Long::sum);
+                    continue;
+                }
+                if (option == distinct) {
+                    starts[option] = start;
+                    lengths[option] = stringLength;
+                    votes[option] = 0;
+                    distinct++;
+                }
+                votes[option]++;
+            }
+        } catch (BufferUnderflowException e) {
+            throw new InvalidObjectException("Ballot log record ends early");
+        }
+        countOptions(options, payload, starts, lengths, votes, distinct);
+    }
+
+    /**
+     * Adds the options counted in a record to the tallies of its vote
+     */
+    private static void countOptions(HashMap<String, Long> options, byte[] payload, int[] starts, int[] lengths,
+            long[] votes, int distinct) {
+        for (int i = 0; i < distinct; i++) {
+            options.merge(decode(payload, starts[i], lengths[i]), votes[i], Long::sum);
+        }
+    }
+
+    /**
+     * Reads the length of a binary codec string
+     *
+     * @param in ByteBuffer positioned at the string
+     * @return int number of bytes in the string, -1 for a null string
+     * @throws InvalidObjectException if the length is malformed
+     */
+    private static int readLength(ByteBuffer in) throws InvalidObjectException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.get() & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                // length is written one more than the byte count so 0 can mean null
+                return value - 1;
+            }
+        }
+        throw new InvalidObjectException("Malformed varint in ballot log");
+    }
+
+    /**
+     * Skips the bytes of a string
+     *
+     * @param in     ByteBuffer positioned after the length of the string
+     * @param length int number of bytes in the string, -1 for a null string
+     * @return int position the string starts at
+     */
+    private static int skip(ByteBuffer in, int length) {
+        int start = in.position();
+        in.position(start + Math.max(0, length));
+        return start;
+    }
+
+    /**
+     * Checks if two strings in the payload are the same, a length of -1 is a null string
+     */
+    private static boolean sameBytes(byte[] payload, int aStart, int aLength, int bStart, int bLength) {
+        return aLength == bLength && (aLength <= 0
+                || Arrays.equals(payload, aStart, aStart + aLength, payload, bStart, bStart + bLength));
+    }
+
+    private static String decode(byte[] payload, int start, int length) {
+        return length < 0 ? null : new String(payload, start, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Lists the segments in the directory oldest first
+     *
+     * @return List of sequence number and path of each segment
+     * @throws IOException if the directory cannot be read
+     */
+    private List<Entry<Long, Path>> listSegments() throws IOException {
+        List<Entry<Long, Path>> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String seq = name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length());
+                try {
+                    segments.add(new AbstractMap.SimpleEntry<>(Long.parseLong(seq), file));
+                } catch (NumberFormatException e) {
+                    System.err.println("Blender: Ignoring " + file + " in the ballot log");
+                }
+            }
+        }
+        segments.sort(Entry.comparingByKey());
+        return segments;
+    }
+
+    private Path segmentPath(long seq) {
+        return dir.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Syncs the directory so files we created or renamed survive a crash, not every platform can open a directory
+     * so this is best effort
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // nothing more we can do on this platform
+        }
+    }
+
+    /**
+     * Adds ballots for an option to a tally map
+     */
+    private static void addVotes(HashMap<String, HashMap<String, Long>> tallies, String voteId, String option,
+            long votes) {
+        tallies.computeIfAbsent(voteId, k -> new HashMap<>()).merge(option, votes, Long::sum);
+    }
+
+    /**
+     * Deep copy of a tally map
+     */
+    private static HashMap<String, HashMap<String, Long>> copy(HashMap<String, HashMap<String, Long>> tallies) {
+        HashMap<String, HashMap<String, Long>> copy = new HashMap<>();
+        for (Entry<String, HashMap<String, Long>> vote : tallies.entrySet()) {
+            copy.put(vote.getKey(), new HashMap<>(vote.getValue()));
+        }
+        return copy;
+    }
+
+    /**
+     * Ballots waiting to be written and the future completed once they are
+     */
+    private static class Pending {
+        private final List<Vote> ballots;
+        private final CompletableFuture<Void> done;
+
+        private Pending(List<Vote> _ballots) {
+            ballots = _ballots;
+            done = new CompletableFuture<>();
+        }
+    }
+}
@@ -9,22 +9,31 @@
  */
 package Blender;
 
+import Model.Configuration;
+import Model.ConnectionPool;
+import Model.EventLoopServer;
+import Model.HandlerExecutors;
+import Model.Metrics;
 import Model.Node;
+import Model.NodeId;
 import Model.Vote;
 import Model.Message;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.net.ConnectException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Blender Server
@@ -42,6 +51,10 @@ public class Blender {
      * Number of threads this server uses
      */
     private int threads;
+    /**
+     * Configuration this server was started with
+     */
+    private Configuration config;
     /**
      * ServerSocket object to accept connections
      */
@@ -51,15 +64,56 @@ public class Blender {
      * Concurrency helps us deal with case multiple threads(connections) try to
      * modify it at once
      */
-    private ConcurrentHashMap<String, Node> routingTable;
+    private ConcurrentHashMap<NodeId, Node> routingTable;
+    /**
+     * Versions the routing table so Jondos can ask for the changes since an epoch
+     */
+    private VersionedRoutingTable membership;
+    /**
+     * Number of membership messages (BROADCAST and LEAVE) this Blender has sent, shows how much of the work of
+     * spreading membership falls on us
+     */
+    private LongAdder membershipSends;
+    /**
+     * Number of SYNC requests this Blender has answered
+     */
+    private LongAdder syncsServed;
+    /**
+     * Random number generator used to pick who to gossip to
+     */
+    private SecureRandom randGen;
+    /**
+     * Tallies of each vote, key is voteId and value is the tally of its options
+     */
+    private ConcurrentHashMap<String, VoteTally> voteTallies;
     /**
-     * HashMap key is voteId and value is HashMap of options and their tallies
+     * Log ballots are written to before they are counted, null when tallies are only kept in memory
      */
-    private ConcurrentHashMap<String, HashMap<String, Integer>> voteTallies;
+    private BallotLog ballotLog;
     /**
      * Pool of threads to handle connections
      */
     private ExecutorService pool;
+    /**
+     * Persistent connections to Jondos used for broadcasts and replies
+     */
+    private ConnectionPool connectionPool;
+    /**
+     * Sends broadcasts to the crowd in parallel without holding up the thread that asked for them
+     */
+    private BroadcastDispatcher dispatcher;
+    /**
+     * Answers results queries from snapshots and pushes results to subscribed Jondos
+     */
+    private ResultsPublisher results;
+    /**
+     * Counters and timings published over JMX and optionally HTTP
+     */
+    private Metrics metrics;
+    /**
+     * Ballots counted into the tallies
+     */
+    private LongAdder ballotsTallied;
 
     /**
      * Creates a new Blender server to run an specified IP address, port and on
@@ -70,18 +124,49 @@ public class Blender {
      * @param _threads int Number of threads of connections for this server
      */
     public Blender(String _addr, int _port, int _threads) {
-        addr = _addr;
-        port = _port;
-        threads = _threads;
+        this(new Configuration.Builder("blender").setAddr(_addr).setPort(_port).setThreads(_threads).build());
+    }
+
+    /**
+     * Creates a new Blender server from a configuration
+     *
+     * @param _config Configuration of type blender
+     */
+    public Blender(Configuration _config) {
+        config = _config;
+        addr = config.getAddr();
+        port = config.getPort();
+        threads = config.getThreads();
+        metrics = new Metrics();
+        ballotsTallied = metrics.counter("ballots.tallied");
 
         // create new routing table
-        routingTable = new ConcurrentHashMap<>();
+        membership = config.getMembershipStore() == null ? new VersionedRoutingTable() : openMembershipStore();
+        routingTable = membership.getNodes();
         voteTallies = new ConcurrentHashMap<>();
+        if (config.getBallotLog() != null) {
+            openBallotLog();
+        }
+        membershipSends = new LongAdder();
+        syncsServed = new LongAdder();
+        randGen = new SecureRandom();
+
+        connectionPool = new ConnectionPool();
+        dispatcher = new BroadcastDispatcher(connectionPool, config.getBroadcastThreads(),
+                metrics.histogram("broadcast.fanout"));
+        results = new ResultsPublisher(voteTallies, dispatcher, addr, port, config.getResultsInterval(), metrics);
+
+        if (config.getServer().equals("nio")) {
+            // event loops hold the connections so handler threads are only busy while handling a message
+            pool = HandlerExecutors.create(config, false);
+            startEventLoopServer();
+        } else {
+            // create new pools for blender connections
+            pool = HandlerExecutors.create(config, true);
+            startServer();
+        }
 
-        // create new pools for blender connections
-        pool = Executors.newFixedThreadPool(threads);
-
-        startServer();
+        startMetrics();
     }
 
     public String getAddress() {
@@ -93,103 +178,396 @@ public class Blender {
     }
 
     /**
-     * Adds a new Jondo to Blenders Routing Table and broadcasts new table to crowd
+     * Gets the codec this Blender is configured with
+     *
+     * @return String json or binary
+     */
+    public String getCodec() {
+        return config.getCodec();
+    }
+
+    /**
+     * Adds a new Jondo to Blenders Routing Table and broadcasts new table to crowd. The broadcast is sent in the
+     * background so the Jondo can be welcomed right away.
      * 
      * @param newNode Jondo to add to routing table
      */
-    public synchronized void addJondo(Node newNode) {
-        // check if node is already in our routing table
-        if (routingTable.containsKey(newNode.getUid())) {
+    public void addJondo(Node newNode) {
+        // check if node is already in our routing table, the check and add are one step so two joins of the same node
+        // cannot both win
+        int epoch = membership.add(newNode);
+        if (epoch < 0) {
             System.err.println("Blender: Error adding Jondo, already in Routing Table");
             return;
         }
 
-        routingTable.put(newNode.getUid(), newNode);
-
         // broadcast new node to crowd
-        Message broadcast = new Message.Builder("BROADCAST").setBroadcast(newNode).build();
+        Message broadcast = new Message.Builder("BROADCAST").setBroadcast(newNode).setEpoch(epoch)
+                .setFanout(gossipFanout()).build();
+
+        // every Jondo except the new one, a Jondo joining at the same time either sees this node in its WELCOME or
+        // is in this list
+        List<Node> crowd = new ArrayList<>();
+        for (Node currNode : routingTable.values()) {
+            if (!currNode.getId().equals(newNode.getId())) {
+                crowd.add(currNode);
+            }
+        }
 
-        Node currNode = null;
+        spread(crowd, broadcast);
+    }
 
+    /**
+     * Removes a Jondo from Blenders Routing Table and tells the rest of the crowd in the background
+     *
+     * @param node Jondo to remove from routing table
+     */
+    public void removeJondo(Node node) {
+        int epoch = membership.remove(node);
+        if (epoch < 0) {
+            System.err.println("Blender: Error removing Jondo, not in Routing Table");
+            return;
+        }
+        connectionPool.evict(node.getId());
+        results.unsubscribe(node);
+
+        Message leave = new Message.Builder("LEAVE").setLeave(node.getAddr(), node.getPort()).setEpoch(epoch)
+                .setFanout(gossipFanout()).build();
+        spread(new ArrayList<>(routingTable.values()), leave);
+    }
+
+    /**
+     * Sends a membership change to the crowd. When broadcasting every Jondo gets it from us, when gossiping only a
+     * few random Jondos do and they pass it on, so our cost per change stays the same however big the crowd gets.
+     *
+     * @param crowd   List of Jondos that should learn of the change
+     * @param message Message BROADCAST or LEAVE to send
+     */
+    private void spread(List<Node> crowd, Message message) {
+        if (message.getFanout() > 0 && crowd.size() > message.getFanout()) {
+            Collections.shuffle(crowd, randGen);
+            crowd = crowd.subList(0, message.getFanout());
+        }
+
+        membershipSends.add(crowd.size());
+        dispatcher.broadcast(crowd, message);
+    }
+
+    /**
+     * Gets the fanout to put on membership changes
+     *
+     * @return int gossip fanout, 0 when broadcasting
+     */
+    private int gossipFanout() {
+        return config.getMembership().equals("gossip") ? config.getGossipFanout() : 0;
+    }
+
+    /**
+     * Gets number of membership messages this Blender has sent
+     *
+     * @return long number of BROADCAST and LEAVE messages sent
+     */
+    public long getMembershipSends() {
+        return membershipSends.sum();
+    }
+
+    /**
+     * Gets number of SYNC requests this Blender has answered
+     *
+     * @return long number of SYNCs
+     */
+    public long getSyncsServed() {
+        return syncsServed.sum();
+    }
+
+    /**
+     * Gets the changes to the routing table made after an epoch
+     *
+     * @param since int epoch the Jondo is up to date with
+     * @return VersionedRoutingTable.Delta of changes, or the whole table if the epoch is too old
+     */
+    public VersionedRoutingTable.Delta getChangesSince(int since) {
+        syncsServed.increment();
+        return membership.since(since);
+    }
+
+    /**
+     * Gets epoch of the routing table
+     *
+     * @return int epoch of the latest change
+     */
+    public int getEpoch() {
+        return membership.getEpoch();
+    }
+
+    /**
+     * Loads the crowd saved before a restart, the Jondos in it carry on without joining again
+     *
+     * @return VersionedRoutingTable of the saved crowd that saves every change
+     */
+    private VersionedRoutingTable openMembershipStore() {
+        MembershipStore store;
         try {
-            // for each Jondo in routing table send broadcast message
-            for (String uid : routingTable.keySet()) {
+            store = new MembershipStore(Paths.get(config.getMembershipStore()));
+        } catch (IOException e) {
+            // starting with an empty crowd would hand joining Jondos a table missing everyone else
+            System.err.println("Blender: Unable to load the crowd from " + config.getMembershipStore());
+            throw new RuntimeException(e);
+        }
+
+        System.out.println("Blender: Restored " + store.getNodes().size() + " Jondos at epoch " + store.getEpoch()
+                + " from " + config.getMembershipStore());
+        return new VersionedRoutingTable(VersionedRoutingTable.DEFAULT_HISTORY, store);
+    }
 
-                if (!uid.equals(newNode.getUid())) {
+    /**
+     * Opens the ballot log and restores the tallies it holds
+     */
+    private void openBallotLog() {
+        try {
+            ballotLog = new BallotLog(Paths.get(config.getBallotLog()), config.getSnapshotInterval());
+        } catch (IOException e) {
+            // starting with empty tallies would quietly lose every ballot already cast
+            System.err.println("Blender: Unable to recover ballots from " + config.getBallotLog());
+            throw new RuntimeException(e);
+        }
 
-                    // Current Jondo
-                    currNode = routingTable.get(uid);
+        long restored = 0;
+        for (Entry<String, HashMap<String, Long>> vote : ballotLog.getRecovered().entrySet()) {
+            VoteTally tally = new VoteTally();
+            for (Entry<String, Long> option : vote.getValue().entrySet()) {
+                tally.cast(option.getKey(), option.getValue());
+                restored += option.getValue();
+            }
+            voteTallies.put(vote.getKey(), tally);
+        }
+        System.out.println("Blender: Restored " + restored + " ballots from " + config.getBallotLog());
+    }
 
-                    // Connect to Jondo and send broadcast message
-                    Socket nodeSock = new Socket(currNode.getAddr(), currNode.getPort());
+    /**
+     * Counts a vote for an option without taking a lock. With a ballot log the vote is counted once it is on disk
+     *
+     * @param voteId String id of vote
+     * @param option String option voted for
+     */
+    public void tallyVote(String voteId, String option) {
+        if (voteId == null || option == null) {
+            System.err.println("Blender: Ballot without a vote ID or selection not counted");
+            return;
+        }
+        if (ballotLog != null) {
+            tallyVotes(List.of(new Vote.Builder(voteId).setSelection(option).build()));
+            return;
+        }
 
-                    PrintWriter send = new PrintWriter(nodeSock.getOutputStream(), true);
+        VoteTally tally = voteTallies.get(voteId);
+        if (tally == null) {
+            tally = voteTallies.computeIfAbsent(voteId, k -> new VoteTally());
+        }
+        tally.cast(option);
+        ballotsTallied.increment();
+    }
 
-                    send.println(broadcast.serialize());
+    /**
+     * Counts a batch of ballots, with a ballot log once they are on disk. Ballots waiting on the disk are synced
+     * together so the handler thread never waits for it
+     *
+     * @param _ballots List of ballots, those without a voteId or selection are dropped
+     */
+    public void tallyVotes(List<Vote> _ballots) {
+        // checked before anything is logged or counted so a batch is never left partly counted
+        List<Vote> ballots = whole(_ballots);
+        if (ballots.isEmpty()) {
+            return;
+        }
 
-                    // close connection
-                    nodeSock.close();
-                }
+        if (ballotLog == null) {
+            count(ballots);
+            return;
+        }
 
+        ballotLog.append(ballots).whenComplete((written, error) -> {
+            if (error == null) {
+                count(ballots);
+            } else {
+                System.err.println("Blender: " + ballots.size() + " ballots not counted, unable to log them");
             }
+        });
+    }
 
-        } catch (ConnectException connectException) {
-            System.err.println();
-            System.err.println("Unable to connect to node: " + currNode.getAddr() + ":" + currNode.getPort());
-        } catch (IOException e) {
-            System.err.println("Error broadcasting message");
-            e.printStackTrace();
+    /**
+     * Checks a ballot names the vote and the option it is for, a Vote only needs an id but a ballot without a
+     * selection cannot be counted or restored from the ballot log
+     *
+     * @param ballot Vote cast
+     * @return true if the ballot has a voteId and selection
+     */
+    static boolean isWhole(Vote ballot) {
+        return ballot != null && ballot.getVoteId() != null && ballot.getSelection() != null;
+    }
+
+    /**
+     * Drops the ballots that cannot be counted from a batch
+     *
+     * @param ballots List of ballots
+     * @return List of the ballots with a voteId and selection, the same list if they all have
+     */
+    private static List<Vote> whole(List<Vote> ballots) {
+        for (Vote ballot : ballots) {
+            if (!isWhole(ballot)) {
+                List<Vote> whole = new ArrayList<>(ballots.size());
+                for (Vote each : ballots) {
+                    if (isWhole(each)) {
+                        whole.add(each);
+                    }
+                }
+                System.err.println("Blender: " + (ballots.size() - whole.size())
+                        + " ballots without a vote ID or selection not counted");
+                return whole;
+            }
         }
+        return ballots;
     }
 
-    public synchronized void tallyVote(String voteId, String option) {
-        voteTallies.computeIfAbsent(voteId, k -> new HashMap<>()).merge(option, 1, Integer::sum);
+    /**
+     * Counts ballots in one pass without taking a lock. Ballots of a batch are nearly always for the same vote, so
+     * the tally is only looked up again when the vote changes
+     *
+     * @param ballots List of ballots, each with a voteId and selection
+     */
+    private void count(List<Vote> ballots) {
+        String voteId = null;
+        VoteTally tally = null;
+
+        for (Vote ballot : ballots) {
+            if (!ballot.getVoteId().equals(voteId)) {
+                voteId = ballot.getVoteId();
+                tally = voteTallies.get(voteId);
+                if (tally == null) {
+                    tally = voteTallies.computeIfAbsent(voteId, k -> new VoteTally());
+                }
+            }
+            tally.cast(ballot.getSelection());
+        }
+        ballotsTallied.add(ballots.size());
     }
 
-    public synchronized HashMap<String, Integer> getVoteResults(String voteId) {
-        return voteTallies.getOrDefault(voteId, new HashMap<>());
+    /**
+     * Gets a consistent snapshot of a votes results
+     *
+     * @param voteId String id of vote
+     * @return HashMap key is option and value is number of votes, a copy safe to keep
+     */
+    public HashMap<String, Integer> getVoteResults(String voteId) {
+        VoteTally tally = voteTallies.get(voteId);
+        return tally == null ? new HashMap<>() : tally.snapshot();
     }
 
     /**
-     * Broadcasts a vote to all Jondos in the routing table
+     * Broadcasts a vote to all Jondos in the routing table without waiting for the deliveries
      * 
      * @param vote String vote to broadcast
+     * @return CompletableFuture that completes with the Jondos the vote could not be delivered to
      */
-    public void broadcastVote(Vote vote) {
+    public CompletableFuture<List<Node>> broadcastVote(Vote vote) {
         Message voteMessage = new Message.Builder("VOTE_BROADCAST").setVoteBroadcast(vote).build();
 
-        for (Node node : routingTable.values()) {
-            try (Socket socket = new Socket(node.getAddr(), node.getPort());
-                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-                out.println(voteMessage.serialize()); // Assuming you have a serialize method
-                System.out.println("Broadcasting vote to " + node.getAddr() + ":" + node.getPort());
-            } catch (IOException e) {
-                System.err.println("Error broadcasting vote to " + node.getAddr() + ":" + node.getPort());
-                e.printStackTrace();
-            }
-        }
+        System.out.println("Broadcasting vote to " + routingTable.size() + " Jondos");
+        return dispatcher.broadcast(routingTable.values(), voteMessage);
     }
 
+    /**
+     * Gets the results of a vote formatted as "option: votes", from the snapshot of the vote if no ballot has been
+     * counted since it was taken
+     *
+     * @param voteId String id of vote
+     * @return List of formatted results, cannot be changed
+     */
     public List<String> formatVoteResults(String voteId) {
-        List<String> formattedResults = new ArrayList<>();
-        HashMap<String, Integer> results = voteTallies.get(voteId);
-        if (results != null) {
-            for (Entry<String, Integer> entry : results.entrySet()) {
-                formattedResults.add(entry.getKey() + ": " + entry.getValue());
-            }
-        }
-        return formattedResults;
+        return results.get(voteId).getResults().getResults();
+    }
+
+    /**
+     * Gets the publisher answering results queries and pushing results to subscribers
+     *
+     * @return ResultsPublisher of this Blender
+     */
+    public ResultsPublisher getResultsPublisher() {
+        return results;
+    }
+
+    /**
+     * Gets the log ballots are written to before they are counted
+     *
+     * @return BallotLog of this Blender, null if tallies are only kept in memory
+     */
+    public BallotLog getBallotLog() {
+        return ballotLog;
+    }
+
+    /**
+     * Gets pool of persistent connections this Blender sends with
+     *
+     * @return ConnectionPool of this Blender
+     */
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
     }
 
     /**
      * Gets routing table
      * 
-     * @return HashMap<String, Node> key is UID of Jondo, value is Jondo
+     * @return HashMap<NodeId, Node> key is UID of Jondo, value is Jondo
      */
-    public synchronized ConcurrentHashMap<String, Node> getRoutingTable() {
+    public ConcurrentHashMap<NodeId, Node> getRoutingTable() {
         return routingTable;
     }
 
+    /**
+     * Checks if a Jondo is in the crowd
+     *
+     * @param node Node to look for
+     * @return boolean true if the Jondo joined and has not left
+     */
+    public boolean isMember(Node node) {
+        return routingTable.containsKey(node.getId());
+    }
+
+    /**
+     * Gets the metrics of this Blender
+     *
+     * @return Metrics counters and timings
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Adds the gauges read from the rest of the Blender, registers the metrics with JMX and serves them over HTTP
+     * if configured to
+     */
+    private void startMetrics() {
+        metrics.rate("ballots.tallied.rate", ballotsTallied);
+        metrics.gauge("jondos", routingTable::size);
+        metrics.gauge("epoch", this::getEpoch);
+        metrics.gauge("membership.sends", membershipSends::sum);
+        metrics.gauge("syncs.served", syncsServed::sum);
+        metrics.gauge("results.subscriptions", results::getSubscriptions);
+        metrics.gauge("connections.open", connectionPool::getOpenConnections);
+        metrics.gauge("connect.failures", connectionPool::getConnectFailures);
+        metrics.executor("handlers", pool);
+        metrics.register("Blender", port);
+
+        if (config.getMetricsPort() != 0) {
+            try {
+                metrics.serve(config.getMetricsPort());
+            } catch (IOException e) {
+                System.err.println("Blender: Unable to serve metrics on port " + config.getMetricsPort() + " "
+                        + e.getMessage());
+            }
+        }
+    }
+
     /**
      * Starts the server to listen for connections and handle them on a
      * separate thread
@@ -213,4 +591,16 @@ public class Blender {
         });
     }
 
+    /**
+     * Starts the selector based server, a few event loop threads serve every connection and hand decoded messages
+     * to BlenderConnectionHandlers on the pool
+     */
+    private void startEventLoopServer() {
+        try {
+            new EventLoopServer(port, config.getEventLoops(), pool, () -> new BlenderConnectionHandler(this)).start();
+        } catch (IOException e) {
+            System.err.println("Error starting server on " + addr + ":" + port);
+            e.printStackTrace();
+        }
+    }
 }
@@ -10,21 +10,25 @@
 package Blender;
 
 import Model.Message;
+import Model.MessageCodec;
+import Model.MessageHandler;
+import Model.MessageReader;
+import Model.Metrics;
 import Model.Node;
+import Model.ReplyChannel;
 import Model.Vote;
-import merrimackutil.json.types.JSONObject;
-import static merrimackutil.json.JsonIO.readObject;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.BufferedOutputStream;
+import java.io.UncheckedIOException;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Scanner;
 
 /**
  * Handles Connections for Blender specifically Hello Messages
  */
-public class BlenderConnectionHandler implements Runnable {
+public class BlenderConnectionHandler implements Runnable, MessageHandler {
     /**
      * Blender server which we are handling the connection of
      */
@@ -33,6 +37,14 @@ public class BlenderConnectionHandler implements Runnable {
      * Socket with the connection to new Jondo node
      */
     private Socket sock;
+    /**
+     * Metrics of the Blender
+     */
+    private Metrics metrics;
+    /**
+     * Time taken to handle each message
+     */
+    private Metrics.Histogram handlerTimes;
 
     /**
      * Handles connection to Blender specifically hello messages
@@ -41,95 +53,203 @@ public class BlenderConnectionHandler implements Runnable {
      * @param _sock    Socket we made connection on
      */
     public BlenderConnectionHandler(Blender _blender, Socket _sock) {
-        blender = _blender;
+        this(_blender);
         sock = _sock;
     }
 
     /**
-     * Run method handles the connection on a separate thread
+     * Handles messages for the Blender without owning a socket, used by the event loop server which reads the
+     * connection itself and hands us decoded messages
+     *
+     * @param _blender Blender Server we are handling connections for
+     */
+    public BlenderConnectionHandler(Blender _blender) {
+        blender = _blender;
+        metrics = blender.getMetrics();
+        handlerTimes = metrics.histogram("handler.nanos");
+    }
+
+    /**
+     * Run method handles the connection on a separate thread. Jondos keep their connection open and send many
+     * messages over it so we handle messages until they hang up, a HELLO is answered and then the connection closed
      */
     public void run() {
         try {
             // get input and output streams
-            Scanner recv = new Scanner(sock.getInputStream());
-            PrintWriter send = new PrintWriter(sock.getOutputStream(), true);
+            MessageReader recv = new MessageReader(sock.getInputStream());
+            BufferedOutputStream send = new BufferedOutputStream(sock.getOutputStream());
+            ReplyChannel reply = message -> {
+                send.write(MessageCodec.encode(message, MessageCodec.replyCodec(message, recv.getLastCodec())));
+                send.flush();
+            };
+
+            // read messages sent to server until the Jondo hangs up
+            Message recvMessage;
+            while ((recvMessage = recv.read()) != null) {
+                // make sure message is expected type blender should only receive HELLO, VOTE_CAST, VOTE_CAST_BATCH,
+                // VOTE_RESULTS_QUERY and VOTE_RESULTS_SUBSCRIBE messages
+                if (!handleMessage(recvMessage, reply)) {
+                    return;
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Blender ConnectionHandler: Error reading from connection closing it");
+            System.err.println(e.getMessage());
+        } finally {
+            // close connection
+            try {
+                sock.close();
+            } catch (IOException e) {
+                System.err.println("Blender ConnectionHandler: Error closing connection");
+            }
+        }
+    }
+
+    /**
+     * Handles a single message received on this connection, counting it by type and timing it
+     *
+     * @param recvMessage Message received
+     * @param reply       ReplyChannel to reply on
+     * @return true if we should keep reading messages from this connection, false to close it
+     * @throws IOException if there is an error sending the reply
+     */
+    @Override
+    public boolean handleMessage(Message recvMessage, ReplyChannel reply) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return dispatch(recvMessage, reply);
+        } finally {
+            metrics.counter("messages", String.valueOf(recvMessage.getType())).increment();
+            handlerTimes.since(start);
+        }
+    }
+
+    /**
+     * Handles a single message by its type
+     *
+     * @param recvMessage Message received
+     * @param reply       ReplyChannel to reply on
+     * @return true if we should keep reading messages from this connection, false to close it
+     * @throws IOException if there is an error sending the reply
+     */
+    private boolean dispatch(Message recvMessage, ReplyChannel reply) throws IOException {
+        if (recvMessage.getType() == null) {
+            System.err.println("Blender ConnectionHandler: Bad type of message closing connection");
+            System.err.println("JSON message received: " + recvMessage.serialize());
+            return false;
+        }
 
-            // read message sent to server
-            JSONObject recvJSON = readObject(recv.nextLine());
+        switch (recvMessage.getType()) {
+            case "HELLO":
+                // Get jondo from hello message
+                Node newNode = new Node(recvMessage.getSrcAddr(), recvMessage.getSrcPort());
 
-            // parse Message
-            Message recvMessage = new Message(recvJSON);
+                // add Jondo to blender's routing table and broadcast new node
+                blender.addJondo(newNode);
 
-            if (recvMessage.getType() == null) {
-                System.err.println("Blender ConnectionHandler: Bad type of message closing connection");
-                System.err.println("JSON message received: " + recvMessage.serialize());
-                return;
-            }
+                // agree to binary only if the Jondo asked for it and we are configured for it
+                String codec = MessageCodec.BINARY.equals(recvMessage.getCodec())
+                        && blender.getCodec().equals(MessageCodec.BINARY) ? MessageCodec.BINARY : MessageCodec.JSON;
+                blender.getConnectionPool().setCodec(newNode.getId(), codec);
 
-            switch (recvMessage.getType()) {
-                case "HELLO":
-                    // Get jondo from hello message
-                    Node newNode = new Node(recvMessage.getSrcAddr(), recvMessage.getSrcPort());
-
-                    // add Jondo to blender's routing table and broadcast new node
-                    blender.addJondo(newNode);
-
-                    // create Response Message with routing table
-                    Message respondMessage = new Message.Builder("WELCOME").setWelcome(blender.getRoutingTable())
-                            .build();
-
-                    // Send message
-                    send.println(respondMessage.serialize());
-                    break;
-                case "VOTE_CAST":
-                    // Get vote from vote cast message
-                    handleVoteCast(recvMessage.getVote());
-                    break;
-                case "VOTE_RESULTS_QUERY":
-                    // Get vote from vote results query message
-                    String srcAddr = recvMessage.getSrcAddr();
-                    int srcPort = recvMessage.getSrcPort();
-                    handleVoteResultsQuery(recvMessage.getVote(), srcAddr, srcPort);
-                    break;
-                default:
-                    System.err.println("Blender ConnectionHandler: Bad type of message closing connection");
-                    System.err.println("JSON message received: " + recvMessage);
-                    return;
-            }
-            // make sure message is expected type blender should only receive HELLO messages
-            // and VOTE_CAST messages
-            if (!recvMessage.getType().equals("HELLO") && !recvMessage.getType().equals("VOTE_CAST")
-                    && !recvMessage.getType().equals("VOTE_RESULTS_QUERY")) {
+                // create Response Message with routing table, read the epoch first so the table we send is at least
+                // as new as the epoch we tell the Jondo it is
+                int epoch = blender.getEpoch();
+                Message respondMessage = new Message.Builder("WELCOME").setWelcome(blender.getRoutingTable())
+                        .setCodec(codec).setEpoch(epoch).build();
+
+                // Send message, the joining Jondo reads until we hang up
+                reply.reply(respondMessage);
+                return false;
+            case "VOTE_CAST":
+                // Get vote from vote cast message
+                handleVoteCast(recvMessage.getVote());
+                return true;
+            case "VOTE_CAST_BATCH":
+                // ballots a Jondo held for a while and sent together
+                handleVoteCastBatch(recvMessage.getVotes());
+                return true;
+            case "VOTE_RESULTS_QUERY":
+                // Get vote from vote results query message
+                String srcAddr = recvMessage.getSrcAddr();
+                int srcPort = recvMessage.getSrcPort();
+                handleVoteResultsQuery(recvMessage.getVote(), srcAddr, srcPort);
+                return true;
+            case "VOTE_RESULTS_SUBSCRIBE":
+                // push the results to the Jondo whenever they change
+                // only Jondos in the crowd, anyone else could have us push to any address
+                Node subscriber = new Node(recvMessage.getSrcAddr(), recvMessage.getSrcPort());
+                if (!blender.isMember(subscriber)) {
+                    System.err.println("Blender ConnectionHandler: Dropped results subscription from "
+                            + subscriber.getAddr() + ":" + subscriber.getPort() + " which is not in the crowd");
+                    return true;
+                }
+                if (!blender.getResultsPublisher().subscribe(recvMessage.getVote().getVoteId(), subscriber,
+                        recvMessage.getResultsEpoch(), recvMessage.getVersion())) {
+                    System.err.println("Blender ConnectionHandler: Dropped results subscription to vote ID "
+                            + recvMessage.getVote().getVoteId() + " which has no ballots");
+                    return true;
+                }
+                System.out.println("Jondo " + subscriber.getAddr() + ":" + subscriber.getPort()
+                        + " subscribed to results of vote ID " + recvMessage.getVote().getVoteId());
+                return true;
+            case "LEAVE":
+                // drop Jondo from blender's routing table and tell the crowd
+                blender.removeJondo(new Node(recvMessage.getSrcAddr(), recvMessage.getSrcPort()));
+                return true;
+            case "SYNC":
+                // send the Jondo the changes since the epoch it is up to date with
+                VersionedRoutingTable.Delta delta = blender.getChangesSince(recvMessage.getEpoch());
+                reply.reply(new Message.Builder("SYNC_DELTA").setId(recvMessage.getId())
+                        .setSyncDelta(delta.getEpoch(), delta.isFull(), delta.getAdded(), delta.getRemoved()).build());
+                return true;
+            default:
                 System.err.println("Blender ConnectionHandler: Bad type of message closing connection");
                 System.err.println("JSON message received: " + recvMessage);
-                return;
-            }
-            // close connection
-            sock.close();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+                return false;
         }
     }
 
     private void handleVoteCast(Vote vote) {
+        if (!Blender.isWhole(vote)) {
+            System.err.println("Blender ConnectionHandler: Dropped ballot without a vote ID or selection");
+            return;
+        }
         blender.tallyVote(vote.getVoteId(), vote.getSelection());
         System.out.println("Vote for " + vote.getSelection() + " tallied for vote ID " + vote.getVoteId());
     }
 
+    private void handleVoteCastBatch(List<Vote> ballots) {
+        List<Vote> whole = new ArrayList<>(ballots.size());
+        for (Vote ballot : ballots) {
+            if (Blender.isWhole(ballot)) {
+                whole.add(ballot);
+            }
+        }
+        if (whole.size() < ballots.size()) {
+            System.err.println("Blender ConnectionHandler: Dropped " + (ballots.size() - whole.size())
+                    + " ballots without a vote ID or selection from a batch");
+        }
+        if (!whole.isEmpty()) {
+            blender.tallyVotes(whole);
+        }
+        System.out.println("Batch of " + whole.size() + " votes tallied");
+    }
+
     private void handleVoteResultsQuery(Vote vote, String srcAddr, int srcPort) {
         System.out.println("Vote results query received for vote ID " + vote.getVoteId() + " from " + srcAddr + ":" + srcPort);
-        List<String> voteResults = blender.formatVoteResults(vote.getVoteId());
+        // served from the snapshot of the vote unless a ballot was counted since it was taken
+        ResultsPublisher.Snapshot snapshot = blender.getResultsPublisher().get(vote.getVoteId());
 
-        Vote resultVote = new Vote.Builder(vote.getVoteId()).setResults(voteResults).build();
         Message respondMessage = new Message.Builder("VOTE_RESULTS")
-                .setVoteResults(resultVote, srcAddr, srcPort, blender.getAddress(), blender.getPort()).build();
+                .setVoteResults(snapshot.getResults(), srcAddr, srcPort, blender.getAddress(), blender.getPort())
+                .setVersion(snapshot.getEpoch(), snapshot.getVersion()).build();
         try {
-            Socket sock = new Socket(srcAddr, srcPort);
-            PrintWriter send = new PrintWriter(sock.getOutputStream(), true);
-            send.println(respondMessage.serialize());
-            sock.close();
+            blender.getConnectionPool().send(srcAddr, srcPort, respondMessage);
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            System.err.println("Error sending vote results to " + srcAddr + ":" + srcPort);
+            e.printStackTrace();
+            return;
         }
         System.out.println("Vote results sent to " + srcAddr + ":" + srcPort);
     }
@@ -102,13 +102,16 @@ public class BlenderDriver {
             return;
         }
 
+        Configuration configuration = new Configuration.Builder("blender").setAddr(blenderAddr).setPort(blenderPort)
+                .setThreads(threads).build();
+
         if (doConfig) {
             try {
                 //create config from file
-                Configuration configFile = new Configuration(readObject(new File(config)));
-                blenderAddr = configFile.getAddr();
-                blenderPort = configFile.getPort();
-                threads = configFile.getThreads();
+                configuration = new Configuration(readObject(new File(config)));
+                blenderAddr = configuration.getAddr();
+                blenderPort = configuration.getPort();
+                threads = configuration.getThreads();
 
             } catch (FileNotFoundException e) {
                 System.err.println("Config file not found! Please check path: " + config);
@@ -122,7 +125,7 @@ public class BlenderDriver {
         }
 
         System.out.println("Starting Blender on " + blenderAddr + "/" + blenderPort + " with threads " + threads);
-        Blender blender = new Blender(blenderAddr, blenderPort, threads);
+        Blender blender = new Blender(configuration);
         runCLI(blender);
     }
 
@@ -0,0 +1,129 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Blender;
+
+import Model.ConnectionPool;
+import Model.Message;
+import Model.Metrics;
+import Model.Node;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+/**
+ * Sends a message to many nodes at once on a bounded number of threads. A slow or dead node only holds up its own
+ * delivery, failures are collected and reported once every delivery has finished.
+ * <p>
+ * Deliveries not yet finished are capped, a broadcast that would go over the cap waits for earlier deliveries to
+ * finish before queueing more. Every join sends to the whole crowd, so without the cap a burst of joins into a big
+ * crowd would queue deliveries faster than they are sent until the heap runs out.
+ */
+public class BroadcastDispatcher {
+    /**
+     * Deliveries that may be queued or running per thread before broadcasting waits
+     */
+    private static final int IN_FLIGHT_PER_THREAD = 256;
+
+    /**
+     * Connections messages are sent over
+     */
+    private ConnectionPool connectionPool;
+    /**
+     * Threads deliveries run on, bounds how many nodes we send to at once
+     */
+    private ExecutorService workers;
+    /**
+     * A permit for each delivery that may be queued or running
+     */
+    private Semaphore inFlight;
+    /**
+     * Time from starting a broadcast until every delivery finished
+     */
+    private Metrics.Histogram fanoutTimes;
+
+    /**
+     * Creates a new dispatcher
+     *
+     * @param _connectionPool ConnectionPool to send over
+     * @param _threads        int number of deliveries that may run at once
+     * @param _fanoutTimes    Metrics.Histogram to record how long each broadcast took to reach every node
+     */
+    public BroadcastDispatcher(ConnectionPool _connectionPool, int _threads, Metrics.Histogram _fanoutTimes) {
+        connectionPool = _connectionPool;
+        fanoutTimes = _fanoutTimes;
+        inFlight = new Semaphore(_threads * IN_FLIGHT_PER_THREAD);
+        workers = Executors.newFixedThreadPool(_threads, r -> {
+            Thread thread = new Thread(r, "broadcast-dispatcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sends a message to every node without waiting for the deliveries, unless too many are in flight
+     *
+     * @param nodes   Collection of nodes to send to
+     * @param message Message to send
+     * @return CompletableFuture that completes with the nodes we could not deliver to once every delivery finished
+     */
+    public CompletableFuture<List<Node>> broadcast(Collection<Node> nodes, Message message) {
+        return broadcast(nodes, message.getType(), node -> message);
+    }
+
+    /**
+     * Sends each node a message of its own without waiting for the deliveries, for messages addressed to the node
+     * they are sent to. Waits only while too many deliveries are in flight
+     *
+     * @param nodes    Collection of nodes to send to
+     * @param type     String type of the messages, named when a delivery fails
+     * @param messages Function building the message for a node, called on the thread delivering it
+     * @return CompletableFuture that completes with the nodes we could not deliver to once every delivery finished
+     */
+    public CompletableFuture<List<Node>> broadcast(Collection<Node> nodes, String type,
+                                                   Function<Node, Message> messages) {
+        long start = System.nanoTime();
+        ConcurrentLinkedQueue<Node> failed = new ConcurrentLinkedQueue<>();
+        List<CompletableFuture<Void>> deliveries = new ArrayList<>();
+
+        for (Node node : nodes) {
+            inFlight.acquireUninterruptibly();
+            deliveries.add(CompletableFuture.runAsync(() -> {
+                try {
+                    connectionPool.send(node, messages.apply(node));
+                } catch (IOException e) {
+                    failed.add(node);
+                } finally {
+                    inFlight.release();
+                }
+            }, workers));
+        }
+
+        return CompletableFuture.allOf(deliveries.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            fanoutTimes.since(start);
+            List<Node> failures = new ArrayList<>(failed);
+            if (!failures.isEmpty()) {
+                System.err.println("Blender: " + type + " could not be delivered to " + failures.size()
+                        + " of " + deliveries.size() + " nodes");
+                for (Node node : failures) {
+                    System.err.println("Unable to connect to node: " + node.getAddr() + ":" + node.getPort());
+                }
+            }
+            return failures;
+        });
+    }
+}
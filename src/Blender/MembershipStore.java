@@ -0,0 +1,354 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Blender;
+
+import Model.MessageCodec;
+import Model.Node;
+import Model.NodeId;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Keeps the Blenders routing table on disk so the crowd survives a Blender restart. Every join and leave is appended
+ * to a log and synced before the crowd hears of it. Once the log holds more changes than the crowd has Jondos we
+ * write the whole table to a snapshot and start the log again, so loading never reads much more than the table.
+ * <p>
+ * Each Jondo is stored with its UID so loading does not hash every address again, the Blender can serve WELCOME as
+ * soon as the file is read. Changes carry their epoch, so a change already in the snapshot is skipped if we crashed
+ * before the log was cleared, and the Blender carries on from the epoch it had. Jondos that were in the crowd before
+ * the restart keep their routing tables and SYNC as usual rather than joining again.
+ * <p>
+ * The snapshot is an int magic, int CRC32C of the rest, int epoch, varint count and each Jondo. The log is a sequence
+ * of records: int length, int CRC32C of the payload, then a payload of a byte 1 for a join or 0 for a leave, a varint
+ * epoch and the Jondo. A Jondo is its address as a binary codec string, a varint port and the 20 bytes of its UID.
+ */
+public class MembershipStore {
+    private static final int SNAPSHOT_MAGIC = 0x424D4253;
+    private static final String SNAPSHOT = "membership.snapshot";
+    private static final String LOG = "membership.log";
+    /**
+     * Changes logged before we compact however small the crowd
+     */
+    private static final int MIN_COMPACT = 1024;
+
+    /**
+     * Directory the snapshot and log are in
+     */
+    private Path dir;
+    /**
+     * Log changes are appended to
+     */
+    private FileChannel log;
+    /**
+     * Number of changes in the log
+     */
+    private int logged;
+    /**
+     * Table and epoch as loaded
+     */
+    private ConcurrentHashMap<NodeId, Node> nodes;
+    private int epoch;
+
+    /**
+     * Opens the store in a directory and loads the table saved there
+     *
+     * @param _dir Path of the directory, created if it does not exist
+     * @throws IOException if the store cannot be read or the snapshot is corrupt
+     */
+    public MembershipStore(Path _dir) throws IOException {
+        dir = _dir;
+        Files.createDirectories(dir);
+
+        nodes = new ConcurrentHashMap<>();
+        readSnapshot();
+        replayLog();
+
+        log = FileChannel.open(dir.resolve(LOG), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Gets the table as loaded, the routing table takes it over
+     *
+     * @return ConcurrentHashMap key is UID of Jondo and value is Jondo
+     */
+    public ConcurrentHashMap<NodeId, Node> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Gets epoch of the last change loaded
+     *
+     * @return int epoch, 0 if the store was empty
+     */
+    public int getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Logs a change and syncs it, compacting the log into a snapshot once it has grown past the table. Must be called
+     * in epoch order with the table already changed
+     *
+     * @param added  boolean true if node joined, false if it left
+     * @param node   Node changed
+     * @param _epoch int epoch of the change
+     * @param table  ConcurrentHashMap routing table after the change, written out when we compact
+     * @throws IOException if the change cannot be written
+     */
+    public void append(boolean added, Node node, int _epoch, ConcurrentHashMap<NodeId, Node> table)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(0);
+        out.writeBoolean(added);
+        MessageCodec.writeVarInt(out, _epoch);
+        writeNode(out, node);
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), 8, buffer.limit() - 8);
+        buffer.putInt(0, buffer.limit() - 8);
+        buffer.putInt(4, (int) crc.getValue());
+
+        while (buffer.hasRemaining()) {
+            log.write(buffer);
+        }
+        log.force(false);
+        logged++;
+
+        if (logged > Math.max(MIN_COMPACT, table.size())) {
+            compact(_epoch, table);
+        }
+    }
+
+    /**
+     * Writes the table to a new snapshot, moves it over the old one and empties the log
+     *
+     * @param _epoch int epoch of the table
+     * @param table  ConcurrentHashMap routing table, must not change while we write it
+     * @throws IOException if the snapshot cannot be written
+     */
+    private void compact(int _epoch, ConcurrentHashMap<NodeId, Node> table) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(0);
+        out.writeInt(_epoch);
+        MessageCodec.writeVarInt(out, table.size());
+        for (Node node : table.values()) {
+            writeNode(out, node);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), 8, buffer.limit() - 8);
+        buffer.putInt(4, (int) crc.getValue());
+
+        Path tmp = dir.resolve(SNAPSHOT + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, dir.resolve(SNAPSHOT), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+
+        // changes left in the log are in the snapshot now, loading skips them by epoch if we crash before this
+        log.truncate(0);
+        log.force(true);
+        logged = 0;
+    }
+
+    /**
+     * Reads the snapshot into nodes
+     *
+     * @throws IOException if the snapshot is corrupt
+     */
+    private void readSnapshot() throws IOException {
+        Path path = dir.resolve(SNAPSHOT);
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        byte[] bytes = Files.readAllBytes(path);
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 8, Math.max(0, bytes.length - 8));
+        ByteBuffer header = ByteBuffer.wrap(bytes);
+        if (bytes.length < 13 || header.getInt(0) != SNAPSHOT_MAGIC || header.getInt(4) != (int) crc.getValue()) {
+            throw new InvalidObjectException("Membership snapshot " + path + " is corrupt");
+        }
+
+        try {
+            ByteBuffer in = ByteBuffer.wrap(bytes, 8, bytes.length - 8);
+            epoch = in.getInt();
+            int size = readVarInt(in);
+
+            // sized up front so loading a big crowd never rehashes the map
+            nodes = new ConcurrentHashMap<>(Math.max(16, size * 4 / 3 + 1));
+            for (int i = 0; i < size; i++) {
+                Node node = readNode(in);
+                nodes.put(node.getId(), node);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new InvalidObjectException("Membership snapshot " + path + " ends early");
+        }
+    }
+
+    /**
+     * Replays the changes in the log after the snapshot, cutting off a change only partly written when we crashed
+     *
+     * @throws IOException if the log cannot be read
+     */
+    private void replayLog() throws IOException {
+        Path path = dir.resolve(LOG);
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        // the log never holds many more changes than the crowd has Jondos, so read it in one go
+        byte[] bytes = Files.readAllBytes(path);
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        CRC32C crc = new CRC32C();
+
+        int good = 0;
+        String torn = null;
+        while (in.remaining() > 0) {
+            if (in.remaining() < 8) {
+                torn = "record cut short";
+                break;
+            }
+            int length = in.getInt();
+            int expected = in.getInt();
+            if (length < 0 || length > in.remaining()) {
+                torn = "record cut short";
+                break;
+            }
+
+            crc.reset();
+            crc.update(bytes, in.position(), length);
+            if ((int) crc.getValue() != expected) {
+                torn = "bad checksum";
+                break;
+            }
+
+            ByteBuffer record = ByteBuffer.wrap(bytes, in.position(), length);
+            boolean added = record.get() != 0;
+            int changeEpoch = readVarInt(record);
+            Node node = readNode(record);
+            if (changeEpoch > epoch) {
+                if (added) {
+                    nodes.put(node.getId(), node);
+                } else {
+                    nodes.remove(node.getId());
+                }
+                epoch = changeEpoch;
+            }
+
+            in.position(in.position() + length);
+            logged++;
+            good = in.position();
+        }
+
+        if (torn != null) {
+            System.err.println("Blender: Membership log ends in a partly written change, " + torn
+                    + ", cutting it back to " + good + " bytes");
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(good);
+                channel.force(true);
+            }
+        }
+    }
+
+    /**
+     * Writes a Jondo with the raw bytes of its UID
+     *
+     * @param out  DataOutput to write to
+     * @param node Node to write
+     * @throws IOException if writing fails
+     */
+    private static void writeNode(DataOutput out, Node node) throws IOException {
+        MessageCodec.writeString(out, node.getAddr());
+        MessageCodec.writeVarInt(out, node.getPort());
+
+        node.getId().write(out);
+    }
+
+    /**
+     * Reads a Jondo written by writeNode without hashing its address again
+     *
+     * @param in ByteBuffer to read from
+     * @return Node read
+     * @throws InvalidObjectException if the Jondo is malformed
+     */
+    private static Node readNode(ByteBuffer in) throws InvalidObjectException {
+        int length = readVarInt(in) - 1;
+        if (length < 0 || length > in.remaining()) {
+            throw new InvalidObjectException("Bad address length " + length + " in membership store");
+        }
+        String addr = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        int port = readVarInt(in);
+
+        if (in.remaining() < NodeId.BYTES) {
+            throw new InvalidObjectException("Membership store ends inside the UID of " + addr + ":" + port);
+        }
+        NodeId id = NodeId.fromBytes(in.array(), in.arrayOffset() + in.position());
+        in.position(in.position() + NodeId.BYTES);
+        return new Node(addr, port, id);
+    }
+
+    /**
+     * Reads an unsigned variable length int written by MessageCodec.writeVarInt
+     *
+     * @param in ByteBuffer to read from
+     * @return int value
+     * @throws InvalidObjectException if the value is malformed
+     */
+    private static int readVarInt(ByteBuffer in) throws InvalidObjectException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.get() & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new InvalidObjectException("Malformed varint in membership store");
+    }
+
+    /**
+     * Syncs the directory so the renamed snapshot survives a crash, not every platform can open a directory so this
+     * is best effort
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // nothing more we can do on this platform
+        }
+    }
+}
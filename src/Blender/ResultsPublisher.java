@@ -0,0 +1,322 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Blender;
+
+import Model.Message;
+import Model.Metrics;
+import Model.Node;
+import Model.NodeId;
+import Model.Vote;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Answers queries for the results of a vote and pushes them to the Jondos subscribed to it. The results of each vote
+ * are kept as a snapshot versioned by the number of ballots counted when it was taken, a vote whose count has not
+ * moved since its snapshot is answered from the snapshot instead of reading and formatting the tally again. Versions
+ * carry the epoch the publisher started at, so a Jondo can tell the results of a restarted Blender from older ones
+ * with a higher count. Only votes with a tally are kept or can be subscribed to, so made up voteIds cost nothing.
+ * <p>
+ * Pushes are coalesced, every resultsInterval we push each subscribed vote whose count moved since its last push
+ * once, so a subscriber gets at most one push per vote in that time however many ballots arrive. A vote whose last
+ * push is still being delivered is skipped until it finishes.
+ */
+public class ResultsPublisher {
+    /**
+     * Tallies of each vote, shared with the Blender that counts into them
+     */
+    private ConcurrentHashMap<String, VoteTally> tallies;
+    /**
+     * Sends pushes to subscribers in parallel
+     */
+    private BroadcastDispatcher dispatcher;
+    /**
+     * Address and port of the Blender, the source of the results we send
+     */
+    private String addr;
+    private int port;
+    /**
+     * Millis the publisher started at, the epoch of every version it sends
+     */
+    private long epoch;
+    /**
+     * Latest snapshot of each vote that has been asked for
+     */
+    private ConcurrentHashMap<String, Snapshot> snapshots;
+    /**
+     * Subscribers of each vote
+     */
+    private ConcurrentHashMap<String, Subscription> subscriptions;
+    /**
+     * Runs the pushes every resultsInterval
+     */
+    private ScheduledExecutorService timer;
+    /**
+     * Snapshots taken from a tally and snapshots served as they were
+     */
+    private LongAdder snapshotsTaken;
+    private LongAdder snapshotsReused;
+    /**
+     * Results sent to subscribers
+     */
+    private LongAdder pushes;
+
+    /**
+     * Creates a new publisher and starts pushing
+     *
+     * @param _tallies    ConcurrentHashMap of the tally of each vote by voteId
+     * @param _dispatcher BroadcastDispatcher to push with
+     * @param _addr       String IP address of the Blender
+     * @param _port       int port of the Blender
+     * @param _interval   int millis between pushes of a vote
+     * @param _metrics    Metrics to count snapshots and pushes in
+     */
+    public ResultsPublisher(ConcurrentHashMap<String, VoteTally> _tallies, BroadcastDispatcher _dispatcher,
+                            String _addr, int _port, int _interval, Metrics _metrics) {
+        tallies = _tallies;
+        dispatcher = _dispatcher;
+        addr = _addr;
+        port = _port;
+        epoch = System.currentTimeMillis();
+        snapshots = new ConcurrentHashMap<>();
+        subscriptions = new ConcurrentHashMap<>();
+        snapshotsTaken = _metrics.counter("results.snapshots.taken");
+        snapshotsReused = _metrics.counter("results.snapshots.reused");
+        pushes = _metrics.counter("results.pushes");
+
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "results-publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(this::pushChanged, _interval, _interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets the results of a vote, from its snapshot if no ballot has been counted since it was taken
+     *
+     * @param voteId String id of vote
+     * @return Snapshot of the results, safe to share, with no results and version 0 if the vote has no tally
+     */
+    public Snapshot get(String voteId) {
+        VoteTally tally = tallies.get(voteId);
+        if (tally == null) {
+            // not cached, anyone can ask for any voteId
+            return new Snapshot(epoch, 0, new Vote.Builder(voteId).setResults(Collections.emptyList()).build());
+        }
+        // read the count before the tally so a ballot landing in between makes the next call take a new snapshot
+        long version = tally.getTotal();
+
+        Snapshot cached = snapshots.get(voteId);
+        if (cached != null && cached.version == version) {
+            snapshotsReused.increment();
+            return cached;
+        }
+
+        Snapshot snapshot = new Snapshot(epoch, version,
+                new Vote.Builder(voteId).setResults(format(tally.snapshot())).build());
+        snapshotsTaken.increment();
+
+        // two threads taking a snapshot at once keep whichever is newer
+        snapshots.merge(voteId, snapshot, (old, taken) -> taken.version >= old.version ? taken : old);
+        return snapshot;
+    }
+
+    /**
+     * Subscribes a Jondo to a vote, sending it the results right away if they are not the version it has
+     *
+     * @param voteId    String id of vote
+     * @param node      Node to push the results to
+     * @param seenEpoch long epoch of the results the Jondo already has, 0 for none
+     * @param seen      long version of the results the Jondo already has, 0 for none
+     * @return boolean true if subscribed, false if the vote has no tally to push
+     */
+    public boolean subscribe(String voteId, Node node, long seenEpoch, long seen) {
+        if (!tallies.containsKey(voteId)) {
+            return false;
+        }
+        Subscription subscription = subscriptions.computeIfAbsent(voteId, k -> new Subscription());
+        subscription.nodes.put(node.getId(), node);
+
+        Snapshot snapshot = get(voteId);
+        if (snapshot.epoch != seenEpoch || snapshot.version != seen) {
+            push(subscription, Collections.singletonList(node), snapshot);
+        }
+        return true;
+    }
+
+    /**
+     * Drops a Jondo from every vote it subscribed to, called when it leaves the crowd
+     *
+     * @param node Node to drop
+     */
+    public void unsubscribe(Node node) {
+        for (Subscription subscription : subscriptions.values()) {
+            subscription.nodes.remove(node.getId());
+        }
+    }
+
+    /**
+     * Gets number of subscriptions across every vote
+     *
+     * @return long subscriptions
+     */
+    public long getSubscriptions() {
+        long count = 0;
+        for (Subscription subscription : subscriptions.values()) {
+            count += subscription.nodes.size();
+        }
+        return count;
+    }
+
+    /**
+     * Pushes every subscribed vote whose results changed since its last push, run every resultsInterval
+     */
+    private void pushChanged() {
+        try {
+            for (Entry<String, Subscription> vote : subscriptions.entrySet()) {
+                Subscription subscription = vote.getValue();
+                if (subscription.nodes.isEmpty() || !subscription.pushing.compareAndSet(false, true)) {
+                    continue;
+                }
+
+                Snapshot snapshot = get(vote.getKey());
+                if (snapshot.version == subscription.pushed) {
+                    subscription.pushing.set(false);
+                    continue;
+                }
+
+                subscription.pushed = snapshot.version;
+                push(subscription, new ArrayList<>(subscription.nodes.values()), snapshot)
+                        .whenComplete((failed, e) -> subscription.pushing.set(false));
+            }
+        } catch (RuntimeException e) {
+            // an exception would cancel the timer and stop every later push
+            System.err.println("ResultsPublisher: Error pushing results");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends a snapshot to some of the subscribers of its vote, a subscriber we cannot reach is dropped
+     *
+     * @param subscription Subscription of the vote
+     * @param nodes        Collection of subscribers to send to
+     * @param snapshot     Snapshot to send
+     * @return CompletableFuture that completes with the subscribers dropped once every delivery finished
+     */
+    private CompletableFuture<List<Node>> push(Subscription subscription, Collection<Node> nodes,
+                                               Snapshot snapshot) {
+        pushes.add(nodes.size());
+        return dispatcher.broadcast(nodes, "VOTE_RESULTS", node -> new Message.Builder("VOTE_RESULTS")
+                .setVoteResults(snapshot.results, node.getAddr(), node.getPort(), addr, port)
+                .setVersion(snapshot.epoch, snapshot.version).build()).thenApply(failed -> {
+                    for (Node node : failed) {
+                        subscription.nodes.remove(node.getId());
+                    }
+                    return failed;
+                });
+    }
+
+    /**
+     * Formats the tally of each option as "option: votes"
+     *
+     * @param counts HashMap key is option and value is number of votes for it
+     * @return List of formatted results, cannot be changed
+     */
+    private static List<String> format(HashMap<String, Integer> counts) {
+        List<String> formattedResults = new ArrayList<>();
+        for (Entry<String, Integer> entry : counts.entrySet()) {
+            formattedResults.add(entry.getKey() + ": " + entry.getValue());
+        }
+        return Collections.unmodifiableList(formattedResults);
+    }
+
+    /**
+     * Results of a vote as of some number of ballots
+     */
+    public static final class Snapshot {
+        /**
+         * Epoch of the publisher that took the snapshot
+         */
+        private final long epoch;
+        /**
+         * Ballots counted for the vote when the snapshot was taken
+         */
+        private final long version;
+        /**
+         * Vote with only its voteId and formatted results set, ready to send
+         */
+        private final Vote results;
+
+        private Snapshot(long _epoch, long _version, Vote _results) {
+            epoch = _epoch;
+            version = _version;
+            results = _results;
+        }
+
+        /**
+         * Gets epoch of the results
+         *
+         * @return long millis the publisher that took the snapshot started at
+         */
+        public long getEpoch() {
+            return epoch;
+        }
+
+        /**
+         * Gets version of the results
+         *
+         * @return long ballots counted when the snapshot was taken
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Gets the results to send
+         *
+         * @return Vote with the voteId and formatted results
+         */
+        public Vote getResults() {
+            return results;
+        }
+    }
+
+    /**
+     * Jondos subscribed to one vote and how far we have pushed to them
+     */
+    private static final class Subscription {
+        /**
+         * Subscribers by UID
+         */
+        private final ConcurrentHashMap<NodeId, Node> nodes = new ConcurrentHashMap<>();
+        /**
+         * True while a push to the subscribers is being delivered
+         */
+        private final AtomicBoolean pushing = new AtomicBoolean();
+        /**
+         * Version of the last push, only written by the timer
+         */
+        private volatile long pushed;
+    }
+}
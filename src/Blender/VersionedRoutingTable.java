@@ -0,0 +1,270 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Blender;
+
+import Model.Node;
+import Model.NodeId;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The Blenders routing table with a version. Every add or remove bumps the epoch and is kept in a bounded history so
+ * a Jondo that knows the table as of some epoch can be sent just the changes since then.
+ */
+public class VersionedRoutingTable {
+    /**
+     * Default number of changes kept, a Jondo further behind than this gets the whole table
+     */
+    public static final int DEFAULT_HISTORY = 4096;
+
+    /**
+     * Nodes in the crowd, key is UID of Jondo and value is Jondo, safe to read without the lock
+     */
+    private ConcurrentHashMap<NodeId, Node> nodes;
+    /**
+     * Epoch of the latest change, 0 before any change. Written after the table so a reader that sees an epoch sees
+     * at least every change up to it
+     */
+    private volatile int epoch;
+    /**
+     * Most recent changes oldest first
+     */
+    private ArrayDeque<Change> history;
+    /**
+     * Number of changes kept in history
+     */
+    private int historySize;
+    /**
+     * Latest epoch dropped from history, a request from before it cannot be answered with a delta
+     */
+    private int trimmedThrough;
+    /**
+     * Lock so the table, epoch and history change together
+     */
+    private ReentrantLock lock;
+    /**
+     * Store every change is saved to before it is published, null when the table is only kept in memory
+     */
+    private MembershipStore store;
+
+    /**
+     * Creates an empty table keeping the default history
+     */
+    public VersionedRoutingTable() {
+        this(DEFAULT_HISTORY);
+    }
+
+    /**
+     * Creates an empty table
+     *
+     * @param _historySize int number of changes to keep
+     */
+    public VersionedRoutingTable(int _historySize) {
+        historySize = _historySize;
+        nodes = new ConcurrentHashMap<>();
+        history = new ArrayDeque<>();
+        lock = new ReentrantLock();
+    }
+
+    /**
+     * Creates a table holding the crowd saved in a store, carrying on from its epoch. The history of the changes
+     * before is gone so a Jondo behind that epoch is sent the whole table
+     *
+     * @param _historySize int number of changes to keep
+     * @param _store       MembershipStore to load from and save changes to
+     */
+    public VersionedRoutingTable(int _historySize, MembershipStore _store) {
+        this(_historySize);
+        store = _store;
+        nodes = store.getNodes();
+        epoch = store.getEpoch();
+        trimmedThrough = epoch;
+    }
+
+    /**
+     * Adds a node to the table
+     *
+     * @param node Node to add
+     * @return int epoch of the change or -1 if the node is already in the table
+     */
+    public int add(Node node) {
+        lock.lock();
+        try {
+            if (nodes.putIfAbsent(node.getId(), node) != null) {
+                return -1;
+            }
+            return record(true, node);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a node from the table
+     *
+     * @param node Node to remove
+     * @return int epoch of the change or -1 if the node is not in the table
+     */
+    public int remove(Node node) {
+        lock.lock();
+        try {
+            if (nodes.remove(node.getId()) == null) {
+                return -1;
+            }
+            return record(false, node);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the changes made after an epoch. Only the last change to each node is included so a node that joined and
+     * left in between is sent once as removed. If the epoch is older than our history or newer than our table, such
+     * as from before the Blender restarted, the whole table is sent instead.
+     *
+     * @param since int epoch the caller is up to date with
+     * @return Delta of changes
+     */
+    public Delta since(int since) {
+        lock.lock();
+        try {
+            if (since < trimmedThrough || since > epoch) {
+                return new Delta(epoch, true, new ArrayList<>(nodes.values()), new ArrayList<>());
+            }
+
+            // keep only the last change to each node, in the order of the last change
+            LinkedHashMap<NodeId, Change> latest = new LinkedHashMap<>();
+            for (Change change : history) {
+                if (change.epoch > since) {
+                    latest.remove(change.node.getId());
+                    latest.put(change.node.getId(), change);
+                }
+            }
+
+            List<Node> added = new ArrayList<>();
+            List<Node> removed = new ArrayList<>();
+            for (Change change : latest.values()) {
+                (change.added ? added : removed).add(change.node);
+            }
+            return new Delta(epoch, false, added, removed);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the nodes in the table, read the epoch first if both are needed
+     *
+     * @return ConcurrentHashMap key is UID of Jondo and value is Jondo
+     */
+    public ConcurrentHashMap<NodeId, Node> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Gets epoch of the latest change
+     *
+     * @return int epoch
+     */
+    public int getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Records a change made to the table, must hold the lock
+     *
+     * @param added boolean true if node was added, false if removed
+     * @param node  Node changed
+     * @return int epoch of the change
+     */
+    private int record(boolean added, Node node) {
+        int next = epoch + 1;
+        history.addLast(new Change(next, added, node));
+        if (history.size() > historySize) {
+            trimmedThrough = history.removeFirst().epoch;
+        }
+
+        if (store != null) {
+            try {
+                store.append(added, node, next, nodes);
+            } catch (IOException e) {
+                // the crowd still hears of the change, it is only lost if we restart
+                System.err.println("Blender: Unable to save membership change " + e.getMessage());
+            }
+        }
+
+        epoch = next;
+        return next;
+    }
+
+    /**
+     * A single add or remove
+     */
+    private static class Change {
+        private int epoch;
+        private boolean added;
+        private Node node;
+
+        private Change(int _epoch, boolean _added, Node _node) {
+            epoch = _epoch;
+            added = _added;
+            node = _node;
+        }
+    }
+
+    /**
+     * Changes between an epoch and the current epoch
+     */
+    public static class Delta {
+        private int epoch;
+        private boolean full;
+        private List<Node> added;
+        private List<Node> removed;
+
+        private Delta(int _epoch, boolean _full, List<Node> _added, List<Node> _removed) {
+            epoch = _epoch;
+            full = _full;
+            added = _added;
+            removed = _removed;
+        }
+
+        /**
+         * Gets epoch the delta brings the caller up to
+         *
+         * @return int epoch
+         */
+        public int getEpoch() {
+            return epoch;
+        }
+
+        /**
+         * Checks if this is the whole table rather than changes
+         *
+         * @return true if added holds every node and anything else should be dropped
+         */
+        public boolean isFull() {
+            return full;
+        }
+
+        public List<Node> getAdded() {
+            return added;
+        }
+
+        public List<Node> getRemoved() {
+            return removed;
+        }
+    }
+}
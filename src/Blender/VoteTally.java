@@ -0,0 +1,182 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Blender;
+
+import Model.ThreadSecureRandom;
+
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tallies for a single vote. Each option counts on its own striped LongAdder so casting never takes a lock, voters
+ * picking the same option spread their updates over the adder's cells instead of fighting over one value.
+ * <p>
+ * Snapshots read the counters optimistically. If votes keep landing in the middle of every read the snapshot raises a
+ * barrier instead, new casts wait at it while the casts already under way finish, and the counters are read with
+ * nothing moving.
+ */
+public class VoteTally {
+    /**
+     * Times we re-read the counters looking for a consistent snapshot before raising the barrier
+     */
+    private static final int SNAPSHOT_ATTEMPTS = 16;
+    /**
+     * Longs between the casting counters of two stripes, so casters on different stripes do not share a cache line
+     */
+    private static final int PADDING = 16;
+    private static final int STRIPES = ThreadSecureRandom.stripes();
+
+    /**
+     * Counter per option, key is the option and value is the number of votes for it
+     */
+    private ConcurrentHashMap<String, LongAdder> options;
+    /**
+     * Number of votes cast, always bumped after the option counter so it never runs ahead of the options
+     */
+    private LongAdder total;
+    /**
+     * Casts under way on each stripe of threads, a snapshot behind the barrier waits for them all to reach zero
+     */
+    private AtomicLongArray casting;
+    /**
+     * Raised by a snapshot that could not get a consistent read, casts wait while it is up
+     */
+    private volatile boolean barrier;
+    /**
+     * Held by the snapshot that raised the barrier
+     */
+    private ReentrantLock barrierLock;
+
+    /**
+     * Creates a new empty tally
+     */
+    public VoteTally() {
+        options = new ConcurrentHashMap<>();
+        total = new LongAdder();
+        casting = new AtomicLongArray(STRIPES * PADDING);
+        barrierLock = new ReentrantLock();
+    }
+
+    /**
+     * Counts one vote for an option
+     *
+     * @param option String option voted for, must not be null
+     */
+    public void cast(String option) {
+        cast(option, 1);
+    }
+
+    /**
+     * Counts several votes for an option at once, used to restore a tally from the ballot log
+     *
+     * @param option String option voted for, must not be null
+     * @param votes  long number of votes for it
+     */
+    public void cast(String option, long votes) {
+        // the option is checked before we count anything, a ballot is counted whole or not at all
+        LongAdder counter = options.get(option);
+        if (counter == null) {
+            counter = options.computeIfAbsent(option, k -> new LongAdder());
+        }
+
+        int slot = enter();
+        try {
+            counter.add(votes);
+            total.add(votes);
+        } finally {
+            casting.getAndDecrement(slot);
+        }
+    }
+
+    /**
+     * Gets a consistent snapshot of the tallies, the count of every option at one moment. Reads the total then the
+     * options, if they add up to the total no vote was half counted and the read is the tally as of the total. After
+     * a few reads that do not add up the barrier is raised and the options read once the casts under way finish.
+     *
+     * @return HashMap key is option and value is number of votes for it
+     */
+    public HashMap<String, Integer> snapshot() {
+        HashMap<String, Integer> results = new HashMap<>();
+
+        for (int attempt = 0; attempt < SNAPSHOT_ATTEMPTS; attempt++) {
+            // options are bumped before the total, so they can only add up to it if each vote read is read whole
+            long before = total.sum();
+            if (read(results) == before) {
+                return results;
+            }
+            Thread.onSpinWait();
+        }
+
+        barrierLock.lock();
+        try {
+            barrier = true;
+            for (int slot = 0; slot < casting.length(); slot += PADDING) {
+                while (casting.get(slot) != 0) {
+                    Thread.onSpinWait();
+                }
+            }
+            read(results);
+        } finally {
+            barrier = false;
+            barrierLock.unlock();
+        }
+        return results;
+    }
+
+    /**
+     * Reads every option into results
+     *
+     * @param results HashMap cleared and filled with the count of each option
+     * @return long votes read across the options
+     */
+    private long read(HashMap<String, Integer> results) {
+        results.clear();
+        long counted = 0;
+        for (Entry<String, LongAdder> entry : options.entrySet()) {
+            long votes = entry.getValue().sum();
+            counted += votes;
+            results.put(entry.getKey(), (int) votes);
+        }
+        return counted;
+    }
+
+    /**
+     * Marks a cast as under way on the stripe of this thread, waiting first if a snapshot has the barrier up. The
+     * mark goes up before the barrier is checked so a snapshot raising it either sees the mark or is seen.
+     *
+     * @return int slot to take the mark off once the cast is counted
+     */
+    private int enter() {
+        int slot = ThreadSecureRandom.stripe(STRIPES) * PADDING;
+        while (true) {
+            casting.getAndIncrement(slot);
+            if (!barrier) {
+                return slot;
+            }
+            casting.getAndDecrement(slot);
+            while (barrier) {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /**
+     * Gets number of votes cast so far
+     *
+     * @return long number of votes
+     */
+    public long getTotal() {
+        return total.sum();
+    }
+}
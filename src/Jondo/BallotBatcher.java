@@ -0,0 +1,140 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Jondo;
+
+import Model.Vote;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Holds the ballots cast on this Jondo for a short window and hands them on together, so a Jondo many voters use
+ * sends one VOTE_CAST_BATCH through the crowd instead of a VOTE_CAST per ballot. The window starts with the first
+ * ballot held, a batch that fills up is sent straight away.
+ * <p>
+ * Ballots of a batch travel the crowd together and the Blender sees them arrive at once, batching trades a little of
+ * the cover a ballot gets from travelling alone for less work per ballot.
+ */
+public class BallotBatcher {
+    /**
+     * Time in millis a ballot is held for others to join it
+     */
+    private long window;
+    /**
+     * Most ballots sent together
+     */
+    private int batchSize;
+    /**
+     * Sends a batch into the crowd
+     */
+    private Consumer<List<Vote>> sender;
+    /**
+     * Ballots waiting to be sent
+     */
+    private List<Vote> pending;
+    /**
+     * Send of the ballots pending, null when nothing is pending
+     */
+    private ScheduledFuture<?> scheduled;
+    /**
+     * Lock so ballots are never lost between adding and sending
+     */
+    private ReentrantLock lock;
+    /**
+     * Thread that sends batches when their window closes
+     */
+    private ScheduledExecutorService timer;
+
+    /**
+     * Creates a new batcher
+     *
+     * @param _window    long time in millis a ballot is held for others to join it
+     * @param _batchSize int most ballots to send together
+     * @param _sender    Consumer that sends a batch, called without the lock held
+     */
+    public BallotBatcher(long _window, int _batchSize, Consumer<List<Vote>> _sender) {
+        window = _window;
+        batchSize = _batchSize;
+        sender = _sender;
+        pending = new ArrayList<>();
+        lock = new ReentrantLock();
+
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ballot-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Holds a ballot until its batch is sent
+     *
+     * @param ballot Vote with the voteId and selection
+     */
+    public void add(Vote ballot) {
+        List<Vote> full = null;
+
+        lock.lock();
+        try {
+            pending.add(ballot);
+            if (pending.size() >= batchSize) {
+                full = take();
+            } else if (scheduled == null) {
+                scheduled = timer.schedule(this::flush, window, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (full != null) {
+            sender.accept(full);
+        }
+    }
+
+    /**
+     * Sends the ballots pending now without waiting out the window
+     */
+    public void flush() {
+        List<Vote> batch;
+
+        lock.lock();
+        try {
+            batch = take();
+        } finally {
+            lock.unlock();
+        }
+
+        if (!batch.isEmpty()) {
+            sender.accept(batch);
+        }
+    }
+
+    /**
+     * Takes the pending ballots and cancels their send, must hold the lock
+     *
+     * @return List of ballots taken
+     */
+    private List<Vote> take() {
+        if (scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+        }
+
+        List<Vote> batch = pending;
+        pending = new ArrayList<>();
+        return batch;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Jondo;
+
+import Model.ConnectionPool;
+import Model.Message;
+import Model.Node;
+import Model.ReplyChannel;
+import Model.ThreadSecureRandom;
+import Model.TraceBuffer;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Carries the destinations reply to a DATA back along the circuit it came down. Each hop sends the DATA on as a
+ * request of its own and answers the hop before it with whatever comes back, so the reply retraces the path one
+ * connection at a time. Nothing blocks while we wait, the reply is sent when the next hops answer arrives. Answers are
+ * read by the connection pool's selector thread, so sending the reply back, which may block on a slow previous hop, is
+ * handed to the handler executor.
+ * <p>
+ * Each hop gives the DATA a new id, like path ids a message id only means something between two Jondos, so a circuit
+ * through the same Jondo twice does not mix up its replies. A hop that gets no answer within the hop timeout gives up
+ * and sends an ACK with an error back instead, so a hung circuit is torn down from the hop where it hung.
+ */
+public class CircuitRelay {
+    /**
+     * Connections to the next hops
+     */
+    private ConnectionPool connectionPool;
+    /**
+     * Runs the sends of replies back to the previous hop
+     */
+    private Executor executor;
+    /**
+     * Time in millis we wait for the next hop
+     */
+    private long hopTimeout;
+    /**
+     * This Jondo, the source of the ACKs we send when a circuit fails
+     */
+    private String addr;
+    private int port;
+
+    /**
+     * Creates a new relay
+     *
+     * @param _connectionPool ConnectionPool to reach next hops
+     * @param _executor       Executor to send replies back on, the connection handlers' executor
+     * @param _hopTimeout     long time in millis to wait for the next hop
+     * @param _addr           String IP address of this Jondo
+     * @param _port           int port of this Jondo
+     */
+    public CircuitRelay(ConnectionPool _connectionPool, Executor _executor, long _hopTimeout, String _addr,
+                        int _port) {
+        connectionPool = _connectionPool;
+        executor = _executor;
+        hopTimeout = _hopTimeout;
+        addr = _addr;
+        port = _port;
+    }
+
+    /**
+     * Sends a DATA on and relays the answer back to the hop it came from
+     *
+     * @param received Message DATA as it reached us
+     * @param next     Node next Jondo or the destination
+     * @param onward   Message DATA to send on
+     * @param reply    ReplyChannel to the hop it came from
+     * @param hop      TraceBuffer.Hop our hop of a traced DATA, null if it is not traced
+     */
+    public void relay(Message received, Node next, Message onward, ReplyChannel reply, TraceBuffer.Hop hop) {
+        Message request = new Message.Builder(onward).setId(Message.newId(ThreadSecureRandom.current())).build();
+
+        // not on the selector thread that completes the request, a blocked reply would stall every other answer
+        connectionPool.request(next, request, hopTimeout, hop).whenCompleteAsync((response, error) -> {
+            Message back;
+            if (error == null) {
+                back = new Message.Builder(response).setId(received.getId()).build();
+            } else {
+                back = new Message.Builder("ACK").setAck(addr, port).setId(received.getId())
+                        .setError(describe(error)).build();
+            }
+
+            try {
+                reply.reply(back);
+            } catch (IOException e) {
+                System.err.println("Jondo: Unable to relay reply, previous hop hung up " + e.getMessage());
+            }
+        }, executor);
+    }
+
+    /**
+     * Describes why the next hop did not answer
+     *
+     * @param error Throwable the request failed with
+     * @return String error for the ACK
+     */
+    private String describe(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        if (error instanceof TimeoutException) {
+            return "No reply from next hop within " + hopTimeout + "ms";
+        }
+        return "Next hop failed " + error.getMessage();
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Jondo;
+
+import Model.Frame;
+import Model.Message;
+import Model.Node;
+import Model.RoutingIndex;
+import Model.ThreadSecureRandom;
+
+/**
+ * The Crowds forwarding policy, each Jondo flips a biased coin and forwards to a random Jondo on heads. Optionally
+ * caps the number of Jondo to Jondo hops, the message then carries a hop count.
+ * <p>
+ * A hop count tells every Jondo how far it is from the sender, the Jondo that sees hops 1 knows the Jondo before it
+ * started the path. Only cap hops in a crowd that can live without that protection.
+ */
+public class CoinFlipPolicy implements ForwardingPolicy {
+    /**
+     * Percent chance of forwarding to another Jondo
+     */
+    private int forwardProbability;
+    /**
+     * Most Jondo to Jondo hops, 0 for no cap
+     */
+    private int maxHops;
+
+    /**
+     * Creates a new policy
+     *
+     * @param _forwardProbability int percent chance of forwarding to another Jondo between 0 and 100
+     * @param _maxHops            int most Jondo to Jondo hops, 0 for no cap
+     */
+    public CoinFlipPolicy(int _forwardProbability, int _maxHops) {
+        forwardProbability = _forwardProbability;
+        maxHops = _maxHops;
+    }
+
+    @Override
+    public boolean shouldForward(Message message) {
+        return shouldForward(message.getHops());
+    }
+
+    @Override
+    public boolean shouldForward(Frame frame) {
+        return shouldForward(frame.getHops());
+    }
+
+    @Override
+    public boolean changesMessages() {
+        return maxHops > 0;
+    }
+
+    /**
+     * Flips the coin for a message that has taken some hops
+     *
+     * @param hops int Jondo to Jondo hops the message has taken
+     * @return true to forward to another Jondo
+     */
+    private boolean shouldForward(int hops) {
+        if (maxHops > 0 && hops >= maxHops) {
+            return false;
+        }
+        return ThreadSecureRandom.current().chance(forwardProbability);
+    }
+
+    @Override
+    public Node pickNextHop(RoutingIndex routingTable) {
+        return routingTable.pick(ThreadSecureRandom.current());
+    }
+
+    @Override
+    public Message nextHop(Message message) {
+        // without a cap there is nothing to count, and leaving hops out keeps the message from saying where we are
+        if (maxHops == 0) {
+            return message;
+        }
+        return new Message.Builder(message).setHops(message.getHops() + 1).build();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Jondo;
+
+import Model.Configuration;
+import Model.Frame;
+import Model.Message;
+import Model.Node;
+import Model.RoutingIndex;
+
+/**
+ * Decides where a Jondo sends a DATA or VOTE_CAST that is not for it, on to another Jondo or out to its destination.
+ * Every message a Jondo handles asks the policy so implementations must be thread safe and cheap.
+ */
+public interface ForwardingPolicy {
+    /**
+     * Creates the policy a configuration asks for
+     *
+     * @param config Configuration with the forward probability and hop cap
+     * @return ForwardingPolicy for a Jondo
+     */
+    static ForwardingPolicy create(Configuration config) {
+        return new CoinFlipPolicy(config.getForwardProbability(), config.getMaxHops());
+    }
+
+    /**
+     * Decides if a message goes on to another Jondo
+     *
+     * @param message Message we received that is not for us
+     * @return true to forward to another Jondo, false to send it to its destination
+     */
+    boolean shouldForward(Message message);
+
+    /**
+     * Decides if a frame passed on without decoding it goes on to another Jondo, all it has to go on is its header
+     *
+     * @param frame Frame we received that is not for us
+     * @return true to forward to another Jondo, false to send it to its destination
+     */
+    boolean shouldForward(Frame frame);
+
+    /**
+     * Picks the Jondo to forward to
+     *
+     * @param routingTable RoutingIndex of the crowd
+     * @return Node to forward to or null if the crowd is empty
+     */
+    Node pickNextHop(RoutingIndex routingTable);
+
+    /**
+     * Gets the message to send to the next Jondo, the message itself unless the policy tracks something per hop
+     *
+     * @param message Message being forwarded
+     * @return Message to send on
+     */
+    Message nextHop(Message message);
+
+    /**
+     * Checks if nextHop changes messages, a message that changes on the way through cannot be passed on as the bytes
+     * it arrived as
+     *
+     * @return true if nextHop returns a different message
+     */
+    boolean changesMessages();
+}
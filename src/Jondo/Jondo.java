@@ -9,40 +9,93 @@
  */
 package Jondo;
 
+import Model.Configuration;
+import Model.ConnectionPool;
+import Model.EventLoopServer;
+import Model.HandlerExecutors;
 import Model.Message;
+import Model.MessageCodec;
+import Model.MessageReader;
+import Model.Metrics;
 import Model.Node;
+import Model.RoutingIndex;
+import Model.ThreadSecureRandom;
+import Model.TraceBuffer;
 import Model.Vote;
-import merrimackutil.json.types.JSONObject;
 
 import java.io.IOException;
+import java.io.InvalidObjectException;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.security.SecureRandom;
-import java.util.ArrayList;
-import java.util.Random;
-import java.util.Scanner;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
-import static merrimackutil.json.JsonIO.readObject;
 
 /**
  * Jondo is a node in our network must be able to join network and send/receive
  * traffic
  */
 public class Jondo {
+    /**
+     * Default time in millis sendAsync waits for a reply
+     */
+    public static final long DEFAULT_SEND_TIMEOUT = 10000;
+
     private String addr;
     private int port;
     private String blenderAddr;
     private int blenderPort;
     private int threads;
+    private Configuration config;
     private ServerSocket server;
-    private ConcurrentHashMap<String, Node> routingTable;
+    private RoutingIndex routingTable;
     private JondoDriver jondoDriver;
-    private SecureRandom randGen;
+    /**
+     * Decides whether messages go on to another Jondo or out to their destination, and picks the next Jondo
+     */
+    private ForwardingPolicy forwarding;
+    /**
+     * Where messages on each path through us go next
+     */
+    private PathTable pathTable;
+    /**
+     * Paths our own messages are sent along, null when every message takes a fresh random walk
+     */
+    private PathPool pathPool;
+    /**
+     * Relays replies back along circuits through us, null when we acknowledge DATA as soon as we pass it on
+     */
+    private CircuitRelay relay;
+    /**
+     * Holds ballots to send them to the Blender together, null when each ballot is sent on its own
+     */
+    private BallotBatcher ballots;
+    /**
+     * Persistent connections to other Jondos and the Blender, shared with every connection handler
+     */
+    private ConnectionPool connectionPool;
+    /**
+     * Codec negotiated with the Blender, used for every message we send into the crowd
+     */
+    private String codec;
+    /**
+     * Keeps our routing table in step with the Blenders
+     */
+    private RoutingTableSync routingSync;
+    /**
+     * Counters and timings published over JMX and optionally HTTP
+     */
+    private Metrics metrics;
+    /**
+     * Timings of our hops of traced messages, null when we do not trace
+     */
+    private TraceBuffer traces;
+    /**
+     * Pool of threads connection handlers run on
+     */
+    private ExecutorService pool;
 
     /**
      * Constructor for creating a new Jondo node.
@@ -56,51 +109,76 @@ public class Jondo {
      */
     public Jondo(String _addr, int _port, int _threads, String _blenderAddr, int _blenderPort,
             JondoDriver _jondoDriver) {
-        addr = _addr;
-        port = _port;
-        blenderAddr = _blenderAddr;
-        blenderPort = _blenderPort;
-        threads = _threads;
-        jondoDriver = _jondoDriver;
+        this(new Configuration.Builder("jondo").setAddr(_addr).setPort(_port).setThreads(_threads)
+                .setBlender(_blenderAddr, _blenderPort).build(), _jondoDriver);
+    }
 
-        routingTable = new ConcurrentHashMap<>();
+    /**
+     * Constructor for creating a new Jondo node from a configuration.
+     *
+     * @param _config      Configuration of type jondo.
+     * @param _jondoDriver Driver class for handling Jondo operations, null for a Jondo without a user that replies to
+     *                     no DATA and ignores VOTE_BROADCAST
+     */
+    public Jondo(Configuration _config, JondoDriver _jondoDriver) {
+        config = _config;
+        addr = config.getAddr();
+        port = config.getPort();
+        blenderAddr = config.getBlenderAddr();
+        blenderPort = config.getBlenderPort();
+        threads = config.getThreads();
+        jondoDriver = _jondoDriver;
 
-        randGen = new SecureRandom();
+        forwarding = ForwardingPolicy.create(config);
+        connectionPool = new ConnectionPool();
+        metrics = new Metrics();
+        if (config.getTraceBuffer() > 0) {
+            traces = new TraceBuffer(config.getTraceBuffer(), addr, port);
+        }
 
         // Connect to blender and try to join crowd
         try {
             // connect to blender
             Socket sock = new Socket(blenderAddr, blenderPort);
             // Get io streams
-            Scanner recv = new Scanner(sock.getInputStream());
+            MessageReader recv = new MessageReader(sock.getInputStream());
             PrintWriter send = new PrintWriter(sock.getOutputStream(), true);
 
-            // create hello message
-            Message helloMessage = new Message.Builder("HELLO").setHello(addr, port).build();
+            // create hello message, HELLO is always JSON and asks for the codec we would like to use
+            Message helloMessage = new Message.Builder("HELLO").setHello(addr, port).setCodec(config.getCodec())
+                    .build();
 
             // send hello message
             send.println(helloMessage.serialize());
 
-            String recvString = "";
-
-            while (recv.hasNextLine()) {
-                recvString += recv.nextLine();
+            // Wait for welcome response, it is sent in the codec the blender chose and each node is appended to the
+            // rows of our routing table as it is read, so the crowd is never held as a table of Nodes
+            RoutingIndex.Builder welcomeTable = new RoutingIndex.Builder();
+            Message recvMsg = null;
+            try {
+                recvMsg = recv.readWelcome(welcomeTable);
+            } catch (InvalidObjectException e) {
+                System.err.println("Jondo cannot join crowd, blender did not respond with WELCOME");
+                System.err.println(e.getMessage());
+                System.err.println("This is a Fatal error exiting...");
+                System.exit(1);
             }
 
-            // Wait for welcome response and read it
-            JSONObject recvJSON = readObject(recvString);
-
-            // Turn JSON into message object
-            Message recvMsg = new Message(recvJSON);
-
-            if (!recvMsg.getType().equals("WELCOME")) {
-                System.err.println("Jondo cannot join crowd, blender did not respond with WELCOME");
-                System.err.println(recvMsg);
+            if (recvMsg == null) {
+                System.err.println("Jondo cannot join crowd, blender hung up without a WELCOME");
                 System.err.println("This is a Fatal error exiting...");
                 System.exit(1);
             }
 
-            routingTable = recvMsg.getRoutingTable();
+            // published once the whole table is read rather than for every node
+            routingTable = welcomeTable.build();
+            routingSync = new RoutingTableSync(routingTable, connectionPool, addr, port, blenderAddr,
+                    blenderPort);
+            routingSync.setEpoch(recvMsg.getEpoch());
+
+            // blenders that do not negotiate leave codec out and only speak JSON
+            codec = recvMsg.getCodec() == null ? MessageCodec.JSON : recvMsg.getCodec();
+            connectionPool.setCodec(codec);
 
             // close connection
             sock.close();
@@ -110,11 +188,48 @@ public class Jondo {
             throw new RuntimeException(e);
         }
 
-        // start up service thread to handle incoming connects
-        // Handle connections on separate thread so we can send data on this one
-        Thread serviceThread = new Thread(new ServiceThread());
-        serviceThread.start();
+        routingSync.start(config.getSyncInterval());
 
+        // the nio server only holds a thread while handling a message, the blocking one holds a thread per peer
+        // connection since peers keep their connections to us open
+        boolean nio = config.getServer().equals("nio");
+        pool = HandlerExecutors.create(config, !nio);
+
+        pathTable = new PathTable(routingTable, forwarding, config.getPathLifetime());
+        if (config.getReplies().equals("relay")) {
+            relay = new CircuitRelay(connectionPool, pool, config.getHopTimeout(), addr, port);
+        }
+        if (config.getVoteBatchWindow() > 0) {
+            ballots = new BallotBatcher(config.getVoteBatchWindow(), config.getVoteBatchSize(),
+                    this::sendVoteCastBatch);
+        }
+        if (config.getPaths() > 0) {
+            pathPool = new PathPool(routingTable, forwarding, connectionPool, config.getPaths(),
+                    config.getPathLifetime());
+        }
+
+        if (nio) {
+            startEventLoopServer();
+        } else {
+            // bind before the service thread starts so we can be reached as soon as the constructor returns
+            try {
+                server = new ServerSocket(port);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            // start up service thread to handle incoming connects
+            // Handle connections on separate thread so we can send data on this one
+            Thread serviceThread = new Thread(new ServiceThread());
+            serviceThread.start();
+        }
+
+        startMetrics();
+
+        // open our paths once we can be reached, the first Jondo on a path may pick us as its next hop
+        if (pathPool != null) {
+            pathPool.warm();
+        }
     }
 
     /**
@@ -127,35 +242,8 @@ public class Jondo {
      * @return String of reply data, null if there is an error
      */
     public String send(String data, String dstAddr, int dstPort) {
-
-        // random number gen
-        Random randGen = new Random();
-
-        Object[] nodeList = routingTable.keySet().toArray();
-        // get a random number to pick a random index from keys
-        int randNum = randGen.nextInt(nodeList.length);
-
-        // get a random node
-        Node randNode = routingTable.get((String) nodeList[randNum]);
-
-        // create message with data to send to node
-        Message dataMsg = new Message.Builder("DATA").setData(dstAddr, dstPort, data).build();
-
         try {
-            // connect to random node
-            Socket sock = new Socket(randNode.getAddr(), randNode.getPort());
-
-            // get input streams
-            Scanner recv = new Scanner(sock.getInputStream());
-            PrintWriter send = new PrintWriter(sock.getOutputStream(), true);
-
-            // send message to node
-            send.println(dataMsg.serialize());
-
-            // get reply and parse it
-            String reply = recv.nextLine();
-            // System.out.println("Reply: " + reply);
-            Message replyMessage = new Message(readObject(reply));
+            Message replyMessage = sendAsync(data, dstAddr, dstPort).get();
 
             if (!replyMessage.getType().equals("ACK")) {
                 System.out.println("Error: " + replyMessage.getType());
@@ -164,7 +252,11 @@ public class Jondo {
                 return null;
             }
 
-            // return replyMessage.getData();
+            // a reply relayed back from the destination carries its answer
+            if (replyMessage.getData() != null) {
+                return replyMessage.getData();
+            }
+
             // Crude i know, but we can clean this up
             return replyMessage.serialize();
         } catch (Exception e) {
@@ -176,15 +268,104 @@ public class Jondo {
     }
 
     /**
-     * Forwards a vote message to a randomly selected node in the routing table.
+     * Sends a message with data to a destination without waiting for the response, uses the default timeout
+     *
+     * @param data    String of data to send
+     * @param dstAddr IP address of destination
+     * @param dstPort Int of port
+     * @return CompletableFuture that completes with the reply Message
+     */
+    public CompletableFuture<Message> sendAsync(String data, String dstAddr, int dstPort) {
+        return sendAsync(data, dstAddr, dstPort, DEFAULT_SEND_TIMEOUT);
+    }
+
+    /**
+     * Sends a message with data to a destination without waiting for the response. Many messages can be in flight
+     * at once, they share the pooled connection to the first hop and replies are matched back by message id. When
+     * the crowd relays replies the reply is the destinations, carried back along the circuit.
+     *
+     * @param data    String of data to send
+     * @param dstAddr IP address of destination
+     * @param dstPort Int of port
+     * @param timeout long time in millis to wait for the reply before the future fails with a TimeoutException
+     * @return CompletableFuture that completes with the reply Message, fails with an IOException if a hop on the
+     *         circuit gave up on it
+     */
+    public CompletableFuture<Message> sendAsync(String data, String dstAddr, int dstPort, long timeout) {
+        // create message with data to send to node
+        Message.Builder dataMsg = new Message.Builder("DATA").setData(dstAddr, dstPort, data)
+                .setId(Message.newId(ThreadSecureRandom.current()));
+        if (traces != null) {
+            dataMsg.setTrace(Message.newId(ThreadSecureRandom.current()));
+        }
+
+        // get a random node
+        Node randNode = firstHop(dataMsg);
+        if (randNode == null) {
+            return CompletableFuture.failedFuture(new IOException("Routing table is empty"));
+        }
+
+        Message first = forwarding.nextHop(dataMsg.build());
+        TraceBuffer.Hop hop = startHop(first, randNode);
+        CompletableFuture<Message> sent = connectionPool.request(randNode, first, timeout, hop);
+        if (hop != null) {
+            traces.record(hop);
+        }
+        return sent.thenCompose(reply -> reply.getError() == null ? CompletableFuture.completedFuture(reply)
+                        : CompletableFuture.failedFuture(new IOException("Circuit failed: " + reply.getError())));
+    }
+
+    /**
+     * Tells the Blender we are leaving the crowd so it can drop us from the routing table, ballots still held for a
+     * batch are sent first
+     */
+    public void leave() {
+        if (ballots != null) {
+            ballots.flush();
+        }
+
+        Message leaveMessage = new Message.Builder("LEAVE").setLeave(addr, port).build();
+        try {
+            connectionPool.send(blenderAddr, blenderPort, leaveMessage);
+        } catch (IOException e) {
+            System.err.println("Unable to tell Blender we are leaving " + e.getMessage());
+        }
+    }
+
+    /**
+     * Gets routing table
+     *
+     * @return List of every Jondo in the crowd, a copy
+     */
+    public List<Node> getRoutingTable() {
+        return routingTable.getNodes();
+    }
+
+    /**
+     * Gets the sync that keeps our routing table up to date with the Blender
+     *
+     * @return RoutingTableSync of this Jondo
+     */
+    public RoutingTableSync getRoutingSync() {
+        return routingSync;
+    }
+
+    /**
+     * Forwards a vote message to a randomly selected node in the routing table. When ballots are batched the ballot
+     * is held and sent with the others cast within the batch window.
      *
      * @param voteId    The unique identifier of the vote.
      * @param selection The selected option of the vote.
      */
-    protected void sendVoteCast(String voteId, String selection) {
+    public void sendVoteCast(String voteId, String selection) {
         Vote vote = new Vote.Builder(voteId)
                 .setSelection(selection)
                 .build();
+        if (ballots != null) {
+            ballots.add(vote);
+            return;
+        }
+
         Message voteCastMessage = new Message.Builder("VOTE_CAST")
                 .setVoteCast(blenderAddr, blenderPort, vote)
                 .build();
@@ -196,6 +377,23 @@ public class Jondo {
         }
     }
 
+    /**
+     * Forwards a batch of ballots to a randomly selected node in the routing table.
+     *
+     * @param batch List of ballots to send together
+     */
+    private void sendVoteCastBatch(List<Vote> batch) {
+        Message batchMessage = new Message.Builder("VOTE_CAST_BATCH")
+                .setVoteCastBatch(blenderAddr, blenderPort, batch)
+                .build();
+        try {
+            forwardMessageToRandomNode(batchMessage);
+        } catch (IOException e) {
+            System.err.println("Error sending batch of " + batch.size() + " ballots");
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Forwards a message to a random node in the routing table.
      *
@@ -203,25 +401,57 @@ public class Jondo {
      * @throws IOException If an error occurs during socket communication.
      */
     private void forwardMessageToRandomNode(Message message) throws IOException {
-        Node randNode = selectRandomNode(message.getSrcAddr(), message.getSrcPort());
+        Message.Builder builder = new Message.Builder(message);
+        if (traces != null) {
+            builder.setTrace(Message.newId(ThreadSecureRandom.current()));
+        }
+
+        Node randNode = firstHop(builder);
         if (randNode != null) {
-            try (Socket nodeSock = new Socket(randNode.getAddr(), randNode.getPort());
-                    PrintWriter nodeSend = new PrintWriter(nodeSock.getOutputStream(), true)) {
-                nodeSend.println(message.serialize());
+            Message first = forwarding.nextHop(builder.build());
+            TraceBuffer.Hop hop = startHop(first, randNode);
+            try {
+                connectionPool.send(randNode, first, hop);
+            } finally {
+                if (hop != null) {
+                    traces.record(hop);
+                }
             }
         }
     }
 
     /**
-     * Selects a random node from the routing table.
+     * Starts timing the first hop of a message we send if we trace
      *
-     * @return A randomly selected Node, or null if the routing table is empty.
+     * @param message Message we send, with its trace id
+     * @param next    Node we send it to
+     * @return TraceBuffer.Hop to record once it is sent, null if we do not trace
      */
-    protected void forwardMessageToDestination(Message message) throws IOException {
-        try (Socket nodeSock = new Socket(message.getDstAddr(), message.getDstPort());
-                PrintWriter nodeSend = new PrintWriter(nodeSock.getOutputStream(), true)) {
-            nodeSend.println(message.serialize());
+    private TraceBuffer.Hop startHop(Message message, Node next) {
+        if (traces == null) {
+            return null;
         }
+
+        TraceBuffer.Hop hop = traces.start(message, System.nanoTime());
+        hop.setNext(next);
+        return hop;
+    }
+
+    /**
+     * Picks the first hop of a message we send, the first Jondo of one of our paths if we keep paths otherwise a
+     * random Jondo. Until our first path is open, or while every path we have goes through a Jondo that left, the
+     * message takes a random walk of its own.
+     *
+     * @param message Message.Builder of the message, given the path id if it goes along a path
+     * @return Node first hop, or null if the routing table is empty
+     */
+    private Node firstHop(Message.Builder message) {
+        PathPool.Path path = pathPool == null ? null : pathPool.next();
+        if (path == null) {
+            return forwarding.pickNextHop(routingTable);
+        }
+        message.setPath(path.getId());
+        return path.getFirstHop();
     }
 
     /**
@@ -229,15 +459,66 @@ public class Jondo {
      *
      * @return A randomly selected Node, or null if the routing table is empty.
      */
-    private Node selectRandomNode(String srcAddr, int srcPort) {
-        ArrayList<String> keys = new ArrayList<>(routingTable.keySet());
+    protected void forwardMessageToDestination(Message message) throws IOException {
+        connectionPool.send(message.getDstAddr(), message.getDstPort(), message);
+    }
+
+    /**
+     * Gets the metrics of this Jondo
+     *
+     * @return Metrics counters and timings
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Gets the timings of our hops of traced messages
+     *
+     * @return TraceBuffer of this Jondo, null if it does not trace
+     */
+    public TraceBuffer getTraces() {
+        return traces;
+    }
 
-        if (keys.isEmpty()) {
-            return null; // No available nodes to forward to
+    /**
+     * Adds the gauges read from the rest of the Jondo, registers the metrics with JMX and serves them over HTTP if
+     * configured to
+     */
+    private void startMetrics() {
+        metrics.gauge("jondos", routingTable::size);
+        metrics.gauge("epoch", routingSync::getEpoch);
+        metrics.gauge("sync.stale", routingSync::getStaleDeltas);
+        metrics.gauge("connections.open", connectionPool::getOpenConnections);
+        metrics.gauge("connect.failures", connectionPool::getConnectFailures);
+        metrics.executor("handlers", pool);
+        metrics.register("Jondo", port);
+        if (traces != null) {
+            metrics.page("/traces", traces::toText);
         }
 
-        int randIndex = randGen.nextInt(keys.size());
-        return routingTable.get(keys.get(randIndex));
+        if (config.getMetricsPort() != 0) {
+            try {
+                metrics.serve(config.getMetricsPort());
+            } catch (IOException e) {
+                System.err.println("Jondo: Unable to serve metrics on port " + config.getMetricsPort() + " "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Starts the selector based server, a few event loop threads serve every connection and hand decoded messages
+     * to JondoConnectionHandlers on a pool of threads
+     */
+    private void startEventLoopServer() {
+        try {
+            new EventLoopServer(port, config.getEventLoops(), pool, () -> new JondoConnectionHandler(routingTable,
+                    routingSync, forwarding, pathTable, relay, connectionPool, metrics, traces, addr, port,
+                    blenderAddr, blenderPort, jondoDriver)).start();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     /**
@@ -251,18 +532,15 @@ public class Jondo {
         @Override
         public void run() {
             try {
-                server = new ServerSocket(port);
-
-                ExecutorService pool = Executors.newFixedThreadPool(threads);
-
                 while (true) {
                     // get connection
                     Socket sock = server.accept();
 
 
                     // handle connections on new thread
-                    pool.execute(new JondoConnectionHandler(sock, routingTable, addr, port, blenderAddr, blenderPort,
-                            jondoDriver));
+                    pool.execute(new JondoConnectionHandler(sock, routingTable, routingSync, forwarding,
+                            pathTable, relay, connectionPool, metrics, traces, addr, port, blenderAddr,
+                            blenderPort, jondoDriver));
                 }
 
             } catch (IOException e) {
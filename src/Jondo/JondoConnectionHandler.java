@@ -9,27 +9,34 @@
  */
 package Jondo;
 
+import Model.ConnectionPool;
+import Model.Frame;
+import Model.FrameHandler;
 import Model.Message;
+import Model.MessageCodec;
+import Model.MessageReader;
+import Model.Metrics;
 import Model.Node;
+import Model.ReplyChannel;
+import Model.RoutingIndex;
+import Model.TraceBuffer;
 import Model.Vote;
-import merrimackutil.json.types.JSONObject;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.BufferedOutputStream;
+import java.io.UncheckedIOException;
 import java.net.Socket;
-import java.security.SecureRandom;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
-import java.util.Scanner;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
-import static merrimackutil.json.JsonIO.readObject;
 
 /**
  * Handles incoming connections for each Jondo, processing messages and managing routing operations.
  */
-public class JondoConnectionHandler implements Runnable {
+public class JondoConnectionHandler implements Runnable, FrameHandler {
     /**
      * Address of this Jondo
      */
@@ -53,105 +60,323 @@ public class JondoConnectionHandler implements Runnable {
     /**
      * Routingtable that this current Jondo knows about
      */
-    private ConcurrentHashMap<String, Node> routingTable;
+    private RoutingIndex routingTable;
     /**
-     * A number between 1-100 which represent the percentage chance of heads * 100
+     * Keeps the routing table in step with the Blender
      */
-    private int probHead;
+    private RoutingTableSync routingSync;
     /**
-     * Random number generator
+     * Persistent connections of this Jondo used to forward messages
      */
-    private SecureRandom randGen;
+    private ConnectionPool connectionPool;
+    /**
+     * Decides whether messages go on to another Jondo or out to their destination
+     */
+    private ForwardingPolicy forwarding;
+    /**
+     * Where messages on each path through this Jondo go next
+     */
+    private PathTable paths;
+    /**
+     * Relays replies back along the circuit, null when we acknowledge DATA as soon as we pass it on
+     */
+    private CircuitRelay relay;
     /**
      * JondoDriver of this Jondo
      */
     private JondoDriver jondoDriver;
+    /**
+     * Metrics of this Jondo
+     */
+    private Metrics metrics;
+    /**
+     * Time taken to handle each message
+     */
+    private Metrics.Histogram handlerTimes;
+    /**
+     * Messages passed on to another Jondo
+     */
+    private LongAdder forwards;
+    /**
+     * Messages sent straight to their destination
+     */
+    private LongAdder deliveries;
+    /**
+     * Timings of our hops of traced messages, null when we do not trace
+     */
+    private TraceBuffer traces;
 
     /**
      * Constructs a new connection handler for a Jondo.
      *
      * @param _sock         The socket through which the connection was received.
      * @param _routingTable The current routing table of the Jondo.
+     * @param _routingSync  The sync keeping the routing table up to date.
+     * @param _forwarding   The forwarding policy of the Jondo.
+     * @param _paths        The paths through the Jondo.
+     * @param _relay        The relay for replies, null to acknowledge DATA as soon as it is passed on.
+     * @param _connectionPool The pool of persistent connections of the Jondo.
+     * @param _metrics      The metrics of the Jondo.
+     * @param _traces       The trace buffer of the Jondo, null if it does not trace.
      * @param _addr         The IP address of this Jondo.
      * @param _port         The port number of this Jondo.
      * @param _blenderAddr  The IP address of the Blender.
      * @param _blenderPort  The port number of the Blender.
      * @param _jondoDriver  The driver for managing Jondo operations.
      */
-    public JondoConnectionHandler(Socket _sock, ConcurrentHashMap<String, Node> _routingTable, String _addr,
-            int _port, String _blenderAddr, int _blenderPort, JondoDriver _jondoDriver) {
+    public JondoConnectionHandler(Socket _sock, RoutingIndex _routingTable,
+            RoutingTableSync _routingSync, ForwardingPolicy _forwarding, PathTable _paths, CircuitRelay _relay,
+            ConnectionPool _connectionPool, Metrics _metrics, TraceBuffer _traces, String _addr, int _port,
+            String _blenderAddr, int _blenderPort, JondoDriver _jondoDriver) {
+        this(_routingTable, _routingSync, _forwarding, _paths, _relay, _connectionPool, _metrics, _traces, _addr,
+                _port, _blenderAddr, _blenderPort, _jondoDriver);
+        sock = _sock;
+    }
+
+    /**
+     * Constructs a new message handler for a Jondo without owning a socket, used by the event loop server which
+     * reads the connection itself and hands us decoded messages.
+     *
+     * @param _routingTable   The current routing table of the Jondo.
+     * @param _routingSync    The sync keeping the routing table up to date.
+     * @param _forwarding     The forwarding policy of the Jondo.
+     * @param _paths          The paths through the Jondo.
+     * @param _relay          The relay for replies, null to acknowledge DATA as soon as it is passed on.
+     * @param _connectionPool The pool of persistent connections of the Jondo.
+     * @param _metrics        The metrics of the Jondo.
+     * @param _traces         The trace buffer of the Jondo, null if it does not trace.
+     * @param _addr           The IP address of this Jondo.
+     * @param _port           The port number of this Jondo.
+     * @param _blenderAddr    The IP address of the Blender.
+     * @param _blenderPort    The port number of the Blender.
+     * @param _jondoDriver    The driver for managing Jondo operations.
+     */
+    public JondoConnectionHandler(RoutingIndex _routingTable, RoutingTableSync _routingSync,
+            ForwardingPolicy _forwarding, PathTable _paths, CircuitRelay _relay, ConnectionPool _connectionPool,
+            Metrics _metrics, TraceBuffer _traces, String _addr, int _port, String _blenderAddr, int _blenderPort,
+            JondoDriver _jondoDriver) {
         addr = _addr;
         port = _port;
         blenderAddr = _blenderAddr;
         blenderPort = _blenderPort;
-        sock = _sock;
         jondoDriver = _jondoDriver;
 
         // get routing table from JONDO
         routingTable = _routingTable;
+        routingSync = _routingSync;
+        connectionPool = _connectionPool;
+        forwarding = _forwarding;
+        paths = _paths;
+        relay = _relay;
 
-        // 2/3 chance of fording node
-        probHead = 66;
-        randGen = new SecureRandom();
+        metrics = _metrics;
+        handlerTimes = metrics.histogram("handler.nanos");
+        forwards = metrics.counter("forwards");
+        deliveries = metrics.counter("deliveries");
+        traces = _traces;
     }
 
     /**
-     * The run method processes incoming messages received through the socket.
+     * The run method processes incoming messages received through the socket. Peers keep their connection open and
+     * send many messages over it, so we keep handling messages until they hang up.
      */
     @Override
     public void run() {
         try {
             // get input and output streams
-            Scanner recv = new Scanner(sock.getInputStream());
-            PrintWriter send = new PrintWriter(sock.getOutputStream(), true);
-
-            String recvString = recv.nextLine();
-
-            // read message sent to server
-            JSONObject recvJSON = readObject(recvString);
-
-            // parse Message
-            Message recvMessage = new Message(recvJSON);
-
-            switch (recvMessage.getType()) {
-                // we get broadcast from Blender of a new node joining network
-                case "BROADCAST":
-                    handleBroadcast(recvMessage);
-                    break;
-                // we are forwarded data from another node
-                case "DATA":
-                    handleData(recvMessage, send);
-                    break;
-                case "VOTE_BROADCAST":
-                    handleVoteBroadcast(recvMessage);
-                    break;
-                case "VOTE_CAST":
-                    handleVoteCast(recvMessage);
-                    break;
-                case "VOTE_RESULTS":
-                    handleVoteResults(recvMessage);
-                    break;
+            MessageReader recv = new MessageReader(sock.getInputStream());
+            BufferedOutputStream send = new BufferedOutputStream(sock.getOutputStream());
+            // relayed replies are written from other threads while we keep reading, each in the codec of the message
+            // it answers. A lock rather than synchronized so a virtual thread blocked writing does not pin its carrier
+            ReentrantLock sending = new ReentrantLock();
+            Function<String, ReplyChannel> replies = codec -> message -> {
+                byte[] bytes = MessageCodec.encode(message, MessageCodec.replyCodec(message, codec));
+                sending.lock();
+                try {
+                    send.write(bytes);
+                    send.flush();
+                } finally {
+                    sending.unlock();
+                }
+            };
+
+            // read messages sent to us until the peer hangs up
+            while (recv.read(this, replies)) {
+                // each frame is handled as it is read
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Jondo ConnectionHandler: Error reading from connection closing it");
+            System.err.println(e.getMessage());
+        } finally {
+            try {
+                sock.close();
+            } catch (IOException e) {
+                System.err.println("Jondo ConnectionHandler: Error closing connection");
+            }
+        }
+    }
+
+    /**
+     * Handles a single message received on this connection, counting it by type and timing it. If the message is
+     * traced and we trace we record our hop of it, if we do not trace we drop the trace id before passing it on.
+     *
+     * @param recvMessage The received message.
+     * @param reply       The ReplyChannel to send responses.
+     * @return true since peers may keep sending on the same connection
+     * @throws IOException if there is an error sending the response.
+     */
+    @Override
+    public boolean handleMessage(Message recvMessage, ReplyChannel reply) throws IOException {
+        long start = System.nanoTime();
+        TraceBuffer.Hop hop = null;
+        if (recvMessage.getTrace() != null) {
+            if (traces == null) {
+                recvMessage = new Message.Builder(recvMessage).setTrace(null).build();
+            } else {
+                hop = traces.start(recvMessage, start);
+            }
+        }
+
+        try {
+            dispatch(recvMessage, reply, hop);
+        } finally {
+            metrics.counter("messages", String.valueOf(recvMessage.getType())).increment();
+            handlerTimes.since(start);
+            if (hop != null) {
+                traces.record(hop);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Handles a DATA or VOTE_CAST we only read the header of. If we would pass it on unchanged we send the bytes it
+     * arrived as, anything else, such as DATA for us, a message on a path or a hop count to bump, is decoded and
+     * handled like any other message.
+     *
+     * @param frame The received frame.
+     * @param reply The ReplyChannel to send responses.
+     * @return true since peers may keep sending on the same connection
+     * @throws IOException if there is an error sending the response or decoding the frame.
+     */
+    @Override
+    public boolean handleFrame(Frame frame, ReplyChannel reply) throws IOException {
+        if (!canPassOn(frame)) {
+            return handleMessage(frame.toMessage(), reply);
+        }
+
+        long start = System.nanoTime();
+        TraceBuffer.Hop hop = frame.getTrace() == null ? null : traces.start(frame, start);
+        try {
+            passOn(frame, reply, hop);
+        } finally {
+            metrics.counter("messages", frame.getType()).increment();
+            handlerTimes.since(start);
+            if (hop != null) {
+                traces.record(hop);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if a frame goes on exactly as it arrived
+     *
+     * @param frame The received frame.
+     * @return true if nothing in the frame changes on its way through us
+     */
+    private boolean canPassOn(Frame frame) {
+        // paths are renumbered each hop, a hop count is bumped and a trace id we do not record is dropped
+        if (frame.getPath() != null || forwarding.changesMessages() || (frame.getTrace() != null && traces == null)) {
+            return false;
+        }
+        if (frame.getType().equals("DATA")) {
+            // a relayed DATA gets a new id each hop
+            return relay == null && !(addr.equals(frame.getDstAddr()) && port == frame.getDstPort());
+        }
+        return true;
+    }
+
+    /**
+     * Sends a frame on to another Jondo or its destination the way handleData and handleVoteCast send messages
+     *
+     * @param frame The frame to pass on.
+     * @param reply The ReplyChannel to send responses.
+     * @param hop   Our hop of a traced frame, null if it is not traced.
+     * @throws IOException if there is an error sending the ACK of a DATA.
+     */
+    private void passOn(Frame frame, ReplyChannel reply, TraceBuffer.Hop hop) throws IOException {
+        boolean data = frame.getType().equals("DATA");
+        try {
+            Node next = null;
+            if (forwarding.shouldForward(frame)) {
+                next = forwarding.pickNextHop(routingTable);
+                if (next != null) {
+                    forwards.increment();
+                }
+            } else {
+                deliveries.increment();
+                next = new Node(frame.getDstAddr(), frame.getDstPort());
+            }
+
+            if (next != null) {
+                if (hop != null) {
+                    hop.setNext(next);
+                }
+                // a peer in another codec needs it encoded again
+                if (!connectionPool.sendFrame(next, frame, hop)) {
+                    connectionPool.send(next, frame.toMessage(), hop);
+                }
             }
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            if (data) {
+                throw e;
+            }
+            e.printStackTrace();
+        }
+
+        if (data) {
+            // echo the id so the sender can match this ACK to its DATA
+            reply.reply(new Message.Builder("ACK").setAck(addr, port).setId(frame.getId()).build());
         }
     }
 
     /**
-     * Handles the BROADCAST message type to update the routing table.
+     * Handles a single message by its type
      *
-     * @param recvMessage The received broadcast message.
-     */
-    private void handleBroadcast(Message recvMessage) {
-        // get new Jondo to add from message and add it to routing table
-        Node newJondo = recvMessage.getNewNode();
-        // check if node is already in our routing table
-        if (!routingTable.containsKey(newJondo.getUid())) {
-            // put node in routing table
-            routingTable.put(newJondo.getUid(), newJondo);
-        } else {
-            // print error message
-            System.err.println("Blender: Error adding Jondo, already in Routing Table");
+     * @param recvMessage The received message.
+     * @param reply       The ReplyChannel to send responses.
+     * @param hop         Our hop of a traced message, null if it is not traced.
+     * @throws IOException if there is an error sending the response.
+     */
+    private void dispatch(Message recvMessage, ReplyChannel reply, TraceBuffer.Hop hop) throws IOException {
+        switch (recvMessage.getType()) {
+            // we get broadcast from Blender of a new node joining network
+            case "BROADCAST":
+                routingSync.onBroadcast(recvMessage);
+                break;
+            // we get told by Blender a node left the network
+            case "LEAVE":
+                routingSync.onLeave(recvMessage);
+                break;
+            // we are forwarded data from another node
+            case "DATA":
+                handleData(recvMessage, reply, hop);
+                break;
+            case "VOTE_BROADCAST":
+                handleVoteBroadcast(recvMessage);
+                break;
+            case "VOTE_CAST":
+            case "VOTE_CAST_BATCH":
+                handleVoteCast(recvMessage, hop);
+                break;
+            // a Jondo is setting up a path through us
+            case "PATH_OPEN":
+                forwardAlongPath(recvMessage, false, null);
+                break;
+            case "VOTE_RESULTS":
+                handleVoteResults(recvMessage);
+                break;
         }
     }
 
@@ -159,36 +384,89 @@ public class JondoConnectionHandler implements Runnable {
      * Handles the DATA message type, determining whether to process or forward the message.
      *
      * @param recvMessage The received data message.
-     * @param send        The PrintWriter to send responses.
+     * @param reply       The ReplyChannel to send responses.
+     * @param hop         Our hop of a traced message, null if it is not traced.
      * @throws IOException if there is an error sending the response.
      */
-    private void handleData(Message recvMessage, PrintWriter send) throws IOException {
+    private void handleData(Message recvMessage, ReplyChannel reply, TraceBuffer.Hop hop) throws IOException {
         if (thisNodeIsDestination(recvMessage)) {
-            processMessage(recvMessage);
-        } else if (flipCoin()) {
-            forwardMessageToRandomNode(recvMessage);
+            // echo the id so the reply finds its way back, data is our answer if we have one
+            reply.reply(new Message.Builder("ACK").setAck(addr, port).setId(recvMessage.getId())
+                    .setReplyData(processMessage(recvMessage)).build());
+            return;
+        }
+        if (relay != null) {
+            relayData(recvMessage, reply, hop);
+            return;
+        }
+
+        if (recvMessage.getPath() != null) {
+            forwardAlongPath(recvMessage, true, hop);
+        } else if (forwarding.shouldForward(recvMessage)) {
+            forwardMessageToRandomNode(recvMessage, hop);
         } else {
-            forwardMessageToDestination(recvMessage);
+            forwardMessageToDestination(recvMessage, hop);
         }
+        // echo the id so the sender can match this ACK to its DATA
         Message ackMessage = new Message.Builder("ACK")
                 .setAck(addr, port)
+                .setId(recvMessage.getId())
                 .build();
-        send.println(ackMessage.serialize());
+        reply.reply(ackMessage);
+    }
+
+    /**
+     * Passes a DATA on like handleData but answers with the reply that comes back along the circuit instead of an
+     * ACK of our own
+     *
+     * @param recvMessage The received data message.
+     * @param reply       The ReplyChannel to relay the reply on.
+     * @param traced      Our hop of a traced message, null if it is not traced.
+     */
+    private void relayData(Message recvMessage, ReplyChannel reply, TraceBuffer.Hop traced) {
+        Node next = null;
+        Message onward = recvMessage;
+
+        if (recvMessage.getPath() != null) {
+            PathTable.Hop hop = paths.route(recvMessage);
+            if (hop.getNext() != null) {
+                next = hop.getNext();
+                onward = new Message.Builder(recvMessage).setPath(hop.getPath()).build();
+            }
+        } else if (forwarding.shouldForward(recvMessage)) {
+            next = forwarding.pickNextHop(routingTable);
+        }
+
+        if (next != null) {
+            forwards.increment();
+            onward = forwarding.nextHop(onward);
+        } else {
+            deliveries.increment();
+            next = new Node(recvMessage.getDstAddr(), recvMessage.getDstPort());
+        }
+        if (traced != null) {
+            traced.setNext(next);
+        }
+        relay.relay(recvMessage, next, onward, reply, traced);
     }
 
     /**
-     * Handles VOTE_CAST messages by determining whether to forward the message based on a probabilistic decision.
+     * Handles VOTE_CAST and VOTE_CAST_BATCH messages by determining whether to forward the message based on a
+     * probabilistic decision.
      *
      * @param recvMessage The received vote cast message.
+     * @param hop         Our hop of a traced message, null if it is not traced.
      */
-    private void handleVoteCast(Message recvMessage) {
+    private void handleVoteCast(Message recvMessage, TraceBuffer.Hop hop) {
         // If we recieve another nodes vote cast message, we need to flip a coin and
         // forward it to the Blender
         try {
-            if (flipCoin()) {
-                forwardMessageToRandomNode(recvMessage);
+            if (recvMessage.getPath() != null) {
+                forwardAlongPath(recvMessage, true, hop);
+            } else if (forwarding.shouldForward(recvMessage)) {
+                forwardMessageToRandomNode(recvMessage, hop);
             } else {
-                forwardMessageToDestination(recvMessage);
+                forwardMessageToDestination(recvMessage, hop);
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -196,11 +474,16 @@ public class JondoConnectionHandler implements Runnable {
     }
 
     /**
-     * Handles VOTE_BROADCAST messages by updating the current vote in the JondoDriver.
+     * Handles VOTE_BROADCAST messages by updating the current vote in the JondoDriver. A Jondo without a driver has
+     * no one to show the vote to and ignores it.
      *
      * @param message The received vote broadcast message.
      */
     public void handleVoteBroadcast(Message message) {
+        if (jondoDriver == null) {
+            return;
+        }
+
         Vote vote = message.getVote(); // Assuming getVote() method exists
         jondoDriver.setCurrentVote(vote);
         jondoDriver.getSentVotes().put(vote.getVoteId(), vote);
@@ -212,6 +495,11 @@ public class JondoConnectionHandler implements Runnable {
 
     private void handleVoteResults(Message recvMessage) {
         Vote vote = recvMessage.getVote();
+        // older than results we already showed, a push and a query answer crossed
+        if (jondoDriver != null && !jondoDriver.isNewerResults(vote.getVoteId(), recvMessage.getResultsEpoch(),
+                recvMessage.getVersion())) {
+            return;
+        }
         List<String> results = vote.getResults();
         System.out.println("Vote results for vote ID " + vote.getVoteId() + ": " + results);
     }
@@ -221,28 +509,57 @@ public class JondoConnectionHandler implements Runnable {
      * Forwards a message directly to its destination.
      *
      * @param message The message to forward.
+     * @param hop     Our hop of a traced message, null if it is not traced.
      * @throws IOException if there is an error during forwarding.
      */
-    private void forwardMessageToDestination(Message message) throws IOException {
-        try (Socket nodeSock = new Socket(message.getDstAddr(), message.getDstPort());
-                PrintWriter nodeSend = new PrintWriter(nodeSock.getOutputStream(), true)) {
-            nodeSend.println(message.serialize());
+    private void forwardMessageToDestination(Message message, TraceBuffer.Hop hop) throws IOException {
+        deliveries.increment();
+        Node destination = new Node(message.getDstAddr(), message.getDstPort());
+        if (hop != null) {
+            hop.setNext(destination);
         }
+        connectionPool.send(destination, message, hop);
     }
 
     /**
      * Forwards a message to a randomly selected node in the routing table.
      *
      * @param message The message to forward.
+     * @param hop     Our hop of a traced message, null if it is not traced.
      * @throws IOException if there is an error during forwarding.
      */
-    private void forwardMessageToRandomNode(Message message) throws IOException {
-        Node randNode = selectRandomNode();
+    private void forwardMessageToRandomNode(Message message, TraceBuffer.Hop hop) throws IOException {
+        Node randNode = forwarding.pickNextHop(routingTable);
         if (randNode != null) {
-            try (Socket nodeSock = new Socket(randNode.getAddr(), randNode.getPort());
-                    PrintWriter nodeSend = new PrintWriter(nodeSock.getOutputStream(), true)) {
-                nodeSend.println(message.serialize());
+            forwards.increment();
+            if (hop != null) {
+                hop.setNext(randNode);
+            }
+            connectionPool.send(randNode, forwarding.nextHop(message), hop);
+        }
+    }
+
+    /**
+     * Sends a message on along its path, the same way as every earlier message on the path
+     *
+     * @param message     The message with a path id.
+     * @param hasDestination true if the last Jondo on the path sends the message to its destination, false for a
+     *                       PATH_OPEN which stops there
+     * @param traced     Our hop of a traced message, null if it is not traced.
+     * @throws IOException if there is an error during forwarding.
+     */
+    private void forwardAlongPath(Message message, boolean hasDestination, TraceBuffer.Hop traced)
+            throws IOException {
+        PathTable.Hop hop = paths.route(message);
+        if (hop.getNext() != null) {
+            Message onward = new Message.Builder(message).setPath(hop.getPath()).build();
+            forwards.increment();
+            if (traced != null) {
+                traced.setNext(hop.getNext());
             }
+            connectionPool.send(hop.getNext(), forwarding.nextHop(onward), traced);
+        } else if (hasDestination) {
+            forwardMessageToDestination(message, traced);
         }
     }
 
@@ -257,44 +574,16 @@ public class JondoConnectionHandler implements Runnable {
         return this.addr.equals(message.getDstAddr()) && this.port == message.getDstPort();
     }
 
-    /**
-     * Selects a random node from the routing table.
-     *
-     * @return The randomly selected Node, or null if no nodes are available.
-     */
-    private Node selectRandomNode() {
-        ArrayList<String> keys = new ArrayList<>(routingTable.keySet());
-
-        if (keys.isEmpty()) {
-            return null; // No available nodes to forward to
-        }
-
-        int randIndex = randGen.nextInt(keys.size());
-        return routingTable.get(keys.get(randIndex));
-    }
-
-    /**
-     * Flips a biased coin the bias being probHead
-     * We generate a random number between 0-100 if it is less than probHeads we
-     * return true
-     * 
-     * @return boolean indicating if the result is heads (true) or tails (false)
-     */
-    private boolean flipCoin() {
-        SecureRandom rand = new SecureRandom();
-        int ranNum = rand.nextInt(100);
-
-        return ranNum <= probHead;
-    }
-
     /**
      * Processes the received message
      *
      * @param message The message to process.
+     * @return String reply to the message, null if we have none
      */
-    private void processMessage(Message message) {
-        // process message
-        //
-        // System.out.println("Processing message: " + message);
+    private String processMessage(Message message) {
+        if (jondoDriver == null) {
+            return null;
+        }
+        return jondoDriver.receiveData(message.getData());
     }
 }
@@ -11,6 +11,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
 
 import Model.Message;
 import Model.Vote;
@@ -28,6 +29,7 @@ public class JondoDriver {
     private static String config;
     private static Vote currVote;
     private static HashMap<String, Vote> sentVotes = new HashMap<>(); // Store sent votes
+    private static ConcurrentHashMap<String, long[]> resultVersions = new ConcurrentHashMap<>(); // newest results seen, {epoch, version}
 
     private static void usage() {
         System.out.println("Usage:");
@@ -121,14 +123,17 @@ public class JondoDriver {
             usage();
         }
 
+        Configuration configuration = new Configuration.Builder("jondo").setAddr(jondoAddr).setPort(jondoPort)
+                .setThreads(threads).setBlender(blenderAddr, blenderPort).build();
+
         if (doConfig) {
             try {
-                Configuration configFile = new Configuration(readObject(new File(config)));
-                jondoAddr = configFile.getAddr();
-                jondoPort = configFile.getPort();
-                threads = configFile.getThreads();
-                blenderAddr = configFile.getBlenderAddr();
-                blenderPort = configFile.getBlenderPort();
+                configuration = new Configuration(readObject(new File(config)));
+                jondoAddr = configuration.getAddr();
+                jondoPort = configuration.getPort();
+                threads = configuration.getThreads();
+                blenderAddr = configuration.getBlenderAddr();
+                blenderPort = configuration.getBlenderPort();
 
             } catch (FileNotFoundException e) {
                 System.err.println("Config file not found! Please check path: " + config);
@@ -144,7 +149,7 @@ public class JondoDriver {
         System.out.println("Starting Jondo on " + jondoAddr + "/" + jondoPort + " with " +threads + " threads " +
                 " with blender on " + blenderAddr + "/" +blenderPort);
 
-        jondo = new Jondo(jondoAddr, jondoPort, threads, blenderAddr, blenderPort, this);
+        jondo = new Jondo(configuration, this);
         runCLI(jondo);
     }
 
@@ -156,6 +161,17 @@ public class JondoDriver {
         return sentVotes;
     }
 
+    /**
+     * Called when a DATA message reaches this Jondo as its destination, override to answer it. The answer goes back
+     * to the sender along the path when the crowd relays replies.
+     *
+     * @param data String data of the message
+     * @return String reply to send back, null to only acknowledge the message
+     */
+    public String receiveData(String data) {
+        return null;
+    }
+
     public static void queryVoteResults(int voteIndex) {
         if (voteIndex < 1 || voteIndex > sentVotes.size()) {
             System.out.println("Invalid vote selection.");
@@ -175,6 +191,59 @@ public class JondoDriver {
         }
     }
 
+    /**
+     * Subscribes to the results of a vote, the Blender pushes them to us whenever ballots are counted
+     *
+     * @param voteIndex int number of the vote as shown by displaySentVotes
+     */
+    public static void subscribeVoteResults(int voteIndex) {
+        if (voteIndex < 1 || voteIndex > sentVotes.size()) {
+            System.out.println("Invalid vote selection.");
+            return;
+        }
+        List<String> keys = new ArrayList<>(sentVotes.keySet());
+        String voteId = keys.get(voteIndex - 1);
+
+        // tell the Blender which results we already have so it only sends newer ones
+        long[] seen = resultVersions.getOrDefault(voteId, new long[2]);
+        Message message = new Message.Builder("VOTE_RESULTS_SUBSCRIBE")
+                .setVoteResultsSubscribe(blenderAddr, blenderPort, sentVotes.get(voteId), jondoAddr, jondoPort)
+                .setVersion(seen[0], seen[1]).build();
+        try {
+            jondo.forwardMessageToDestination(message);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Notes the version of results received for a vote. A push can cross the answer to a query on the way so results
+     * may arrive out of order. Results of a later epoch are newer whatever their version, the Blender restarted
+     *
+     * @param voteId  String id of vote
+     * @param epoch   long epoch of the results, 0 if they are not versioned
+     * @param version long version of the results within the epoch
+     * @return true if the results are at least as new as any we have seen for the vote
+     */
+    public boolean isNewerResults(String voteId, long epoch, long version) {
+        if (epoch == 0 && version == 0) {
+            return true;
+        }
+        long[] received = {epoch, version};
+        return resultVersions.merge(voteId, received, (seen, now) -> isNewer(now, seen) ? now : seen) == received;
+    }
+
+    /**
+     * Compares two versions of results by epoch then version
+     *
+     * @param a long[] epoch and version
+     * @param b long[] epoch and version
+     * @return true if a is at least as new as b
+     */
+    private static boolean isNewer(long[] a, long[] b) {
+        return a[0] != b[0] ? a[0] > b[0] : a[1] >= b[1];
+    }
+
     public static void displaySentVotes() {
         if (sentVotes.isEmpty()) {
             System.out.println("No votes have been sent.");
@@ -192,7 +261,7 @@ public class JondoDriver {
         String command;
         boolean running = true;
 
-        System.out.println("Type '.vote' to cast vote, .results to get results, .quit' to exit, .help to see this menu.");
+        System.out.println("Type '.vote' to cast vote, .results to get results, .subscribe to follow results, .quit' to exit, .help to see this menu.");
 
         while (running) {
 
@@ -223,11 +292,20 @@ public class JondoDriver {
                     scanner.nextLine(); // consume newline
                     queryVoteResults(voteChoice);
                     break;
+                case ".subscribe":
+                    displaySentVotes();
+                    System.out.print("Select the number of the vote to follow the results of: ");
+                    int followChoice = scanner.nextInt();
+                    scanner.nextLine(); // consume newline
+                    subscribeVoteResults(followChoice);
+                    break;
                 case ".help":
-                    System.out.println("Type '.vote' to cast vote, .results to get results, .quit' to exit, .help to see this menu.");
+                    System.out.println("Type '.vote' to cast vote, .results to get results, .subscribe to follow results, .quit' to exit, .help to see this menu.");
                     break;
                 case ".quit":
                     running = false;
+                    // let the Blender drop us so the crowd stops routing through us
+                    jondo.leave();
                     System.exit(0);
                     break;
                 default:
@@ -0,0 +1,253 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Jondo;
+
+import Model.ConnectionPool;
+import Model.Message;
+import Model.Node;
+import Model.RoutingIndex;
+import Model.ThreadSecureRandom;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Paths this Jondo sends its own messages along. As in the Crowds paper a path is set up once and reused, a PATH_OPEN
+ * walks the crowd flipping coins and each Jondo it passes remembers where it went, later messages carry the path id
+ * and follow the same Jondos without any more coin flips. We keep a few paths open and send each message along one of
+ * them. Every path is replaced after its lifetime and a path whose first Jondo left the crowd is replaced when the
+ * crowd changes, Jondos further along a path pick a new next hop themselves when theirs leaves.
+ * <p>
+ * Paths are opened on a background thread since opening one can wait on a connect, senders keep using the paths they
+ * have until the new ones are open.
+ */
+public class PathPool {
+    /**
+     * Time in millis before we try again to fill a pool that came out short
+     */
+    private static final long RETRY_MILLIS = 1000;
+
+    /**
+     * Routing table first hops come from
+     */
+    private RoutingIndex routingTable;
+    /**
+     * Picks first hops and prepares PATH_OPENs
+     */
+    private ForwardingPolicy forwarding;
+    /**
+     * Connections PATH_OPENs are sent on
+     */
+    private ConnectionPool connectionPool;
+    /**
+     * Number of paths kept open
+     */
+    private int size;
+    /**
+     * Time in millis a path is used before it is replaced
+     */
+    private long lifetime;
+    /**
+     * Paths in use, replaced as a whole so readers never need a lock
+     */
+    private volatile Path[] paths;
+    /**
+     * Version of the crowd the paths were last checked against
+     */
+    private volatile long checkedVersion;
+    /**
+     * Time in millis a pool with fewer than size paths is filled again, so a crowd we cannot open paths through is
+     * not tried on every message
+     */
+    private volatile long retryAt;
+    /**
+     * Lock so only one thread replaces the paths
+     */
+    private ReentrantLock lock;
+    /**
+     * Set while a refresh is waiting or running so senders queue at most one
+     */
+    private AtomicBoolean refreshing;
+    /**
+     * Thread that opens paths
+     */
+    private ExecutorService opener;
+
+    /**
+     * Creates a new pool, the paths are opened by warm or in the background after the first call to next
+     *
+     * @param _routingTable   RoutingIndex of the crowd
+     * @param _forwarding     ForwardingPolicy of this Jondo
+     * @param _connectionPool ConnectionPool to send PATH_OPENs on
+     * @param _size           int number of paths to keep open
+     * @param _lifetime       long time in millis a path is used before it is replaced
+     */
+    public PathPool(RoutingIndex _routingTable, ForwardingPolicy _forwarding, ConnectionPool _connectionPool,
+            int _size, long _lifetime) {
+        routingTable = _routingTable;
+        forwarding = _forwarding;
+        connectionPool = _connectionPool;
+        size = _size;
+        lifetime = _lifetime;
+        paths = new Path[0];
+        checkedVersion = -1;
+        lock = new ReentrantLock();
+        refreshing = new AtomicBoolean();
+
+        opener = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "path-pool");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Opens the paths now so the first messages do not wait for them
+     */
+    public void warm() {
+        refresh();
+    }
+
+    /**
+     * Gets a path to send a message along. If a path is too old or the crowd changed the paths are refreshed in the
+     * background and this message still goes along a path we have.
+     *
+     * @return Path to use or null if no path through a Jondo still in the crowd is open
+     */
+    public Path next() {
+        Path[] current = paths;
+        boolean changed = routingTable.getVersion() != checkedVersion;
+        long now = System.currentTimeMillis();
+        if (changed || (current.length < size && now >= retryAt)
+                || (current.length > 0 && current[0].expires <= now)) {
+            refreshLater();
+        }
+
+        if (current.length == 0) {
+            return null;
+        }
+        Path path = current[ThreadSecureRandom.current().nextInt(current.length)];
+        if (!changed || routingTable.contains(path.firstHop.getId())) {
+            return path;
+        }
+
+        // the crowd changed since we last looked, only use a path whose first hop is still there
+        for (Path other : current) {
+            if (routingTable.contains(other.firstHop.getId())) {
+                return other;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queues a refresh on the opener thread unless one is already queued
+     */
+    private void refreshLater() {
+        if (refreshing.compareAndSet(false, true)) {
+            opener.execute(() -> {
+                // cleared first so a change while we open paths queues another refresh
+                refreshing.set(false);
+                refresh();
+            });
+        }
+    }
+
+    /**
+     * Keeps the paths that have not expired and whose first hop is still in the crowd and opens new ones in place of
+     * the rest
+     */
+    private void refresh() {
+        lock.lock();
+        try {
+            // read before we look at the table so a change while we work is seen by the next check
+            long version = routingTable.getVersion();
+            long now = System.currentTimeMillis();
+
+            List<Path> kept = new ArrayList<>();
+            for (Path path : paths) {
+                if (path.expires > now && routingTable.contains(path.firstHop.getId())) {
+                    kept.add(path);
+                }
+            }
+
+            // new paths expire together, the oldest kept path is the one next looks at
+            long expires = now + lifetime;
+            List<Path> opened = new ArrayList<>();
+            for (int i = kept.size(); i < size; i++) {
+                Node firstHop = forwarding.pickNextHop(routingTable);
+                if (firstHop == null) {
+                    break;
+                }
+
+                Path path = new Path(Message.newId(ThreadSecureRandom.current()), firstHop, expires);
+                Message open = new Message.Builder("PATH_OPEN").setPath(path.id).build();
+                try {
+                    connectionPool.send(firstHop, forwarding.nextHop(open));
+                    opened.add(path);
+                } catch (IOException e) {
+                    System.err.println("Jondo: Unable to open path through " + firstHop.getAddr() + ":"
+                            + firstHop.getPort());
+                }
+            }
+
+            kept.addAll(opened);
+            kept.sort(Comparator.comparingLong(path -> path.expires));
+            paths = kept.toArray(new Path[0]);
+            checkedVersion = version;
+            retryAt = now + RETRY_MILLIS;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A path through the crowd
+     */
+    public static class Path {
+        private final String id;
+        private final Node firstHop;
+        /**
+         * Time in millis the path is replaced
+         */
+        private final long expires;
+
+        private Path(String _id, Node _firstHop, long _expires) {
+            id = _id;
+            firstHop = _firstHop;
+            expires = _expires;
+        }
+
+        /**
+         * Gets id the first hop knows the path by. Each hop passes the path on under a fresh id of its own, so the id
+         * means nothing to any other Jondo on the path
+         *
+         * @return String path id between us and the first hop
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * Gets Jondo messages on this path are sent to first
+         *
+         * @return Node first hop
+         */
+        public Node getFirstHop() {
+            return firstHop;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Jondo;
+
+import Model.Message;
+import Model.Node;
+import Model.RoutingIndex;
+import Model.ThreadSecureRandom;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where this Jondo sends messages on each path through it. The first message of a path, normally its PATH_OPEN, gets
+ * a forwarding decision like any other message and we remember it, every later message on the path is sent the same
+ * way after a single lookup. A path whose next Jondo left the crowd decides again, a path nobody used for a lifetime
+ * is forgotten.
+ * <p>
+ * As in the Crowds paper path ids only mean something between two Jondos, we give a path we forward a new id of our
+ * own. A path that comes back through us, or through the Jondo that sent it, then arrives with an id we have not seen
+ * and gets a new coin flip instead of going round the same loop forever.
+ */
+public class PathTable {
+    /**
+     * Next hop of a path, EXIT when this Jondo sends the paths messages to their destinations
+     */
+    private static final Node EXIT = new Node("exit", 0);
+
+    /**
+     * Paths through this Jondo, key is path id
+     */
+    private ConcurrentHashMap<String, Hop> paths;
+    /**
+     * Routing table the next hops come from
+     */
+    private RoutingIndex routingTable;
+    /**
+     * Decides whether new paths go on to another Jondo
+     */
+    private ForwardingPolicy forwarding;
+    /**
+     * Time in millis a path may go unused before it is forgotten
+     */
+    private long lifetime;
+    /**
+     * Thread that forgets unused paths
+     */
+    private ScheduledExecutorService timer;
+
+    /**
+     * Creates a new path table
+     *
+     * @param _routingTable RoutingIndex to pick next hops from
+     * @param _forwarding   ForwardingPolicy deciding where new paths go
+     * @param _lifetime     long time in millis a path may go unused before it is forgotten
+     */
+    public PathTable(RoutingIndex _routingTable, ForwardingPolicy _forwarding, long _lifetime) {
+        routingTable = _routingTable;
+        forwarding = _forwarding;
+        lifetime = _lifetime;
+        paths = new ConcurrentHashMap<>();
+
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "path-table-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(this::expire, lifetime, lifetime, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Finds where a message on a path goes next, deciding and remembering it if the path is new to us
+     *
+     * @param message Message with a path id
+     * @return Hop the path takes from here
+     */
+    public Hop route(Message message) {
+        String id = message.getPath();
+        long now = System.currentTimeMillis();
+        Hop hop = paths.get(id);
+
+        // a path is decided once, unless its next Jondo has since left the crowd. Two messages of a new path can
+        // arrive at once, whichever decision is stored first is the one both follow
+        if (hop == null || (hop.next != EXIT && !routingTable.contains(hop.next.getId()))) {
+            Node next = decide(message);
+            Hop decided = new Hop(next, next == EXIT ? null : Message.newId(ThreadSecureRandom.current()), now);
+            if (hop == null) {
+                Hop stored = paths.putIfAbsent(id, decided);
+                hop = stored == null ? decided : stored;
+            } else {
+                hop = paths.replace(id, hop, decided) ? decided : paths.getOrDefault(id, decided);
+            }
+        }
+
+        hop.lastUsed = now;
+        return hop;
+    }
+
+    /**
+     * Gets number of paths through this Jondo
+     *
+     * @return int number of paths
+     */
+    public int size() {
+        return paths.size();
+    }
+
+    /**
+     * Flips the coin for a path new to us
+     *
+     * @param message Message first seen on the path
+     * @return Node next hop or EXIT
+     */
+    private Node decide(Message message) {
+        if (forwarding.shouldForward(message)) {
+            Node next = forwarding.pickNextHop(routingTable);
+            if (next != null) {
+                return next;
+            }
+        }
+        return EXIT;
+    }
+
+    /**
+     * Forgets paths nobody used for a lifetime
+     */
+    private void expire() {
+        long cutoff = System.currentTimeMillis() - lifetime;
+        paths.values().removeIf(hop -> hop.lastUsed < cutoff);
+    }
+
+    /**
+     * Where a path goes from this Jondo
+     */
+    public static class Hop {
+        private final Node next;
+        /**
+         * Id of the path between us and next
+         */
+        private final String path;
+        private volatile long lastUsed;
+
+        private Hop(Node _next, String _path, long _lastUsed) {
+            next = _next;
+            path = _path;
+            lastUsed = _lastUsed;
+        }
+
+        /**
+         * Gets the Jondo messages on the path are forwarded to
+         *
+         * @return Node next hop, or null if we send the messages to their destinations
+         */
+        public Node getNext() {
+            return next == EXIT ? null : next;
+        }
+
+        /**
+         * Gets the id the next Jondo knows the path by
+         *
+         * @return String path id, null if we send the messages to their destinations
+         */
+        public String getPath() {
+            return path;
+        }
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Jondo;
+
+import Model.ConnectionPool;
+import Model.Message;
+import Model.Node;
+import Model.NodeId;
+import Model.RoutingIndex;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps a Jondos routing table in step with the Blenders. We track the epoch of the Blenders table we are up to date
+ * with, when a BROADCAST or LEAVE skips an epoch we know we missed one and ask the Blender for the changes since our
+ * epoch rather than the whole table.
+ */
+public class RoutingTableSync {
+    /**
+     * Time in millis to wait for the Blender to answer a SYNC
+     */
+    public static final long SYNC_TIMEOUT = 5000;
+    /**
+     * Time in millis an update may sit ahead of a missing epoch before we SYNC, gossip and parallel broadcasts do not
+     * arrive in order so the missing update is usually just a little behind
+     */
+    public static final long GAP_GRACE = 250;
+
+    /**
+     * Routing table of this Jondo, shared with every connection handler
+     */
+    private RoutingIndex routingTable;
+    /**
+     * Connections used to reach the Blender
+     */
+    private ConnectionPool connectionPool;
+    /**
+     * Blender that owns the routing table
+     */
+    private Node blender;
+    /**
+     * Epoch of the Blenders table we are up to date with, 0 if the Blender does not version its table
+     */
+    private AtomicInteger epoch;
+    /**
+     * SYNC in flight if any, so a burst of out of order updates only asks once
+     */
+    private AtomicReference<CompletableFuture<Integer>> inFlight;
+    /**
+     * Random generator for SYNC ids
+     */
+    private SecureRandom randGen;
+    /**
+     * This Jondo, never gossiped to
+     */
+    private Node self;
+    /**
+     * Number of gossiped membership changes we passed on
+     */
+    private LongAdder gossipForwarded;
+    /**
+     * Number of gossiped membership changes we already knew about and dropped
+     */
+    private LongAdder gossipDuplicates;
+    /**
+     * Epochs of updates we applied that arrived ahead of a missing epoch
+     */
+    private ConcurrentSkipListSet<Integer> ahead;
+    /**
+     * Thread that runs background SYNCs and gap checks
+     */
+    private ScheduledExecutorService timer;
+    /**
+     * Held while applying a change and its epoch, so a SYNC_DELTA is checked against every update applied before it
+     */
+    private ReentrantLock updateLock;
+    /**
+     * Number of SYNC_DELTAs dropped because they were older than updates we had already applied
+     */
+    private LongAdder staleDeltas;
+
+    /**
+     * Creates a new sync for a routing table
+     *
+     * @param _routingTable   RoutingIndex routing table to keep up to date
+     * @param _connectionPool ConnectionPool to reach the Blender and gossip with
+     * @param _addr           String IP address of this Jondo
+     * @param _port           int port of this Jondo
+     * @param _blenderAddr    String IP address of the Blender
+     * @param _blenderPort    int port of the Blender
+     */
+    public RoutingTableSync(RoutingIndex _routingTable, ConnectionPool _connectionPool,
+            String _addr, int _port, String _blenderAddr, int _blenderPort) {
+        routingTable = _routingTable;
+        connectionPool = _connectionPool;
+        blender = new Node(_blenderAddr, _blenderPort);
+        epoch = new AtomicInteger();
+        inFlight = new AtomicReference<>();
+        randGen = new SecureRandom();
+        self = new Node(_addr, _port);
+        gossipForwarded = new LongAdder();
+        gossipDuplicates = new LongAdder();
+        ahead = new ConcurrentSkipListSet<>();
+        updateLock = new ReentrantLock();
+        staleDeltas = new LongAdder();
+
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "routing-table-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts syncing in the background, catches a missed update when no later update arrives to show the gap. An up
+     * to date Jondo gets back an empty delta.
+     *
+     * @param interval long time in millis between background SYNCs
+     */
+    public void start(long interval) {
+        timer.scheduleWithFixedDelay(() -> {
+            // a Blender without epochs does not understand SYNC
+            if (epoch.get() != 0) {
+                sync();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets the epoch of the table we were welcomed with
+     *
+     * @param _epoch int epoch from WELCOME
+     */
+    public void setEpoch(int _epoch) {
+        epoch.set(_epoch);
+    }
+
+    /**
+     * Gets the epoch we are up to date with
+     *
+     * @return int epoch
+     */
+    public int getEpoch() {
+        return epoch.get();
+    }
+
+    /**
+     * Applies a BROADCAST of a new node, passing it on if it is gossiped and new to us
+     *
+     * @param message BROADCAST message
+     */
+    public void onBroadcast(Message message) {
+        Node newJondo = message.getNewNode();
+        boolean isNew;
+        updateLock.lock();
+        try {
+            isNew = routingTable.putIfAbsent(newJondo);
+            advance(message.getEpoch());
+        } finally {
+            updateLock.unlock();
+        }
+
+        if (message.getFanout() > 0) {
+            gossip(message, isNew, newJondo);
+        } else if (!isNew) {
+            System.err.println("Jondo: Error adding Jondo, already in Routing Table");
+        }
+    }
+
+    /**
+     * Applies a LEAVE of a node, passing it on if it is gossiped and new to us
+     *
+     * @param message LEAVE message
+     */
+    public void onLeave(Message message) {
+        Node leaving = new Node(message.getSrcAddr(), message.getSrcPort());
+        boolean isNew;
+        updateLock.lock();
+        try {
+            isNew = routingTable.remove(leaving.getId());
+            advance(message.getEpoch());
+        } finally {
+            updateLock.unlock();
+        }
+        connectionPool.evict(leaving.getId());
+
+        if (message.getFanout() > 0) {
+            gossip(message, isNew, leaving);
+        }
+    }
+
+    /**
+     * Gets number of gossiped membership changes we passed on
+     *
+     * @return long number of changes forwarded
+     */
+    public long getGossipForwarded() {
+        return gossipForwarded.sum();
+    }
+
+    /**
+     * Gets number of gossiped membership changes we dropped as duplicates
+     *
+     * @return long number of duplicates
+     */
+    public long getGossipDuplicates() {
+        return gossipDuplicates.sum();
+    }
+
+    /**
+     * Gets number of SYNC_DELTAs dropped because updates newer than them had already been applied
+     *
+     * @return long number of stale deltas
+     */
+    public long getStaleDeltas() {
+        return staleDeltas.sum();
+    }
+
+    /**
+     * Asks the Blender for the changes since our epoch and applies them. If a SYNC is already in flight we share it.
+     *
+     * @return CompletableFuture that completes with the epoch we are up to date with afterwards
+     */
+    public CompletableFuture<Integer> sync() {
+        CompletableFuture<Integer> mine = new CompletableFuture<>();
+        CompletableFuture<Integer> running = inFlight.compareAndExchange(null, mine);
+        if (running != null) {
+            return running;
+        }
+
+        int asked = epoch.get();
+        Message request = new Message.Builder("SYNC").setId(Message.newId(randGen)).setEpoch(asked).build();
+
+        connectionPool.request(blender, request, SYNC_TIMEOUT).whenComplete((reply, error) -> {
+            inFlight.set(null);
+
+            if (error != null) {
+                System.err.println("Jondo: Unable to sync routing table with Blender " + error.getMessage());
+                mine.completeExceptionally(error);
+            } else if (!reply.getType().equals("SYNC_DELTA")) {
+                System.err.println("Jondo: Blender did not answer SYNC with SYNC_DELTA");
+                mine.complete(epoch.get());
+            } else {
+                apply(reply, asked);
+                mine.complete(epoch.get());
+            }
+        });
+        return mine;
+    }
+
+    /**
+     * Passes a gossiped change on to fanout random Jondos. We only pass on a change the first time we see it, that
+     * is when it actually changed our table, so each Jondo forwards each change at most once and the gossip dies
+     * out. A Jondo the gossip misses finds out from the epoch gap on its next update or its next background SYNC.
+     *
+     * @param message Message BROADCAST or LEAVE to pass on
+     * @param isNew   boolean true if the change was news to us
+     * @param subject Node joining or leaving, never gossiped to
+     */
+    private void gossip(Message message, boolean isNew, Node subject) {
+        if (!isNew) {
+            gossipDuplicates.increment();
+            return;
+        }
+
+        List<Node> peers = routingTable.sample(message.getFanout(), randGen, self.getId(), subject.getId());
+        for (Node peer : peers) {
+            try {
+                connectionPool.send(peer, message);
+                gossipForwarded.increment();
+            } catch (IOException e) {
+                System.err.println("Jondo: Unable to gossip to " + peer.getAddr() + ":" + peer.getPort());
+            }
+        }
+    }
+
+    /**
+     * Moves our epoch forward after applying an update, must hold updateLock. Updates that arrive ahead of a missing
+     * epoch are remembered and our epoch moves past them once the gap fills. If the gap is still there after GAP_GRACE
+     * the update was lost and a SYNC sorts it out.
+     *
+     * @param updateEpoch int epoch of the update, 0 if the Blender does not version its table
+     */
+    private void advance(int updateEpoch) {
+        if (updateEpoch == 0 || updateEpoch <= epoch.get()) {
+            return;
+        }
+
+        ahead.add(updateEpoch);
+        drainAhead();
+
+        if (updateEpoch > epoch.get()) {
+            timer.schedule(() -> {
+                if (updateEpoch > epoch.get()) {
+                    sync();
+                }
+            }, GAP_GRACE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Moves our epoch past every update we hold that now follows it without a gap, and forgets updates our epoch
+     * has already passed
+     */
+    private void drainAhead() {
+        int current;
+        while (ahead.remove((current = epoch.get()) + 1)) {
+            epoch.accumulateAndGet(current + 1, Math::max);
+        }
+        ahead.headSet(epoch.get(), true).clear();
+    }
+
+    /**
+     * Applies a SYNC_DELTA to the routing table. A delta holds the changes up to its epoch, so one older than an update
+     * we already applied could undo that update, such as adding back a node that has since left. Such a delta is
+     * dropped, and if we are still missing an epoch we SYNC again, the Blender answers that from an epoch no older than
+     * every update we have applied.
+     *
+     * @param delta SYNC_DELTA message
+     * @param asked int epoch we asked for the changes since
+     */
+    private void apply(Message delta, int asked) {
+        updateLock.lock();
+        try {
+            // a full table older than what we asked for means the Blender restarted and numbers from scratch, the
+            // epochs we hold are from before the restart
+            if (delta.isFull() && delta.getEpoch() < asked) {
+                ahead.clear();
+                applyChanges(delta);
+                epoch.set(delta.getEpoch());
+                return;
+            }
+
+            // updates held ahead of a missing epoch are always newer than our epoch
+            int newest = ahead.isEmpty() ? epoch.get() : ahead.last();
+            if (delta.getEpoch() < newest) {
+                staleDeltas.increment();
+                if (!ahead.isEmpty()) {
+                    // still missing an epoch, ask again
+                    timer.execute(this::sync);
+                }
+                return;
+            }
+            if (delta.getEpoch() == epoch.get()) {
+                // already up to date
+                return;
+            }
+
+            applyChanges(delta);
+            epoch.set(delta.getEpoch());
+            drainAhead();
+        } finally {
+            updateLock.unlock();
+        }
+    }
+
+    /**
+     * Applies the nodes added and removed by a SYNC_DELTA, must hold updateLock
+     *
+     * @param delta SYNC_DELTA message
+     */
+    private void applyChanges(Message delta) {
+        if (delta.isFull()) {
+            // one new snapshot for the whole table rather than one per node
+            for (NodeId uid : routingTable.replaceAll(delta.getAdded())) {
+                connectionPool.evict(uid);
+            }
+        } else {
+            for (Node node : delta.getAdded()) {
+                routingTable.putIfAbsent(node);
+            }
+            for (Node node : delta.getRemoved()) {
+                routingTable.remove(node.getId());
+                connectionPool.evict(node.getId());
+            }
+        }
+    }
+}
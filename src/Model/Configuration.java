@@ -22,6 +22,136 @@ public class Configuration implements JSONSerializable {
     private String blenderAddr;
     private int blenderPort;
     private String type;
+    /**
+     * How connections are served "blocking" uses a thread per connection, "nio" uses selector event loops
+     */
+    private String server = "blocking";
+    /**
+     * Number of selector threads to use when server is "nio"
+     */
+    private int eventLoops = 2;
+    /**
+     * Threads connections are handled on "platform" uses a pool sized by threads, "virtual" uses a virtual thread per
+     * connection
+     */
+    private String executor = "platform";
+    /**
+     * Wire codec, "json" or "binary". A jondo asks for this codec in HELLO, a blender only agrees to binary when
+     * it is configured with binary
+     */
+    private String codec = MessageCodec.JSON;
+    /**
+     * Number of nodes a blender sends a broadcast to at once
+     */
+    private int broadcastThreads = 8;
+    /**
+     * How a blender spreads membership changes, "broadcast" sends to every jondo, "gossip" sends to gossipFanout
+     * jondos which pass it on
+     */
+    private String membership = "broadcast";
+    /**
+     * Number of jondos each membership change is passed to when membership is "gossip"
+     */
+    private int gossipFanout = 3;
+    /**
+     * Time in millis between a jondos background SYNCs with the blender
+     */
+    private int syncInterval = 30000;
+    /**
+     * Percent chance a jondo forwards a message to another jondo rather than its destination
+     */
+    private int forwardProbability = 66;
+    /**
+     * Most jondos a message passes through before it is sent to its destination, 0 for no cap
+     */
+    private int maxHops = 0;
+    /**
+     * Number of paths a jondo keeps open and sends its messages along, 0 for a fresh random walk per message
+     */
+    private int paths = 0;
+    /**
+     * Time in millis a jondo uses a path before replacing it, and keeps a path through it that nobody uses
+     */
+    private int pathLifetime = 600000;
+    /**
+     * How a jondo answers DATA, "ack" acknowledges as soon as it passed the message on, "relay" waits for the
+     * destinations reply and sends it back along the path
+     */
+    private String replies = "ack";
+    /**
+     * Time in millis a jondo relaying replies waits for the next hop before giving up on the circuit
+     */
+    private int hopTimeout = 5000;
+    /**
+     * Time in millis a jondo holds ballots to send them to the blender together, 0 sends each ballot on its own
+     */
+    private int voteBatchWindow = 0;
+    /**
+     * Most ballots a jondo sends together, a full batch is sent without waiting out the window
+     */
+    private int voteBatchSize = 256;
+    /**
+     * Directory a blender logs ballots to so its tallies survive a restart, null to keep tallies only in memory
+     */
+    private String ballotLog = null;
+    /**
+     * Ballots a blender logs before it snapshots its tallies, bounds how many ballots a restart replays
+     */
+    private int snapshotInterval = 1000000;
+    /**
+     * Directory a blender saves the crowd to so it survives a restart, null to keep the crowd only in memory
+     */
+    private String membershipStore = null;
+    /**
+     * Port on the loopback address metrics are served as text over HTTP, 0 to not serve them
+     */
+    private int metricsPort = 0;
+    /**
+     * Hops a jondo keeps the timings of for traced messages, 0 to not trace. Only for test crowds, a trace id lets
+     * the Jondos on a path link its hops
+     */
+    private int traceBuffer = 0;
+    /**
+     * Millis a blender waits between pushes of the results of a vote to its subscribers, however many ballots arrive
+     * in between each subscriber gets at most one push per vote in this time
+     */
+    private int resultsInterval = 1000;
+
+    /**
+     * Builds a configuration from a builder
+     *
+     * @param builder Builder with the configuration values
+     */
+    private Configuration(Builder builder) {
+        type = builder.type;
+        addr = builder.addr;
+        port = builder.port;
+        threads = builder.threads;
+        blenderAddr = builder.blenderAddr;
+        blenderPort = builder.blenderPort;
+        server = builder.server;
+        eventLoops = builder.eventLoops;
+        executor = builder.executor;
+        codec = builder.codec;
+        broadcastThreads = builder.broadcastThreads;
+        membership = builder.membership;
+        gossipFanout = builder.gossipFanout;
+        syncInterval = builder.syncInterval;
+        forwardProbability = builder.forwardProbability;
+        maxHops = builder.maxHops;
+        paths = builder.paths;
+        pathLifetime = builder.pathLifetime;
+        replies = builder.replies;
+        hopTimeout = builder.hopTimeout;
+        voteBatchWindow = builder.voteBatchWindow;
+        voteBatchSize = builder.voteBatchSize;
+        ballotLog = builder.ballotLog;
+        snapshotInterval = builder.snapshotInterval;
+        membershipStore = builder.membershipStore;
+        metricsPort = builder.metricsPort;
+        traceBuffer = builder.traceBuffer;
+        resultsInterval = builder.resultsInterval;
+    }
 
     /**
      * Builds a configuration from a JSON object.
@@ -78,6 +208,138 @@ public class Configuration implements JSONSerializable {
             default:
                 throw new InvalidObjectException("type must be blender or jondo");
         }
+
+        // optional keys shared by blender and jondo
+        if (config.containsKey("server")) {
+            server = config.getString("server");
+            if (!(server.equals("blocking") || server.equals("nio"))) {
+                throw new InvalidObjectException("server must be blocking or nio");
+            }
+        }
+        if (config.containsKey("eventLoops")) {
+            eventLoops = config.getInt("eventLoops");
+            if (eventLoops < 1) {
+                throw new InvalidObjectException("eventLoops must be at least 1");
+            }
+        }
+        if (config.containsKey("executor")) {
+            executor = config.getString("executor");
+            if (!(executor.equals("platform") || executor.equals("virtual"))) {
+                throw new InvalidObjectException("executor must be platform or virtual");
+            }
+        }
+        if (config.containsKey("codec")) {
+            codec = config.getString("codec");
+            if (!(codec.equals(MessageCodec.JSON) || codec.equals(MessageCodec.BINARY))) {
+                throw new InvalidObjectException("codec must be json or binary");
+            }
+        }
+        if (config.containsKey("broadcastThreads")) {
+            broadcastThreads = config.getInt("broadcastThreads");
+            if (broadcastThreads < 1) {
+                throw new InvalidObjectException("broadcastThreads must be at least 1");
+            }
+        }
+        if (config.containsKey("membership")) {
+            membership = config.getString("membership");
+            if (!(membership.equals("broadcast") || membership.equals("gossip"))) {
+                throw new InvalidObjectException("membership must be broadcast or gossip");
+            }
+        }
+        if (config.containsKey("gossipFanout")) {
+            gossipFanout = config.getInt("gossipFanout");
+            if (gossipFanout < 1) {
+                throw new InvalidObjectException("gossipFanout must be at least 1");
+            }
+        }
+        if (config.containsKey("syncInterval")) {
+            syncInterval = config.getInt("syncInterval");
+            if (syncInterval < 1) {
+                throw new InvalidObjectException("syncInterval must be at least 1");
+            }
+        }
+        if (config.containsKey("forwardProbability")) {
+            forwardProbability = config.getInt("forwardProbability");
+            if (forwardProbability < 0 || forwardProbability > 100) {
+                throw new InvalidObjectException("forwardProbability must be between 0 and 100");
+            }
+        }
+        if (config.containsKey("maxHops")) {
+            maxHops = config.getInt("maxHops");
+            if (maxHops < 0) {
+                throw new InvalidObjectException("maxHops must be 0 or more");
+            }
+        }
+        if (config.containsKey("paths")) {
+            paths = config.getInt("paths");
+            if (paths < 0) {
+                throw new InvalidObjectException("paths must be 0 or more");
+            }
+        }
+        if (config.containsKey("pathLifetime")) {
+            pathLifetime = config.getInt("pathLifetime");
+            if (pathLifetime < 1) {
+                throw new InvalidObjectException("pathLifetime must be at least 1");
+            }
+        }
+        if (config.containsKey("replies")) {
+            replies = config.getString("replies");
+            if (!(replies.equals("ack") || replies.equals("relay"))) {
+                throw new InvalidObjectException("replies must be ack or relay");
+            }
+        }
+        if (config.containsKey("hopTimeout")) {
+            hopTimeout = config.getInt("hopTimeout");
+            if (hopTimeout < 1) {
+                throw new InvalidObjectException("hopTimeout must be at least 1");
+            }
+        }
+        if (config.containsKey("voteBatchWindow")) {
+            voteBatchWindow = config.getInt("voteBatchWindow");
+            if (voteBatchWindow < 0) {
+                throw new InvalidObjectException("voteBatchWindow must be 0 or more");
+            }
+        }
+        if (config.containsKey("voteBatchSize")) {
+            voteBatchSize = config.getInt("voteBatchSize");
+            if (voteBatchSize < 1) {
+                throw new InvalidObjectException("voteBatchSize must be at least 1");
+            }
+        }
+        if (config.containsKey("ballotLog")) {
+            ballotLog = config.getString("ballotLog");
+        }
+        if (config.containsKey("snapshotInterval")) {
+            snapshotInterval = config.getInt("snapshotInterval");
+            if (snapshotInterval < 1) {
+                throw new InvalidObjectException("snapshotInterval must be at least 1");
+            }
+        }
+        if (config.containsKey("membershipStore")) {
+            membershipStore = config.getString("membershipStore");
+        }
+        if (config.containsKey("metricsPort")) {
+            metricsPort = config.getInt("metricsPort");
+            if (metricsPort < 0 || metricsPort > 65535) {
+                throw new InvalidObjectException("metricsPort must be between 0 and 65535");
+            }
+        }
+        if (config.containsKey("traceBuffer")) {
+            traceBuffer = config.getInt("traceBuffer");
+            if (traceBuffer < 0) {
+                throw new InvalidObjectException("traceBuffer must not be negative");
+            }
+        }
+        if (config.containsKey("resultsInterval")) {
+            resultsInterval = config.getInt("resultsInterval");
+            if (resultsInterval < 1) {
+                throw new InvalidObjectException("resultsInterval must be at least 1");
+            }
+        }
+        // a message that is always forwarded never arrives unless something stops it
+        if (forwardProbability == 100 && maxHops == 0) {
+            throw new InvalidObjectException("forwardProbability of 100 needs maxHops");
+        }
     }
 
     @Override
@@ -90,6 +352,7 @@ public class Configuration implements JSONSerializable {
                 obj.put("addr",addr);
                 obj.put("port",port);
                 obj.put("threads",threads);
+                putOptional(obj);
                 return obj;
             case "jondo":
                 obj.put("type",type);
@@ -98,6 +361,7 @@ public class Configuration implements JSONSerializable {
                 obj.put("threads",threads);
                 obj.put("blenderAddr",blenderAddr);
                 obj.put("blenderPort",blenderPort);
+                putOptional(obj);
                 return obj;
             default:
                 System.err.println("Type must be blender or jondo but got " + type);
@@ -105,6 +369,44 @@ public class Configuration implements JSONSerializable {
         }
     }
 
+    /**
+     * Puts the optional keys shared by blender and jondo into a JSON object
+     *
+     * @param obj JSONObject to add keys to
+     */
+    private void putOptional(JSONObject obj) {
+        obj.put("server", server);
+        obj.put("eventLoops", eventLoops);
+        obj.put("executor", executor);
+        obj.put("codec", codec);
+        obj.put("broadcastThreads", broadcastThreads);
+        obj.put("membership", membership);
+        obj.put("gossipFanout", gossipFanout);
+        obj.put("syncInterval", syncInterval);
+        obj.put("forwardProbability", forwardProbability);
+        obj.put("maxHops", maxHops);
+        obj.put("paths", paths);
+        obj.put("pathLifetime", pathLifetime);
+        obj.put("replies", replies);
+        obj.put("hopTimeout", hopTimeout);
+        obj.put("voteBatchWindow", voteBatchWindow);
+        obj.put("voteBatchSize", voteBatchSize);
+        if (ballotLog != null) {
+            obj.put("ballotLog", ballotLog);
+        }
+        obj.put("snapshotInterval", snapshotInterval);
+        if (membershipStore != null) {
+            obj.put("membershipStore", membershipStore);
+        }
+        if (metricsPort != 0) {
+            obj.put("metricsPort", metricsPort);
+        }
+        if (traceBuffer != 0) {
+            obj.put("traceBuffer", traceBuffer);
+        }
+        obj.put("resultsInterval", resultsInterval);
+    }
+
     public String getAddr() {
         return addr;
     }
@@ -124,4 +426,392 @@ public class Configuration implements JSONSerializable {
     public int getBlenderPort() {
         return blenderPort;
     }
+
+    /**
+     * Gets how connections are served
+     *
+     * @return String "blocking" or "nio"
+     */
+    public String getServer() {
+        return server;
+    }
+
+    /**
+     * Gets number of selector threads used when server is "nio"
+     *
+     * @return int number of event loops
+     */
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    /**
+     * Gets which threads connections are handled on
+     *
+     * @return String "platform" or "virtual"
+     */
+    public String getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Gets wire codec
+     *
+     * @return String "json" or "binary"
+     */
+    public String getCodec() {
+        return codec;
+    }
+
+    /**
+     * Gets number of nodes a blender sends a broadcast to at once
+     *
+     * @return int number of broadcast threads
+     */
+    public int getBroadcastThreads() {
+        return broadcastThreads;
+    }
+
+    /**
+     * Gets how a blender spreads membership changes
+     *
+     * @return String "broadcast" or "gossip"
+     */
+    public String getMembership() {
+        return membership;
+    }
+
+    /**
+     * Gets number of jondos each membership change is passed to when gossiping
+     *
+     * @return int gossip fanout
+     */
+    public int getGossipFanout() {
+        return gossipFanout;
+    }
+
+    /**
+     * Gets time between a jondos background SYNCs with the blender
+     *
+     * @return int time in millis
+     */
+    public int getSyncInterval() {
+        return syncInterval;
+    }
+
+    /**
+     * Gets percent chance a jondo forwards a message to another jondo
+     *
+     * @return int percent between 0 and 100
+     */
+    public int getForwardProbability() {
+        return forwardProbability;
+    }
+
+    /**
+     * Gets most jondos a message passes through before it is sent to its destination
+     *
+     * @return int hop cap, 0 for no cap
+     */
+    public int getMaxHops() {
+        return maxHops;
+    }
+
+    /**
+     * Gets number of paths a jondo keeps open
+     *
+     * @return int number of paths, 0 for a fresh random walk per message
+     */
+    public int getPaths() {
+        return paths;
+    }
+
+    /**
+     * Gets time a path is used before it is replaced
+     *
+     * @return int time in millis
+     */
+    public int getPathLifetime() {
+        return pathLifetime;
+    }
+
+    /**
+     * Gets how a jondo answers DATA
+     *
+     * @return String "ack" or "relay"
+     */
+    public String getReplies() {
+        return replies;
+    }
+
+    /**
+     * Gets time a jondo relaying replies waits for the next hop
+     *
+     * @return int time in millis
+     */
+    public int getHopTimeout() {
+        return hopTimeout;
+    }
+
+    /**
+     * Gets time a jondo holds ballots to send them together
+     *
+     * @return int time in millis, 0 if ballots are sent on their own
+     */
+    public int getVoteBatchWindow() {
+        return voteBatchWindow;
+    }
+
+    /**
+     * Gets most ballots a jondo sends together
+     *
+     * @return int ballots per batch
+     */
+    public int getVoteBatchSize() {
+        return voteBatchSize;
+    }
+
+    /**
+     * Gets directory a blender logs ballots to
+     *
+     * @return String directory, null if tallies are only kept in memory
+     */
+    public String getBallotLog() {
+        return ballotLog;
+    }
+
+    /**
+     * Gets ballots a blender logs before it snapshots its tallies
+     *
+     * @return int ballots between snapshots
+     */
+    public int getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    /**
+     * Gets directory a blender saves the crowd to
+     *
+     * @return String directory, null if the crowd is only kept in memory
+     */
+    public String getMembershipStore() {
+        return membershipStore;
+    }
+
+    /**
+     * Gets port metrics are served on
+     *
+     * @return int port on the loopback address, 0 if metrics are not served over HTTP
+     */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    /**
+     * Gets number of hops a jondo keeps the timings of for traced messages
+     *
+     * @return int size of the trace ring buffer, 0 if tracing is off
+     */
+    public int getTraceBuffer() {
+        return traceBuffer;
+    }
+
+    /**
+     * Gets millis a blender waits between pushes of the results of a vote
+     *
+     * @return int millis between pushes
+     */
+    public int getResultsInterval() {
+        return resultsInterval;
+    }
+
+    /**
+     * Builder class to make a Configuration without a config file such as from command line options
+     */
+    public static class Builder {
+        private String type;
+        private String addr;
+        private int port;
+        private int threads;
+        private String blenderAddr;
+        private int blenderPort;
+        private String server = "blocking";
+        private int eventLoops = 2;
+        private String executor = "platform";
+        private String codec = MessageCodec.JSON;
+        private int broadcastThreads = 8;
+        private String membership = "broadcast";
+        private int gossipFanout = 3;
+        private int syncInterval = 30000;
+        private int forwardProbability = 66;
+        private int maxHops = 0;
+        private int paths = 0;
+        private int pathLifetime = 600000;
+        private String replies = "ack";
+        private int hopTimeout = 5000;
+        private int voteBatchWindow = 0;
+        private int voteBatchSize = 256;
+        private String ballotLog = null;
+        private int snapshotInterval = 1000000;
+        private String membershipStore = null;
+        private int metricsPort = 0;
+        private int traceBuffer = 0;
+        private int resultsInterval = 1000;
+
+        /**
+         * Creates a basic configuration
+         *
+         * @param _type String type of configuration blender or jondo
+         */
+        public Builder(String _type) {
+            type = _type;
+        }
+
+        public Builder setAddr(String _addr) {
+            addr = _addr;
+            return this;
+        }
+
+        public Builder setPort(int _port) {
+            port = _port;
+            return this;
+        }
+
+        public Builder setThreads(int _threads) {
+            threads = _threads;
+            return this;
+        }
+
+        /**
+         * Sets the Blender a jondo joins the crowd through
+         *
+         * @param _blenderAddr String IP address of the Blender
+         * @param _blenderPort int port of the Blender
+         * @return this Builder
+         */
+        public Builder setBlender(String _blenderAddr, int _blenderPort) {
+            blenderAddr = _blenderAddr;
+            blenderPort = _blenderPort;
+            return this;
+        }
+
+        public Builder setServer(String _server) {
+            server = _server;
+            return this;
+        }
+
+        public Builder setEventLoops(int _eventLoops) {
+            eventLoops = _eventLoops;
+            return this;
+        }
+
+        public Builder setExecutor(String _executor) {
+            executor = _executor;
+            return this;
+        }
+
+        public Builder setCodec(String _codec) {
+            codec = _codec;
+            return this;
+        }
+
+        public Builder setBroadcastThreads(int _broadcastThreads) {
+            broadcastThreads = _broadcastThreads;
+            return this;
+        }
+
+        public Builder setMembership(String _membership) {
+            membership = _membership;
+            return this;
+        }
+
+        public Builder setGossipFanout(int _gossipFanout) {
+            gossipFanout = _gossipFanout;
+            return this;
+        }
+
+        public Builder setSyncInterval(int _syncInterval) {
+            syncInterval = _syncInterval;
+            return this;
+        }
+
+        public Builder setForwardProbability(int _forwardProbability) {
+            forwardProbability = _forwardProbability;
+            return this;
+        }
+
+        public Builder setMaxHops(int _maxHops) {
+            maxHops = _maxHops;
+            return this;
+        }
+
+        public Builder setPaths(int _paths) {
+            paths = _paths;
+            return this;
+        }
+
+        public Builder setPathLifetime(int _pathLifetime) {
+            pathLifetime = _pathLifetime;
+            return this;
+        }
+
+        public Builder setReplies(String _replies) {
+            replies = _replies;
+            return this;
+        }
+
+        public Builder setHopTimeout(int _hopTimeout) {
+            hopTimeout = _hopTimeout;
+            return this;
+        }
+
+        public Builder setVoteBatchWindow(int _voteBatchWindow) {
+            voteBatchWindow = _voteBatchWindow;
+            return this;
+        }
+
+        public Builder setVoteBatchSize(int _voteBatchSize) {
+            voteBatchSize = _voteBatchSize;
+            return this;
+        }
+
+        public Builder setBallotLog(String _ballotLog) {
+            ballotLog = _ballotLog;
+            return this;
+        }
+
+        public Builder setSnapshotInterval(int _snapshotInterval) {
+            snapshotInterval = _snapshotInterval;
+            return this;
+        }
+
+        public Builder setMembershipStore(String _membershipStore) {
+            membershipStore = _membershipStore;
+            return this;
+        }
+
+        public Builder setMetricsPort(int _metricsPort) {
+            metricsPort = _metricsPort;
+            return this;
+        }
+
+        public Builder setTraceBuffer(int _traceBuffer) {
+            traceBuffer = _traceBuffer;
+            return this;
+        }
+
+        public Builder setResultsInterval(int _resultsInterval) {
+            resultsInterval = _resultsInterval;
+            return this;
+        }
+
+        /**
+         * Builds Configuration
+         *
+         * @return Configuration from builder
+         */
+        public Configuration build() {
+            return new Configuration(this);
+        }
+    }
 }
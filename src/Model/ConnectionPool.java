@@ -0,0 +1,343 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Model;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of persistent connections to peers keyed by the peers Node UID. Instead of opening a socket per message we
+ * keep one connection per peer open and send every message to that peer over it. Idle and failed connections are
+ * evicted. Replies on every connection are read by one ReplyReader thread.
+ */
+public class ConnectionPool {
+    /**
+     * Default time in millis a connection may sit unused before it is closed
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+    /**
+     * Time in millis to wait when opening a new connection
+     */
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    /**
+     * Open connections, key is UID of peer Node and value is the connection
+     */
+    private ConcurrentHashMap<NodeId, PeerConnection> connections;
+    /**
+     * Number of times we could not open a connection
+     */
+    private LongAdder connectFailures;
+    /**
+     * Time in millis a connection may be idle before it is evicted
+     */
+    private long idleTimeout;
+    /**
+     * Thread that periodically evicts idle and failed connections
+     */
+    private ScheduledExecutorService sweeper;
+    /**
+     * Reads replies for every connection in the pool
+     */
+    private ReplyReader reader;
+    /**
+     * Codec used for peers without their own codec
+     */
+    private volatile String codec;
+    /**
+     * Codecs negotiated with specific peers, key is UID of peer Node
+     */
+    private ConcurrentHashMap<NodeId, String> peerCodecs;
+
+    /**
+     * Creates a new pool using the default idle timeout
+     */
+    public ConnectionPool() {
+        this(DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * Creates a new pool
+     *
+     * @param _idleTimeout long time in millis a connection may be idle before it is closed
+     */
+    public ConnectionPool(long _idleTimeout) {
+        idleTimeout = _idleTimeout;
+        connections = new ConcurrentHashMap<>();
+        connectFailures = new LongAdder();
+        codec = MessageCodec.JSON;
+        peerCodecs = new ConcurrentHashMap<>();
+
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "connection-pool-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::evictIdle, idleTimeout / 2, idleTimeout / 2, TimeUnit.MILLISECONDS);
+
+        reader = new ReplyReader("connection-pool-replies");
+    }
+
+    /**
+     * Sends a message to a node over its pooled connection, opening one if needed. If a pooled connection has gone
+     * stale we evict it and retry once on a fresh connection.
+     *
+     * @param node    Node to send message to
+     * @param message Message to send
+     * @throws IOException if we cannot connect to or write to the node
+     */
+    public void send(Node node, Message message) throws IOException {
+        send(node, message, null);
+    }
+
+    /**
+     * Sends a message to a node like send, timing the connect and write for our hop of a traced message
+     *
+     * @param node    Node to send message to
+     * @param message Message to send
+     * @param hop     TraceBuffer.Hop to add the timings to, null if the message is not traced
+     * @throws IOException if we cannot connect to or write to the node
+     */
+    public void send(Node node, Message message, TraceBuffer.Hop hop) throws IOException {
+        long start = hop == null ? 0 : System.nanoTime();
+        write(node, MessageCodec.encode(message, peerCodecs.getOrDefault(node.getId(), codec)), hop, start);
+    }
+
+    /**
+     * Sends a frame on exactly as we received it, as long as the node takes frames in the codec it is in
+     *
+     * @param node  Node to send frame to
+     * @param frame Frame to send
+     * @param hop   TraceBuffer.Hop to add the timings to, null if the frame is not traced
+     * @return true if the frame was sent, false if the node needs it in another codec and nothing was sent
+     * @throws IOException if we cannot connect to or write to the node
+     */
+    public boolean sendFrame(Node node, Frame frame, TraceBuffer.Hop hop) throws IOException {
+        if (!frame.getCodec().equals(peerCodecs.getOrDefault(node.getId(), codec))) {
+            return false;
+        }
+        write(node, frame.getBytes(), hop, hop == null ? 0 : System.nanoTime());
+        return true;
+    }
+
+    /**
+     * Writes an encoded frame to a node, retrying once on a fresh connection if the pooled one has gone stale
+     *
+     * @param node  Node to write to
+     * @param frame byte[] frame to write
+     * @param hop   TraceBuffer.Hop to add the timings to, null if the message is not traced
+     * @param start long System.nanoTime we started encoding at, only used if hop is not null
+     * @throws IOException if we cannot connect to or write to the node
+     */
+    private void write(Node node, byte[] frame, TraceBuffer.Hop hop, long start) throws IOException {
+        PeerConnection conn = connections.get(node.getId());
+        if (conn != null) {
+            try {
+                conn.send(frame);
+                if (hop != null) {
+                    hop.wrote(start);
+                }
+                return;
+            } catch (IOException e) {
+                // connection went stale since we last used it, throw it away and try a new one
+                connections.remove(node.getId(), conn);
+            }
+        }
+
+        conn = connect(node);
+        if (hop != null) {
+            hop.connected(start);
+            start = System.nanoTime();
+        }
+        conn.send(frame);
+        if (hop != null) {
+            hop.wrote(start);
+        }
+    }
+
+    /**
+     * Sends a request to a node over its pooled connection and returns without waiting for the reply. The reply is
+     * matched to the request by message id so many requests can share the connection.
+     *
+     * @param node    Node to send request to
+     * @param message Message to send, must have an id
+     * @param timeout long time in millis to wait for the reply before the future fails with a TimeoutException
+     * @return CompletableFuture that completes with the reply
+     */
+    public CompletableFuture<Message> request(Node node, Message message, long timeout) {
+        return request(node, message, timeout, null);
+    }
+
+    /**
+     * Sends a request to a node like request, timing the connect and write for our hop of a traced message
+     *
+     * @param node    Node to send request to
+     * @param message Message to send, must have an id
+     * @param timeout long time in millis to wait for the reply before the future fails with a TimeoutException
+     * @param hop     TraceBuffer.Hop to add the timings to, null if the message is not traced
+     * @return CompletableFuture that completes with the reply
+     */
+    public CompletableFuture<Message> request(Node node, Message message, long timeout, TraceBuffer.Hop hop) {
+        long start = hop == null ? 0 : System.nanoTime();
+        byte[] frame = MessageCodec.encode(message, peerCodecs.getOrDefault(node.getId(), codec));
+
+        CompletableFuture<Message> reply = null;
+
+        PeerConnection conn = connections.get(node.getId());
+        if (conn != null) {
+            try {
+                reply = conn.request(message.getId(), frame);
+            } catch (IOException e) {
+                // connection went stale since we last used it, throw it away and try a new one
+                connections.remove(node.getId(), conn);
+            }
+        }
+
+        if (reply == null) {
+            try {
+                conn = connect(node);
+                if (hop != null) {
+                    hop.connected(start);
+                    start = System.nanoTime();
+                }
+                reply = conn.request(message.getId(), frame);
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        if (hop != null) {
+            hop.wrote(start);
+        }
+
+        return reply.orTimeout(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends a message to an address and port that may not be in our routing table such as the Blender
+     *
+     * @param addr    String IP address of destination
+     * @param port    int port of destination
+     * @param message Message to send
+     * @throws IOException if we cannot connect to or write to the destination
+     */
+    public void send(String addr, int port, Message message) throws IOException {
+        send(new Node(addr, port), message);
+    }
+
+    /**
+     * Sets the codec used to send to peers without their own codec
+     *
+     * @param _codec String codec json or binary
+     */
+    public void setCodec(String _codec) {
+        codec = _codec;
+    }
+
+    /**
+     * Sets the codec negotiated with a specific peer
+     *
+     * @param uid    NodeId UID of peer Node
+     * @param _codec String codec json or binary
+     */
+    public void setCodec(NodeId uid, String _codec) {
+        peerCodecs.put(uid, _codec);
+    }
+
+    /**
+     * Closes and forgets the connection to a node if we have one along with the codec negotiated with it, called
+     * when the node leaves
+     *
+     * @param uid NodeId UID of node
+     */
+    public void evict(NodeId uid) {
+        peerCodecs.remove(uid);
+        PeerConnection conn = connections.remove(uid);
+        if (conn != null) {
+            conn.close();
+        }
+    }
+
+    /**
+     * Gets number of times we could not open a connection
+     *
+     * @return long connect failures
+     */
+    public long getConnectFailures() {
+        return connectFailures.sum();
+    }
+
+    /**
+     * Gets number of connections in the pool
+     *
+     * @return int open connections
+     */
+    public int getOpenConnections() {
+        return connections.size();
+    }
+
+    /**
+     * Closes every connection and stops the sweeper and reader
+     */
+    public void close() {
+        sweeper.shutdownNow();
+        reader.close();
+        for (NodeId uid : connections.keySet()) {
+            evict(uid);
+        }
+    }
+
+    /**
+     * Opens a new connection to a node and adds it to the pool. If another thread beat us to it we use theirs.
+     *
+     * @param node Node to connect to
+     * @return PeerConnection to node
+     * @throws IOException if we cannot connect
+     */
+    private PeerConnection connect(Node node) throws IOException {
+        PeerConnection fresh;
+        try {
+            fresh = new PeerConnection(node, CONNECT_TIMEOUT, reader);
+        } catch (IOException e) {
+            connectFailures.increment();
+            throw e;
+        }
+
+        PeerConnection existing = connections.putIfAbsent(node.getId(), fresh);
+        if (existing == null) {
+            return fresh;
+        }
+
+        if (!existing.isClosed()) {
+            fresh.close();
+            return existing;
+        }
+
+        connections.put(node.getId(), fresh);
+        return fresh;
+    }
+
+    /**
+     * Closes connections that have been idle too long and drops any that have failed
+     */
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (PeerConnection conn : connections.values()) {
+            if (conn.isClosed() || now - conn.getLastUsed() > idleTimeout) {
+                connections.remove(conn.getPeer().getId(), conn);
+                conn.close();
+            }
+        }
+    }
+}
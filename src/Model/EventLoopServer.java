@@ -0,0 +1,491 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Model;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking server that serves every connection from a few selector threads. Frames in either codec (see
+ * MessageCodec) are read and decoded into Messages on the event loops and only decoded Messages are handed to a
+ * MessageHandler on the worker pool, so idle connections do not hold a thread. A FrameHandler is handed the frames it
+ * can pass on with only their header read. A connection whose handler falls more than MAX_INBOX messages behind is
+ * not read from until it catches up.
+ */
+public class EventLoopServer {
+    /**
+     * Initial size in bytes of each connections read buffer, it grows for larger frames
+     */
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    /**
+     * Messages waiting for the handler of a connection before we stop reading from it, reading starts again once half
+     * of them are handled
+     */
+    private static final int MAX_INBOX = 1024;
+
+    /**
+     * Port to listen on
+     */
+    private int port;
+    /**
+     * Pool that runs the message handlers
+     */
+    private ExecutorService workers;
+    /**
+     * Creates a handler for each new connection
+     */
+    private Supplier<MessageHandler> handlers;
+    /**
+     * Selector threads
+     */
+    private EventLoop[] loops;
+    /**
+     * Channel we accept connections on
+     */
+    private ServerSocketChannel server;
+    /**
+     * Index of event loop the next accepted connection is given to
+     */
+    private int nextLoop;
+
+    /**
+     * Creates a new event loop server, call start to begin accepting connections
+     *
+     * @param _port     int port to listen on
+     * @param _loops    int number of selector threads
+     * @param _workers  ExecutorService to run handlers on
+     * @param _handlers Supplier of a MessageHandler for each new connection
+     */
+    public EventLoopServer(int _port, int _loops, ExecutorService _workers, Supplier<MessageHandler> _handlers) {
+        port = _port;
+        workers = _workers;
+        handlers = _handlers;
+        loops = new EventLoop[_loops];
+    }
+
+    /**
+     * Binds the server and starts the event loops
+     *
+     * @throws IOException if we cannot bind to the port
+     */
+    public void start() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("event-loop-" + port + "-" + i);
+        }
+
+        // the first loop also accepts connections
+        server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    /**
+     * Stops accepting connections and closes every event loop
+     */
+    public void close() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            System.err.println("EventLoopServer: Error closing server on port " + port);
+        }
+        for (EventLoop loop : loops) {
+            loop.thread.interrupt();
+            loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * Accepts every pending connection and hands them out to the event loops round robin
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+
+            EventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+
+            SocketChannel accepted = channel;
+            loop.execute(() -> loop.register(accepted));
+        }
+    }
+
+    /**
+     * A single selector thread that reads and writes the connections registered with it
+     */
+    private class EventLoop implements Runnable {
+        /**
+         * Selector of this loop
+         */
+        private Selector selector;
+        /**
+         * Tasks other threads want to run on this loop such as registering or writing
+         */
+        private ConcurrentLinkedQueue<Runnable> tasks;
+        /**
+         * Thread running this loop
+         */
+        private Thread thread;
+
+        /**
+         * Creates a new event loop
+         *
+         * @param name String name of the loop thread
+         */
+        private EventLoop(String name) throws IOException {
+            selector = Selector.open();
+            tasks = new ConcurrentLinkedQueue<>();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        /**
+         * Runs a task on this loop
+         *
+         * @param task Runnable to run on the loop thread
+         */
+        private void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Registers a newly accepted channel with this loop, must run on the loop thread
+         *
+         * @param channel SocketChannel to register
+         */
+        private void register(SocketChannel channel) {
+            try {
+                Connection conn = new Connection(channel, this, handlers.get());
+                conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+            } catch (ClosedChannelException e) {
+                // peer hung up before we got to it
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!thread.isInterrupted()) {
+                try {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        if (!key.isValid()) {
+                            continue;
+                        }
+
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+
+                        Connection conn = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                conn.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                conn.flush();
+                            }
+                        } catch (IOException e) {
+                            conn.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("EventLoopServer: Error in event loop on port " + port);
+                    e.printStackTrace();
+                }
+            }
+
+            try {
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("EventLoopServer: Error closing selector on port " + port);
+            }
+        }
+    }
+
+    /**
+     * State of one connection: partially read frames, queued writes and messages waiting for the handler
+     */
+    private class Connection implements ReplyChannel {
+        private SocketChannel channel;
+        private SelectionKey key;
+        private EventLoop loop;
+        private MessageHandler handler;
+        /**
+         * Bytes read but not yet decoded into a frame
+         */
+        private ByteBuffer readBuffer;
+        /**
+         * Encoded replies waiting to be written
+         */
+        private ConcurrentLinkedQueue<ByteBuffer> writes;
+        /**
+         * Decoded Messages, and Frames for a FrameHandler to pass on, waiting for the handler
+         */
+        private ConcurrentLinkedQueue<Object> inbox;
+        /**
+         * Number of messages in the inbox, ConcurrentLinkedQueue.size walks the whole queue
+         */
+        private AtomicInteger queued;
+        /**
+         * True while we are not reading because the inbox is full, only used on the loop thread
+         */
+        private boolean paused;
+        /**
+         * True while a worker is handling messages from the inbox, keeps messages on a connection in order
+         */
+        private AtomicBoolean handling;
+        /**
+         * Codec of the last frame the peer sent, replies use the same codec
+         */
+        private volatile String lastCodec = MessageCodec.JSON;
+        /**
+         * Set once the handler asks to close, we close after the last reply is written
+         */
+        private volatile boolean closeAfterFlush;
+
+        private Connection(SocketChannel _channel, EventLoop _loop, MessageHandler _handler) {
+            channel = _channel;
+            loop = _loop;
+            handler = _handler;
+            readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            writes = new ConcurrentLinkedQueue<>();
+            inbox = new ConcurrentLinkedQueue<>();
+            queued = new AtomicInteger();
+            handling = new AtomicBoolean();
+        }
+
+        /**
+         * Reads what is available and decodes every complete frame, runs on the loop thread
+         */
+        private void read() throws IOException {
+            if (!readBuffer.hasRemaining()) {
+                // frame is larger than our buffer, grow it
+                ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+
+            if (channel.read(readBuffer) < 0) {
+                close();
+                return;
+            }
+            // traced messages measure their decode and queue wait from here, one clock read per read call
+            long readAt = System.nanoTime();
+
+            // decode every complete frame in the buffer
+            readBuffer.flip();
+            byte[] buf = readBuffer.array();
+            int start = readBuffer.position();
+            int limit = readBuffer.limit();
+            while (start < limit) {
+                if (buf[start] == '\n' || buf[start] == '\r') {
+                    start++;
+                    continue;
+                }
+
+                int length = MessageCodec.frameLength(buf, start, limit);
+                if (length < 0) {
+                    break;
+                }
+
+                decode(buf, start, length, readAt);
+                start += length;
+            }
+            readBuffer.position(start);
+            readBuffer.compact();
+
+            // the peer is sending faster than we handle, let it back up in its socket rather than in our heap
+            if (!paused && queued.get() >= MAX_INBOX) {
+                paused = true;
+                key.interestOps(interestOps());
+            }
+        }
+
+        /**
+         * Starts reading again once the handler has caught up, runs on the loop thread
+         */
+        private void resume() {
+            if (paused && key.isValid()) {
+                paused = false;
+                key.interestOps(interestOps());
+            }
+        }
+
+        /**
+         * Gets the operations to select this connection for, runs on the loop thread
+         *
+         * @return int OP_READ unless paused, plus OP_WRITE while replies are waiting to be written
+         */
+        private int interestOps() {
+            return (paused ? 0 : SelectionKey.OP_READ) | (writes.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * Decodes one frame and queues it for the handler
+         *
+         * @param buf    byte[] holding the frame
+         * @param offset int index of first byte of the frame
+         * @param length int length of the frame
+         * @param readAt long System.nanoTime the frame was read at
+         */
+        private void decode(byte[] buf, int offset, int length, long readAt) {
+            try {
+                lastCodec = MessageCodec.codecOf(buf[offset]);
+                // a handler that can pass frames on only needs their header read
+                Frame frame = handler instanceof FrameHandler ? Frame.parse(buf, offset, length) : null;
+                if (frame != null) {
+                    if (frame.getTrace() != null) {
+                        frame.stamp(readAt, System.nanoTime());
+                    }
+                    inbox.add(frame);
+                    queued.incrementAndGet();
+                } else {
+                    Message message = MessageCodec.decode(buf, offset, length);
+                    if (message.getTrace() != null) {
+                        message.stamp(readAt, System.nanoTime());
+                    }
+                    inbox.add(message);
+                    queued.incrementAndGet();
+                }
+            } catch (IOException e) {
+                System.err.println("EventLoopServer: Could not decode message, dropping it");
+                System.err.println(e.getMessage());
+                return;
+            }
+
+            if (handling.compareAndSet(false, true)) {
+                workers.execute(this::handle);
+            }
+        }
+
+        /**
+         * Hands queued messages to the handler one at a time, runs on a worker thread
+         */
+        private void handle() {
+            Object next;
+            while (!closeAfterFlush && (next = inbox.poll()) != null) {
+                if (queued.decrementAndGet() == MAX_INBOX / 2) {
+                    loop.execute(this::resume);
+                }
+                try {
+                    boolean open = next instanceof Frame
+                            ? ((FrameHandler) handler).handleFrame((Frame) next, this)
+                            : handler.handleMessage((Message) next, this);
+                    if (!open) {
+                        closeAfterFlush = true;
+                        loop.execute(this::flushOrClose);
+                    }
+                } catch (Exception e) {
+                    String type = next instanceof Frame ? ((Frame) next).getType() : ((Message) next).getType();
+                    System.err.println("EventLoopServer: Error handling " + type + " message");
+                    e.printStackTrace();
+                }
+            }
+
+            handling.set(false);
+
+            // a message may have arrived after we stopped polling but before we cleared the flag
+            if (!closeAfterFlush && !inbox.isEmpty() && handling.compareAndSet(false, true)) {
+                workers.execute(this::handle);
+            }
+        }
+
+        @Override
+        public void reply(Message message) throws IOException {
+            if (!channel.isOpen()) {
+                throw new IOException("Connection closed");
+            }
+
+            writes.add(ByteBuffer.wrap(MessageCodec.encode(message, MessageCodec.replyCodec(message, lastCodec))));
+            loop.execute(this::flushOrClose);
+        }
+
+        /**
+         * Writes queued replies and closes the connection if asked to and nothing is left, runs on the loop thread
+         */
+        private void flushOrClose() {
+            try {
+                flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Writes as much of the queued replies as the socket will take, runs on the loop thread
+         */
+        private void flush() throws IOException {
+            if (!key.isValid()) {
+                return;
+            }
+
+            ByteBuffer buffer;
+            while ((buffer = writes.peek()) != null) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    // socket is full, wait until it is writable again
+                    key.interestOps(interestOps());
+                    return;
+                }
+                writes.poll();
+            }
+
+            key.interestOps(interestOps());
+
+            if (closeAfterFlush) {
+                close();
+            }
+        }
+
+        /**
+         * Closes the connection
+         */
+        private void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing left to do with a channel we are throwing away
+            }
+        }
+    }
+}
@@ -0,0 +1,540 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Model;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A DATA, VOTE_CAST or VOTE_CAST_BATCH frame as it came off the wire with only its routing header read: type,
+ * destination, id, hop count, path and trace. The data and ballots are skipped over rather than decoded, so a Jondo
+ * that only passes the message on can send the very bytes it received without building a Message, a Vote or a
+ * JSONObject and without encoding them again.
+ * <p>
+ * Works on both codecs. A frame whose header cannot be read cheaply, such as JSON with escapes in a header string or a
+ * number that is not a plain integer, is not parsed here at all and is decoded as a Message like any other frame.
+ */
+public class Frame {
+    /**
+     * Binary type codes of the messages we read the header of
+     */
+    private static final int DATA = Message.typeCode("DATA");
+    private static final int VOTE_CAST = Message.typeCode("VOTE_CAST");
+    private static final int VOTE_CAST_BATCH = Message.typeCode("VOTE_CAST_BATCH");
+
+    /**
+     * The whole frame, binary header or trailing newline included
+     */
+    private byte[] bytes;
+    private String codec;
+    private String type;
+    private String dstAddr;
+    private int dstPort;
+    private String id;
+    private int hops;
+    private String path;
+    private String trace;
+    /**
+     * System.nanoTime the frame was read and had its header read at, only set on traced frames
+     */
+    private long received;
+    private long decoded;
+
+    private Frame(String _codec) {
+        codec = _codec;
+    }
+
+    /**
+     * Reads the routing header of a frame in a buffer, copying the frame if it is one that can be passed on
+     *
+     * @param buf    byte[] holding the frame
+     * @param offset int index of first byte of the frame
+     * @param length int length of the frame including header or newline
+     * @return Frame or null if the frame is another type or its header cannot be read without decoding it
+     */
+    public static Frame parse(byte[] buf, int offset, int length) {
+        Frame frame = read(buf, offset, length);
+        if (frame != null) {
+            frame.bytes = Arrays.copyOfRange(buf, offset, offset + length);
+        }
+        return frame;
+    }
+
+    /**
+     * Reads the routing header of a frame that has an array to itself, the frame keeps the array
+     *
+     * @param bytes byte[] the whole frame, must not be changed afterwards
+     * @return Frame or null if the frame is another type or its header cannot be read without decoding it
+     */
+    public static Frame parse(byte[] bytes) {
+        Frame frame = read(bytes, 0, bytes.length);
+        if (frame != null) {
+            frame.bytes = bytes;
+        }
+        return frame;
+    }
+
+    private static Frame read(byte[] buf, int offset, int length) {
+        // anything malformed is left for the full decoder, which says what is wrong with it
+        try {
+            if (buf[offset] == MessageCodec.BINARY_MAGIC) {
+                return readBinary(buf, offset + MessageCodec.BINARY_HEADER, offset + length);
+            }
+            return readJSON(buf, offset, offset + length);
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decodes the whole frame, for when the message turns out to be needed after all
+     *
+     * @return Message decoded from the frame
+     * @throws IOException if the frame is not a valid message
+     */
+    public Message toMessage() throws IOException {
+        Message message = MessageCodec.decode(bytes, 0, bytes.length);
+        if (message.getTrace() != null && received != 0) {
+            message.stamp(received, decoded);
+        }
+        return message;
+    }
+
+    /**
+     * Notes when a traced frame was read and had its header read
+     *
+     * @param _received long System.nanoTime the frame was read at
+     * @param _decoded  long System.nanoTime its header was read at
+     */
+    void stamp(long _received, long _decoded) {
+        received = _received;
+        decoded = _decoded;
+    }
+
+    /**
+     * Gets the frame as it came off the wire, not to be changed
+     *
+     * @return byte[] whole frame
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Gets the codec the frame is in, a peer speaking another codec needs the message encoded again
+     *
+     * @return String json or binary
+     */
+    public String getCodec() {
+        return codec;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getDstAddr() {
+        return dstAddr;
+    }
+
+    public int getDstPort() {
+        return dstPort;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int getHops() {
+        return hops;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getTrace() {
+        return trace;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public long getDecoded() {
+        return decoded;
+    }
+
+    /**
+     * Reads the header of a binary payload, fields are in the order Message.writeBinary writes them
+     *
+     * @param buf    byte[] holding the payload
+     * @param offset int index of first byte of the payload
+     * @param limit  int index one past the payload
+     * @return Frame or null if the payload is not one we pass on
+     */
+    private static Frame readBinary(byte[] buf, int offset, int limit) {
+        Cursor in = new Cursor(buf, offset, limit);
+        int code = in.next();
+        Frame frame = new Frame(MessageCodec.BINARY);
+        if (code == DATA) {
+            frame.type = "DATA";
+            frame.dstAddr = in.string();
+            frame.dstPort = in.varInt();
+            in.skipString();
+            frame.id = in.string();
+        } else if (code == VOTE_CAST) {
+            frame.type = "VOTE_CAST";
+            frame.dstAddr = in.string();
+            frame.dstPort = in.varInt();
+            in.skipVote();
+        } else if (code == VOTE_CAST_BATCH) {
+            frame.type = "VOTE_CAST_BATCH";
+            frame.dstAddr = in.string();
+            frame.dstPort = in.varInt();
+            for (int ballots = in.varInt(); ballots > 0; ballots--) {
+                in.skipVote();
+            }
+        } else {
+            return null;
+        }
+        frame.hops = in.varInt();
+        frame.path = in.string();
+        frame.trace = in.string();
+
+        if (frame.dstAddr == null || in.pos != limit) {
+            return null;
+        }
+        return frame;
+    }
+
+    /**
+     * Reads the header of a JSON line, skipping the values of keys we do not need
+     *
+     * @param buf    byte[] holding the line
+     * @param offset int index of first byte of the line
+     * @param limit  int index one past the line
+     * @return Frame or null if the line is not one we pass on or needs the full decoder
+     */
+    private static Frame readJSON(byte[] buf, int offset, int limit) {
+        Cursor in = new Cursor(buf, offset, limit);
+        Frame frame = new Frame(MessageCodec.JSON);
+        boolean hasPort = false;
+        // type whose payload key we saw, data, vote or votes
+        String payload = null;
+
+        if (in.token() != '{') {
+            return null;
+        }
+        in.pos++;
+        if (in.token() == '}') {
+            return null;
+        }
+        while (true) {
+            if (in.token() != '"') {
+                return null;
+            }
+            int keyStart = ++in.pos;
+            int keyEnd = in.plainStringEnd();
+            if (keyEnd < 0 || in.token() != ':') {
+                return null;
+            }
+            in.pos++;
+            in.token();
+
+            // compared in place, a String per key would cost more than the rest of the header
+            if (in.keyIs(keyStart, keyEnd, "type")) {
+                frame.type = in.jsonString();
+            } else if (in.keyIs(keyStart, keyEnd, "dstAddr")) {
+                frame.dstAddr = in.jsonString();
+            } else if (in.keyIs(keyStart, keyEnd, "dstPort")) {
+                frame.dstPort = in.jsonInt();
+                hasPort = true;
+            } else if (in.keyIs(keyStart, keyEnd, "id")) {
+                frame.id = in.jsonString();
+            } else if (in.keyIs(keyStart, keyEnd, "hops")) {
+                frame.hops = in.jsonInt();
+            } else if (in.keyIs(keyStart, keyEnd, "path")) {
+                frame.path = in.jsonString();
+            } else if (in.keyIs(keyStart, keyEnd, "trace")) {
+                frame.trace = in.jsonString();
+            } else {
+                if (in.keyIs(keyStart, keyEnd, "data")) {
+                    payload = "DATA";
+                } else if (in.keyIs(keyStart, keyEnd, "vote")) {
+                    payload = "VOTE_CAST";
+                } else if (in.keyIs(keyStart, keyEnd, "votes")) {
+                    payload = "VOTE_CAST_BATCH";
+                }
+                in.skipValue();
+            }
+            if (in.failed) {
+                return null;
+            }
+
+            int b = in.token();
+            in.pos++;
+            if (b == '}') {
+                break;
+            }
+            if (b != ',') {
+                return null;
+            }
+        }
+        // nothing but the newline may follow
+        while (in.pos < limit) {
+            if (!Cursor.isWhitespace(buf[in.pos++])) {
+                return null;
+            }
+        }
+
+        if (frame.type == null || !frame.type.equals(payload) || frame.dstAddr == null || !hasPort
+                || frame.dstPort < 0 || frame.hops < 0) {
+            return null;
+        }
+        if (!frame.type.equals("DATA")) {
+            // only DATA carries an id, keep what the full decoder would
+            frame.id = null;
+        }
+        return frame;
+    }
+
+    /**
+     * Position in a frame being read, running off the end throws IndexOutOfBoundsException
+     */
+    private static class Cursor {
+        private byte[] buf;
+        private int pos;
+        private int limit;
+        /**
+         * Set when a JSON value is one the full decoder has to read
+         */
+        private boolean failed;
+
+        private Cursor(byte[] _buf, int _pos, int _limit) {
+            buf = _buf;
+            pos = _pos;
+            limit = _limit;
+        }
+
+        private int next() {
+            if (pos >= limit) {
+                throw new IndexOutOfBoundsException();
+            }
+            return buf[pos++] & 0xFF;
+        }
+
+        private int varInt() {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = next();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IndexOutOfBoundsException();
+        }
+
+        /**
+         * Reads a string written by MessageCodec.writeString
+         *
+         * @return String read, may be null
+         */
+        private String string() {
+            int length = varInt() - 1;
+            if (length < 0) {
+                return null;
+            }
+            skip(length);
+            return new String(buf, pos - length, length, StandardCharsets.UTF_8);
+        }
+
+        private void skipString() {
+            int length = varInt() - 1;
+            if (length > 0) {
+                skip(length);
+            }
+        }
+
+        private void skipStringList() {
+            for (int size = varInt() - 1; size > 0; size--) {
+                skipString();
+            }
+        }
+
+        /**
+         * Skips a ballot, the fields Vote.writeBinary writes
+         */
+        private void skipVote() {
+            skipString();
+            skipString();
+            skipStringList();
+            skipString();
+            skipStringList();
+            skipString();
+            skipString();
+        }
+
+        private void skip(int length) {
+            if (length < 0 || length > limit - pos) {
+                throw new IndexOutOfBoundsException();
+            }
+            pos += length;
+        }
+
+        /**
+         * Skips whitespace and peeks at the next byte
+         *
+         * @return int next byte, not consumed
+         */
+        private int token() {
+            while (pos < limit && isWhitespace(buf[pos])) {
+                pos++;
+            }
+            if (pos >= limit) {
+                throw new IndexOutOfBoundsException();
+            }
+            return buf[pos];
+        }
+
+        /**
+         * Finds the end of a string with no escapes, the opening quote has been consumed
+         *
+         * @return int index of the closing quote or -1 if the string has escapes
+         */
+        private int plainStringEnd() {
+            while (true) {
+                int b = next();
+                if (b == '"') {
+                    return pos - 1;
+                }
+                if (b == '\\') {
+                    return -1;
+                }
+            }
+        }
+
+        /**
+         * Reads a JSON string with no escapes or null
+         *
+         * @return String read, may be null
+         */
+        private String jsonString() {
+            if (buf[pos] == 'n') {
+                literal("null");
+                return null;
+            }
+            if (buf[pos] != '"') {
+                failed = true;
+                return null;
+            }
+            int start = ++pos;
+            int end = plainStringEnd();
+            if (end < 0) {
+                failed = true;
+                return null;
+            }
+            return new String(buf, start, end - start, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Reads a JSON number that is a plain integer
+         *
+         * @return int value
+         */
+        private int jsonInt() {
+            boolean negative = buf[pos] == '-';
+            if (negative) {
+                pos++;
+            }
+            long value = 0;
+            int start = pos;
+            while (pos < limit && buf[pos] >= '0' && buf[pos] <= '9' && pos - start < 10) {
+                value = value * 10 + buf[pos++] - '0';
+            }
+            int b = pos < limit ? buf[pos] : '}';
+            if (pos == start || value > Integer.MAX_VALUE || b == '.' || b == 'e' || b == 'E'
+                    || (b >= '0' && b <= '9')) {
+                failed = true;
+                return 0;
+            }
+            return (int) (negative ? -value : value);
+        }
+
+        /**
+         * Skips a JSON value of any type
+         */
+        private void skipValue() {
+            int b = buf[pos];
+            if (b == '"') {
+                pos++;
+                while ((b = next()) != '"') {
+                    if (b == '\\') {
+                        next();
+                    }
+                }
+            } else if (b == '{' || b == '[') {
+                int depth = 0;
+                do {
+                    b = next();
+                    if (b == '"') {
+                        pos--;
+                        skipValue();
+                    } else if (b == '{' || b == '[') {
+                        depth++;
+                    } else if (b == '}' || b == ']') {
+                        depth--;
+                    }
+                } while (depth > 0);
+            } else {
+                // number or literal, runs until the next separator
+                while (pos < limit && buf[pos] != ',' && buf[pos] != '}' && buf[pos] != ']'
+                        && !isWhitespace(buf[pos])) {
+                    pos++;
+                }
+            }
+        }
+
+        /**
+         * Checks if the key between two indexes is the one given, keys we look for are plain ASCII
+         *
+         * @param start int index of first byte of the key
+         * @param end   int index one past the key
+         * @param key   String key to look for
+         * @return true if they are the same
+         */
+        private boolean keyIs(int start, int end, String key) {
+            if (end - start != key.length()) {
+                return false;
+            }
+            for (int i = 0; i < key.length(); i++) {
+                if (buf[start + i] != key.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void literal(String expected) {
+            for (int i = 0; i < expected.length(); i++) {
+                if (next() != expected.charAt(i)) {
+                    failed = true;
+                    return;
+                }
+            }
+        }
+
+        private static boolean isWhitespace(byte b) {
+            return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+        }
+    }
+}
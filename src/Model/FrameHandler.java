@@ -0,0 +1,28 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Model;
+
+import java.io.IOException;
+
+/**
+ * A MessageHandler that can pass DATA and VOTE_CAST on without decoding them. Servers hand such a handler a Frame with
+ * only the routing header read instead of a Message whenever the frame is one Frame can read the header of.
+ */
+public interface FrameHandler extends MessageHandler {
+    /**
+     * Handles a frame received on a connection, decoding it with Frame.toMessage if it cannot be passed on as it is
+     *
+     * @param frame Frame received
+     * @param reply ReplyChannel to answer on the same connection
+     * @return true if the connection should stay open for more messages, false to close it
+     * @throws IOException if there is an error replying, forwarding or decoding the frame
+     */
+    boolean handleFrame(Frame frame, ReplyChannel reply) throws IOException;
+}
@@ -0,0 +1,64 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Model;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the executor connection handlers run on for Blender and Jondo based on their configuration
+ */
+public class HandlerExecutors {
+    /**
+     * Creates the executor to run connection handlers on
+     *
+     * @param config        Configuration with the executor mode and number of threads
+     * @param perConnection true if each handler holds its thread for the whole connection (blocking server),
+     *                      false if handlers only run while handling a message (nio server)
+     * @return ExecutorService to run handlers on
+     */
+    public static ExecutorService create(Configuration config, boolean perConnection) {
+        if (config.getExecutor().equals("virtual")) {
+            ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+            if (virtual != null) {
+                return virtual;
+            }
+
+            System.err.println("Virtual threads need Java 21 or newer, falling back to platform threads");
+            return Executors.newCachedThreadPool();
+        }
+
+        if (perConnection) {
+            // threads are kept warm and persistent connections may borrow extra threads since each one holds a
+            // thread while it is open
+            return new ThreadPoolExecutor(config.getThreads(), Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                    new SynchronousQueue<>());
+        }
+
+        return Executors.newFixedThreadPool(config.getThreads());
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task. Looked up at runtime so we still build
+     * and run on Java versions without virtual threads.
+     *
+     * @return ExecutorService using virtual threads or null if this JVM does not have them
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
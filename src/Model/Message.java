@@ -14,14 +14,47 @@ import merrimackutil.json.types.JSONArray;
 import merrimackutil.json.types.JSONObject;
 import merrimackutil.json.types.JSONType;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.InvalidObjectException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The Message class handles the creation, serialization, and deserialization of messages exchanged between nodes
  * in a decentralized network. It supports various types of messages.
+ * <p>
+ * A message that is read splits into a header, the type, addresses, ids and counters, decoded straight away, and a
+ * payload, the data, ballots or nodes it carries, decoded the first time one of their getters is called. Until then
+ * the payload is kept as it arrived, so a message passed on in the codec it came in is written without ever decoding
+ * its payload.
  */
 public class Message implements JSONSerializable {
+    /**
+     * Message types in the order of their binary type code, index 0 is unused
+     */
+    private static final String[] TYPES = {null, "HELLO", "WELCOME", "BROADCAST", "DATA", "VOTE_BROADCAST",
+            "VOTE_CAST", "VOTE_RESULTS_QUERY", "VOTE_RESULTS", "ACK", "LEAVE", "SYNC", "SYNC_DELTA",
+            "PATH_OPEN", "VOTE_CAST_BATCH", "VOTE_RESULTS_SUBSCRIBE"};
+    /**
+     * Keys of the payload of JSON messages of each type, see payloadKeys
+     */
+    private static final String[] WELCOME_PAYLOAD = {"routingTable"};
+    private static final String[] DATA_PAYLOAD = {"data"};
+    private static final String[] VOTE_PAYLOAD = {"vote"};
+    private static final String[] BATCH_PAYLOAD = {"votes"};
+    private static final String[] DELTA_PAYLOAD = {"added", "removed"};
+    private static final String[] NO_PAYLOAD = {};
+
     /**
      * Type of message we are sending
      * Hello, Welcome, Data, Broadcast
@@ -38,7 +71,7 @@ public class Message implements JSONSerializable {
     /**
      * Routing Table object
      */
-    private ConcurrentHashMap<String, Node> routingTable;
+    private ConcurrentHashMap<NodeId, Node> routingTable;
     /**
      * Destination IP address
      */
@@ -55,11 +88,83 @@ public class Message implements JSONSerializable {
      * Vote to broadcast
      */
     private Vote vote;
+    /**
+     * Ballots of a VOTE_CAST_BATCH
+     */
+    private List<Vote> votes;
 
     /**
      * New node to add to routing table
      */
     private Node newNode;
+    /**
+     * Codec negotiation, in HELLO the codec the Jondo would like to use and in WELCOME the codec the Blender chose
+     */
+    private String codec;
+    /**
+     * Id of a DATA message, the ACK for it carries the same id so replies can be matched to requests
+     */
+    private String id;
+    /**
+     * Epoch of the Blenders routing table, in WELCOME, BROADCAST, LEAVE and SYNC_DELTA the epoch after the change and
+     * in SYNC the epoch the Jondo is up to date with. 0 means no epoch
+     */
+    private int epoch;
+    /**
+     * True if a SYNC_DELTA holds the whole routing table rather than changes
+     */
+    private boolean full;
+    /**
+     * Nodes added to the routing table in a SYNC_DELTA
+     */
+    private List<Node> added;
+    /**
+     * Nodes removed from the routing table in a SYNC_DELTA
+     */
+    private List<Node> removed;
+    /**
+     * Number of Jondos a gossiped BROADCAST or LEAVE is passed on to, 0 if it is not gossiped
+     */
+    private int fanout;
+    /**
+     * Number of Jondos a DATA or VOTE_CAST has passed through, only counted when Jondos cap the hops
+     */
+    private int hops;
+    /**
+     * Id of the path a DATA, VOTE_CAST or PATH_OPEN follows, null for a fresh random walk
+     */
+    private String path;
+    /**
+     * Why a relayed DATA got no reply, set on the ACK sent back in its place
+     */
+    private String error;
+    /**
+     * Trace id of a DATA, VOTE_CAST or VOTE_CAST_BATCH sent by a Jondo that traces its messages, null otherwise
+     */
+    private String trace;
+    /**
+     * Version of the results of a vote, in VOTE_RESULTS the version sent and in VOTE_RESULTS_SUBSCRIBE the version the
+     * Jondo already has. The epoch is when the Blender that counted them started and the version the ballots it had
+     * counted, so results from a Blender that restarted without its ballots still come after the ones before. 0 means
+     * no version
+     */
+    private long resultsEpoch;
+    private long version;
+    /**
+     * System.nanoTime the frame of a traced message was read and decoded at, kept on this node and never sent
+     */
+    private long received;
+    private long decoded;
+    /**
+     * Payload of a message that was read and not decoded yet, either the bytes of its binary encoding or the
+     * JSONObject of the whole message. Kept after decoding so the message can be written again as it arrived
+     */
+    private byte[] binaryPayload;
+    private JSONObject jsonPayload;
+    /**
+     * True while the payload fields are still only in binaryPayload or jsonPayload
+     */
+    private volatile boolean lazy;
 
     /**
      * Constructs a Message object using the provided Builder instance.
@@ -76,6 +181,23 @@ public class Message implements JSONSerializable {
         dstPort = builder.dstPort;
         data = builder.data;
         vote = builder.vote;
+        votes = builder.votes;
+        codec = builder.codec;
+        id = builder.id;
+        epoch = builder.epoch;
+        full = builder.full;
+        added = builder.added;
+        removed = builder.removed;
+        fanout = builder.fanout;
+        hops = builder.hops;
+        path = builder.path;
+        error = builder.error;
+        trace = builder.trace;
+        resultsEpoch = builder.resultsEpoch;
+        version = builder.version;
+        binaryPayload = builder.binaryPayload;
+        jsonPayload = builder.jsonPayload;
+        lazy = builder.lazy;
     }
 
     /**
@@ -89,6 +211,30 @@ public class Message implements JSONSerializable {
         deserialize(messageJSON);
     }
 
+    /**
+     * Deserializes Message from its compact binary encoding
+     *
+     * @param in DataInput positioned at the start of a binary message
+     * @throws IOException Throws if the binary message is invalid or ends early
+     */
+    public Message(DataInput in) throws IOException {
+        deserializeBinary(in);
+    }
+
+    /**
+     * Deserializes the header of a message from its compact binary encoding, keeping a copy of the payload bytes to
+     * decode when it is asked for
+     *
+     * @param buf    byte[] holding the binary message
+     * @param offset int index of the type code
+     * @param length int length of the binary message
+     * @throws IOException Throws if the binary message is invalid or ends early
+     */
+    Message(byte[] buf, int offset, int length) throws IOException {
+        Slice source = new Slice(buf, offset, length);
+        readBinary(new DataInputStream(source), source);
+    }
+
     /**
      * Serializes the JSON object into JSON string representation
      *
@@ -130,33 +276,43 @@ public class Message implements JSONSerializable {
 
                 srcAddr = messageJSON.getString("srcAddr");
                 srcPort = messageJSON.getInt("srcPort");
+
+                // older Jondos do not negotiate a codec
+                if (messageJSON.containsKey("codec")) {
+                    codec = messageJSON.getString("codec");
+                }
                 break;
             case "WELCOME":
                 if (!messageJSON.containsKey("routingTable")) {
                     throw new InvalidObjectException("WELCOME message should contain routingTable");
                 }
 
-                // create new Routing table as hashmap
-                ConcurrentHashMap<String, Node> newRoutingTable = new ConcurrentHashMap<>();
-                // get JSONArray and turn it into routingTable concurrency hashMap
-                JSONArray nodeArray = messageJSON.getArray("routingTable");
-
-                for (int i = 0; i < nodeArray.size(); i++) {
-                    JSONObject nodeJSON = nodeArray.getObject(i);
-                    Node node = new Node(nodeJSON);
-                    newRoutingTable.put(node.getUid(), node);
+                if (messageJSON.containsKey("codec")) {
+                    codec = messageJSON.getString("codec");
+                }
+                if (messageJSON.containsKey("epoch")) {
+                    epoch = messageJSON.getInt("epoch");
                 }
-
-                // set routingTable to new RoutingTable
-                routingTable = newRoutingTable;
                 break;
             case "BROADCAST":
                 if (!(messageJSON.containsKey("newNodeAddr") || (messageJSON.containsKey("newNodePort")))) {
                     throw new InvalidObjectException("BROADCAST message should contain new Node");
                 }
 
-                // gets new node based on nodes addr and port
+                // gets new node based on nodes addr and port, a BROADCAST is gossiped so its UID is checked
                 newNode = new Node(messageJSON.getString("newNodeAddr"), messageJSON.getInt("newNodePort"));
+                if (messageJSON.containsKey("newNodeUid")
+                        && !Node.parseUid(messageJSON.getString("newNodeUid")).equals(newNode.getId())) {
+                    throw new InvalidObjectException("BROADCAST new node UID is not the hash of its addr and port");
+                }
+
+                // older Blenders do not version their routing table
+                if (messageJSON.containsKey("epoch")) {
+                    epoch = messageJSON.getInt("epoch");
+                }
+                if (messageJSON.containsKey("fanout")) {
+                    fanout = messageJSON.getInt("fanout");
+                }
                 break;
             case "DATA":
                 if (!(messageJSON.containsKey("dstAddr") || messageJSON.containsKey("dstPort") ||
@@ -166,14 +322,24 @@ public class Message implements JSONSerializable {
 
                 dstAddr = messageJSON.getString("dstAddr");
                 dstPort = messageJSON.getInt("dstPort");
-                data = messageJSON.getString("data");
+
+                if (messageJSON.containsKey("id")) {
+                    id = messageJSON.getString("id");
+                }
+                if (messageJSON.containsKey("hops")) {
+                    hops = messageJSON.getInt("hops");
+                }
+                if (messageJSON.containsKey("path")) {
+                    path = messageJSON.getString("path");
+                }
+                if (messageJSON.containsKey("trace")) {
+                    trace = messageJSON.getString("trace");
+                }
                 break;
             case "VOTE_BROADCAST":
                 if (!messageJSON.containsKey("vote")) {
                     throw new InvalidObjectException("VOTE_BROADCAST message should contain vote");
                 }
-
-                vote = new Vote(messageJSON.getObject("vote"));
                 break;
             case "VOTE_CAST":
                 if (!(messageJSON.containsKey("dstAddr") && messageJSON.containsKey("dstPort")
@@ -183,7 +349,36 @@ public class Message implements JSONSerializable {
 
                 dstAddr = messageJSON.getString("dstAddr");
                 dstPort = messageJSON.getInt("dstPort");
-                vote = new Vote(messageJSON.getObject("vote"));
+
+                if (messageJSON.containsKey("hops")) {
+                    hops = messageJSON.getInt("hops");
+                }
+                if (messageJSON.containsKey("path")) {
+                    path = messageJSON.getString("path");
+                }
+                if (messageJSON.containsKey("trace")) {
+                    trace = messageJSON.getString("trace");
+                }
+                break;
+            case "VOTE_CAST_BATCH":
+                if (!(messageJSON.containsKey("dstAddr") && messageJSON.containsKey("dstPort")
+                        && messageJSON.containsKey("votes"))) {
+                    throw new InvalidObjectException("VOTE_CAST_BATCH message should contain dstAddr, dstPort, and "
+                            + "votes");
+                }
+
+                dstAddr = messageJSON.getString("dstAddr");
+                dstPort = messageJSON.getInt("dstPort");
+
+                if (messageJSON.containsKey("hops")) {
+                    hops = messageJSON.getInt("hops");
+                }
+                if (messageJSON.containsKey("path")) {
+                    path = messageJSON.getString("path");
+                }
+                if (messageJSON.containsKey("trace")) {
+                    trace = messageJSON.getString("trace");
+                }
                 break;
             case "VOTE_RESULTS_QUERY":
                 if (!(messageJSON.containsKey("dstAddr") && messageJSON.containsKey("dstPort")
@@ -197,18 +392,25 @@ public class Message implements JSONSerializable {
                 dstPort = messageJSON.getInt("dstPort");
                 srcAddr = messageJSON.getString("srcAddr");
                 srcPort = messageJSON.getInt("srcPort");
-                vote = new Vote(messageJSON.getObject("vote"));
                 break;
             case "VOTE_RESULTS":
+            case "VOTE_RESULTS_SUBSCRIBE":
                 if (!(messageJSON.containsKey("vote") && messageJSON.containsKey("dstAddr") && messageJSON.containsKey("dstPort") && messageJSON.containsKey("srcAddr") && messageJSON.containsKey("srcPort"))) {
-                    throw new InvalidObjectException("VOTE_RESULTS message should contain vote, dstAddr, dstPort, srcAddr, and srcPort");
+                    throw new InvalidObjectException(type + " message should contain vote, dstAddr, dstPort, srcAddr, and srcPort");
                 }
 
-                vote = new Vote(messageJSON.getObject("vote"));
                 dstAddr = messageJSON.getString("dstAddr");
                 dstPort = messageJSON.getInt("dstPort");
                 srcAddr = messageJSON.getString("srcAddr");
                 srcPort = messageJSON.getInt("srcPort");
+
+                // results from older Blenders are not versioned
+                if (messageJSON.containsKey("version")) {
+                    version = getLong(messageJSON, "version");
+                }
+                if (messageJSON.containsKey("resultsEpoch")) {
+                    resultsEpoch = getLong(messageJSON, "resultsEpoch");
+                }
                 break;
             case "ACK":
                 if (!(messageJSON.containsKey("srcAddr") && messageJSON.containsKey("srcPort"))) {
@@ -217,11 +419,171 @@ public class Message implements JSONSerializable {
 
                 srcAddr = messageJSON.getString("srcAddr");
                 srcPort = messageJSON.getInt("srcPort");
+
+                if (messageJSON.containsKey("id")) {
+                    id = messageJSON.getString("id");
+                }
+                // only replies relayed back along a circuit carry data or an error
+                if (messageJSON.containsKey("data")) {
+                    data = messageJSON.getString("data");
+                }
+                if (messageJSON.containsKey("error")) {
+                    error = messageJSON.getString("error");
+                }
+                break;
+            case "LEAVE":
+                if (!(messageJSON.containsKey("srcAddr") && messageJSON.containsKey("srcPort"))) {
+                    throw new InvalidObjectException("LEAVE message should contain srcAddr and srcPort");
+                }
+
+                srcAddr = messageJSON.getString("srcAddr");
+                srcPort = messageJSON.getInt("srcPort");
+
+                // a Jondo leaving sends no epoch, the Blender adds one when it tells the crowd
+                if (messageJSON.containsKey("epoch")) {
+                    epoch = messageJSON.getInt("epoch");
+                }
+                if (messageJSON.containsKey("fanout")) {
+                    fanout = messageJSON.getInt("fanout");
+                }
+                break;
+            case "SYNC":
+                if (!(messageJSON.containsKey("id") && messageJSON.containsKey("epoch"))) {
+                    throw new InvalidObjectException("SYNC message should contain id and epoch");
+                }
+
+                id = messageJSON.getString("id");
+                epoch = messageJSON.getInt("epoch");
+                break;
+            case "SYNC_DELTA":
+                if (!(messageJSON.containsKey("id") && messageJSON.containsKey("epoch")
+                        && messageJSON.containsKey("full") && messageJSON.containsKey("added")
+                        && messageJSON.containsKey("removed"))) {
+                    throw new InvalidObjectException("SYNC_DELTA message should contain id, epoch, full, added and "
+                            + "removed");
+                }
+
+                id = messageJSON.getString("id");
+                epoch = messageJSON.getInt("epoch");
+                full = messageJSON.getBoolean("full");
+                break;
+            case "PATH_OPEN":
+                if (!messageJSON.containsKey("path")) {
+                    throw new InvalidObjectException("PATH_OPEN message should contain path");
+                }
+
+                path = messageJSON.getString("path");
+                if (messageJSON.containsKey("hops")) {
+                    hops = messageJSON.getInt("hops");
+                }
                 break;
             default:
                 System.out.println("Type: " + type);
                 throw new IllegalArgumentException("Bad type - Must be HELLO, WELCOME, BROADCAST, DATA, ACK");
         }
+
+        // the payload stays in the JSONObject until it is asked for, only its shape is checked now
+        String[] keys = payloadKeys(type);
+        if (keys.length > 0) {
+            for (String key : keys) {
+                Object value = messageJSON.get(key);
+                boolean valid = key.equals("data") ? value == null || value instanceof String
+                        : key.equals("vote") ? value instanceof JSONObject : value instanceof JSONArray;
+                if (!valid) {
+                    throw new InvalidObjectException(type + " message has a malformed " + key);
+                }
+            }
+            jsonPayload = messageJSON;
+            lazy = true;
+        }
+    }
+
+    /**
+     * Decodes the payload of a JSON message into its fields
+     *
+     * @param messageJSON JSONObject of the whole message
+     * @throws InvalidObjectException if a node or ballot is invalid
+     */
+    private void readJSONPayload(JSONObject messageJSON) throws InvalidObjectException {
+        switch (type) {
+            case "WELCOME":
+                // create new Routing table as hashmap
+                ConcurrentHashMap<NodeId, Node> newRoutingTable = new ConcurrentHashMap<>();
+                // get JSONArray and turn it into routingTable concurrency hashMap
+                JSONArray nodeArray = messageJSON.getArray("routingTable");
+
+                for (int i = 0; i < nodeArray.size(); i++) {
+                    JSONObject nodeJSON = nodeArray.getObject(i);
+                    Node node = new Node(nodeJSON);
+                    newRoutingTable.put(node.getId(), node);
+                }
+
+                // set routingTable to new RoutingTable
+                routingTable = newRoutingTable;
+                break;
+            case "DATA":
+                data = messageJSON.getString("data");
+                break;
+            case "VOTE_BROADCAST":
+            case "VOTE_CAST":
+            case "VOTE_RESULTS_QUERY":
+            case "VOTE_RESULTS":
+            case "VOTE_RESULTS_SUBSCRIBE":
+                vote = new Vote(messageJSON.getObject("vote"));
+                break;
+            case "VOTE_CAST_BATCH":
+                votes = votesFromJSON(messageJSON.getArray("votes"));
+                break;
+            case "SYNC_DELTA":
+                added = nodesFromJSON(messageJSON.getArray("added"));
+                removed = nodesFromJSON(messageJSON.getArray("removed"));
+                break;
+        }
+    }
+
+    /**
+     * Puts the payload of this message into its JSONObject, as it arrived if it was read from JSON
+     *
+     * @param messageJSON JSONObject being built by toJSONType
+     */
+    private void putPayload(JSONObject messageJSON) {
+        if (jsonPayload != null) {
+            for (String key : payloadKeys(type)) {
+                messageJSON.put(key, jsonPayload.get(key));
+            }
+            return;
+        }
+
+        decodePayload();
+        switch (type) {
+            case "WELCOME":
+                // turn nodes in routing table into JSONArray, add their JSONObjects rather than the nodes so the
+                // message stays on a single line
+                JSONArray routingJSONArray = new JSONArray();
+                for (Node node : routingTable.values()) {
+                    routingJSONArray.add(node.toJSONType());
+                }
+
+                messageJSON.put("routingTable", routingJSONArray);
+                break;
+            case "DATA":
+                messageJSON.put("data", data);
+                break;
+            case "VOTE_BROADCAST":
+            case "VOTE_CAST":
+            case "VOTE_RESULTS_QUERY":
+            case "VOTE_RESULTS":
+            case "VOTE_RESULTS_SUBSCRIBE":
+                messageJSON.put("vote", vote.toJSONType());
+                break;
+            case "VOTE_CAST_BATCH":
+                messageJSON.put("votes", votesToJSON(votes));
+                break;
+            case "SYNC_DELTA":
+                messageJSON.put("added", nodesToJSON(added));
+                messageJSON.put("removed", nodesToJSON(removed));
+                break;
+        }
     }
 
     /**
@@ -239,46 +601,95 @@ public class Message implements JSONSerializable {
                 messageJSON.put("type", type);
                 messageJSON.put("srcAddr", srcAddr);
                 messageJSON.put("srcPort", srcPort);
+                if (codec != null) {
+                    messageJSON.put("codec", codec);
+                }
 
                 return messageJSON;
             case "WELCOME":
                 messageJSON.put("type", type);
+                if (codec != null) {
+                    messageJSON.put("codec", codec);
+                }
 
-                // turn nodes in routing table into JSONArray
-                JSONArray routingJSONArray = new JSONArray();
-                routingJSONArray.addAll(routingTable.values());
-
-                messageJSON.put("routingTable", routingJSONArray);
+                putPayload(messageJSON);
+                if (epoch != 0) {
+                    messageJSON.put("epoch", epoch);
+                }
 
                 return messageJSON;
             case "BROADCAST":
                 messageJSON.put("type", type);
                 messageJSON.put("newNodeAddr", newNode.getAddr());
                 messageJSON.put("newNodePort", newNode.getPort());
+                messageJSON.put("newNodeUid", newNode.getUid());
+                if (epoch != 0) {
+                    messageJSON.put("epoch", epoch);
+                }
+                if (fanout != 0) {
+                    messageJSON.put("fanout", fanout);
+                }
 
                 return messageJSON;
             case "DATA":
                 messageJSON.put("type", type);
                 messageJSON.put("dstAddr", dstAddr);
                 messageJSON.put("dstPort", dstPort);
-                messageJSON.put("data", data);
+                putPayload(messageJSON);
+                if (id != null) {
+                    messageJSON.put("id", id);
+                }
+                if (hops != 0) {
+                    messageJSON.put("hops", hops);
+                }
+                if (path != null) {
+                    messageJSON.put("path", path);
+                }
+                if (trace != null) {
+                    messageJSON.put("trace", trace);
+                }
 
                 return messageJSON;
             case "VOTE_BROADCAST":
                 messageJSON.put("type", type);
-                messageJSON.put("vote", vote.toJSONType());
+                putPayload(messageJSON);
 
                 return messageJSON;
             case "VOTE_CAST":
                 messageJSON.put("type", type);
-                messageJSON.put("vote", vote.toJSONType());
+                putPayload(messageJSON);
+                messageJSON.put("dstAddr", dstAddr);
+                messageJSON.put("dstPort", dstPort);
+                if (hops != 0) {
+                    messageJSON.put("hops", hops);
+                }
+                if (path != null) {
+                    messageJSON.put("path", path);
+                }
+                if (trace != null) {
+                    messageJSON.put("trace", trace);
+                }
+
+                return messageJSON;
+            case "VOTE_CAST_BATCH":
+                messageJSON.put("type", type);
+                putPayload(messageJSON);
                 messageJSON.put("dstAddr", dstAddr);
                 messageJSON.put("dstPort", dstPort);
+                if (hops != 0) {
+                    messageJSON.put("hops", hops);
+                }
+                if (path != null) {
+                    messageJSON.put("path", path);
+                }
+                if (trace != null) {
+                    messageJSON.put("trace", trace);
+                }
 
                 return messageJSON;
             case "VOTE_RESULTS_QUERY":
                 messageJSON.put("type", type);
-                messageJSON.put("vote", vote.toJSONType());
+                putPayload(messageJSON);
                 messageJSON.put("dstAddr", dstAddr);
                 messageJSON.put("dstPort", dstPort);
                 messageJSON.put("srcAddr", srcAddr);
@@ -286,17 +697,67 @@ public class Message implements JSONSerializable {
 
                 return messageJSON;
             case "VOTE_RESULTS":
+            case "VOTE_RESULTS_SUBSCRIBE":
                 messageJSON.put("type", type);
-                messageJSON.put("vote", vote.toJSONType());
+                putPayload(messageJSON);
                 messageJSON.put("dstAddr", dstAddr);
                 messageJSON.put("dstPort", dstPort);
                 messageJSON.put("srcAddr", srcAddr);
                 messageJSON.put("srcPort", srcPort);
+                if (version != 0) {
+                    messageJSON.put("version", version);
+                }
+                if (resultsEpoch != 0) {
+                    messageJSON.put("resultsEpoch", resultsEpoch);
+                }
                 return messageJSON;
             case "ACK":
                 messageJSON.put("type", type);
                 messageJSON.put("srcAddr", srcAddr);
                 messageJSON.put("srcPort", srcPort);
+                if (id != null) {
+                    messageJSON.put("id", id);
+                }
+                if (data != null) {
+                    messageJSON.put("data", data);
+                }
+                if (error != null) {
+                    messageJSON.put("error", error);
+                }
+
+                return messageJSON;
+            case "LEAVE":
+                messageJSON.put("type", type);
+                messageJSON.put("srcAddr", srcAddr);
+                messageJSON.put("srcPort", srcPort);
+                if (epoch != 0) {
+                    messageJSON.put("epoch", epoch);
+                }
+                if (fanout != 0) {
+                    messageJSON.put("fanout", fanout);
+                }
+
+                return messageJSON;
+            case "SYNC":
+                messageJSON.put("type", type);
+                messageJSON.put("id", id);
+                messageJSON.put("epoch", epoch);
+
+                return messageJSON;
+            case "SYNC_DELTA":
+                messageJSON.put("type", type);
+                messageJSON.put("id", id);
+                messageJSON.put("epoch", epoch);
+                messageJSON.put("full", full);
+                putPayload(messageJSON);
+
+                return messageJSON;
+            case "PATH_OPEN":
+                messageJSON.put("type", type);
+                messageJSON.put("path", path);
+                if (hops != 0) {
+                    messageJSON.put("hops", hops);
+                }
 
                 return messageJSON;
             default:
@@ -305,41 +766,578 @@ public class Message implements JSONSerializable {
         }
     }
 
-    @Override
-    public String toString() {
-        return toJSONType().getFormattedJSON();
-    }
-
-    /**
-     * Gets type of message
-     * 
-     * @return String of type
-     */
-    public String getType() {
-        return type;
-    }
-
     /**
-     * Gets Source IP Address
-     * 
-     * @return String of IP Address
+     * Serializes this message into its compact binary encoding
+     *
+     * @return byte[] binary encoding of the message
      */
-    public String getSrcAddr() {
-        return srcAddr;
+    public byte[] toBinary() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            writeBinary(new DataOutputStream(bytes));
+        } catch (IOException e) {
+            // writing to memory does not fail
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
     }
 
     /**
-     * Gets Source Port
-     * 
-     * @return int of port
+     * Writes the binary encoding of this message, a type code followed by the same fields toJSONType writes for
+     * that type
+     *
+     * @param out DataOutput to write to
+     * @throws IOException if writing fails
      */
-    public int getSrcPort() {
-        return srcPort;
-    }
+    public void writeBinary(DataOutput out) throws IOException {
+        out.writeByte(typeCode(type));
 
-    /**
-     * Gets Destination IP Address
-     * 
+        switch (type) {
+            case "HELLO":
+                MessageCodec.writeString(out, srcAddr);
+                MessageCodec.writeVarInt(out, srcPort);
+                MessageCodec.writeString(out, codec);
+                break;
+            case "WELCOME":
+                MessageCodec.writeString(out, codec);
+                writeBinaryPayload(out);
+                MessageCodec.writeVarInt(out, epoch);
+                break;
+            case "BROADCAST":
+                newNode.writeBinary(out);
+                MessageCodec.writeVarInt(out, epoch);
+                MessageCodec.writeVarInt(out, fanout);
+                break;
+            case "DATA":
+                MessageCodec.writeString(out, dstAddr);
+                MessageCodec.writeVarInt(out, dstPort);
+                writeBinaryPayload(out);
+                MessageCodec.writeString(out, id);
+                MessageCodec.writeVarInt(out, hops);
+                MessageCodec.writeString(out, path);
+                MessageCodec.writeString(out, trace);
+                break;
+            case "VOTE_BROADCAST":
+                writeBinaryPayload(out);
+                break;
+            case "VOTE_CAST":
+                MessageCodec.writeString(out, dstAddr);
+                MessageCodec.writeVarInt(out, dstPort);
+                writeBinaryPayload(out);
+                MessageCodec.writeVarInt(out, hops);
+                MessageCodec.writeString(out, path);
+                MessageCodec.writeString(out, trace);
+                break;
+            case "VOTE_CAST_BATCH":
+                MessageCodec.writeString(out, dstAddr);
+                MessageCodec.writeVarInt(out, dstPort);
+                writeBinaryPayload(out);
+                MessageCodec.writeVarInt(out, hops);
+                MessageCodec.writeString(out, path);
+                MessageCodec.writeString(out, trace);
+                break;
+            case "VOTE_RESULTS_QUERY":
+                MessageCodec.writeString(out, dstAddr);
+                MessageCodec.writeVarInt(out, dstPort);
+                MessageCodec.writeString(out, srcAddr);
+                MessageCodec.writeVarInt(out, srcPort);
+                writeBinaryPayload(out);
+                break;
+            case "VOTE_RESULTS":
+            case "VOTE_RESULTS_SUBSCRIBE":
+                MessageCodec.writeString(out, dstAddr);
+                MessageCodec.writeVarInt(out, dstPort);
+                MessageCodec.writeString(out, srcAddr);
+                MessageCodec.writeVarInt(out, srcPort);
+                writeBinaryPayload(out);
+                MessageCodec.writeVarLong(out, resultsEpoch);
+                MessageCodec.writeVarLong(out, version);
+                break;
+            case "ACK":
+                MessageCodec.writeString(out, srcAddr);
+                MessageCodec.writeVarInt(out, srcPort);
+                MessageCodec.writeString(out, id);
+                MessageCodec.writeString(out, data);
+                MessageCodec.writeString(out, error);
+                break;
+            case "LEAVE":
+                MessageCodec.writeString(out, srcAddr);
+                MessageCodec.writeVarInt(out, srcPort);
+                MessageCodec.writeVarInt(out, epoch);
+                MessageCodec.writeVarInt(out, fanout);
+                break;
+            case "SYNC":
+                MessageCodec.writeString(out, id);
+                MessageCodec.writeVarInt(out, epoch);
+                break;
+            case "SYNC_DELTA":
+                MessageCodec.writeString(out, id);
+                MessageCodec.writeVarInt(out, epoch);
+                out.writeBoolean(full);
+                writeBinaryPayload(out);
+                break;
+            case "PATH_OPEN":
+                MessageCodec.writeString(out, path);
+                MessageCodec.writeVarInt(out, hops);
+                break;
+        }
+    }
+
+    /**
+     * Reads the binary encoding of a message into this message, payload and all
+     *
+     * @param in DataInput to read from
+     * @throws IOException if the binary message is invalid or ends early
+     */
+    public void deserializeBinary(DataInput in) throws IOException {
+        readBinary(in, null);
+    }
+
+    /**
+     * Reads the binary encoding of a message into this message
+     *
+     * @param in     DataInput to read from
+     * @param source Slice in reads from to copy the payload out of and decode it later, null to decode it now
+     * @throws IOException if the binary message is invalid or ends early
+     */
+    private void readBinary(DataInput in, Slice source) throws IOException {
+        int code = in.readUnsignedByte();
+        if (code == 0 || code >= TYPES.length) {
+            throw new InvalidObjectException("Bad binary type code " + code);
+        }
+
+        type = TYPES[code];
+
+        switch (type) {
+            case "HELLO":
+                srcAddr = MessageCodec.readString(in);
+                srcPort = MessageCodec.readVarInt(in);
+                codec = MessageCodec.readString(in);
+                break;
+            case "WELCOME":
+                codec = MessageCodec.readString(in);
+                readBinaryPayload(in, source);
+                epoch = MessageCodec.readVarInt(in);
+                break;
+            case "BROADCAST":
+                // gossiped by any Jondo so the UID sent is checked rather than trusted
+                newNode = new Node(in);
+                newNode.checkUid();
+                epoch = MessageCodec.readVarInt(in);
+                fanout = MessageCodec.readVarInt(in);
+                break;
+            case "DATA":
+                dstAddr = MessageCodec.readString(in);
+                dstPort = MessageCodec.readVarInt(in);
+                readBinaryPayload(in, source);
+                id = MessageCodec.readString(in);
+                hops = MessageCodec.readVarInt(in);
+                path = MessageCodec.readString(in);
+                trace = MessageCodec.readString(in);
+                break;
+            case "VOTE_BROADCAST":
+                readBinaryPayload(in, source);
+                break;
+            case "VOTE_CAST":
+                dstAddr = MessageCodec.readString(in);
+                dstPort = MessageCodec.readVarInt(in);
+                readBinaryPayload(in, source);
+                hops = MessageCodec.readVarInt(in);
+                path = MessageCodec.readString(in);
+                trace = MessageCodec.readString(in);
+                break;
+            case "VOTE_CAST_BATCH":
+                dstAddr = MessageCodec.readString(in);
+                dstPort = MessageCodec.readVarInt(in);
+                readBinaryPayload(in, source);
+                hops = MessageCodec.readVarInt(in);
+                path = MessageCodec.readString(in);
+                trace = MessageCodec.readString(in);
+                break;
+            case "VOTE_RESULTS_QUERY":
+                dstAddr = MessageCodec.readString(in);
+                dstPort = MessageCodec.readVarInt(in);
+                srcAddr = MessageCodec.readString(in);
+                srcPort = MessageCodec.readVarInt(in);
+                readBinaryPayload(in, source);
+                break;
+            case "VOTE_RESULTS":
+            case "VOTE_RESULTS_SUBSCRIBE":
+                dstAddr = MessageCodec.readString(in);
+                dstPort = MessageCodec.readVarInt(in);
+                srcAddr = MessageCodec.readString(in);
+                srcPort = MessageCodec.readVarInt(in);
+                readBinaryPayload(in, source);
+                resultsEpoch = MessageCodec.readVarLong(in);
+                version = MessageCodec.readVarLong(in);
+                break;
+            case "ACK":
+                srcAddr = MessageCodec.readString(in);
+                srcPort = MessageCodec.readVarInt(in);
+                id = MessageCodec.readString(in);
+                data = MessageCodec.readString(in);
+                error = MessageCodec.readString(in);
+                break;
+            case "LEAVE":
+                srcAddr = MessageCodec.readString(in);
+                srcPort = MessageCodec.readVarInt(in);
+                epoch = MessageCodec.readVarInt(in);
+                fanout = MessageCodec.readVarInt(in);
+                break;
+            case "SYNC":
+                id = MessageCodec.readString(in);
+                epoch = MessageCodec.readVarInt(in);
+                break;
+            case "SYNC_DELTA":
+                id = MessageCodec.readString(in);
+                epoch = MessageCodec.readVarInt(in);
+                full = in.readBoolean();
+                readBinaryPayload(in, source);
+                break;
+            case "PATH_OPEN":
+                path = MessageCodec.readString(in);
+                hops = MessageCodec.readVarInt(in);
+                break;
+        }
+    }
+
+    /**
+     * Reads the payload of a binary message, either decoding it now or skipping over it and keeping its bytes
+     *
+     * @param in     DataInput positioned at the start of the payload
+     * @param source Slice in reads from, null to decode the payload now
+     * @throws IOException if the payload is invalid or ends early
+     */
+    private void readBinaryPayload(DataInput in, Slice source) throws IOException {
+        if (source == null) {
+            decodeBinaryPayload(in);
+            return;
+        }
+
+        int start = source.position();
+        switch (type) {
+            case "WELCOME":
+            case "SYNC_DELTA":
+                // SYNC_DELTA has two lists of nodes, added then removed
+                for (int list = type.equals("WELCOME") ? 1 : 2; list > 0; list--) {
+                    int size = MessageCodec.readVarInt(in);
+                    for (int i = 0; i < size; i++) {
+                        Node.skipBinary(in);
+                    }
+                }
+                break;
+            case "DATA":
+                MessageCodec.skipString(in);
+                break;
+            case "VOTE_CAST_BATCH":
+                int ballots = MessageCodec.readVarInt(in);
+                for (int i = 0; i < ballots; i++) {
+                    Vote.skipBinary(in);
+                }
+                break;
+            default:
+                Vote.skipBinary(in);
+        }
+        binaryPayload = source.copy(start);
+        lazy = true;
+    }
+
+    /**
+     * Decodes the binary payload of this message into its fields
+     *
+     * @param in DataInput positioned at the start of the payload
+     * @throws IOException if the payload is invalid or ends early
+     */
+    private void decodeBinaryPayload(DataInput in) throws IOException {
+        switch (type) {
+            case "WELCOME":
+                int size = MessageCodec.readVarInt(in);
+
+                routingTable = new ConcurrentHashMap<>();
+                for (int i = 0; i < size; i++) {
+                    Node node = new Node(in);
+                    routingTable.put(node.getId(), node);
+                }
+                break;
+            case "DATA":
+                data = MessageCodec.readString(in);
+                break;
+            case "VOTE_CAST_BATCH":
+                int ballots = MessageCodec.readVarInt(in);
+
+                votes = new ArrayList<>(ballots);
+                for (int i = 0; i < ballots; i++) {
+                    votes.add(new Vote(in));
+                }
+                break;
+            case "SYNC_DELTA":
+                added = readNodes(in);
+                removed = readNodes(in);
+                break;
+            default:
+                vote = new Vote(in);
+        }
+    }
+
+    /**
+     * Writes the binary payload of this message, as it arrived if it was read from binary
+     *
+     * @param out DataOutput to write to
+     * @throws IOException if writing fails
+     */
+    private void writeBinaryPayload(DataOutput out) throws IOException {
+        if (binaryPayload != null) {
+            out.write(binaryPayload);
+            return;
+        }
+
+        decodePayload();
+        switch (type) {
+            case "WELCOME":
+                MessageCodec.writeVarInt(out, routingTable.size());
+                for (Node node : routingTable.values()) {
+                    node.writeBinary(out);
+                }
+                break;
+            case "DATA":
+                MessageCodec.writeString(out, data);
+                break;
+            case "VOTE_CAST_BATCH":
+                MessageCodec.writeVarInt(out, votes.size());
+                for (Vote ballot : votes) {
+                    ballot.writeBinary(out);
+                }
+                break;
+            case "SYNC_DELTA":
+                writeNodes(out, added);
+                writeNodes(out, removed);
+                break;
+            default:
+                vote.writeBinary(out);
+        }
+    }
+
+    /**
+     * Decodes the payload into its fields if it has not been yet. Called by every getter of a payload field, the
+     * first caller decodes and any other thread asking at the same time waits for it.
+     *
+     * @throws UncheckedIOException if the payload is invalid, getters cannot throw IOException
+     */
+    private void decodePayload() {
+        if (!lazy) {
+            return;
+        }
+
+        synchronized (this) {
+            if (!lazy) {
+                return;
+            }
+            try {
+                if (binaryPayload != null) {
+                    decodeBinaryPayload(new DataInputStream(new ByteArrayInputStream(binaryPayload)));
+                } else {
+                    readJSONPayload(jsonPayload);
+                }
+            } catch (IOException | RuntimeException e) {
+                throw new UncheckedIOException(new InvalidObjectException("Malformed " + type + " payload: "
+                        + e.getMessage()));
+            }
+            lazy = false;
+        }
+    }
+
+    /**
+     * Gets the keys of the payload of a JSON message of a type
+     *
+     * @param type String type of message
+     * @return String[] payload keys, empty if the type has no payload
+     */
+    private static String[] payloadKeys(String type) {
+        switch (type) {
+            case "WELCOME":
+                return WELCOME_PAYLOAD;
+            case "DATA":
+                return DATA_PAYLOAD;
+            case "VOTE_BROADCAST":
+            case "VOTE_CAST":
+            case "VOTE_RESULTS_QUERY":
+            case "VOTE_RESULTS":
+            case "VOTE_RESULTS_SUBSCRIBE":
+                return VOTE_PAYLOAD;
+            case "VOTE_CAST_BATCH":
+                return BATCH_PAYLOAD;
+            case "SYNC_DELTA":
+                return DELTA_PAYLOAD;
+            default:
+                return NO_PAYLOAD;
+        }
+    }
+
+    /**
+     * Writes a list of nodes as a count followed by each node
+     *
+     * @param out   DataOutput to write to
+     * @param nodes List of nodes to write
+     * @throws IOException if writing fails
+     */
+    private static void writeNodes(DataOutput out, List<Node> nodes) throws IOException {
+        MessageCodec.writeVarInt(out, nodes.size());
+        for (Node node : nodes) {
+            node.writeBinary(out);
+        }
+    }
+
+    /**
+     * Reads a list of nodes written by writeNodes
+     *
+     * @param in DataInput to read from
+     * @return List of nodes read
+     * @throws IOException if reading fails
+     */
+    private static List<Node> readNodes(DataInput in) throws IOException {
+        int size = MessageCodec.readVarInt(in);
+
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            nodes.add(new Node(in));
+        }
+        return nodes;
+    }
+
+    /**
+     * Turns a list of nodes into a JSONArray of their JSONObjects so the message stays on a single line
+     *
+     * @param nodes List of nodes
+     * @return JSONArray of nodes
+     */
+    private static JSONArray nodesToJSON(List<Node> nodes) {
+        JSONArray array = new JSONArray();
+        for (Node node : nodes) {
+            array.add(node.toJSONType());
+        }
+        return array;
+    }
+
+    /**
+     * Reads a JSONArray of nodes
+     *
+     * @param array JSONArray of node JSONObjects
+     * @return List of nodes
+     * @throws InvalidObjectException if a node is invalid
+     */
+    private static List<Node> nodesFromJSON(JSONArray array) throws InvalidObjectException {
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < array.size(); i++) {
+            nodes.add(new Node(array.getObject(i)));
+        }
+        return nodes;
+    }
+
+    /**
+     * Turns a list of ballots into a JSONArray of their JSONObjects
+     *
+     * @param votes List of ballots
+     * @return JSONArray of ballots
+     */
+    private static JSONArray votesToJSON(List<Vote> votes) {
+        JSONArray array = new JSONArray();
+        for (Vote ballot : votes) {
+            array.add(ballot.toJSONType());
+        }
+        return array;
+    }
+
+    /**
+     * Reads a JSONArray of ballots
+     *
+     * @param array JSONArray of vote JSONObjects
+     * @return List of ballots
+     * @throws InvalidObjectException if a ballot is invalid
+     */
+    private static List<Vote> votesFromJSON(JSONArray array) throws InvalidObjectException {
+        List<Vote> votes = new ArrayList<>(array.size());
+        for (int i = 0; i < array.size(); i++) {
+            votes.add(new Vote(array.getObject(i)));
+        }
+        return votes;
+    }
+
+    /**
+     * Reads a long from a JSONObject, which holds every number as a Double so this is exact up to 2^53
+     *
+     * @param json JSONObject to read from
+     * @param key  String key of the number
+     * @return long value
+     * @throws InvalidObjectException if the value is not a number
+     */
+    private static long getLong(JSONObject json, String key) throws InvalidObjectException {
+        Object value = json.get(key);
+        if (!(value instanceof Number)) {
+            throw new InvalidObjectException(key + " is not a number");
+        }
+        return ((Number) value).longValue();
+    }
+
+    /**
+     * Creates a new random message id, 16 hex digits so every id has the same length
+     *
+     * @param rand Random to draw the id from
+     * @return String message id
+     */
+    public static String newId(Random rand) {
+        return String.format("%016x", rand.nextLong());
+    }
+
+    /**
+     * Gets the binary type code of a message type
+     *
+     * @param type String type of message
+     * @return int type code
+     */
+    static int typeCode(String type) {
+        for (int i = 1; i < TYPES.length; i++) {
+            if (TYPES[i].equals(type)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Bad type - no binary encoding for " + type);
+    }
+
+    @Override
+    public String toString() {
+        return toJSONType().getFormattedJSON();
+    }
+
+    /**
+     * Gets type of message
+     * 
+     * @return String of type
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Gets Source IP Address
+     * 
+     * @return String of IP Address
+     */
+    public String getSrcAddr() {
+        return srcAddr;
+    }
+
+    /**
+     * Gets Source Port
+     * 
+     * @return int of port
+     */
+    public int getSrcPort() {
+        return srcPort;
+    }
+
+    /**
+     * Gets Destination IP Address
+     * 
      * @return String of IP Address
      */
     public String getDstAddr() {
@@ -370,20 +1368,181 @@ public class Message implements JSONSerializable {
      * @return String of data
      */
     public String getData() {
+        decodePayload();
         return data;
     }
 
+    /**
+     * Gets why a relayed DATA got no reply
+     *
+     * @return String error of an ACK sent back in place of the reply, null if there was none
+     */
+    public String getError() {
+        return error;
+    }
+
     public Vote getVote() {
+        decodePayload();
         return vote;
     }
 
+    /**
+     * Gets ballots of a VOTE_CAST_BATCH
+     *
+     * @return List of ballots, null for other types
+     */
+    public List<Vote> getVotes() {
+        decodePayload();
+        return votes;
+    }
+
+    /**
+     * Gets id used to match a reply to its request
+     *
+     * @return String id of message or null if it has none
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Gets codec from a HELLO or WELCOME message
+     *
+     * @return String codec requested in HELLO or chosen in WELCOME, null if not negotiated
+     */
+    public String getCodec() {
+        return codec;
+    }
+
+    /**
+     * Gets epoch of the Blenders routing table
+     *
+     * @return int epoch, 0 if the message has none
+     */
+    public int getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Gets number of Jondos a gossiped BROADCAST or LEAVE is passed on to
+     *
+     * @return int fanout, 0 if the message is not gossiped
+     */
+    public int getFanout() {
+        return fanout;
+    }
+
+    /**
+     * Gets number of Jondos a DATA or VOTE_CAST has passed through
+     *
+     * @return int hops, 0 if Jondos do not cap the hops
+     */
+    public int getHops() {
+        return hops;
+    }
+
+    /**
+     * Gets id of the path a DATA, VOTE_CAST or PATH_OPEN follows
+     *
+     * @return String path id or null if the message takes a fresh random walk
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Gets trace id of a traced DATA, VOTE_CAST or VOTE_CAST_BATCH
+     *
+     * @return String trace id or null if the message is not traced
+     */
+    public String getTrace() {
+        return trace;
+    }
+
+    /**
+     * Gets version of the results of a vote, only comparable between results of the same epoch
+     *
+     * @return long ballots counted when the results were taken, 0 if the message has none
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets epoch of the results of a vote
+     *
+     * @return long millis the Blender that counted the results started at, 0 if the message has none
+     */
+    public long getResultsEpoch() {
+        return resultsEpoch;
+    }
+
+    /**
+     * Notes when the frame of this message was read and when it was decoded, only done for traced messages
+     *
+     * @param _received long System.nanoTime the frame was read at
+     * @param _decoded  long System.nanoTime the message was decoded at
+     */
+    void stamp(long _received, long _decoded) {
+        received = _received;
+        decoded = _decoded;
+    }
+
+    /**
+     * Gets System.nanoTime the frame of this message was read at
+     *
+     * @return long nanos, 0 if the message is not traced or was built rather than read
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * Gets System.nanoTime this message was decoded at
+     *
+     * @return long nanos, 0 if the message is not traced or was built rather than read
+     */
+    public long getDecoded() {
+        return decoded;
+    }
+
+    /**
+     * Checks if a SYNC_DELTA holds the whole routing table
+     *
+     * @return true if added is the whole table and nodes not in it should be dropped
+     */
+    public boolean isFull() {
+        return full;
+    }
+
+    /**
+     * Gets nodes added in a SYNC_DELTA
+     *
+     * @return List of added nodes
+     */
+    public List<Node> getAdded() {
+        decodePayload();
+        return added;
+    }
+
+    /**
+     * Gets nodes removed in a SYNC_DELTA
+     *
+     * @return List of removed nodes
+     */
+    public List<Node> getRemoved() {
+        decodePayload();
+        return removed;
+    }
+
     /**
      * Gets routingTable from welcome message
      * 
      * @return ConcurrentHashMap of routing table with keys being node UID and
      *         values being nodes
      */
-    public ConcurrentHashMap<String, Node> getRoutingTable() {
+    public ConcurrentHashMap<NodeId, Node> getRoutingTable() {
+        decodePayload();
         return routingTable;
     }
 
@@ -394,12 +1553,29 @@ public class Message implements JSONSerializable {
         private String type;
         private String srcAddr;
         private int srcPort;
-        private ConcurrentHashMap<String, Node> routingTable;
+        private ConcurrentHashMap<NodeId, Node> routingTable;
         private String dstAddr;
         private int dstPort;
         private String data; // might change later to a different type
         private Vote vote;
+        private List<Vote> votes;
         private Node newNode;
+        private String codec;
+        private String id;
+        private int epoch;
+        private boolean full;
+        private List<Node> added;
+        private List<Node> removed;
+        private int fanout;
+        private int hops;
+        private String path;
+        private String error;
+        private String trace;
+        private long resultsEpoch;
+        private long version;
+        private byte[] binaryPayload;
+        private JSONObject jsonPayload;
+        private boolean lazy;
 
         /**
          * Creates basic message object
@@ -410,6 +1586,42 @@ public class Message implements JSONSerializable {
             type = _type;
         }
 
+        /**
+         * Creates a message object with every field of an existing message, used to pass a message on with a field
+         * changed
+         *
+         * @param message Message to copy
+         */
+        public Builder(Message message) {
+            // read before the payload fields, once it is false they are set
+            lazy = message.lazy;
+            binaryPayload = message.binaryPayload;
+            jsonPayload = message.jsonPayload;
+            type = message.type;
+            srcAddr = message.srcAddr;
+            srcPort = message.srcPort;
+            routingTable = message.routingTable;
+            dstAddr = message.dstAddr;
+            dstPort = message.dstPort;
+            data = message.data;
+            vote = message.vote;
+            votes = message.votes;
+            newNode = message.newNode;
+            codec = message.codec;
+            id = message.id;
+            epoch = message.epoch;
+            full = message.full;
+            added = message.added;
+            removed = message.removed;
+            fanout = message.fanout;
+            hops = message.hops;
+            path = message.path;
+            error = message.error;
+            trace = message.trace;
+            resultsEpoch = message.resultsEpoch;
+            version = message.version;
+        }
+
         /**
          * Creates HELLO message object
          * 
@@ -431,7 +1643,8 @@ public class Message implements JSONSerializable {
          *
          * @return this Builder
          */
-        public Builder setWelcome(ConcurrentHashMap<String, Node> _routingTable) {
+        public Builder setWelcome(ConcurrentHashMap<NodeId, Node> _routingTable) {
+            dropPayload();
             routingTable = _routingTable;
             return this;
         }
@@ -457,6 +1670,7 @@ public class Message implements JSONSerializable {
          * @return this Builder
          */
         public Builder setData(String _dstAddr, int _dstPort, String _data) {
+            dropPayload();
             dstAddr = _dstAddr;
             dstPort = _dstPort;
             data = _data;
@@ -469,19 +1683,60 @@ public class Message implements JSONSerializable {
             return this;
         }
 
+        /**
+         * Sets the reply of the destination carried back in an ACK
+         *
+         * @param _data String reply data
+         * @return this Builder
+         */
+        public Builder setReplyData(String _data) {
+            data = _data;
+            return this;
+        }
+
+        /**
+         * Sets why a relayed DATA got no reply, sent back in an ACK in place of the reply
+         *
+         * @param _error String error
+         * @return this Builder
+         */
+        public Builder setError(String _error) {
+            error = _error;
+            return this;
+        }
+
         public Builder setVoteBroadcast(Vote _vote) {
+            dropPayload();
             vote = _vote;
             return this;
         }
 
         public Builder setVoteCast(String _dstAddr, int _dstPort, Vote _vote) {
+            dropPayload();
             dstAddr = _dstAddr;
             dstPort = _dstPort;
             vote = _vote;
             return this;
         }
 
+        /**
+         * Creates VOTE_CAST_BATCH message
+         *
+         * @param _dstAddr IP address of the Blender
+         * @param _dstPort Port of the Blender
+         * @param _votes   List of ballots to tally
+         * @return this Builder
+         */
+        public Builder setVoteCastBatch(String _dstAddr, int _dstPort, List<Vote> _votes) {
+            dropPayload();
+            dstAddr = _dstAddr;
+            dstPort = _dstPort;
+            votes = _votes;
+            return this;
+        }
+
         public Builder setVoteResultsQuery(String _dstAddr, int _dstPort, Vote _vote, String _srcAddr, int _srcPort) {
+            dropPayload();
             srcAddr = _srcAddr;
             srcPort = _srcPort;
             dstAddr = _dstAddr;
@@ -491,6 +1746,7 @@ public class Message implements JSONSerializable {
         }
 
         public Builder setVoteResults(Vote _vote, String _dstAddr, int _dstPort, String _srcAddr, int _srcPort) {
+            dropPayload();
             vote = _vote;
             dstAddr = _dstAddr;
             dstPort = _dstPort;
@@ -499,6 +1755,157 @@ public class Message implements JSONSerializable {
             return this;
         }
 
+        /**
+         * Creates VOTE_RESULTS_SUBSCRIBE message, the Blender pushes the results of the vote to us whenever they change
+         *
+         * @param _dstAddr IP address of the Blender
+         * @param _dstPort Port of the Blender
+         * @param _vote    Vote whose results we want, only its voteId is used
+         * @param _srcAddr IP address to push the results to
+         * @param _srcPort Port to push the results to
+         * @return this Builder
+         */
+        public Builder setVoteResultsSubscribe(String _dstAddr, int _dstPort, Vote _vote, String _srcAddr,
+                                               int _srcPort) {
+            dropPayload();
+            dstAddr = _dstAddr;
+            dstPort = _dstPort;
+            vote = _vote;
+            srcAddr = _srcAddr;
+            srcPort = _srcPort;
+            return this;
+        }
+
+        /**
+         * Sets version of the results of a vote, in VOTE_RESULTS_SUBSCRIBE the version we already have
+         *
+         * @param _resultsEpoch long millis the Blender that counted the results started at
+         * @param _version      long ballots counted when the results were taken
+         * @return this Builder
+         */
+        public Builder setVersion(long _resultsEpoch, long _version) {
+            resultsEpoch = _resultsEpoch;
+            version = _version;
+            return this;
+        }
+
+        /**
+         * Sets codec to negotiate, on HELLO the codec we would like and on WELCOME the codec chosen
+         *
+         * @param _codec String codec json or binary
+         * @return this Builder
+         */
+        public Builder setCodec(String _codec) {
+            codec = _codec;
+            return this;
+        }
+
+        /**
+         * Sets id used to match a reply to its request
+         *
+         * @param _id String message id see Message.newId
+         * @return this Builder
+         */
+        public Builder setId(String _id) {
+            id = _id;
+            return this;
+        }
+
+        /**
+         * Sets epoch of the Blenders routing table
+         *
+         * @param _epoch int epoch after the change, or in SYNC the epoch we are up to date with
+         * @return this Builder
+         */
+        public Builder setEpoch(int _epoch) {
+            epoch = _epoch;
+            return this;
+        }
+
+        /**
+         * Sets number of Jondos a BROADCAST or LEAVE is gossiped on to
+         *
+         * @param _fanout int fanout, 0 to not gossip
+         * @return this Builder
+         */
+        public Builder setFanout(int _fanout) {
+            fanout = _fanout;
+            return this;
+        }
+
+        /**
+         * Sets number of Jondos a DATA or VOTE_CAST has passed through
+         *
+         * @param _hops int hops
+         * @return this Builder
+         */
+        public Builder setHops(int _hops) {
+            hops = _hops;
+            return this;
+        }
+
+        /**
+         * Sets the path a DATA or VOTE_CAST follows, or the path a PATH_OPEN sets up
+         *
+         * @param _path String path id see Message.newId
+         * @return this Builder
+         */
+        public Builder setPath(String _path) {
+            path = _path;
+            return this;
+        }
+
+        /**
+         * Sets trace id of a DATA, VOTE_CAST or VOTE_CAST_BATCH so Jondos that trace record their hop of it
+         *
+         * @param _trace String trace id see Message.newId, null to not trace the message
+         * @return this Builder
+         */
+        public Builder setTrace(String _trace) {
+            trace = _trace;
+            return this;
+        }
+
+        /**
+         * Creates LEAVE message
+         *
+         * @param _srcAddr IP address of Jondo leaving the crowd
+         * @param _srcPort Port of Jondo leaving the crowd
+         * @return this Builder
+         */
+        public Builder setLeave(String _srcAddr, int _srcPort) {
+            srcAddr = _srcAddr;
+            srcPort = _srcPort;
+            return this;
+        }
+
+        /**
+         * Creates SYNC_DELTA message
+         *
+         * @param _epoch   int epoch the delta brings the Jondo up to
+         * @param _full    boolean true if added is the whole routing table
+         * @param _added   List of nodes added since the requested epoch
+         * @param _removed List of nodes removed since the requested epoch
+         * @return this Builder
+         */
+        public Builder setSyncDelta(int _epoch, boolean _full, List<Node> _added, List<Node> _removed) {
+            dropPayload();
+            epoch = _epoch;
+            full = _full;
+            added = _added;
+            removed = _removed;
+            return this;
+        }
+
+        /**
+         * Drops the payload copied from a message that was read, a setter is replacing it
+         */
+        private void dropPayload() {
+            binaryPayload = null;
+            jsonPayload = null;
+            lazy = false;
+        }
+
         /**
          * Builds Model.Message
          *
@@ -508,4 +1915,33 @@ public class Message implements JSONSerializable {
             return new Message(this);
         }
     }
+
+    /**
+     * Byte array stream that tells where it is, so the payload of a binary message can be copied out after skipping
+     * over it
+     */
+    private static final class Slice extends ByteArrayInputStream {
+        private Slice(byte[] _buf, int _offset, int _length) {
+            super(_buf, _offset, _length);
+        }
+
+        /**
+         * Gets the index in the array of the next byte to be read
+         *
+         * @return int position
+         */
+        private int position() {
+            return pos;
+        }
+
+        /**
+         * Copies the bytes read since a position
+         *
+         * @param start int position of the first byte to copy
+         * @return byte[] bytes from start up to the next byte to be read
+         */
+        private byte[] copy(int start) {
+            return Arrays.copyOfRange(buf, start, pos);
+        }
+    }
 }
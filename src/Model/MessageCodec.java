@@ -0,0 +1,363 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static merrimackutil.json.JsonIO.readObject;
+
+/**
+ * Frames messages for the wire in one of two codecs.
+ * <p>
+ * json - a JSON object followed by a newline, what every node understands
+ * <p>
+ * binary - a magic byte, a 4 byte big endian length and then the compact binary encoding of the message
+ * <p>
+ * A JSON frame always starts with '{' and a binary frame with the magic byte so a receiver can tell them apart frame
+ * by frame, which codec a sender uses is negotiated in HELLO/WELCOME.
+ */
+public class MessageCodec {
+    /**
+     * Name of the JSON line codec
+     */
+    public static final String JSON = "json";
+    /**
+     * Name of the length prefixed binary codec
+     */
+    public static final String BINARY = "binary";
+    /**
+     * First byte of every binary frame, never the first byte of a JSON frame
+     */
+    public static final byte BINARY_MAGIC = (byte) 0xB1;
+    /**
+     * Size in bytes of the binary frame header, magic byte and length
+     */
+    public static final int BINARY_HEADER = 5;
+    /**
+     * Largest frame we will accept, protects us from a bad length prefix
+     */
+    public static final int MAX_FRAME = 64 * 1024 * 1024;
+
+    /**
+     * Encodes a message into a frame
+     *
+     * @param message Message to encode
+     * @param codec   String codec to use json or binary
+     * @return byte[] frame ready to be written to the wire
+     */
+    public static byte[] encode(Message message, String codec) {
+        if (BINARY.equals(codec)) {
+            byte[] payload = message.toBinary();
+            byte[] frame = new byte[BINARY_HEADER + payload.length];
+            frame[0] = BINARY_MAGIC;
+            frame[1] = (byte) (payload.length >>> 24);
+            frame[2] = (byte) (payload.length >>> 16);
+            frame[3] = (byte) (payload.length >>> 8);
+            frame[4] = (byte) payload.length;
+            System.arraycopy(payload, 0, frame, BINARY_HEADER, payload.length);
+            return frame;
+        }
+
+        return (message.serialize() + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes a complete frame
+     *
+     * @param buf    byte[] holding the frame
+     * @param offset int index of first byte of the frame
+     * @param length int length of the frame including header or newline
+     * @return Message decoded from frame
+     * @throws IOException if the frame is not a valid message
+     */
+    public static Message decode(byte[] buf, int offset, int length) throws IOException {
+        if (buf[offset] == BINARY_MAGIC) {
+            return decodeBinary(buf, offset + BINARY_HEADER, length - BINARY_HEADER);
+        }
+
+        return decodeJSON(new String(buf, offset, length, StandardCharsets.UTF_8).trim());
+    }
+
+    /**
+     * Decodes the payload of a binary frame
+     *
+     * @param buf    byte[] holding the payload
+     * @param offset int index of first byte of the payload
+     * @param length int length of the payload
+     * @return Message decoded from payload
+     * @throws IOException if the payload is not a valid message
+     */
+    public static Message decodeBinary(byte[] buf, int offset, int length) throws IOException {
+        try {
+            return new Message(buf, offset, length);
+        } catch (EOFException e) {
+            throw new InvalidObjectException("Binary message ended early");
+        }
+    }
+
+    /**
+     * Decodes a JSON frame
+     *
+     * @param line String JSON object without the newline
+     * @return Message decoded from JSON
+     * @throws InvalidObjectException if the line is not a valid message
+     */
+    public static Message decodeJSON(String line) throws InvalidObjectException {
+        try {
+            return new Message(readObject(line));
+        } catch (InvalidObjectException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw new InvalidObjectException("Malformed JSON message: " + line);
+        }
+    }
+
+    /**
+     * Finds the length of the first complete frame in a buffer
+     *
+     * @param buf    byte[] of buffered bytes
+     * @param offset int index of the first byte of the frame
+     * @param limit  int index one past the last buffered byte
+     * @return int length of the frame or -1 if the frame is not complete yet
+     * @throws IOException if the frame claims to be or already is larger than MAX_FRAME
+     */
+    public static int frameLength(byte[] buf, int offset, int limit) throws IOException {
+        if (buf[offset] == BINARY_MAGIC) {
+            if (limit - offset < BINARY_HEADER) {
+                return -1;
+            }
+
+            int payload = ((buf[offset + 1] & 0xFF) << 24) | ((buf[offset + 2] & 0xFF) << 16)
+                    | ((buf[offset + 3] & 0xFF) << 8) | (buf[offset + 4] & 0xFF);
+            if (payload < 0 || payload > MAX_FRAME) {
+                throw new IOException("Binary frame of " + payload + " bytes is too large");
+            }
+
+            return limit - offset >= BINARY_HEADER + payload ? BINARY_HEADER + payload : -1;
+        }
+
+        for (int i = offset; i < limit; i++) {
+            if (buf[i] == '\n') {
+                return i - offset + 1;
+            }
+        }
+        if (limit - offset > MAX_FRAME) {
+            throw new IOException("JSON frame of more than " + MAX_FRAME + " bytes is too large");
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the codec of a frame from its first byte
+     *
+     * @param first byte first byte of the frame
+     * @return String json or binary
+     */
+    public static String codecOf(byte first) {
+        return first == BINARY_MAGIC ? BINARY : JSON;
+    }
+
+    /**
+     * Picks the codec to answer a message with. Replies use the codec the peer spoke to us in, except WELCOME which
+     * is sent in the codec it negotiated.
+     *
+     * @param reply         Message we are replying with
+     * @param receivedCodec String codec of the message we are answering
+     * @return String codec to encode the reply in
+     */
+    public static String replyCodec(Message reply, String receivedCodec) {
+        if (reply.getType().equals("WELCOME") && reply.getCodec() != null) {
+            return reply.getCodec();
+        }
+        return receivedCodec;
+    }
+
+    /**
+     * Writes an unsigned variable length int, 7 bits per byte
+     *
+     * @param out   DataOutput to write to
+     * @param value int value, must not be negative
+     * @throws IOException if writing fails
+     */
+    public static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Reads an unsigned variable length int
+     *
+     * @param in DataInput to read from
+     * @return int value
+     * @throws IOException if reading fails or the value is malformed
+     */
+    public static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new InvalidObjectException("Malformed varint");
+    }
+
+    /**
+     * Writes an unsigned variable length long, 7 bits per byte
+     *
+     * @param out   DataOutput to write to
+     * @param value long value, must not be negative
+     * @throws IOException if writing fails
+     */
+    public static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads an unsigned variable length long
+     *
+     * @param in DataInput to read from
+     * @return long value
+     * @throws IOException if reading fails or the value is malformed
+     */
+    public static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new InvalidObjectException("Malformed varlong");
+    }
+
+    /**
+     * Writes a nullable UTF-8 string prefixed by its length plus one, zero meaning null
+     *
+     * @param out   DataOutput to write to
+     * @param value String to write, may be null
+     * @throws IOException if writing fails
+     */
+    public static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a nullable string written by writeString
+     *
+     * @param in DataInput to read from
+     * @return String read, may be null
+     * @throws IOException if reading fails
+     */
+    public static String readString(DataInput in) throws IOException {
+        int length = readVarInt(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_FRAME) {
+            throw new InvalidObjectException("String of " + length + " bytes is too large");
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Skips over a nullable string written by writeString
+     *
+     * @param in DataInput to read from
+     * @throws IOException if reading fails or the string ends early
+     */
+    public static void skipString(DataInput in) throws IOException {
+        int length = readVarInt(in) - 1;
+        if (length > MAX_FRAME) {
+            throw new InvalidObjectException("String of " + length + " bytes is too large");
+        }
+        if (length > 0 && in.skipBytes(length) != length) {
+            throw new EOFException();
+        }
+    }
+
+    /**
+     * Skips over a nullable list of strings written by writeStringList
+     *
+     * @param in DataInput to read from
+     * @throws IOException if reading fails or the list ends early
+     */
+    public static void skipStringList(DataInput in) throws IOException {
+        int size = readVarInt(in) - 1;
+        for (int i = 0; i < size; i++) {
+            skipString(in);
+        }
+    }
+
+    /**
+     * Writes a nullable list of strings prefixed by its size plus one, zero meaning null
+     *
+     * @param out    DataOutput to write to
+     * @param values List of strings to write, may be null
+     * @throws IOException if writing fails
+     */
+    public static void writeStringList(DataOutput out, List<String> values) throws IOException {
+        if (values == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+
+        writeVarInt(out, values.size() + 1);
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    /**
+     * Reads a nullable list of strings written by writeStringList
+     *
+     * @param in DataInput to read from
+     * @return List of strings read, may be null
+     * @throws IOException if reading fails
+     */
+    public static List<String> readStringList(DataInput in) throws IOException {
+        int size = readVarInt(in) - 1;
+        if (size < 0) {
+            return null;
+        }
+
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+}
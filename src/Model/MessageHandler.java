@@ -0,0 +1,28 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Model;
+
+import java.io.IOException;
+
+/**
+ * Handles decoded messages for a single connection, lets the same handler logic run behind a blocking socket or
+ * the nio event loop server
+ */
+public interface MessageHandler {
+    /**
+     * Handles a message received on a connection
+     *
+     * @param message Message received
+     * @param reply   ReplyChannel to answer on the same connection
+     * @return true if the connection should stay open for more messages, false to close it
+     * @throws IOException if there is an error replying or forwarding the message
+     */
+    boolean handleMessage(Message message, ReplyChannel reply) throws IOException;
+}
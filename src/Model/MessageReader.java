@@ -0,0 +1,207 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Model;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Function;
+
+/**
+ * Reads framed messages from a stream, each frame may be in either codec
+ */
+public class MessageReader {
+    /**
+     * Stream frames are read from
+     */
+    private DataInputStream in;
+    /**
+     * Codec of the last frame read
+     */
+    private String lastCodec;
+    /**
+     * System.nanoTime the first byte of the last frame arrived at
+     */
+    private long received;
+
+    /**
+     * Creates a new reader
+     *
+     * @param _in InputStream to read frames from
+     */
+    public MessageReader(InputStream _in) {
+        in = new DataInputStream(new BufferedInputStream(_in));
+        lastCodec = MessageCodec.JSON;
+    }
+
+    /**
+     * Reads the next message, blocking until one arrives
+     *
+     * @return Message read or null if the peer hung up
+     * @throws IOException if reading fails or the frame is not a valid message
+     */
+    public Message read() throws IOException {
+        byte[] frame = readFrame();
+        if (frame == null) {
+            return null;
+        }
+        return stamp(MessageCodec.decode(frame, 0, frame.length), received);
+    }
+
+    /**
+     * Reads the next frame and hands it to a handler, blocking until one arrives. A FrameHandler gets the frames it
+     * can pass on with only their header read, everything else is decoded into a Message first.
+     *
+     * @param handler MessageHandler to hand the frame to
+     * @param reply   ReplyChannel the handler answers on
+     * @return false if the peer hung up or the handler asked to close the connection
+     * @throws IOException if reading fails, the frame is not a valid message or the handler fails
+     */
+    public boolean read(MessageHandler handler, ReplyChannel reply) throws IOException {
+        return read(handler, codec -> reply);
+    }
+
+    /**
+     * Reads the next frame and hands it to a handler with a ReplyChannel for the codec of that frame, for handlers
+     * that may answer from another thread after later frames have been read
+     *
+     * @param handler MessageHandler to hand the frame to
+     * @param replies Function from the codec of the frame to the ReplyChannel the handler answers on
+     * @return false if the peer hung up or the handler asked to close the connection
+     * @throws IOException if reading fails, the frame is not a valid message or the handler fails
+     */
+    public boolean read(MessageHandler handler, Function<String, ReplyChannel> replies) throws IOException {
+        byte[] bytes = readFrame();
+        if (bytes == null) {
+            return false;
+        }
+        ReplyChannel reply = replies.apply(lastCodec);
+
+        Frame frame = handler instanceof FrameHandler ? Frame.parse(bytes) : null;
+        if (frame == null) {
+            return handler.handleMessage(stamp(MessageCodec.decode(bytes, 0, bytes.length), received), reply);
+        }
+        if (frame.getTrace() != null) {
+            frame.stamp(received, System.nanoTime());
+        }
+        return ((FrameHandler) handler).handleFrame(frame, reply);
+    }
+
+    /**
+     * Reads the next frame as it is on the wire, binary header or newline included
+     *
+     * @return byte[] frame or null if the peer hung up
+     * @throws IOException if reading fails or a frame is too large
+     */
+    private byte[] readFrame() throws IOException {
+        int first;
+        do {
+            first = in.read();
+        } while (first == '\n' || first == '\r');
+
+        if (first == -1) {
+            return null;
+        }
+        received = System.nanoTime();
+
+        if ((byte) first == MessageCodec.BINARY_MAGIC) {
+            lastCodec = MessageCodec.BINARY;
+
+            int length = in.readInt();
+            if (length < 0 || length > MessageCodec.MAX_FRAME) {
+                throw new IOException("Binary frame of " + length + " bytes is too large");
+            }
+
+            byte[] frame = new byte[MessageCodec.BINARY_HEADER + length];
+            frame[0] = MessageCodec.BINARY_MAGIC;
+            frame[1] = (byte) (length >>> 24);
+            frame[2] = (byte) (length >>> 16);
+            frame[3] = (byte) (length >>> 8);
+            frame[4] = (byte) length;
+            in.readFully(frame, MessageCodec.BINARY_HEADER, length);
+            return frame;
+        }
+
+        lastCodec = MessageCodec.JSON;
+
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        line.write(first);
+
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+            if (line.size() > MessageCodec.MAX_FRAME) {
+                throw new IOException("JSON frame of more than " + MessageCodec.MAX_FRAME + " bytes is too large");
+            }
+        }
+        line.write('\n');
+        return line.toByteArray();
+    }
+
+    /**
+     * Notes when a traced message was read and decoded
+     *
+     * @param message  Message decoded
+     * @param received long System.nanoTime its first byte arrived at
+     * @return Message the same message
+     */
+    private static Message stamp(Message message, long received) {
+        if (message.getTrace() != null) {
+            message.stamp(received, System.nanoTime());
+        }
+        return message;
+    }
+
+    /**
+     * Reads a WELCOME, appending each node to a routing index as it comes off the stream rather than holding the
+     * whole frame or a table of Nodes in memory first
+     *
+     * @param routingTable RoutingIndex.Builder to append the nodes of the WELCOME to
+     * @return Message WELCOME with its codec and epoch, or null if the peer hung up
+     * @throws IOException if reading fails or the frame is not a valid WELCOME
+     */
+    public Message readWelcome(RoutingIndex.Builder routingTable) throws IOException {
+        int first;
+        do {
+            first = in.read();
+        } while (first == '\n' || first == '\r');
+
+        if (first == -1) {
+            return null;
+        }
+
+        WelcomeDecoder decoder = new WelcomeDecoder(in, routingTable);
+
+        if ((byte) first == MessageCodec.BINARY_MAGIC) {
+            lastCodec = MessageCodec.BINARY;
+
+            int length = in.readInt();
+            if (length < 0 || length > MessageCodec.MAX_FRAME) {
+                throw new IOException("Binary frame of " + length + " bytes is too large");
+            }
+            return decoder.decodeBinary(length);
+        }
+
+        lastCodec = MessageCodec.JSON;
+        return decoder.decodeJSON(first);
+    }
+
+    /**
+     * Gets the codec of the last frame read, replies should use the same codec. Only meaningful on the thread reading,
+     * a reply sent later from another thread should use the codec given to read for its frame
+     *
+     * @return String json or binary
+     */
+    public String getLastCodec() {
+        return lastCodec;
+    }
+}
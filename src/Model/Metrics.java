@@ -0,0 +1,449 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Model;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Counters, gauges and latency histograms of a Blender or Jondo. Recording is a LongAdder add, so handler threads
+ * never wait on each other to count, and the hot paths look their counters up once and keep them. Everything is
+ * published as one JMX MBean named Crowds:type=Blender or Jondo,port=the port, and can also be served as text over
+ * HTTP on the loopback address, one "name value" line per metric.
+ * <p>
+ * Histograms are reported as name.count, name.mean, name.p50, name.p90, name.p99, name.p999 and name.max in nanos.
+ * Values are kept in buckets a quarter of a power of two wide, so a percentile is at most a quarter too high.
+ */
+public class Metrics implements DynamicMBean {
+    /**
+     * Every counter, key is name
+     */
+    private ConcurrentHashMap<String, LongAdder> counters;
+    /**
+     * Counters split by a label such as message type, key is name then label, read as name.label
+     */
+    private ConcurrentHashMap<String, ConcurrentHashMap<String, LongAdder>> labelled;
+    /**
+     * Every histogram, key is name
+     */
+    private ConcurrentHashMap<String, Histogram> histograms;
+    /**
+     * Every gauge, key is name and value reads it when metrics are read
+     */
+    private ConcurrentHashMap<String, LongSupplier> gauges;
+    /**
+     * Text served over HTTP, key is path and value writes the page when it is read
+     */
+    private ConcurrentHashMap<String, Supplier<String>> pages;
+    /**
+     * Server metrics are served over, null if not serving
+     */
+    private HttpServer server;
+
+    /**
+     * Creates an empty set of metrics
+     */
+    public Metrics() {
+        counters = new ConcurrentHashMap<>();
+        labelled = new ConcurrentHashMap<>();
+        histograms = new ConcurrentHashMap<>();
+        gauges = new ConcurrentHashMap<>();
+        pages = new ConcurrentHashMap<>();
+        pages.put("/metrics", this::toText);
+    }
+
+    /**
+     * Gets a counter, creating it the first time. Callers on a hot path should keep the counter rather than look it
+     * up for every count
+     *
+     * @param name String name of counter
+     * @return LongAdder counter
+     */
+    public LongAdder counter(String name) {
+        LongAdder counter = counters.get(name);
+        return counter != null ? counter : counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    /**
+     * Gets a counter split by a label, creating it the first time. Unlike building the name from the label this does
+     * not allocate once the counter exists
+     *
+     * @param name  String name of counter
+     * @param label String label such as a message type
+     * @return LongAdder counter
+     */
+    public LongAdder counter(String name, String label) {
+        ConcurrentHashMap<String, LongAdder> family = labelled.get(name);
+        if (family == null) {
+            family = labelled.computeIfAbsent(name, k -> new ConcurrentHashMap<>());
+        }
+        LongAdder counter = family.get(label);
+        return counter != null ? counter : family.computeIfAbsent(label, k -> new LongAdder());
+    }
+
+    /**
+     * Gets a histogram, creating it the first time
+     *
+     * @param name String name of histogram
+     * @return Histogram histogram
+     */
+    public Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        return histogram != null ? histogram : histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    /**
+     * Adds a gauge read each time metrics are read
+     *
+     * @param name  String name of gauge
+     * @param gauge LongSupplier reading the current value
+     */
+    public void gauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Adds a gauge of how many times per second a counter went up since the last reading at least a second ago, so
+     * something reading every ten seconds sees the rate over those ten seconds
+     *
+     * @param name    String name of gauge
+     * @param counter LongAdder counter to take the rate of
+     */
+    public void rate(String name, LongAdder counter) {
+        long[] last = {System.nanoTime(), counter.sum(), 0};
+        gauge(name, () -> {
+            synchronized (last) {
+                long now = System.nanoTime();
+                long count = counter.sum();
+                if (now - last[0] >= 1000000000L) {
+                    last[2] = (count - last[1]) * 1000000000L / (now - last[0]);
+                    last[0] = now;
+                    last[1] = count;
+                }
+                return last[2];
+            }
+        });
+    }
+
+    /**
+     * Adds gauges of the queue depth and active threads of an executor, executors that are not thread pools, such as
+     * virtual threads, have neither
+     *
+     * @param name     String name the gauges start with
+     * @param executor ExecutorService to watch
+     */
+    public void executor(String name, ExecutorService executor) {
+        if (executor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            gauge(name + ".queue", () -> pool.getQueue().size());
+            gauge(name + ".active", pool::getActiveCount);
+            gauge(name + ".threads", pool::getPoolSize);
+        }
+    }
+
+    /**
+     * Reads every metric, histograms are expanded into their parts
+     *
+     * @return TreeMap key is name and value is current value, sorted by name
+     */
+    public TreeMap<String, Number> read() {
+        TreeMap<String, Number> values = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            values.put(counter.getKey(), counter.getValue().sum());
+        }
+        for (Map.Entry<String, ConcurrentHashMap<String, LongAdder>> family : labelled.entrySet()) {
+            for (Map.Entry<String, LongAdder> counter : family.getValue().entrySet()) {
+                values.put(family.getKey() + "." + counter.getKey(), counter.getValue().sum());
+            }
+        }
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+            histogram.getValue().read(histogram.getKey(), values);
+        }
+        return values;
+    }
+
+    /**
+     * Formats every metric as text, one "name value" line each sorted by name
+     *
+     * @return String metrics as text
+     */
+    public String toText() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Number> value : read().entrySet()) {
+            text.append(value.getKey()).append(' ').append(value.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, failures are printed rather than thrown since metrics
+     * are not worth stopping for
+     *
+     * @param type String Blender or Jondo
+     * @param port int port the Blender or Jondo listens on, tells apart several in one JVM
+     */
+    public void register(String type, int port) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("Crowds:type=" + type + ",port=" + port));
+        } catch (JMException e) {
+            System.err.println("Metrics: Unable to register with JMX " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds another text page to serve next to /metrics, must be added before serve is called
+     *
+     * @param path String path of the page such as /traces
+     * @param page Supplier of the text of the page, called each time it is read
+     */
+    public void page(String path, Supplier<String> page) {
+        pages.put(path, page);
+    }
+
+    /**
+     * Serves the metrics as text at /metrics, and any other pages added, on the loopback address so only local
+     * processes can read them
+     *
+     * @param port int port to listen on
+     * @throws IOException if the port cannot be bound
+     */
+    public void serve(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        for (Map.Entry<String, Supplier<String>> page : pages.entrySet()) {
+            server.createContext(page.getKey(), exchange -> {
+                byte[] body = page.getValue().get().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+        }
+        server.start();
+    }
+
+    /**
+     * Stops serving metrics over HTTP
+     */
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = read().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value.longValue();
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        TreeMap<String, Number> values = read();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Number value = values.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value.longValue()));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        // metrics have no operations, this is what JMX expects for an operation that does not exist
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        // metrics are added as messages of new types arrive, so the attributes are whatever there is right now
+        TreeMap<String, Number> values = read();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+        int i = 0;
+        for (String name : values.keySet()) {
+            attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+        }
+        return new MBeanInfo(Metrics.class.getName(), "Crowds metrics", attributes, null, null, null);
+    }
+
+    /**
+     * Histogram of durations in nanos that threads record into without waiting on each other
+     */
+    public static class Histogram {
+        /**
+         * Buckets per power of two
+         */
+        private static final int SUB_BUCKETS = 4;
+
+        /**
+         * Count of values in each bucket, bucket i holds values below 4 as themselves and larger values by their
+         * highest bit and the two bits below it
+         */
+        private LongAdder[] buckets;
+        private LongAdder sum;
+        /**
+         * Largest value, only written when a larger value arrives so threads rarely touch it
+         */
+        private AtomicLong max;
+
+        /**
+         * Creates an empty histogram
+         */
+        public Histogram() {
+            buckets = new LongAdder[64 * SUB_BUCKETS];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+            sum = new LongAdder();
+            max = new AtomicLong();
+        }
+
+        /**
+         * Records a duration
+         *
+         * @param nanos long duration in nanos, negative durations count as 0
+         */
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            buckets[bucket(value)].increment();
+            sum.add(value);
+
+            long largest = max.get();
+            while (value > largest && !max.compareAndSet(largest, value)) {
+                largest = max.get();
+            }
+        }
+
+        /**
+         * Records the time since a start
+         *
+         * @param start long System.nanoTime when the timed work started
+         */
+        public void since(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        /**
+         * Adds the count, mean, percentiles and max of this histogram to values
+         *
+         * @param name   String name of histogram
+         * @param values Map to add the parts to
+         */
+        private void read(String name, Map<String, Number> values) {
+            long[] counts = new long[buckets.length];
+            long count = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                count += counts[i];
+            }
+
+            values.put(name + ".count", count);
+            values.put(name + ".mean", count == 0 ? 0 : sum.sum() / count);
+            values.put(name + ".p50", percentile(counts, count, 0.5));
+            values.put(name + ".p90", percentile(counts, count, 0.9));
+            values.put(name + ".p99", percentile(counts, count, 0.99));
+            values.put(name + ".p999", percentile(counts, count, 0.999));
+            values.put(name + ".max", max.get());
+        }
+
+        /**
+         * Finds a percentile from bucket counts
+         *
+         * @param counts   long[] count of each bucket
+         * @param count    long total count
+         * @param fraction double percentile as a fraction
+         * @return long highest value of the bucket the percentile falls in, 0 if empty
+         */
+        private long percentile(long[] counts, long count, double fraction) {
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Gets the bucket a value falls in
+         *
+         * @param value long value, not negative
+         * @return int bucket
+         */
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int high = 63 - Long.numberOfLeadingZeros(value);
+            return (high - 1) * SUB_BUCKETS + (int) (value >>> (high - 2) & (SUB_BUCKETS - 1));
+        }
+
+        /**
+         * Gets the highest value in a bucket
+         *
+         * @param bucket int bucket
+         * @return long highest value
+         */
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int high = bucket / SUB_BUCKETS + 1;
+            long sub = bucket % SUB_BUCKETS;
+            long low = (1L << high) | (sub << (high - 2));
+            return high >= 62 ? Long.MAX_VALUE : low + (1L << (high - 2)) - 1;
+        }
+    }
+}
@@ -14,11 +14,11 @@ import merrimackutil.json.JSONSerializable;
 import merrimackutil.json.types.JSONObject;
 import merrimackutil.json.types.JSONType;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InvalidObjectException;
-import java.nio.ByteBuffer;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Base64;
 
 /**
  * Internal representation of a Model.Jondo
@@ -26,7 +26,7 @@ import java.util.Base64;
 public class Node implements JSONSerializable {
     private String addr;
     private int port;
-    private String uid;
+    private NodeId id;
 
     /**
      * Creates a new Model.Jondo based on address and port
@@ -39,7 +39,39 @@ public class Node implements JSONSerializable {
         port = _port;
 
         //Create UID from addr and port
-        createUID();
+        id = NodeId.of(addr, port);
+    }
+
+    /**
+     * Creates a Model.Jondo whose UID was computed before, such as one loaded from disk, so it is not hashed again
+     *
+     * @param _addr String IP address of Model.Jondo
+     * @param _port Int Port of this Model.Jondo
+     * @param _id   NodeId UID of this Model.Jondo as returned by getId
+     */
+    public Node(String _addr, int _port, NodeId _id) {
+        addr = _addr;
+        port = _port;
+        id = _id;
+    }
+
+    /**
+     * Constructs a Node from its binary encoding, the UID is read from the 20 bytes after the port rather than hashed
+     * so it must come from the Blender or be checked with checkUid
+     *
+     * @param in DataInput positioned at the start of a binary node
+     * @throws IOException if the binary node is invalid or ends early
+     */
+    public Node(DataInput in) throws IOException {
+        addr = MessageCodec.readString(in);
+        if (addr == null) {
+            throw new InvalidObjectException("Node must have an addr");
+        }
+        port = MessageCodec.readVarInt(in);
+
+        byte[] hash = new byte[NodeId.BYTES];
+        in.readFully(hash);
+        id = NodeId.fromBytes(hash, 0);
     }
 
     /**
@@ -82,8 +114,66 @@ public class Node implements JSONSerializable {
         addr = jondoJSON.getString("addr");
         port = jondoJSON.getInt("port");
 
-        //create UID based on addr and port
-        createUID();
+        // take the UID the Blender already computed, older senders leave it out so we hash addr and port, nodes from
+        // anyone else must be checked with checkUid
+        if (jondoJSON.containsKey("uid")) {
+            id = parseUid(jondoJSON.getString("uid"));
+        } else {
+            id = NodeId.of(addr, port);
+        }
+    }
+
+    /**
+     * Writes this node in the binary codec: addr, port and the 20 bytes of the UID
+     *
+     * @param out DataOutput to write to
+     * @throws IOException if writing fails
+     */
+    public void writeBinary(DataOutput out) throws IOException {
+        MessageCodec.writeString(out, addr);
+        MessageCodec.writeVarInt(out, port);
+        id.write(out);
+    }
+
+    /**
+     * Skips over a binary node without building it, checking only that it is whole
+     *
+     * @param in DataInput positioned at the start of a binary node
+     * @throws IOException if the binary node ends early
+     */
+    static void skipBinary(DataInput in) throws IOException {
+        MessageCodec.skipString(in);
+        MessageCodec.readVarInt(in);
+        if (in.skipBytes(NodeId.BYTES) != NodeId.BYTES) {
+            throw new EOFException();
+        }
+    }
+
+    /**
+     * Checks the UID of this node is the hash of its addr and port. A UID read from a message is taken as sent, which is
+     * only safe from the Blender, so nodes from anyone else are checked
+     *
+     * @throws InvalidObjectException if the UID is not the hash of addr and port
+     */
+    public void checkUid() throws InvalidObjectException {
+        if (!id.equals(NodeId.of(addr, port))) {
+            throw new InvalidObjectException("Node " + addr + ":" + port + " UID is not the hash of its addr and port");
+        }
+    }
+
+    /**
+     * Reads a UID sent as Base64
+     *
+     * @param uid String Base64 of the 20 byte hash
+     * @return NodeId
+     * @throws InvalidObjectException if the UID is not Base64 of 20 bytes
+     */
+    static NodeId parseUid(String uid) throws InvalidObjectException {
+        try {
+            return NodeId.fromBase64(uid);
+        } catch (IllegalArgumentException | NullPointerException e) {
+            throw new InvalidObjectException("Invalid node uid " + uid);
+        }
     }
 
     /**
@@ -97,6 +187,7 @@ public class Node implements JSONSerializable {
 
         jondoJSON.put("addr",addr);
         jondoJSON.put("port",port);
+        jondoJSON.put("uid", id.toBase64());
 
         return jondoJSON;
     }
@@ -118,39 +209,23 @@ public class Node implements JSONSerializable {
     }
 
     /**
-     * Gets UID of this node which is 32 bit(4 byte) hash based on addr and port
-     * @return String 32 bit(4 byte) hash
+     * Gets UID of this node, the SHA-1 hash of addr and port, routing tables and the connection pool are keyed by it
+     * @return NodeId 20 byte hash
+     */
+    public NodeId getId() {
+        return id;
+    }
+
+    /**
+     * Gets UID of this node in Base64 for showing it, encoded on every call
+     * @return String Base64 of the 20 byte hash
      */
     public String getUid() {
-        return uid;
+        return id.toBase64();
     }
 
     @Override
     public String toString() {
         return toJSONType().getFormattedJSON();
     }
-
-    /**
-     * Compute the nodes ID by taking the SHA-1 hash of the
-     * IP address and port pair to determine the UID of this
-     * node.
-     *
-     * From Proj 4 Written by Zachary Kissel
-     */
-    private void createUID()
-    {
-        ByteBuffer buff = ByteBuffer.allocate(4);
-        buff.putInt(this.port);
-        try
-        {
-            MessageDigest hash = MessageDigest.getInstance("SHA-1");
-            hash.update(this.addr.getBytes());
-            hash.update(buff.array());
-            this.uid = Base64.getEncoder().encodeToString(hash.digest());
-        }
-        catch (NoSuchAlgorithmException e)
-        {
-            System.err.println("Internal Error: SHA1 hash not supported.");
-        }
-    }
 }
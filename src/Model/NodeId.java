@@ -0,0 +1,175 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Model;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * UID of a Jondo, the 20 byte SHA-1 hash of its address and port. Held as three primitives rather than a Base64
+ * string so an id takes 40 bytes instead of about 70 and comparing two is three compares. The hash code is taken
+ * from the hash itself, which is already uniformly random, so it costs nothing to compute.
+ */
+public final class NodeId {
+    /**
+     * Bytes in an id
+     */
+    public static final int BYTES = 20;
+
+    /**
+     * Digests threads are spread across the same way as ThreadSecureRandom, MessageDigest.getInstance looks up the
+     * provider every time it is called and a digest per thread would be one per message with virtual threads
+     */
+    private static final MessageDigest[] SHA1 = new MessageDigest[ThreadSecureRandom.stripes()];
+    static {
+        try {
+            for (int i = 0; i < SHA1.length; i++) {
+                SHA1[i] = MessageDigest.getInstance("SHA-1");
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Internal Error: SHA1 hash not supported.", e);
+        }
+    }
+
+    /**
+     * Bytes 0-7, 8-15 and 16-19 of the hash, big endian
+     */
+    private final long high;
+    private final long middle;
+    private final int low;
+
+    /**
+     * Creates an id from the bytes of its hash
+     *
+     * @param _high   long bytes 0 to 7
+     * @param _middle long bytes 8 to 15
+     * @param _low    int bytes 16 to 19
+     */
+    NodeId(long _high, long _middle, int _low) {
+        high = _high;
+        middle = _middle;
+        low = _low;
+    }
+
+    /**
+     * Computes the id of a Jondo by taking the SHA-1 hash of its IP address and port
+     *
+     * @param addr String IP address of Jondo
+     * @param port int port of Jondo
+     * @return NodeId of Jondo
+     */
+    public static NodeId of(String addr, int port) {
+        byte[] digest;
+        MessageDigest hash = SHA1[ThreadSecureRandom.stripe(SHA1.length)];
+        // hashing never blocks so the lock is only held for the hash itself
+        synchronized (hash) {
+            hash.update(addr.getBytes(StandardCharsets.UTF_8));
+            hash.update((byte) (port >>> 24));
+            hash.update((byte) (port >>> 16));
+            hash.update((byte) (port >>> 8));
+            hash.update((byte) port);
+            digest = hash.digest();
+        }
+        return fromBytes(digest, 0);
+    }
+
+    /**
+     * Reads an id from the 20 bytes of its hash
+     *
+     * @param bytes  byte[] holding the hash
+     * @param offset int index of the first byte
+     * @return NodeId
+     */
+    public static NodeId fromBytes(byte[] bytes, int offset) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, BYTES);
+        return new NodeId(buffer.getLong(), buffer.getLong(), buffer.getInt());
+    }
+
+    /**
+     * Reads an id from its Base64 form as returned by toBase64 and Node.getUid
+     *
+     * @param base64 String Base64 of the hash
+     * @return NodeId
+     * @throws IllegalArgumentException if the string is not Base64 of 20 bytes
+     */
+    public static NodeId fromBase64(String base64) {
+        byte[] bytes = Base64.getDecoder().decode(base64);
+        if (bytes.length != BYTES) {
+            throw new IllegalArgumentException("UID " + base64 + " is not " + BYTES + " bytes");
+        }
+        return fromBytes(bytes, 0);
+    }
+
+    /**
+     * Gets the 20 bytes of the hash
+     *
+     * @return byte[] hash
+     */
+    public byte[] toBytes() {
+        return ByteBuffer.allocate(BYTES).putLong(high).putLong(middle).putInt(low).array();
+    }
+
+    /**
+     * Writes the 20 bytes of the hash
+     *
+     * @param out DataOutput to write to
+     * @throws IOException if writing fails
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeLong(high);
+        out.writeLong(middle);
+        out.writeInt(low);
+    }
+
+    /**
+     * Gets the hash in Base64, the form UIDs are shown in
+     *
+     * @return String Base64 of the hash
+     */
+    public String toBase64() {
+        return Base64.getEncoder().encodeToString(toBytes());
+    }
+
+    long getHigh() {
+        return high;
+    }
+
+    long getMiddle() {
+        return middle;
+    }
+
+    int getLow() {
+        return low;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof NodeId)) {
+            return false;
+        }
+        NodeId id = (NodeId) other;
+        return high == id.high && middle == id.middle && low == id.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) high;
+    }
+
+    @Override
+    public String toString() {
+        return toBase64();
+    }
+}
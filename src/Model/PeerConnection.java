@@ -0,0 +1,278 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Model;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A long-lived connection to a single peer. Messages are framed (see MessageCodec) so many threads can share the
+ * same socket, each frame is written atomically under a lock. Replies are read by the ReplyReader of the pool rather
+ * than by a thread of our own.
+ */
+public class PeerConnection {
+    /**
+     * Initial size in bytes of the reply buffer, it grows for larger replies
+     */
+    private static final int READ_BUFFER_SIZE = 4 * 1024;
+    /**
+     * Time in millis between checks that the connection is still open while waiting to write to a full socket
+     */
+    private static final long WRITE_POLL = 1000;
+
+    /**
+     * Node on the other end of this connection
+     */
+    private Node peer;
+    /**
+     * Non-blocking channel connected to the peer
+     */
+    private SocketChannel channel;
+    /**
+     * Bytes of replies read but not yet decoded, only used by the reader thread
+     */
+    private ByteBuffer readBuffer;
+    /**
+     * Lock so frames from different threads are never interleaved
+     */
+    private ReentrantLock sendLock;
+    /**
+     * Time in millis this connection was last used to send a message
+     */
+    private volatile long lastUsed;
+    /**
+     * True once this connection has failed or been closed
+     */
+    private volatile boolean closed;
+    /**
+     * Requests waiting for a reply, key is the message id and value completes with the reply
+     */
+    private ConcurrentHashMap<String, CompletableFuture<Message>> pending;
+
+    /**
+     * Opens a new connection to a peer
+     *
+     * @param _peer           Node to connect to
+     * @param _connectTimeout int timeout in millis to wait for the connection
+     * @param _reader         ReplyReader to read replies on this connection with
+     * @throws IOException if we cannot connect to the peer
+     */
+    public PeerConnection(Node _peer, int _connectTimeout, ReplyReader _reader) throws IOException {
+        peer = _peer;
+        sendLock = new ReentrantLock();
+        pending = new ConcurrentHashMap<>();
+        readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(peer.getAddr(), peer.getPort()), _connectTimeout);
+            channel.socket().setTcpNoDelay(true);
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        lastUsed = System.currentTimeMillis();
+
+        // replies (ACKs) come back on this socket, read them so requests complete, the peer never blocks on a full
+        // buffer and so we notice when the peer hangs up
+        _reader.register(this);
+    }
+
+    /**
+     * Sends one framed message to the peer
+     *
+     * @param frame byte[] message encoded by MessageCodec
+     * @throws IOException if the connection is closed or the write fails, the connection is closed on failure
+     */
+    public void send(byte[] frame) throws IOException {
+        sendLock.lock();
+        try {
+            if (closed) {
+                throw new IOException("Connection to " + peer.getAddr() + ":" + peer.getPort() + " is closed");
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(frame);
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                awaitWrite(buffer);
+            }
+
+            lastUsed = System.currentTimeMillis();
+        } catch (IOException e) {
+            close();
+            throw e;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Sends a request and waits for the reply carrying the same message id without blocking, many requests can be
+     * in flight on the connection at once
+     *
+     * @param id    String id of the request message
+     * @param frame byte[] request encoded by MessageCodec
+     * @return CompletableFuture that completes with the reply
+     * @throws IOException if the connection is closed or the write fails
+     */
+    public CompletableFuture<Message> request(String id, byte[] frame) throws IOException {
+        CompletableFuture<Message> reply = new CompletableFuture<>();
+        pending.put(id, reply);
+
+        // forget the request however it ends, replied, timed out or failed
+        reply.whenComplete((message, error) -> pending.remove(id, reply));
+
+        try {
+            send(frame);
+        } catch (IOException e) {
+            pending.remove(id, reply);
+            throw e;
+        }
+
+        // the connection may have failed between registering and sending
+        if (closed) {
+            reply.completeExceptionally(new IOException("Connection to " + peer.getAddr() + ":" + peer.getPort()
+                    + " closed before reply"));
+        }
+        return reply;
+    }
+
+    /**
+     * Writes the rest of a frame once the socket has room for it, must hold sendLock. The socket only fills up when
+     * the peer stops reading so the selector is opened for each wait rather than kept.
+     *
+     * @param buffer ByteBuffer holding the rest of the frame
+     * @throws IOException if the connection closes or the write fails
+     */
+    private void awaitWrite(ByteBuffer buffer) throws IOException {
+        try (Selector writable = Selector.open()) {
+            channel.register(writable, SelectionKey.OP_WRITE);
+            while (buffer.hasRemaining()) {
+                writable.select(WRITE_POLL);
+                writable.selectedKeys().clear();
+                if (closed) {
+                    throw new IOException("Connection to " + peer.getAddr() + ":" + peer.getPort() + " is closed");
+                }
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Gets the node on the other end of this connection
+     *
+     * @return Node peer
+     */
+    public Node getPeer() {
+        return peer;
+    }
+
+    /**
+     * Gets time this connection last sent a message
+     *
+     * @return long time in millis
+     */
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Checks if this connection can still be used
+     *
+     * @return true if closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes this connection, safe to call more than once
+     */
+    public void close() {
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing left to do with a socket we are throwing away
+        }
+
+        // nothing more will be read, fail anyone still waiting for a reply
+        for (CompletableFuture<Message> reply : pending.values()) {
+            reply.completeExceptionally(new IOException("Connection to " + peer.getAddr() + ":" + peer.getPort()
+                    + " closed before reply"));
+        }
+    }
+
+    /**
+     * Gets the channel for the ReplyReader to register
+     *
+     * @return SocketChannel connected to the peer
+     */
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Reads what is available and completes the request each whole reply matches, runs on the reader thread. Replies
+     * to fire and forget messages match nothing and are dropped.
+     *
+     * @throws IOException if the peer hung up or sent something we cannot decode
+     */
+    void read() throws IOException {
+        if (!readBuffer.hasRemaining()) {
+            // reply is larger than our buffer, grow it
+            ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+
+        if (channel.read(readBuffer) < 0) {
+            throw new IOException("Connection to " + peer.getAddr() + ":" + peer.getPort() + " closed by peer");
+        }
+
+        readBuffer.flip();
+        byte[] buf = readBuffer.array();
+        int start = readBuffer.position();
+        int limit = readBuffer.limit();
+        while (start < limit) {
+            if (buf[start] == '\n' || buf[start] == '\r') {
+                start++;
+                continue;
+            }
+
+            int length = MessageCodec.frameLength(buf, start, limit);
+            if (length < 0) {
+                break;
+            }
+
+            Message reply = MessageCodec.decode(buf, start, length);
+            start += length;
+
+            if (reply.getId() != null) {
+                CompletableFuture<Message> request = pending.remove(reply.getId());
+                if (request != null) {
+                    request.complete(reply);
+                }
+            }
+        }
+        readBuffer.position(start);
+        readBuffer.compact();
+    }
+}
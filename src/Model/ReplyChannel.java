@@ -0,0 +1,25 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Model;
+
+import java.io.IOException;
+
+/**
+ * Sends replies back on the connection a message was received on
+ */
+public interface ReplyChannel {
+    /**
+     * Sends a reply to the peer that sent us a message
+     *
+     * @param message Message to reply with
+     * @throws IOException if the reply cannot be sent
+     */
+    void reply(Message message) throws IOException;
+}
@@ -0,0 +1,117 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Model;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Reads the replies on every connection of a ConnectionPool from one selector thread, so an open connection does not
+ * hold a thread of its own while it waits for a reply
+ */
+public class ReplyReader implements Runnable {
+    /**
+     * Selector every connection is registered with for reading
+     */
+    private Selector selector;
+    /**
+     * Connections opened since the last select, registered on the reader thread
+     */
+    private ConcurrentLinkedQueue<PeerConnection> opened;
+    /**
+     * Thread running the reader
+     */
+    private Thread thread;
+
+    /**
+     * Creates a new reader and starts its thread
+     *
+     * @param name String name of the reader thread
+     */
+    public ReplyReader(String name) {
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        opened = new ConcurrentLinkedQueue<>();
+
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts reading replies from a connection
+     *
+     * @param conn PeerConnection whose channel is connected and non-blocking
+     */
+    void register(PeerConnection conn) {
+        opened.add(conn);
+        selector.wakeup();
+    }
+
+    /**
+     * Stops reading, the connections themselves are closed by their pool
+     */
+    public void close() {
+        thread.interrupt();
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (!thread.isInterrupted()) {
+            try {
+                selector.select();
+
+                PeerConnection conn;
+                while ((conn = opened.poll()) != null) {
+                    try {
+                        conn.getChannel().register(selector, SelectionKey.OP_READ, conn);
+                    } catch (ClosedChannelException e) {
+                        // closed before we got to it
+                        conn.close();
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    conn = (PeerConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            conn.read();
+                        }
+                    } catch (IOException e) {
+                        // peer went away or sent something we cannot read
+                        conn.close();
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("ReplyReader: Error in reader " + thread.getName());
+                e.printStackTrace();
+            }
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("ReplyReader: Error closing selector of " + thread.getName());
+        }
+    }
+}
@@ -0,0 +1,716 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Model;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A Jondos routing table stored as columns of primitives so a crowd of a million nodes costs a few dozen bytes a node
+ * rather than the few hundred a map of Node objects does. Each node is a row of its 20 byte id, its IPv4 address and
+ * its port, with an open addressing index from id to row. IPv6 addresses and host names are rare so they go in a
+ * column that is only allocated once one turns up. Looking up an id compares the id columns and never follows a
+ * pointer.
+ * <p>
+ * The Node of a row is built the first time the row is picked and kept, so picking the same next hop again allocates
+ * nothing while rows that are never picked cost only their columns.
+ * <p>
+ * Rows are kept packed, removing a node moves the last row into its place, so picking a random node is indexing a
+ * random row. Readers never take a lock, they read optimistically and only retry if a change landed while they were
+ * reading or the row has no Node yet.
+ */
+public class RoutingIndex {
+    /**
+     * Rows the columns start with
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Rows of the crowd, replaced when they grow
+     */
+    private volatile Columns columns;
+    /**
+     * Number of rows in use
+     */
+    private volatile int size;
+    /**
+     * Number of changes applied, goes up every time the crowd changes
+     */
+    private volatile long version;
+    /**
+     * Writers take the write lock, readers validate against it
+     */
+    private StampedLock lock;
+
+    /**
+     * Creates an empty index
+     */
+    public RoutingIndex() {
+        this(List.of());
+    }
+
+    /**
+     * Creates an index of the nodes already in a table, such as the one read from WELCOME
+     *
+     * @param crowd Collection of nodes in the crowd
+     */
+    public RoutingIndex(Collection<Node> crowd) {
+        lock = new StampedLock();
+        columns = new Columns(INITIAL_CAPACITY);
+        replaceAll(crowd);
+    }
+
+    /**
+     * Creates an index of rows a Builder filled
+     *
+     * @param builder Builder holding the rows
+     */
+    private RoutingIndex(Builder builder) {
+        lock = new StampedLock();
+        columns = builder.columns;
+        size = builder.size;
+    }
+
+    /**
+     * Picks a node uniformly at random
+     *
+     * @param rand Random to pick with
+     * @return Node picked or null if the crowd is empty
+     */
+    public Node pick(Random rand) {
+        long stamp = lock.tryOptimisticRead();
+        long seen = version;
+        Columns current = columns;
+        int rows = size;
+        int row = rows > 0 ? rand.nextInt(rows) : -1;
+        Node node = row >= 0 && row < current.capacity() ? current.cached(row) : null;
+        if (lock.validate(stamp) && (node != null || row < 0)) {
+            return node;
+        }
+
+        stamp = lock.readLock();
+        try {
+            // the same row if only its Node was missing, so rows already built are not picked more often
+            if (version != seen) {
+                row = size > 0 ? rand.nextInt(size) : -1;
+            }
+            return row < 0 ? null : columns.node(row);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Picks up to count distinct nodes at random skipping some nodes, such as ourselves
+     *
+     * @param count   int number of nodes wanted
+     * @param rand    Random to pick with
+     * @param exclude NodeId UIDs of nodes never to pick
+     * @return List of nodes picked, fewer than count if the crowd is too small
+     */
+    public List<Node> sample(int count, Random rand, NodeId... exclude) {
+        long stamp = lock.readLock();
+        try {
+            Columns current = columns;
+            int rows = size;
+            Set<Integer> excluded = new HashSet<>();
+            for (NodeId id : exclude) {
+                int row = current.find(id);
+                if (row >= 0) {
+                    excluded.add(row);
+                }
+            }
+
+            List<Node> picked = new ArrayList<>(count);
+            if (count * 4 < rows) {
+                // small sample of a big crowd, picking at random and retrying repeats is cheaper than a shuffle
+                Set<Integer> seen = new HashSet<>(excluded);
+                for (int attempts = 0; picked.size() < count && attempts < count * 16; attempts++) {
+                    int row = rand.nextInt(rows);
+                    if (seen.add(row)) {
+                        picked.add(current.node(row));
+                    }
+                }
+                if (picked.size() == count) {
+                    return picked;
+                }
+                picked.clear();
+            }
+
+            // partial Fisher Yates shuffle of the row numbers
+            int[] order = new int[rows];
+            for (int i = 0; i < rows; i++) {
+                order[i] = i;
+            }
+            for (int i = 0; i < rows && picked.size() < count; i++) {
+                int j = i + rand.nextInt(rows - i);
+                int row = order[j];
+                order[j] = order[i];
+                if (!excluded.contains(row)) {
+                    picked.add(current.node(row));
+                }
+            }
+            return picked;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Checks if a node is in the crowd
+     *
+     * @param id NodeId UID of node
+     * @return true if the node is in the crowd
+     */
+    public boolean contains(NodeId id) {
+        long stamp = lock.tryOptimisticRead();
+        boolean found = columns.find(id) >= 0;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                found = columns.find(id) >= 0;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Adds a node if it is not in the crowd yet
+     *
+     * @param node Node to add
+     * @return true if the node was added, false if it was already there
+     */
+    public boolean putIfAbsent(Node node) {
+        long stamp = lock.writeLock();
+        try {
+            if (columns.find(node.getId()) >= 0) {
+                return false;
+            }
+            if (size == columns.capacity()) {
+                columns = columns.grow(size, columns.capacity() * 2);
+            }
+            columns.set(size, node);
+            columns.insert(node.getId(), size);
+            size++;
+            version++;
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes a node from the crowd
+     *
+     * @param id NodeId UID of node to remove
+     * @return true if the node was removed, false if it was not there
+     */
+    public boolean remove(NodeId id) {
+        long stamp = lock.writeLock();
+        try {
+            int row = columns.find(id);
+            if (row < 0) {
+                return false;
+            }
+
+            // move the last row into the removed nodes row
+            int last = size - 1;
+            columns.delete(id);
+            if (row != last) {
+                columns.move(last, row);
+            }
+            columns.clear(last);
+            size = last;
+            version++;
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Makes the crowd exactly the nodes given, building new columns so readers see the old crowd or the new one
+     *
+     * @param crowd Collection of every node in the crowd
+     * @return Set of UIDs of nodes that were removed
+     */
+    public Set<NodeId> replaceAll(Collection<Node> crowd) {
+        Columns next = new Columns(Math.max(INITIAL_CAPACITY, Integer.highestOneBit(Math.max(1, crowd.size())) * 2));
+        int rows = 0;
+        for (Node node : crowd) {
+            if (next.find(node.getId()) < 0) {
+                next.set(rows, node);
+                next.insert(node.getId(), rows);
+                rows++;
+            }
+        }
+
+        long stamp = lock.writeLock();
+        try {
+            Set<NodeId> removed = new HashSet<>();
+            for (int row = 0; row < size; row++) {
+                NodeId id = columns.id(row);
+                if (next.find(id) < 0) {
+                    removed.add(id);
+                }
+            }
+            columns = next;
+            size = rows;
+            version++;
+            return removed;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Gets a copy of every node in the crowd
+     *
+     * @return List of nodes
+     */
+    public List<Node> getNodes() {
+        long stamp = lock.readLock();
+        try {
+            List<Node> nodes = new ArrayList<>(size);
+            for (int row = 0; row < size; row++) {
+                // not kept, listing the crowd is not picking from it
+                Node node = columns.cached(row);
+                nodes.add(node != null ? node : columns.build(row));
+            }
+            return nodes;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets number of nodes in the crowd
+     *
+     * @return int size of crowd
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the version of the crowd, anything built from the crowd such as a path can check it to see if the crowd
+     * changed since
+     *
+     * @return long version, different after every change to the crowd
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Fills the rows of a new index one node at a time, such as while a WELCOME is read off the socket, so the crowd
+     * is only ever held in columns. Nothing is published until build, and nothing locks since only one thread fills it.
+     */
+    public static class Builder {
+        private Columns columns;
+        private int size;
+
+        /**
+         * Creates an empty builder
+         */
+        public Builder() {
+            columns = new Columns(INITIAL_CAPACITY);
+        }
+
+        /**
+         * Appends a row for a node, the node itself is not kept
+         *
+         * @param node Node to add, skipped if a node with its UID was added before
+         * @return this Builder
+         */
+        public Builder add(Node node) {
+            if (columns.find(node.getId()) >= 0) {
+                return this;
+            }
+            if (size == columns.capacity()) {
+                columns = columns.grow(size, columns.capacity() * 2);
+            }
+            columns.set(size, node);
+            columns.insert(node.getId(), size);
+            size++;
+            return this;
+        }
+
+        /**
+         * Gets number of nodes added so far
+         *
+         * @return int rows filled
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Creates the index, the builder must not be used after
+         *
+         * @return RoutingIndex of every node added
+         */
+        public RoutingIndex build() {
+            return new RoutingIndex(this);
+        }
+    }
+
+    /**
+     * The rows of the crowd. Addresses are IPv4 when they can be written back exactly as they came, anything else is
+     * kept in others as the 16 bytes of an IPv6 address or the string itself.
+     */
+    private static class Columns {
+        private final long[] high;
+        private final long[] middle;
+        private final int[] low;
+        private final int[] ipv4;
+        private final char[] ports;
+        /**
+         * Addresses that are not IPv4, null until there is one
+         */
+        private Object[] others;
+        /**
+         * Node of each row once it has been picked, null until then
+         */
+        private final AtomicReferenceArray<Node> nodes;
+        /**
+         * Open addressing index from id hash to row plus one, zero is empty
+         */
+        private final int[] index;
+
+        /**
+         * Creates empty columns
+         *
+         * @param capacity int rows to hold
+         */
+        private Columns(int capacity) {
+            high = new long[capacity];
+            middle = new long[capacity];
+            low = new int[capacity];
+            ipv4 = new int[capacity];
+            ports = new char[capacity];
+            nodes = new AtomicReferenceArray<>(capacity);
+            // at most half full so probes stay short
+            index = new int[Integer.highestOneBit(capacity - 1) * 4];
+        }
+
+        private int capacity() {
+            return ports.length;
+        }
+
+        /**
+         * Copies the rows in use into bigger columns
+         *
+         * @param rows     int rows in use
+         * @param capacity int rows the new columns hold
+         * @return Columns copy
+         */
+        private Columns grow(int rows, int capacity) {
+            Columns grown = new Columns(capacity);
+            System.arraycopy(high, 0, grown.high, 0, rows);
+            System.arraycopy(middle, 0, grown.middle, 0, rows);
+            System.arraycopy(low, 0, grown.low, 0, rows);
+            System.arraycopy(ipv4, 0, grown.ipv4, 0, rows);
+            System.arraycopy(ports, 0, grown.ports, 0, rows);
+            if (others != null) {
+                grown.others = new Object[capacity];
+                System.arraycopy(others, 0, grown.others, 0, rows);
+            }
+            for (int row = 0; row < rows; row++) {
+                grown.nodes.set(row, nodes.get(row));
+                grown.insert(id(row), row);
+            }
+            return grown;
+        }
+
+        /**
+         * Writes a node into a row
+         *
+         * @param row  int row to write
+         * @param node Node to write
+         */
+        private void set(int row, Node node) {
+            NodeId id = node.getId();
+            high[row] = id.getHigh();
+            middle[row] = id.getMiddle();
+            low[row] = id.getLow();
+            ports[row] = (char) node.getPort();
+            // not kept, the node added may be one of a whole table being read
+            nodes.set(row, null);
+
+            int packed = packIPv4(node.getAddr());
+            if (packed != 0 || node.getAddr().equals("0.0.0.0")) {
+                ipv4[row] = packed;
+                if (others != null) {
+                    others[row] = null;
+                }
+                return;
+            }
+            if (others == null) {
+                others = new Object[capacity()];
+            }
+            byte[] ipv6 = packIPv6(node.getAddr());
+            others[row] = ipv6 != null ? ipv6 : node.getAddr();
+        }
+
+        /**
+         * Moves a row, the index entry of the moved id is pointed at its new row
+         *
+         * @param from int row to move
+         * @param to   int row to move it to
+         */
+        private void move(int from, int to) {
+            high[to] = high[from];
+            middle[to] = middle[from];
+            low[to] = low[from];
+            ipv4[to] = ipv4[from];
+            ports[to] = ports[from];
+            if (others != null) {
+                others[to] = others[from];
+            }
+            nodes.set(to, nodes.get(from));
+            index[slot(id(to))] = to + 1;
+        }
+
+        /**
+         * Drops anything a row holds on to
+         *
+         * @param row int row no longer in use
+         */
+        private void clear(int row) {
+            if (others != null) {
+                others[row] = null;
+            }
+            nodes.set(row, null);
+        }
+
+        private NodeId id(int row) {
+            return new NodeId(high[row], middle[row], low[row]);
+        }
+
+        /**
+         * Gets the node of a row if it has been built, may be called without the lock
+         *
+         * @param row int row
+         * @return Node of row or null if it has not been picked yet
+         */
+        private Node cached(int row) {
+            return nodes.get(row);
+        }
+
+        /**
+         * Gets the node of a row, building and keeping it the first time, only called holding the lock so no writer
+         * can change the row while it is built
+         *
+         * @param row int row
+         * @return Node of row
+         */
+        private Node node(int row) {
+            Node node = nodes.get(row);
+            if (node != null) {
+                return node;
+            }
+            // readers hold the lock together, the first one to build the node wins
+            Node built = build(row);
+            Node witness = nodes.compareAndExchange(row, null, built);
+            return witness != null ? witness : built;
+        }
+
+        /**
+         * Builds the node in a row
+         *
+         * @param row int row
+         * @return Node in row
+         */
+        private Node build(int row) {
+            Object other = others == null ? null : others[row];
+            String addr;
+            if (other == null) {
+                addr = formatIPv4(ipv4[row]);
+            } else if (other instanceof byte[]) {
+                addr = formatIPv6((byte[]) other);
+            } else {
+                addr = (String) other;
+            }
+            return new Node(addr, ports[row], id(row));
+        }
+
+        /**
+         * Finds the row of an id
+         *
+         * @param id NodeId to look for
+         * @return int row or -1 if it is not there
+         */
+        private int find(NodeId id) {
+            int entry = index[slot(id)];
+            return entry - 1;
+        }
+
+        /**
+         * Finds the index slot of an id, or the empty slot it would go in
+         *
+         * @param id NodeId to look for
+         * @return int slot
+         */
+        private int slot(NodeId id) {
+            int mask = index.length - 1;
+            int slot = id.hashCode() & mask;
+            // bounded so a read racing a writer cannot spin forever, it is retried once the writer is done
+            for (int probes = 0; probes < index.length; probes++) {
+                int entry = index[slot];
+                if (entry == 0) {
+                    return slot;
+                }
+                int row = entry - 1;
+                if (row < ports.length && high[row] == id.getHigh() && middle[row] == id.getMiddle()
+                        && low[row] == id.getLow()) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void insert(NodeId id, int row) {
+            index[slot(id)] = row + 1;
+        }
+
+        /**
+         * Removes an id from the index, shifting back any entries that probed past it
+         *
+         * @param id NodeId to remove
+         */
+        private void delete(NodeId id) {
+            int mask = index.length - 1;
+            int hole = slot(id);
+            index[hole] = 0;
+
+            int slot = (hole + 1) & mask;
+            while (index[slot] != 0) {
+                int row = index[slot] - 1;
+                int home = (int) high[row] & mask;
+                // move the entry into the hole unless its home lies between the hole and where it is now
+                boolean between = hole <= slot ? hole < home && home <= slot : hole < home || home <= slot;
+                if (!between) {
+                    index[hole] = index[slot];
+                    index[slot] = 0;
+                    hole = slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+    }
+
+    /**
+     * Packs a dotted IPv4 address, only if formatting the packed address gives back the same string
+     *
+     * @param addr String address
+     * @return int address or 0 if it is not a plain IPv4 address
+     */
+    private static int packIPv4(String addr) {
+        int packed = 0;
+        int octets = 0;
+        int i = 0;
+        while (i < addr.length()) {
+            int start = i;
+            int octet = 0;
+            while (i < addr.length() && addr.charAt(i) >= '0' && addr.charAt(i) <= '9' && i - start < 3) {
+                octet = octet * 10 + addr.charAt(i) - '0';
+                i++;
+            }
+            // no digits, too big or a leading zero would not survive the round trip
+            if (i == start || octet > 255 || (addr.charAt(start) == '0' && i - start > 1)) {
+                return 0;
+            }
+            packed = packed << 8 | octet;
+            octets++;
+            if (i < addr.length()) {
+                if (addr.charAt(i) != '.' || octets == 4 || i == addr.length() - 1) {
+                    return 0;
+                }
+                i++;
+            }
+        }
+        return octets == 4 ? packed : 0;
+    }
+
+    private static String formatIPv4(int addr) {
+        return (addr >>> 24) + "." + (addr >>> 16 & 0xFF) + "." + (addr >>> 8 & 0xFF) + "." + (addr & 0xFF);
+    }
+
+    /**
+     * Packs an IPv6 address, only if formatting the packed address gives back the same string
+     *
+     * @param addr String address
+     * @return byte[] 16 bytes of address or null if it is not an IPv6 address in its canonical form
+     */
+    private static byte[] packIPv6(String addr) {
+        // only parse literals, anything else would be a DNS lookup
+        if (addr.indexOf(':') < 0 || addr.indexOf('%') >= 0) {
+            return null;
+        }
+        try {
+            byte[] bytes = InetAddress.getByName(addr).getAddress();
+            return bytes.length == 16 && formatIPv6(bytes).equals(addr) ? bytes : null;
+        } catch (UnknownHostException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Formats an IPv6 address in its canonical form, lower case with the longest run of zero groups shortened to ::
+     *
+     * @param bytes byte[] 16 bytes of address
+     * @return String address
+     */
+    private static String formatIPv6(byte[] bytes) {
+        int[] groups = new int[8];
+        for (int i = 0; i < 8; i++) {
+            groups[i] = (bytes[i * 2] & 0xFF) << 8 | (bytes[i * 2 + 1] & 0xFF);
+        }
+
+        int bestStart = -1;
+        int bestLength = 1;
+        for (int i = 0; i < 8; i++) {
+            int length = 0;
+            while (i + length < 8 && groups[i + length] == 0) {
+                length++;
+            }
+            if (length > bestLength) {
+                bestStart = i;
+                bestLength = length;
+            }
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            if (i == bestStart) {
+                text.append("::");
+                i += bestLength - 1;
+                continue;
+            }
+            if (text.length() > 0 && text.charAt(text.length() - 1) != ':') {
+                text.append(':');
+            }
+            text.append(Integer.toHexString(groups[i]));
+        }
+        return text.toString();
+    }
+}
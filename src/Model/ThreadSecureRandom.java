@@ -0,0 +1,172 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Model;
+
+import java.security.DrbgParameters;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cryptographically secure random numbers for the hot path from a fixed set of generators. A thread uses the generator
+ * its id hashes to, so with twice as many generators as cores threads rarely wait on each other, and a handler running
+ * on a new virtual thread per message does not seed a DRBG of its own. Random bytes are drawn a buffer at a time so a
+ * coin flip is usually just a read from the buffer with no allocation. Each DRBG is reseeded from the system after
+ * every RESEED_BYTES bytes.
+ * <p>
+ * A generator is safe to share between threads, current() just picks the one least likely to be busy.
+ */
+public class ThreadSecureRandom extends Random {
+    /**
+     * Random is Serializable, ours are never serialized but the version is pinned so the compiler does not pick one
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of random bytes drawn from the DRBG at a time
+     */
+    private static final int BUFFER_BYTES = 4096;
+    /**
+     * Number of random bytes drawn between reseeds
+     */
+    private static final long RESEED_BYTES = 1 << 20;
+
+    /**
+     * Generators threads are spread across, a power of two so a stripe is picked with a mask
+     */
+    private static final ThreadSecureRandom[] STRIPES = new ThreadSecureRandom[stripes()];
+    static {
+        for (int i = 0; i < STRIPES.length; i++) {
+            STRIPES[i] = new ThreadSecureRandom();
+        }
+    }
+
+    /**
+     * DRBG the bytes come from
+     */
+    private SecureRandom source;
+    /**
+     * Random bytes not used yet start at position
+     */
+    private byte[] buffer;
+    private int position;
+    /**
+     * Bytes drawn since the last reseed
+     */
+    private long drawn;
+    /**
+     * Held while taking bytes from the buffer or refilling it
+     */
+    private ReentrantLock lock;
+
+    /**
+     * Creates a generator
+     */
+    private ThreadSecureRandom() {
+        source = newSource();
+        buffer = new byte[BUFFER_BYTES];
+        position = BUFFER_BYTES;
+        lock = new ReentrantLock();
+    }
+
+    /**
+     * Gets the generator for the current thread
+     *
+     * @return ThreadSecureRandom the thread id hashes to
+     */
+    public static ThreadSecureRandom current() {
+        return STRIPES[stripe(STRIPES.length)];
+    }
+
+    /**
+     * Gets the number of stripes to spread threads across, twice the cores rounded up to a power of two
+     *
+     * @return int number of stripes
+     */
+    public static int stripes() {
+        return Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+    }
+
+    /**
+     * Picks the stripe of the current thread. Thread ids are handed out in order so they are mixed first, otherwise
+     * the threads of one pool would all land next to each other.
+     *
+     * @param count int number of stripes, a power of two
+     * @return int index of the stripe
+     */
+    public static int stripe(int count) {
+        long mixed = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return (int) (mixed >>> 32) & (count - 1);
+    }
+
+    /**
+     * Flips a biased coin
+     *
+     * @param percent int percent chance of heads between 0 and 100
+     * @return true for heads
+     */
+    public boolean chance(int percent) {
+        return nextInt(100) < percent;
+    }
+
+    /**
+     * Every other method of Random draws its bits from here
+     */
+    @Override
+    protected int next(int bits) {
+        int value;
+        lock.lock();
+        try {
+            if (position + 4 > BUFFER_BYTES) {
+                refill();
+            }
+
+            value = (buffer[position] & 0xFF) << 24 | (buffer[position + 1] & 0xFF) << 16
+                    | (buffer[position + 2] & 0xFF) << 8 | (buffer[position + 3] & 0xFF);
+            position += 4;
+        } finally {
+            lock.unlock();
+        }
+        return value >>> (32 - bits);
+    }
+
+    /**
+     * Draws the next buffer of bytes, reseeding first if it is time, must hold lock
+     */
+    private void refill() {
+        if (drawn >= RESEED_BYTES) {
+            try {
+                source.reseed();
+            } catch (UnsupportedOperationException e) {
+                source.setSeed(source.generateSeed(32));
+            }
+            drawn = 0;
+        }
+
+        source.nextBytes(buffer);
+        drawn += BUFFER_BYTES;
+        position = 0;
+    }
+
+    /**
+     * Creates a DRBG that can be reseeded, or the platform default if there is no DRBG
+     *
+     * @return SecureRandom to draw bytes from
+     */
+    private static SecureRandom newSource() {
+        try {
+            return SecureRandom.getInstance("DRBG",
+                    DrbgParameters.instantiation(256, DrbgParameters.Capability.RESEED_ONLY, null));
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Model;
+
+import merrimackutil.json.types.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the timings of the last hops this node handled of traced messages. Each Jondo only records its own hop, how
+ * long the message waited to be decoded and handled and how long connecting and writing to the next hop took, so
+ * nothing about a trace is sent over the wire except its id. The buffers of every Jondo in a test crowd can be
+ * stitched together by trace id afterwards, see TraceStitcher in the benchmarks.
+ * <p>
+ * Tracing is for test crowds only. A trace id lets every Jondo a message passes through link it to the Jondo that
+ * sent it, so Jondos that do not trace drop the id before passing a message on.
+ */
+public class TraceBuffer {
+    /**
+     * Last hops recorded, the oldest is overwritten once the buffer is full
+     */
+    private AtomicReferenceArray<Hop> hops;
+    /**
+     * Number of hops ever recorded, the next hop goes in slot next % capacity
+     */
+    private AtomicLong next;
+    /**
+     * Address and port of this node, written with each hop
+     */
+    private String node;
+
+    /**
+     * Creates an empty trace buffer
+     *
+     * @param _capacity int number of hops to keep
+     * @param _addr     String IP address of this node
+     * @param _port     int port of this node
+     */
+    public TraceBuffer(int _capacity, String _addr, int _port) {
+        hops = new AtomicReferenceArray<>(_capacity);
+        next = new AtomicLong();
+        node = _addr + ":" + _port;
+    }
+
+    /**
+     * Starts timing our hop of a message
+     *
+     * @param message Message we are handling, must have a trace id
+     * @param start   long System.nanoTime we started handling it at
+     * @return Hop to fill in and record once we are done with the message
+     */
+    public Hop start(Message message, long start) {
+        return start(message.getTrace(), message.getType(), message.getReceived(), message.getDecoded(), start);
+    }
+
+    /**
+     * Starts timing our hop of a frame we pass on without decoding it
+     *
+     * @param frame Frame we are handling, must have a trace id
+     * @param start long System.nanoTime we started handling it at
+     * @return Hop to fill in and record once we are done with the frame
+     */
+    public Hop start(Frame frame, long start) {
+        return start(frame.getTrace(), frame.getType(), frame.getReceived(), frame.getDecoded(), start);
+    }
+
+    private Hop start(String trace, String type, long received, long decoded, long start) {
+        // a message we send ourselves was never read so its hop starts now
+        boolean first = received == 0;
+        return new Hop(trace, type, node, first, first ? start : received, first ? start : decoded, start);
+    }
+
+    /**
+     * Records a finished hop, overwriting the oldest if the buffer is full
+     *
+     * @param hop Hop to record
+     */
+    public void record(Hop hop) {
+        hop.handle = System.nanoTime() - hop.start;
+        hops.set((int) (next.getAndIncrement() % hops.length()), hop);
+    }
+
+    /**
+     * Gets the hops in the buffer
+     *
+     * @return List of hops, oldest first
+     */
+    public List<Hop> read() {
+        long end = next.get();
+        long begin = Math.max(0, end - hops.length());
+
+        List<Hop> read = new ArrayList<>((int) (end - begin));
+        for (long i = begin; i < end; i++) {
+            Hop hop = hops.get((int) (i % hops.length()));
+            if (hop != null) {
+                read.add(hop);
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Gets the hops in the buffer as one JSON object per line
+     *
+     * @return String JSON lines, oldest first
+     */
+    public String toText() {
+        StringBuilder text = new StringBuilder();
+        for (Hop hop : read()) {
+            text.append(hop.toJSONType().toJSON()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Writes the hops in the buffer to a file as JSON lines
+     *
+     * @param file Path of file to write, replaced if it exists
+     * @throws IOException if the file cannot be written
+     */
+    public void write(Path file) throws IOException {
+        Files.write(file, toText().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Our hop of a traced message. Times are nanos except at which is the wall clock time in micros the message
+     * reached us, so hops recorded by different Jondos on the same clock can be put in order.
+     */
+    public static class Hop {
+        private String trace;
+        private String type;
+        private String node;
+        /**
+         * True if we sent the message, so this is the first hop of its trace
+         */
+        private boolean first;
+        private long at;
+        private long decode;
+        private long queue;
+        private long connect;
+        private long write;
+        /**
+         * Nanos from when the message reached us until it was written to the next hop
+         */
+        private long sent;
+        private long handle;
+        private String next;
+        /**
+         * System.nanoTime the message reached us and we started handling it
+         */
+        private long received;
+        private long start;
+
+        /**
+         * Starts a hop
+         *
+         * @param _trace    String trace id
+         * @param _type     String type of message
+         * @param _node     String address and port of this node
+         * @param _first    boolean true if we sent the message
+         * @param _received long System.nanoTime the message was read at
+         * @param _decoded  long System.nanoTime the message was decoded at
+         * @param _start    long System.nanoTime we started handling it at
+         */
+        private Hop(String _trace, String _type, String _node, boolean _first, long _received, long _decoded,
+                long _start) {
+            trace = _trace;
+            type = _type;
+            node = _node;
+            first = _first;
+            received = _received;
+            start = _start;
+            decode = _decoded - _received;
+            queue = _start - _decoded;
+
+            Instant now = Instant.now();
+            long micros = now.getEpochSecond() * 1000000 + now.getNano() / 1000;
+            at = micros - (System.nanoTime() - _received) / 1000;
+        }
+
+        /**
+         * Adds the time taken to open a connection to the next hop
+         *
+         * @param since long System.nanoTime we started connecting at
+         */
+        void connected(long since) {
+            connect += System.nanoTime() - since;
+        }
+
+        /**
+         * Adds the time taken to encode and write the message to the next hop
+         *
+         * @param since long System.nanoTime we started encoding at
+         */
+        void wrote(long since) {
+            long now = System.nanoTime();
+            write += now - since;
+            sent = now - received;
+        }
+
+        /**
+         * Sets the node we passed the message on to
+         *
+         * @param _next Node next Jondo or the destination
+         */
+        public void setNext(Node _next) {
+            next = _next.getAddr() + ":" + _next.getPort();
+        }
+
+        /**
+         * Gets the hop as a JSONObject, fields that were never set are left out
+         *
+         * @return JSONObject of hop
+         */
+        public JSONObject toJSONType() {
+            JSONObject obj = new JSONObject();
+            obj.put("trace", trace);
+            obj.put("type", type);
+            obj.put("node", node);
+            if (first) {
+                obj.put("first", true);
+            }
+            obj.put("at", at);
+            obj.put("decode", decode);
+            obj.put("queue", queue);
+            obj.put("handle", handle);
+            if (next != null) {
+                obj.put("next", next);
+                obj.put("connect", connect);
+                obj.put("write", write);
+                obj.put("sent", sent);
+            }
+            return obj;
+        }
+    }
+}
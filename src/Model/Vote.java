@@ -1,5 +1,9 @@
 package Model;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InvalidObjectException;
 import java.util.ArrayList;
 import java.util.List;
@@ -45,6 +49,55 @@ public class Vote implements JSONSerializable {
         deserialize(jsonObject);
     }
 
+    /**
+     * Constructs a Vote object from its binary encoding.
+     *
+     * @param in DataInput positioned at the start of a binary vote.
+     * @throws IOException if the binary vote is invalid or ends early.
+     */
+    public Vote(DataInput in) throws IOException {
+        voteId = MessageCodec.readString(in);
+        if (voteId == null) {
+            throw new InvalidObjectException("Vote must have a voteId");
+        }
+
+        question = MessageCodec.readString(in);
+
+        // like the JSON encoding a missing options list decodes as an empty list
+        List<String> optionsList = MessageCodec.readStringList(in);
+        if (optionsList != null) {
+            options = optionsList;
+        }
+
+        selection = MessageCodec.readString(in);
+        results = MessageCodec.readStringList(in);
+        voterId = MessageCodec.readString(in);
+        timestamp = MessageCodec.readString(in);
+    }
+
+    /**
+     * Skips over a binary vote without decoding it, checking only that it is whole and has a voteId.
+     *
+     * @param in DataInput positioned at the start of a binary vote.
+     * @throws IOException if the binary vote is invalid or ends early.
+     */
+    static void skipBinary(DataInput in) throws IOException {
+        int voteId = MessageCodec.readVarInt(in) - 1;
+        if (voteId < 0) {
+            throw new InvalidObjectException("Vote must have a voteId");
+        }
+        if (in.skipBytes(voteId) != voteId) {
+            throw new EOFException();
+        }
+        // then the question, options, selection, results, voterId and timestamp
+        MessageCodec.skipString(in);
+        MessageCodec.skipStringList(in);
+        MessageCodec.skipString(in);
+        MessageCodec.skipStringList(in);
+        MessageCodec.skipString(in);
+        MessageCodec.skipString(in);
+    }
+
     /**
      * Returns the vote ID.
      *
@@ -85,6 +138,30 @@ public class Vote implements JSONSerializable {
         return results;
     }
 
+    public String getVoterId() {
+        return voterId;
+    }
+
+    public String getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Writes the binary encoding of this Vote, every field in order with nulls kept.
+     *
+     * @param out DataOutput to write to.
+     * @throws IOException if writing fails.
+     */
+    public void writeBinary(DataOutput out) throws IOException {
+        MessageCodec.writeString(out, voteId);
+        MessageCodec.writeString(out, question);
+        MessageCodec.writeStringList(out, options);
+        MessageCodec.writeString(out, selection);
+        MessageCodec.writeStringList(out, results);
+        MessageCodec.writeString(out, voterId);
+        MessageCodec.writeString(out, timestamp);
+    }
+
     /**
      * Serializes this Vote object into a JSON string.
      *
@@ -0,0 +1,406 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes a WELCOME straight off the stream into a routing index. A WELCOME carries the whole crowd so rather than
+ * reading the frame into memory, parsing it into a JSONObject and then copying it into a table we read one node at a
+ * time and append it as a row as we go, each Node is garbage as soon as its row is written. Handles both codecs, the
+ * JSON parser understands just enough JSON for a WELCOME and skips any keys it does not know.
+ */
+public class WelcomeDecoder {
+    /**
+     * Longest string we will read, protects us from a frame that never closes its quotes
+     */
+    private static final int MAX_STRING = 64 * 1024;
+
+    /**
+     * Stream positioned at the start of the WELCOME frame
+     */
+    private DataInputStream in;
+    /**
+     * Rows nodes are appended to as they are read
+     */
+    private RoutingIndex.Builder routingTable;
+    /**
+     * Scratch space for the bytes of the string being read
+     */
+    private ByteArrayOutputStream scratch;
+    /**
+     * Byte pushed back after reading one too many, -2 when there is none
+     */
+    private int peeked = -2;
+
+    /**
+     * Creates a new decoder
+     *
+     * @param _in           DataInputStream positioned at the start of the WELCOME frame
+     * @param _routingTable RoutingIndex.Builder to append the nodes of the WELCOME to
+     */
+    public WelcomeDecoder(DataInputStream _in, RoutingIndex.Builder _routingTable) {
+        in = _in;
+        routingTable = _routingTable;
+        scratch = new ByteArrayOutputStream();
+    }
+
+    /**
+     * Decodes a binary WELCOME payload, the magic byte and length have already been read
+     *
+     * @param length int length of the payload
+     * @return Message WELCOME with its codec and epoch, the nodes are only in the builder
+     * @throws IOException if the payload is not a WELCOME or ends early
+     */
+    public Message decodeBinary(int length) throws IOException {
+        try {
+            int code = in.readUnsignedByte();
+            if (code != Message.typeCode("WELCOME")) {
+                throw new InvalidObjectException("Expected WELCOME but got binary type code " + code);
+            }
+
+            String codec = MessageCodec.readString(in);
+            int size = MessageCodec.readVarInt(in);
+            // every node takes at least two bytes and its UID, a bigger count is a corrupt frame not a big crowd
+            if (size > length / (2 + NodeId.BYTES)) {
+                throw new InvalidObjectException("WELCOME of " + length + " bytes cannot hold " + size + " nodes");
+            }
+            for (int i = 0; i < size; i++) {
+                routingTable.add(new Node(in));
+            }
+            int epoch = MessageCodec.readVarInt(in);
+
+            return new Message.Builder("WELCOME").setCodec(codec).setEpoch(epoch).build();
+        } catch (EOFException e) {
+            throw new InvalidObjectException("Binary WELCOME ended early");
+        }
+    }
+
+    /**
+     * Decodes a JSON WELCOME line, the first byte has already been read
+     *
+     * @param first int first byte of the line
+     * @return Message WELCOME with its codec and epoch, the nodes are only in the builder
+     * @throws IOException if the line is not a WELCOME or ends early
+     */
+    public Message decodeJSON(int first) throws IOException {
+        peeked = first;
+
+        String type = null;
+        String codec = null;
+        int epoch = 0;
+
+        expect('{');
+        if (!consumeIf('}')) {
+            do {
+                String key = readString();
+                if (key == null) {
+                    throw unexpected('n', "string");
+                }
+                expect(':');
+
+                switch (key) {
+                    case "type":
+                        type = readString();
+                        if (!"WELCOME".equals(type)) {
+                            throw new InvalidObjectException("Expected WELCOME but got " + type);
+                        }
+                        break;
+                    case "codec":
+                        codec = readString();
+                        break;
+                    case "epoch":
+                        epoch = (int) readNumber();
+                        break;
+                    case "routingTable":
+                        readNodes();
+                        break;
+                    default:
+                        skipValue();
+                }
+            } while (consumeIf(','));
+            expect('}');
+        }
+
+        // the rest of the line is the newline ending the frame
+        int b;
+        while ((b = next()) != '\n' && b != -1) {
+            if (!isWhitespace(b)) {
+                throw new InvalidObjectException("Unexpected data after WELCOME");
+            }
+        }
+
+        if (type == null) {
+            throw new InvalidObjectException("Model.Message json does not have TYPE field");
+        }
+        return new Message.Builder("WELCOME").setCodec(codec).setEpoch(epoch).build();
+    }
+
+    /**
+     * Reads the routingTable array appending each node to the builder
+     *
+     * @throws IOException if the array is malformed
+     */
+    private void readNodes() throws IOException {
+        expect('[');
+        if (consumeIf(']')) {
+            return;
+        }
+
+        do {
+            String addr = null;
+            int port = -1;
+            String uid = null;
+
+            expect('{');
+            if (!consumeIf('}')) {
+                do {
+                    String key = readString();
+                    expect(':');
+
+                    if ("addr".equals(key)) {
+                        addr = readString();
+                    } else if ("port".equals(key)) {
+                        port = (int) readNumber();
+                    } else if ("uid".equals(key)) {
+                        uid = readString();
+                    } else {
+                        skipValue();
+                    }
+                } while (consumeIf(','));
+                expect('}');
+            }
+
+            if (addr == null || port < 0) {
+                throw new InvalidObjectException("Node in WELCOME must have addr and port");
+            }
+            // older Blenders leave the UID out and we hash addr and port
+            routingTable.add(uid != null ? new Node(addr, port, Node.parseUid(uid)) : new Node(addr, port));
+        } while (consumeIf(','));
+        expect(']');
+    }
+
+    /**
+     * Reads a string, or null for a JSON null
+     *
+     * @return String read
+     * @throws IOException if there is no string here
+     */
+    private String readString() throws IOException {
+        int b = nextToken();
+        if (b == 'n') {
+            expectLiteral("ull");
+            return null;
+        }
+        if (b != '"') {
+            throw unexpected(b, "string");
+        }
+
+        scratch.reset();
+        while ((b = next()) != '"') {
+            if (b == -1) {
+                throw new InvalidObjectException("WELCOME ended inside a string");
+            }
+            if (scratch.size() > MAX_STRING) {
+                throw new InvalidObjectException("String in WELCOME is too long");
+            }
+
+            if (b == '\\') {
+                b = next();
+                switch (b) {
+                    case 'b': scratch.write('\b'); break;
+                    case 'f': scratch.write('\f'); break;
+                    case 'n': scratch.write('\n'); break;
+                    case 'r': scratch.write('\r'); break;
+                    case 't': scratch.write('\t'); break;
+                    case 'u':
+                        char c = (char) Integer.parseInt(new String(new char[] {(char) next(), (char) next(),
+                                (char) next(), (char) next()}), 16);
+                        byte[] utf8 = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+                        scratch.write(utf8, 0, utf8.length);
+                        break;
+                    case -1:
+                        throw new InvalidObjectException("WELCOME ended inside a string");
+                    default:
+                        scratch.write(b);
+                }
+            } else {
+                scratch.write(b);
+            }
+        }
+        return scratch.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a number
+     *
+     * @return double number read
+     * @throws IOException if there is no number here
+     */
+    private double readNumber() throws IOException {
+        int b = nextToken();
+        StringBuilder number = new StringBuilder();
+        while (b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E' || (b >= '0' && b <= '9')) {
+            number.append((char) b);
+            b = next();
+        }
+        peeked = b;
+
+        try {
+            return Double.parseDouble(number.toString());
+        } catch (NumberFormatException e) {
+            throw unexpected(b, "number");
+        }
+    }
+
+    /**
+     * Skips a value of any type
+     *
+     * @throws IOException if the value is malformed
+     */
+    private void skipValue() throws IOException {
+        int b = nextToken();
+        peeked = b;
+
+        switch (b) {
+            case '"':
+                readString();
+                break;
+            case '{':
+                next();
+                if (!consumeIf('}')) {
+                    do {
+                        readString();
+                        expect(':');
+                        skipValue();
+                    } while (consumeIf(','));
+                    expect('}');
+                }
+                break;
+            case '[':
+                next();
+                if (!consumeIf(']')) {
+                    do {
+                        skipValue();
+                    } while (consumeIf(','));
+                    expect(']');
+                }
+                break;
+            case 't':
+                next();
+                expectLiteral("rue");
+                break;
+            case 'f':
+                next();
+                expectLiteral("alse");
+                break;
+            case 'n':
+                next();
+                expectLiteral("ull");
+                break;
+            default:
+                readNumber();
+        }
+    }
+
+    /**
+     * Reads the next non whitespace byte and checks it is the one we expect
+     *
+     * @param expected char byte we expect
+     * @throws IOException if it is not
+     */
+    private void expect(char expected) throws IOException {
+        int b = nextToken();
+        if (b != expected) {
+            throw unexpected(b, "'" + expected + "'");
+        }
+    }
+
+    /**
+     * Reads the rest of a true, false or null literal
+     *
+     * @param rest String rest of the literal after its first letter
+     * @throws IOException if the literal does not match
+     */
+    private void expectLiteral(String rest) throws IOException {
+        for (int i = 0; i < rest.length(); i++) {
+            int b = next();
+            if (b != rest.charAt(i)) {
+                throw unexpected(b, "literal");
+            }
+        }
+    }
+
+    /**
+     * Consumes the next non whitespace byte if it is the one given
+     *
+     * @param c char byte to look for
+     * @return true if it was there and has been consumed
+     * @throws IOException if reading fails
+     */
+    private boolean consumeIf(char c) throws IOException {
+        int b = nextToken();
+        if (b == c) {
+            return true;
+        }
+        peeked = b;
+        return false;
+    }
+
+    /**
+     * Reads the next non whitespace byte
+     *
+     * @return int byte or -1 at the end of the stream
+     * @throws IOException if reading fails
+     */
+    private int nextToken() throws IOException {
+        int b;
+        do {
+            b = next();
+        } while (isWhitespace(b));
+        return b;
+    }
+
+    /**
+     * Reads the next byte, the pushed back byte if there is one
+     *
+     * @return int byte or -1 at the end of the stream
+     * @throws IOException if reading fails
+     */
+    private int next() throws IOException {
+        if (peeked != -2) {
+            int b = peeked;
+            peeked = -2;
+            return b;
+        }
+        return in.read();
+    }
+
+    private static boolean isWhitespace(int b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    /**
+     * Builds the exception for a byte we did not expect
+     *
+     * @param b        int byte we got
+     * @param expected String what we expected
+     * @return InvalidObjectException describing the problem
+     */
+    private static InvalidObjectException unexpected(int b, String expected) {
+        return new InvalidObjectException("Malformed WELCOME, expected " + expected + " but got "
+                + (b == -1 ? "end of stream" : "'" + (char) b + "'"));
+    }
+}
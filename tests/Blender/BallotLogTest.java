@@ -0,0 +1,223 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Blender;
+
+import Model.Checks;
+import Model.Vote;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static Model.Checks.check;
+import static Model.Checks.checkEquals;
+import static Model.Checks.checkThrows;
+
+/**
+ * Checks that the ballot log recovers the tallies it was closed with, across snapshots, and that a record left partly
+ * written by a crash is cut off without losing the ballots before it
+ */
+public class BallotLogTest {
+    private static final String VOTE_ID = "election";
+    private static final String[] OPTIONS = {"Alice", "Bob", "Carol"};
+
+    public static void main(String[] args) {
+        Checks checks = new Checks("BallotLogTest");
+        checks.run("tallies recovered after a restart", BallotLogTest::recover);
+        checks.run("tallies recovered from a snapshot and the segments after it", BallotLogTest::snapshots);
+        checks.run("record cut short by a crash is cut off", () -> tornTail(false));
+        checks.run("record with a bad checksum is cut off", () -> tornTail(true));
+        checks.run("corrupt segment before the last fails recovery", BallotLogTest::corruptMiddle);
+        checks.run("ballots without a selection are dropped on recovery", BallotLogTest::incomplete);
+        checks.finish();
+    }
+
+    private static void recover() throws Exception {
+        Path dir = Files.createTempDirectory("ballot-log");
+        HashMap<String, Long> expected = new HashMap<>();
+
+        BallotLog log = new BallotLog(dir, 1000);
+        checkEquals(0, log.getRecovered().size(), "votes recovered from an empty directory");
+        append(log, expected, 0, 100);
+        log.close();
+
+        log = new BallotLog(dir, 1000);
+        checkEquals(expected, log.getRecovered().get(VOTE_ID), "tallies after the first restart");
+        append(log, expected, 100, 50);
+        log.close();
+
+        log = new BallotLog(dir, 1000);
+        checkEquals(expected, log.getRecovered().get(VOTE_ID), "tallies after the second restart");
+        log.close();
+    }
+
+    /**
+     * With a small interval the log rolls and snapshots many times, recovery starts from the snapshot and only the
+     * segments after it are left
+     */
+    private static void snapshots() throws Exception {
+        Path dir = Files.createTempDirectory("ballot-log");
+        HashMap<String, Long> expected = new HashMap<>();
+
+        BallotLog log = new BallotLog(dir, 10);
+        for (int i = 0; i < 35; i++) {
+            append(log, expected, i * 3, 3);
+        }
+        log.close();
+
+        check(Files.exists(dir.resolve("tallies.snapshot")), "no snapshot written");
+        check(segments(dir).size() <= 2, "segments covered by the snapshot were kept " + segments(dir));
+
+        log = new BallotLog(dir, 10);
+        checkEquals(expected, log.getRecovered().get(VOTE_ID), "tallies after a restart");
+        log.close();
+    }
+
+    /**
+     * The last segment gets a record that a crash left partly written, recovery keeps every ballot before it and cuts
+     * the segment back so ballots appended after the restart are not lost behind it
+     *
+     * @param badChecksum boolean true to leave a whole record whose checksum does not match, false to leave a record
+     *                    shorter than its length says
+     */
+    private static void tornTail(boolean badChecksum) throws Exception {
+        Path dir = Files.createTempDirectory("ballot-log");
+        HashMap<String, Long> expected = new HashMap<>();
+
+        BallotLog log = new BallotLog(dir, 1000);
+        append(log, expected, 0, 20);
+        log.close();
+
+        Path last = segments(dir).get(segments(dir).size() - 1);
+        long whole = Files.size(last);
+        ByteBuffer torn = ByteBuffer.allocate(8 + 16);
+        torn.putInt(badChecksum ? 16 : 100).putInt(0x12345678).put(new byte[16]).flip();
+        try (FileChannel channel = FileChannel.open(last, StandardOpenOption.APPEND)) {
+            channel.write(torn);
+        }
+
+        log = new BallotLog(dir, 1000);
+        checkEquals(expected, log.getRecovered().get(VOTE_ID), "tallies after the crash");
+        checkEquals(whole, Files.size(last), "size of the segment after it was cut back");
+        append(log, expected, 20, 10);
+        log.close();
+
+        log = new BallotLog(dir, 1000);
+        checkEquals(expected, log.getRecovered().get(VOTE_ID), "tallies of ballots appended after the crash");
+        log.close();
+    }
+
+    /**
+     * Only the newest segment can end in a torn record, a bad one before it means the disk lost ballots that were
+     * already counted so the Blender must not start with the wrong tallies
+     */
+    private static void corruptMiddle() throws Exception {
+        Path dir = Files.createTempDirectory("ballot-log");
+        HashMap<String, Long> expected = new HashMap<>();
+
+        BallotLog log = new BallotLog(dir, 1000);
+        append(log, expected, 0, 20);
+        log.close();
+        // each open starts a new segment, so the ballots above are no longer in the last one
+        log = new BallotLog(dir, 1000);
+        log.close();
+
+        Path first = segments(dir).get(0);
+        try (FileChannel channel = FileChannel.open(first, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) 0xFF}), Files.size(first) - 1);
+        }
+
+        checkThrows(InvalidObjectException.class, () -> new BallotLog(dir, 1000), "opening a corrupt log");
+    }
+
+    /**
+     * A ballot without a selection or vote id logged by a Blender that did not check for them is dropped on recovery,
+     * in a segment and in a snapshot, and every tally recovered can be restored into a VoteTally
+     */
+    private static void incomplete() throws Exception {
+        Path dir = Files.createTempDirectory("ballot-log");
+        HashMap<String, Long> expected = new HashMap<>();
+
+        BallotLog log = new BallotLog(dir, 1000);
+        append(log, expected, 0, 10);
+        log.append(List.of(new Vote.Builder(VOTE_ID).build(), new Vote.Builder(null).setSelection("Alice").build()))
+                .get(5, TimeUnit.SECONDS);
+        append(log, expected, 10, 10);
+        log.close();
+
+        log = new BallotLog(dir, 1000);
+        checkRestores(log);
+        checkEquals(expected, log.getRecovered().get(VOTE_ID), "tallies from the segments");
+        log.close();
+
+        // a snapshot taken from tallies that held the null option must not bring it back either
+        log = new BallotLog(dir, 5);
+        log.append(List.of(new Vote.Builder(VOTE_ID).build())).get(5, TimeUnit.SECONDS);
+        append(log, expected, 20, 12);
+        log.close();
+        check(Files.exists(dir.resolve("tallies.snapshot")), "no snapshot written");
+
+        log = new BallotLog(dir, 5);
+        checkRestores(log);
+        checkEquals(expected, log.getRecovered().get(VOTE_ID), "tallies from the snapshot");
+        log.close();
+    }
+
+    /**
+     * Restores the recovered tallies the way Blender does, failing on a vote or option that cannot be counted
+     */
+    private static void checkRestores(BallotLog log) {
+        check(!log.getRecovered().containsKey(null), "ballots without a vote id recovered");
+        for (HashMap<String, Long> options : log.getRecovered().values()) {
+            check(!options.containsKey(null), "ballots without a selection recovered");
+            VoteTally tally = new VoteTally();
+            for (Map.Entry<String, Long> option : options.entrySet()) {
+                tally.cast(option.getKey(), option.getValue());
+            }
+        }
+    }
+
+    /**
+     * Appends ballots one record at a time and waits for them to be synced
+     *
+     * @param log      BallotLog to append to
+     * @param expected HashMap counts the log should hold, updated with the ballots appended
+     * @param from     int number of the first ballot, picks its option
+     * @param count    int ballots to append
+     */
+    private static void append(BallotLog log, HashMap<String, Long> expected, int from, int count) throws Exception {
+        List<CompletableFuture<Void>> synced = new ArrayList<>();
+        for (int i = from; i < from + count; i++) {
+            String option = OPTIONS[i % OPTIONS.length];
+            synced.add(log.append(List.of(new Vote.Builder(VOTE_ID).setSelection(option).build())));
+            expected.merge(option, 1L, Long::sum);
+        }
+        for (CompletableFuture<Void> future : synced) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private static List<Path> segments(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.getFileName().toString().startsWith("ballots-")).sorted().toList();
+        }
+    }
+}
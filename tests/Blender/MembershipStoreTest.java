@@ -0,0 +1,179 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Blender;
+
+import Jondo.Jondo;
+import Model.Checks;
+import Model.Configuration;
+import Model.Node;
+import Model.NodeId;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static Model.Checks.awaitListening;
+import static Model.Checks.check;
+import static Model.Checks.checkEquals;
+
+/**
+ * Checks that the membership store gives a restarted Blender back the crowd and epoch it had, from the log, from a
+ * snapshot, and when a crash left the log half cleared or ending in a partly written change
+ */
+public class MembershipStoreTest {
+    private static final String ADDR = "127.0.0.1";
+    /**
+     * Port of the Blender of the restart check, the Jondo and the restarted Blender use the ports after it
+     */
+    private static final int BASE_PORT = 17240;
+
+    public static void main(String[] args) {
+        Checks checks = new Checks("MembershipStoreTest");
+        checks.run("crowd restored from the log", MembershipStoreTest::fromLog);
+        checks.run("crowd restored from a snapshot and the log after it", MembershipStoreTest::fromSnapshot);
+        checks.run("changes already in the snapshot are skipped", MembershipStoreTest::logNotCleared);
+        checks.run("change cut short by a crash is cut off", MembershipStoreTest::tornTail);
+        checks.run("restarted Blender keeps the crowd", MembershipStoreTest::restartBlender);
+        checks.finish();
+    }
+
+    private static void fromLog() throws Exception {
+        Path dir = Files.createTempDirectory("membership");
+        VersionedRoutingTable table = new VersionedRoutingTable(VersionedRoutingTable.DEFAULT_HISTORY,
+                new MembershipStore(dir));
+        for (int i = 0; i < 5; i++) {
+            table.add(jondo(i));
+        }
+        table.remove(jondo(1));
+        table.remove(jondo(3));
+
+        checkRestored(dir, table);
+    }
+
+    /**
+     * Enough changes to compact the log into a snapshot several times, with leaves among them
+     */
+    private static void fromSnapshot() throws Exception {
+        Path dir = Files.createTempDirectory("membership");
+        VersionedRoutingTable table = new VersionedRoutingTable(VersionedRoutingTable.DEFAULT_HISTORY,
+                new MembershipStore(dir));
+        for (int i = 0; i < 3000; i++) {
+            table.add(jondo(i));
+            if (i % 3 == 0) {
+                table.remove(jondo(i / 2));
+            }
+        }
+
+        check(Files.exists(dir.resolve("membership.snapshot")), "no snapshot written");
+        checkRestored(dir, table);
+    }
+
+    /**
+     * A crash after the snapshot was written but before the log was cleared leaves changes in the log that the
+     * snapshot already holds, replaying them again would bring back Jondos that left before the snapshot
+     */
+    private static void logNotCleared() throws Exception {
+        Path dir = Files.createTempDirectory("membership");
+        VersionedRoutingTable table = new VersionedRoutingTable(VersionedRoutingTable.DEFAULT_HISTORY,
+                new MembershipStore(dir));
+
+        // the first compaction comes with the 1025th change, make it the leave of the first Jondo that joined
+        for (int i = 0; i < 1024; i++) {
+            table.add(jondo(i));
+        }
+        Path log = dir.resolve("membership.log");
+        Path saved = dir.resolve("saved.log");
+        Files.copy(log, saved);
+        table.remove(jondo(0));
+        check(Files.exists(dir.resolve("membership.snapshot")), "no snapshot written");
+
+        // put back the log as it was before it was cleared, the join of the first Jondo is still in it
+        Files.move(saved, log, StandardCopyOption.REPLACE_EXISTING);
+        checkRestored(dir, table);
+    }
+
+    private static void tornTail() throws Exception {
+        Path dir = Files.createTempDirectory("membership");
+        VersionedRoutingTable table = new VersionedRoutingTable(VersionedRoutingTable.DEFAULT_HISTORY,
+                new MembershipStore(dir));
+        for (int i = 0; i < 10; i++) {
+            table.add(jondo(i));
+        }
+
+        Path log = dir.resolve("membership.log");
+        long whole = Files.size(log);
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.allocate(12).putInt(40).putInt(0x12345678).putInt(0).flip());
+        }
+
+        checkRestored(dir, table);
+        checkEquals(whole, Files.size(log), "size of the log after it was cut back");
+
+        // changes logged after the restart follow on from the last whole one
+        MembershipStore store = new MembershipStore(dir);
+        VersionedRoutingTable restarted = new VersionedRoutingTable(VersionedRoutingTable.DEFAULT_HISTORY, store);
+        restarted.add(jondo(10));
+        restarted.remove(jondo(0));
+        checkRestored(dir, restarted);
+    }
+
+    /**
+     * A Blender with a membership store, a Jondo joins it, and a Blender started on the same store has the Jondo in
+     * its table at the same epoch without the Jondo joining again
+     */
+    private static void restartBlender() throws Exception {
+        Path dir = Files.createTempDirectory("membership");
+        Blender blender = new Blender(new Configuration.Builder("blender").setAddr(ADDR).setPort(BASE_PORT)
+                .setThreads(2).setMembershipStore(dir.toString()).build());
+        awaitListening(ADDR, BASE_PORT);
+        new Jondo(new Configuration.Builder("jondo").setAddr(ADDR).setPort(BASE_PORT + 1).setThreads(2)
+                .setBlender(ADDR, BASE_PORT).build(), null);
+        checkEquals(1, blender.getRoutingTable().size(), "Jondos in the Blender's table");
+
+        Blender restarted = new Blender(new Configuration.Builder("blender").setAddr(ADDR).setPort(BASE_PORT + 2)
+                .setThreads(2).setMembershipStore(dir.toString()).build());
+        checkEquals(blender.getEpoch(), restarted.getEpoch(), "epoch of the restarted Blender");
+        checkEquals(blender.getRoutingTable().keySet(), restarted.getRoutingTable().keySet(),
+                "Jondos in the restarted Blender's table");
+    }
+
+    /**
+     * Opens the store again and checks it loads the table and epoch it was left with
+     *
+     * @param dir   Path of the store
+     * @param table VersionedRoutingTable that wrote to the store
+     */
+    private static void checkRestored(Path dir, VersionedRoutingTable table) throws Exception {
+        MembershipStore store = new MembershipStore(dir);
+        checkEquals(table.getEpoch(), store.getEpoch(), "epoch restored");
+        checkEquals(addresses(table.getNodes()), addresses(store.getNodes()), "Jondos restored");
+    }
+
+    /**
+     * Gets the address of each Jondo by its UID, so a Jondo restored under the wrong UID shows up
+     */
+    private static Map<NodeId, String> addresses(ConcurrentHashMap<NodeId, Node> nodes) {
+        Map<NodeId, String> addresses = new HashMap<>();
+        for (Map.Entry<NodeId, Node> entry : nodes.entrySet()) {
+            addresses.put(entry.getKey(), entry.getValue().getAddr() + ":" + entry.getValue().getPort());
+        }
+        return addresses;
+    }
+
+    private static Node jondo(int i) {
+        return new Node("10.0." + (i >> 8 & 0xFF) + "." + (i & 0xFF), 5000 + i % 7);
+    }
+}
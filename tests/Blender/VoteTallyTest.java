@@ -0,0 +1,231 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Blender;
+
+import Model.Checks;
+import Model.Configuration;
+import Model.Node;
+import Model.Vote;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static Model.Checks.check;
+import static Model.Checks.checkEquals;
+
+/**
+ * Casts ballots from many threads at once while other threads take snapshots, then checks no ballot was lost and no
+ * snapshot counted a ballot twice or went backwards
+ */
+public class VoteTallyTest {
+    /**
+     * Threads casting ballots at once
+     */
+    private static final int CASTERS = 16;
+    /**
+     * Ballots each caster casts
+     */
+    private static final int BALLOTS = 100000;
+    /**
+     * Threads taking snapshots while the casters run
+     */
+    private static final int READERS = 2;
+    /**
+     * Options ballots are cast for, every caster also hits the first one so it is contended
+     */
+    private static final String[] OPTIONS = {"Alice", "Bob", "Carol", "Dave", "Eve"};
+    /**
+     * Port of the Blender ballots are counted by
+     */
+    private static final int BLENDER_PORT = 17260;
+
+    public static void main(String[] args) {
+        Checks checks = new Checks("VoteTallyTest");
+        checks.run(CASTERS + " threads casting one at a time", () -> stress(false));
+        checks.run(CASTERS + " threads casting in bulk", () -> stress(true));
+        checks.run("snapshots taken under a steady stream of votes are consistent", VoteTallyTest::consistent);
+        checks.run("batch with a ballot without a selection is counted but for that ballot", VoteTallyTest::incomplete);
+        checks.run("votes without ballots cannot be subscribed to", VoteTallyTest::unknownVote);
+        checks.finish();
+    }
+
+    /**
+     * Runs the casters and readers on one tally and checks the counts
+     *
+     * @param bulk boolean true to cast with cast(option, votes) as the ballot log does on recovery
+     */
+    private static void stress(boolean bulk) throws InterruptedException {
+        VoteTally tally = new VoteTally();
+        long[] expected = new long[OPTIONS.length];
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch casting = new CountDownLatch(CASTERS);
+        AtomicReference<String> readerError = new AtomicReference<>();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < CASTERS; t++) {
+            // half the ballots of each caster go to the first option, the rest to an option of its own
+            String own = OPTIONS[1 + t % (OPTIONS.length - 1)];
+            expected[0] += BALLOTS / 2;
+            expected[1 + t % (OPTIONS.length - 1)] += BALLOTS - BALLOTS / 2;
+
+            threads.add(new Thread(() -> {
+                await(start);
+                for (int i = 0; i < BALLOTS; i += bulk ? 2 : 1) {
+                    String option = i < BALLOTS / 2 ? OPTIONS[0] : own;
+                    if (bulk) {
+                        tally.cast(option, 2);
+                    } else {
+                        tally.cast(option);
+                    }
+                }
+                casting.countDown();
+            }));
+        }
+
+        for (int r = 0; r < READERS; r++) {
+            threads.add(new Thread(() -> {
+                await(start);
+                HashMap<String, Integer> last = new HashMap<>();
+                while (casting.getCount() > 0 && readerError.get() == null) {
+                    HashMap<String, Integer> snapshot = tally.snapshot();
+                    long counted = 0;
+                    for (String option : OPTIONS) {
+                        int votes = snapshot.getOrDefault(option, 0);
+                        if (votes < last.getOrDefault(option, 0)) {
+                            readerError.set(option + " went from " + last.get(option) + " to " + votes);
+                        }
+                        counted += votes;
+                    }
+                    if (counted > (long) CASTERS * BALLOTS) {
+                        readerError.set("snapshot counted " + counted + " of " + (long) CASTERS * BALLOTS);
+                    }
+                    last = snapshot;
+                }
+            }));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        checkEquals(null, readerError.get(), "snapshot taken while casting");
+
+        HashMap<String, Integer> results = tally.snapshot();
+        long counted = 0;
+        for (int i = 0; i < OPTIONS.length; i++) {
+            checkEquals((int) expected[i], results.get(OPTIONS[i]), "votes for " + OPTIONS[i]);
+            counted += results.get(OPTIONS[i]);
+        }
+        checkEquals(OPTIONS.length, results.size(), "options in snapshot");
+        checkEquals((long) CASTERS * BALLOTS, tally.getTotal(), "total");
+        check(counted == tally.getTotal(), "options add up to " + counted + " but total is " + tally.getTotal());
+    }
+
+    /**
+     * Each caster alternates between two options of its own, so at any moment its first option has the same number of
+     * votes as its second or one more. A snapshot that read the options at different moments, or gave up on a
+     * consistent read, shows up as a caster whose second option is ahead or whose first is two ahead.
+     */
+    private static void consistent() throws InterruptedException {
+        VoteTally tally = new VoteTally();
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean casting = new AtomicBoolean(true);
+        AtomicReference<String> readerError = new AtomicReference<>();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < CASTERS; t++) {
+            String first = "first-" + t;
+            String second = "second-" + t;
+            threads.add(new Thread(() -> {
+                await(start);
+                while (casting.get()) {
+                    tally.cast(first);
+                    tally.cast(second);
+                }
+            }));
+        }
+        Thread reader = new Thread(() -> {
+            await(start);
+            for (int i = 0; i < 2000 && readerError.get() == null; i++) {
+                HashMap<String, Integer> snapshot = tally.snapshot();
+                for (int t = 0; t < CASTERS; t++) {
+                    int ahead = snapshot.getOrDefault("first-" + t, 0) - snapshot.getOrDefault("second-" + t, 0);
+                    if (ahead != 0 && ahead != 1) {
+                        readerError.set("caster " + t + " first option " + ahead + " ahead in snapshot " + i);
+                    }
+                }
+            }
+            casting.set(false);
+        });
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        reader.start();
+        start.countDown();
+        reader.join();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        checkEquals(null, readerError.get(), "snapshot taken while casting");
+    }
+
+    /**
+     * A ballot without a selection in the middle of a batch used to stop the count partway through the batch
+     */
+    private static void incomplete() {
+        Blender blender = new Blender(new Configuration.Builder("blender").setAddr("127.0.0.1").setPort(BLENDER_PORT)
+                .setThreads(2).build());
+        blender.tallyVotes(List.of(new Vote.Builder("election").setSelection("Alice").build(),
+                new Vote.Builder("election").build(), new Vote.Builder(null).setSelection("Bob").build(),
+                new Vote.Builder("election").setSelection("Bob").build()));
+        blender.tallyVote("election", null);
+
+        HashMap<String, Integer> expected = new HashMap<>();
+        expected.put("Alice", 1);
+        expected.put("Bob", 1);
+        checkEquals(expected, blender.getVoteResults("election"), "tallies");
+    }
+
+    /**
+     * Subscribing to a made up voteId used to keep an entry for it forever
+     */
+    private static void unknownVote() {
+        Blender blender = new Blender(new Configuration.Builder("blender").setAddr("127.0.0.1").setPort(BLENDER_PORT)
+                .setThreads(2).build());
+        ResultsPublisher publisher = blender.getResultsPublisher();
+        check(!publisher.subscribe("nobody", new Node("127.0.0.1", BLENDER_PORT + 1), 0, 0), "subscribed");
+        checkEquals(0L, publisher.getSubscriptions(), "subscriptions");
+        checkEquals(0L, publisher.get("nobody").getVersion(), "version without ballots");
+        checkEquals(List.of(), publisher.get("nobody").getResults().getResults(), "results without ballots");
+
+        blender.tallyVote("election", "Alice");
+        ResultsPublisher.Snapshot snapshot = publisher.get("election");
+        checkEquals(1L, snapshot.getVersion(), "version");
+        check(snapshot.getEpoch() > 0, "epoch set");
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
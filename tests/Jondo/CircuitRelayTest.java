@@ -0,0 +1,178 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Jondo;
+
+import Blender.Blender;
+import Model.Checks;
+import Model.Configuration;
+import Model.EventLoopServer;
+import Model.Message;
+import Model.MessageCodec;
+import Model.MessageReader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static Model.Checks.awaitListening;
+import static Model.Checks.check;
+import static Model.Checks.checkEquals;
+
+/**
+ * Checks that with replies relayed the destination's reply comes back along the circuit to the Jondo that sent the
+ * DATA, on a crowd running on loopback with a stand-in destination
+ */
+public class CircuitRelayTest {
+    private static final String ADDR = "127.0.0.1";
+    /**
+     * Port of the Blender, the Jondos and destinations use the ports after it
+     */
+    private static final int BASE_PORT = 17220;
+    private static final int JONDOS = 4;
+    private static final int MAX_HOPS = 6;
+    /**
+     * Time in millis a Jondo waits for the next hop
+     */
+    private static final int HOP_TIMEOUT = 500;
+
+    /**
+     * Port of the destination that answers every DATA and of one that never answers
+     */
+    private static final int DESTINATION = BASE_PORT + JONDOS + 1;
+    private static final int SILENT = BASE_PORT + JONDOS + 2;
+
+    /**
+     * DATA the destination received by hop count
+     */
+    private static final AtomicIntegerArray hops = new AtomicIntegerArray(MAX_HOPS + 2);
+
+    public static void main(String[] args) throws Exception {
+        new Blender(new Configuration.Builder("blender").setAddr(ADDR).setPort(BASE_PORT).setThreads(4).build());
+        awaitListening(ADDR, BASE_PORT);
+
+        startDestinations();
+
+        List<Jondo> crowd = new ArrayList<>();
+        for (int i = 1; i <= JONDOS; i++) {
+            crowd.add(new Jondo(new Configuration.Builder("jondo").setAddr(ADDR).setPort(BASE_PORT + i).setThreads(4)
+                    .setReplies("relay").setHopTimeout(HOP_TIMEOUT).setForwardProbability(80).setMaxHops(MAX_HOPS)
+                    .setBlender(ADDR, BASE_PORT).build(), null));
+        }
+        for (Jondo jondo : crowd) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (jondo.getRoutingTable().size() < JONDOS && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+
+        Checks checks = new Checks("CircuitRelayTest");
+        checks.run("reply comes back to the sender", () -> reply(crowd.get(0)));
+        checks.run("replies of concurrent circuits are not mixed up", () -> concurrent(crowd));
+        checks.run("a hop that hears nothing back fails the circuit", () -> silent(crowd.get(0)));
+        checks.run("relayed replies keep the codec of the message they answer", CircuitRelayTest::replyCodec);
+        checks.finish();
+    }
+
+    private static void reply(Jondo sender) {
+        checkEquals("reply to hello", sender.send("hello", ADDR, DESTINATION), "data of the relayed reply");
+    }
+
+    /**
+     * Many DATA in flight from every Jondo at once, each gets the reply to its own data back. Most take more than one
+     * hop so replies pass through Jondos that relay other circuits at the same time.
+     */
+    private static void concurrent(List<Jondo> crowd) throws Exception {
+        for (int i = 0; i < hops.length(); i++) {
+            hops.set(i, 0);
+        }
+
+        List<CompletableFuture<Message>> replies = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            replies.add(crowd.get(i % JONDOS).sendAsync("message " + i, ADDR, DESTINATION, 10000));
+        }
+        for (int i = 0; i < replies.size(); i++) {
+            Message reply = replies.get(i).get(10, TimeUnit.SECONDS);
+            checkEquals("ACK", reply.getType(), "type of reply " + i);
+            checkEquals("reply to message " + i, reply.getData(), "data of reply " + i);
+        }
+
+        int longer = 0;
+        for (int i = 2; i < hops.length(); i++) {
+            longer += hops.get(i);
+        }
+        check(longer > 0, "no DATA took more than one hop, the relay was not exercised");
+    }
+
+    /**
+     * The last hop gives up after the hop timeout and the error comes back along the circuit, well before the
+     * sender's own timeout
+     */
+    private static void silent(Jondo sender) throws Exception {
+        long start = System.currentTimeMillis();
+        CompletableFuture<Message> reply = sender.sendAsync("anyone there", ADDR, SILENT, 30000);
+        try {
+            reply.get(10, TimeUnit.SECONDS);
+            throw new AssertionError("DATA to a destination that never answers got a reply");
+        } catch (ExecutionException e) {
+            check(e.getCause() instanceof IOException, "circuit should fail with an IOException but got "
+                    + e.getCause());
+        }
+        long took = System.currentTimeMillis() - start;
+        check(took < (long) (MAX_HOPS + 1) * HOP_TIMEOUT + 2000, "circuit took " + took + "ms to fail");
+    }
+
+    /**
+     * A binary DATA whose reply is relayed late, after a JSON DATA on the same connection was read, is still answered
+     * in binary
+     */
+    private static void replyCodec() throws IOException {
+        try (Socket sock = new Socket(ADDR, BASE_PORT + 1)) {
+            sock.setSoTimeout(10000);
+            OutputStream out = sock.getOutputStream();
+            out.write(MessageCodec.encode(new Message.Builder("DATA").setData(ADDR, SILENT, "anyone there")
+                    .setId("00000000000000b1").build(), MessageCodec.BINARY));
+            out.write(MessageCodec.encode(new Message.Builder("DATA").setData(ADDR, DESTINATION, "hello")
+                    .setId("00000000000000a1").build(), MessageCodec.JSON));
+            out.flush();
+
+            MessageReader in = new MessageReader(sock.getInputStream());
+            for (int i = 0; i < 2; i++) {
+                Message reply = in.read();
+                check(reply != null, "connection closed before both replies");
+                String expected = reply.getId().equals("00000000000000b1") ? MessageCodec.BINARY : MessageCodec.JSON;
+                checkEquals(expected, in.getLastCodec(), "codec of the reply to " + reply.getId());
+            }
+        }
+    }
+
+    /**
+     * Starts the destination that answers each DATA with an ACK whose data is the reply, and one that reads DATA and
+     * never answers
+     */
+    private static void startDestinations() throws IOException {
+        new EventLoopServer(DESTINATION, 1, Executors.newFixedThreadPool(2), () -> (message, reply) -> {
+            if (message.getType().equals("DATA")) {
+                hops.incrementAndGet(Math.min(message.getHops(), hops.length() - 1));
+                reply.reply(new Message.Builder("ACK").setAck(ADDR, DESTINATION).setId(message.getId())
+                        .setReplyData("reply to " + message.getData()).build());
+            }
+            return true;
+        }).start();
+
+        new EventLoopServer(SILENT, 1, Executors.newSingleThreadExecutor(), () -> (message, reply) -> true).start();
+    }
+}
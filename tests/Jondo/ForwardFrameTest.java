@@ -0,0 +1,180 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Jondo;
+
+import Blender.Blender;
+import Model.Checks;
+import Model.Configuration;
+import Model.EventLoopServer;
+import Model.Frame;
+import Model.FrameHandler;
+import Model.Message;
+import Model.MessageCodec;
+import Model.ReplyChannel;
+import Model.Vote;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static Model.Checks.awaitListening;
+import static Model.Checks.check;
+import static Model.Checks.checkEquals;
+
+/**
+ * Checks that a Jondo passing a DATA or VOTE_CAST on as the bytes it received sends exactly what decoding the message
+ * and encoding it again would have sent, in both codecs and to a peer in the other codec. A stand-in destination
+ * records the bytes each hop delivers.
+ */
+public class ForwardFrameTest {
+    private static final String ADDR = "127.0.0.1";
+    /**
+     * Port of the Blender, the Jondos and the destination use the ports after it
+     */
+    private static final int BASE_PORT = 17250;
+    private static final int DESTINATION = BASE_PORT + 3;
+
+    /**
+     * Frames the destination received, in order
+     */
+    private static final LinkedBlockingQueue<byte[]> delivered = new LinkedBlockingQueue<>();
+
+    public static void main(String[] args) throws Exception {
+        new Blender(new Configuration.Builder("blender").setAddr(ADDR).setPort(BASE_PORT).setThreads(2)
+                .setCodec(MessageCodec.BINARY).build());
+        awaitListening(ADDR, BASE_PORT);
+        new EventLoopServer(DESTINATION, 1, Executors.newSingleThreadExecutor(), Destination::new).start();
+
+        // never forward so each frame goes straight to the destination, with traces kept so traced frames pass too
+        new Jondo(new Configuration.Builder("jondo").setAddr(ADDR).setPort(BASE_PORT + 1).setThreads(2)
+                .setForwardProbability(0).setTraceBuffer(64).setCodec(MessageCodec.JSON)
+                .setBlender(ADDR, BASE_PORT).build(), null);
+        new Jondo(new Configuration.Builder("jondo").setAddr(ADDR).setPort(BASE_PORT + 2).setThreads(2)
+                .setServer("nio").setForwardProbability(0).setTraceBuffer(64).setCodec(MessageCodec.BINARY)
+                .setBlender(ADDR, BASE_PORT).build(), null);
+
+        Checks checks = new Checks("ForwardFrameTest");
+        for (String codec : List.of(MessageCodec.JSON, MessageCodec.BINARY)) {
+            checks.run("header read from " + codec + " frames matches the decoded message", () -> headers(codec));
+        }
+        for (String codec : List.of(MessageCodec.JSON, MessageCodec.BINARY)) {
+            for (String jondo : List.of(MessageCodec.JSON, MessageCodec.BINARY)) {
+                int port = BASE_PORT + (jondo.equals(MessageCodec.JSON) ? 1 : 2);
+                checks.run(codec + " frames through a " + jondo + " Jondo are sent as decoded and encoded again",
+                        () -> passOn(codec, jondo, port));
+            }
+        }
+        checks.finish();
+    }
+
+    /**
+     * Frame reads the routing header without decoding the payload, it must read the same values the full decoder
+     * does or the frame would be routed differently from the message
+     *
+     * @param codec String codec to encode in
+     */
+    private static void headers(String codec) throws IOException {
+        List<Message> messages = new ArrayList<>(examples());
+        messages.add(new Message.Builder("DATA").setData(ADDR, DESTINATION, "on a path").setId("0123456789abcdef")
+                .setHops(3).setPath("fedcba9876543210").build());
+        messages.add(new Message.Builder("VOTE_CAST").setVoteCast(ADDR, DESTINATION, ballot("Bob")).setHops(2)
+                .setTrace("00000000deadbeef").build());
+
+        for (Message message : messages) {
+            byte[] bytes = MessageCodec.encode(message, codec);
+            Frame frame = Frame.parse(bytes);
+            check(frame != null, message.getType() + " frame was not read");
+            Message decoded = MessageCodec.decode(bytes, 0, bytes.length);
+            String what = message.getType() + " ";
+            checkEquals(decoded.getType(), frame.getType(), what + "type");
+            checkEquals(decoded.getDstAddr(), frame.getDstAddr(), what + "dstAddr");
+            checkEquals(decoded.getDstPort(), frame.getDstPort(), what + "dstPort");
+            checkEquals(decoded.getId(), frame.getId(), what + "id");
+            checkEquals(decoded.getHops(), frame.getHops(), what + "hops");
+            checkEquals(decoded.getPath(), frame.getPath(), what + "path");
+            checkEquals(decoded.getTrace(), frame.getTrace(), what + "trace");
+            check(Arrays.equals(bytes, frame.getBytes()), what + "frame bytes changed");
+        }
+    }
+
+    /**
+     * Sends each example to a Jondo that delivers it and compares what reaches the destination with the message
+     * decoded and encoded again in the Jondo's codec. In the Jondo's own codec the frame is passed on as it came, in
+     * the other it is encoded again, either way the destination must get the same bytes.
+     *
+     * @param codec String codec the frames are sent to the Jondo in
+     * @param jondo String codec of the Jondo, the one it sends to the destination in
+     * @param port  int port of the Jondo
+     */
+    private static void passOn(String codec, String jondo, int port) throws Exception {
+        delivered.clear();
+        try (Socket sock = new Socket(ADDR, port)) {
+            OutputStream out = sock.getOutputStream();
+            for (Message message : examples()) {
+                byte[] bytes = MessageCodec.encode(message, codec);
+                check(Frame.parse(bytes) != null, message.getType() + " would not be passed on as a frame");
+                out.write(bytes);
+                out.flush();
+
+                byte[] received = delivered.poll(5, TimeUnit.SECONDS);
+                check(received != null, message.getType() + " never reached the destination");
+                byte[] expected = MessageCodec.encode(MessageCodec.decode(bytes, 0, bytes.length), jondo);
+                check(Arrays.equals(expected, received), message.getType() + " delivered as "
+                        + new String(received) + " but decoding and encoding again gives " + new String(expected));
+                if (codec.equals(jondo)) {
+                    check(Arrays.equals(bytes, received), message.getType() + " was not sent as it came");
+                }
+            }
+        }
+    }
+
+    /**
+     * Messages a Jondo passes on as it received them, with and without a trace id. Data and selections use braces,
+     * brackets and characters outside ASCII that the header reader has to skip over.
+     */
+    private static List<Message> examples() {
+        return List.of(
+                new Message.Builder("DATA").setData(ADDR, DESTINATION, "hello").setId("0123456789abcdef").build(),
+                new Message.Builder("DATA").setData(ADDR, DESTINATION, "{nested: [1, 2]} caf\u00e9 \u2603")
+                        .setId("1123456789abcdef").setTrace("00000000cafebabe").build(),
+                new Message.Builder("VOTE_CAST").setVoteCast(ADDR, DESTINATION, ballot("Alice")).build(),
+                new Message.Builder("VOTE_CAST_BATCH").setVoteCastBatch(ADDR, DESTINATION,
+                        List.of(ballot("Alice"), ballot("B\u00f6b"), ballot("Carol"))).setTrace("00000000feedface")
+                        .build());
+    }
+
+    private static Vote ballot(String selection) {
+        return new Vote.Builder("election").setSelection(selection).build();
+    }
+
+    /**
+     * Records the bytes of each frame it receives, anything else is recorded encoded in JSON so it shows up as a
+     * mismatch
+     */
+    private static class Destination implements FrameHandler {
+        @Override
+        public boolean handleFrame(Frame frame, ReplyChannel reply) {
+            delivered.add(frame.getBytes());
+            return true;
+        }
+
+        @Override
+        public boolean handleMessage(Message message, ReplyChannel reply) {
+            delivered.add(MessageCodec.encode(message, MessageCodec.JSON));
+            return true;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Jondo;
+
+import Model.Checks;
+import Model.ConnectionPool;
+import Model.EventLoopServer;
+import Model.Node;
+import Model.RoutingIndex;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+
+import static Model.Checks.check;
+import static Model.Checks.checkEquals;
+
+/**
+ * Checks that a PathPool keeps sending along the paths it has while new ones are opened, and only replaces the paths
+ * that are too old or whose first Jondo left. The crowd is stand-in Jondos that count the PATH_OPENs they get.
+ */
+public class PathPoolTest {
+    private static final String ADDR = "127.0.0.1";
+    /**
+     * Port of the first stand-in Jondo, the others follow it
+     */
+    private static final int BASE_PORT = 17210;
+    private static final int JONDOS = 3;
+    /**
+     * Paths each pool keeps open
+     */
+    private static final int PATHS = 2;
+
+    /**
+     * Ids of the paths each stand-in Jondo was asked to open, by port
+     */
+    private static final ConcurrentHashMap<Integer, Set<String>> opened = new ConcurrentHashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i < JONDOS; i++) {
+            int port = BASE_PORT + i;
+            opened.put(port, ConcurrentHashMap.newKeySet());
+            new EventLoopServer(port, 1, Executors.newSingleThreadExecutor(), () -> (message, reply) -> {
+                if (message.getType().equals("PATH_OPEN")) {
+                    opened.get(port).add(message.getPath());
+                }
+                return true;
+            }).start();
+        }
+
+        Checks checks = new Checks("PathPoolTest");
+        checks.run("warm opens every path", PathPoolTest::warm);
+        checks.run("a Jondo joining keeps the paths", PathPoolTest::join);
+        checks.run("a first hop leaving replaces only its path", PathPoolTest::leave);
+        checks.run("expired paths are used until their replacements are open", PathPoolTest::expire);
+        checks.finish();
+    }
+
+    private static void warm() throws Exception {
+        PathPool pool = newPool(crowd(), 60000);
+        pool.warm();
+
+        awaitOpens(PATHS);
+        checkEquals(PATHS, used(pool).size(), "paths in use");
+    }
+
+    private static void join() throws Exception {
+        RoutingIndex crowd = crowd();
+        PathPool pool = newPool(crowd, 60000);
+        pool.warm();
+        awaitOpens(PATHS);
+        Set<String> before = used(pool);
+
+        crowd.putIfAbsent(new Node(ADDR, BASE_PORT + JONDOS));
+        checkEquals(before, used(pool), "paths in use after a join");
+        // give the refresh the join queued time to run
+        Thread.sleep(200);
+        checkEquals(PATHS, opens(), "PATH_OPENs after a join");
+        checkEquals(before, used(pool), "paths in use after the refresh");
+    }
+
+    private static void leave() throws Exception {
+        RoutingIndex crowd = crowd();
+        PathPool pool = newPool(crowd, 60000);
+        pool.warm();
+        awaitOpens(PATHS);
+
+        Node left = pool.next().getFirstHop();
+        Set<String> gone = new HashSet<>();
+        Set<String> staying = new HashSet<>();
+        for (int i = 0; i < 200; i++) {
+            PathPool.Path path = pool.next();
+            (path.getFirstHop().getId().equals(left.getId()) ? gone : staying).add(path.getId());
+        }
+        crowd.remove(left.getId());
+
+        // before the refresh has run the paths through the Jondo that left are already skipped
+        for (int i = 0; i < 100; i++) {
+            PathPool.Path path = pool.next();
+            check(path == null || !gone.contains(path.getId()), "path through a Jondo that left was used");
+        }
+
+        // one new path for each path through the Jondo that left
+        awaitOpens(PATHS + gone.size());
+        Set<String> after = used(pool);
+        checkEquals(PATHS, after.size(), "paths in use after the refresh");
+        check(after.containsAll(staying), "a path through a Jondo still in the crowd was replaced");
+        for (String id : gone) {
+            check(!after.contains(id), "path through a Jondo that left is still in use");
+        }
+    }
+
+    private static void expire() throws Exception {
+        PathPool pool = newPool(crowd(), 300);
+        pool.warm();
+        awaitOpens(PATHS);
+        Set<String> before = used(pool);
+
+        Thread.sleep(400);
+        // the first call after expiry queues the refresh and still gets one of the old paths
+        PathPool.Path path = pool.next();
+        check(path != null, "no path while the replacements are opened");
+
+        awaitOpens(2 * PATHS);
+        Set<String> after = used(pool);
+        checkEquals(PATHS, after.size(), "paths in use after the refresh");
+        after.retainAll(before);
+        check(after.isEmpty(), "expired paths still in use " + after);
+    }
+
+    private static PathPool newPool(RoutingIndex crowd, long lifetime) {
+        for (Set<String> ids : opened.values()) {
+            ids.clear();
+        }
+        return new PathPool(crowd, new CoinFlipPolicy(50, 0), new ConnectionPool(), PATHS, lifetime);
+    }
+
+    private static RoutingIndex crowd() {
+        RoutingIndex crowd = new RoutingIndex();
+        for (int i = 0; i < JONDOS; i++) {
+            crowd.putIfAbsent(new Node(ADDR, BASE_PORT + i));
+        }
+        return crowd;
+    }
+
+    /**
+     * Gets the ids of the paths a pool hands out, drawing enough of them to see every one
+     */
+    private static Set<String> used(PathPool pool) {
+        Set<String> ids = new HashSet<>();
+        for (int i = 0; i < 200; i++) {
+            ids.add(pool.next().getId());
+        }
+        return ids;
+    }
+
+    private static int opens() {
+        int count = 0;
+        for (Set<String> ids : opened.values()) {
+            count += ids.size();
+        }
+        return count;
+    }
+
+    private static void awaitOpens(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (opens() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        checkEquals(count, opens(), "PATH_OPENs received");
+        // the pool publishes its paths once the last PATH_OPEN is sent
+        Thread.sleep(100);
+    }
+}
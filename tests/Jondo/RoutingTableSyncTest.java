@@ -0,0 +1,168 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Jondo;
+
+import Model.Checks;
+import Model.ConnectionPool;
+import Model.EventLoopServer;
+import Model.Message;
+import Model.Node;
+import Model.RoutingIndex;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static Model.Checks.check;
+import static Model.Checks.checkEquals;
+
+/**
+ * Checks that a SYNC_DELTA older than the updates a Jondo already applied does not undo them, using a stand-in
+ * Blender that answers each SYNC with the next delta it was given
+ */
+public class RoutingTableSyncTest {
+    private static final String ADDR = "127.0.0.1";
+    /**
+     * Port of the stand-in Blender
+     */
+    private static final int BLENDER_PORT = 17200;
+
+    private static final Node SELF = new Node(ADDR, 17201);
+    private static final Node ALICE = new Node("10.0.0.1", 5001);
+    private static final Node BOB = new Node("10.0.0.2", 5002);
+
+    /**
+     * Deltas the stand-in Blender answers with, in order
+     */
+    private static final ConcurrentLinkedQueue<Message> answers = new ConcurrentLinkedQueue<>();
+    /**
+     * Run by the stand-in Blender once before it answers, to deliver a LEAVE while the SYNC is in flight
+     */
+    private static volatile Runnable inFlight;
+
+    public static void main(String[] args) throws Exception {
+        EventLoopServer blender = new EventLoopServer(BLENDER_PORT, 1, Executors.newSingleThreadExecutor(),
+                () -> (message, reply) -> {
+                    Runnable during = inFlight;
+                    inFlight = null;
+                    if (during != null) {
+                        during.run();
+                    }
+                    Message answer = answers.poll();
+                    if (message.getType().equals("SYNC") && answer != null) {
+                        reply.reply(new Message.Builder(answer).setId(message.getId()).build());
+                    }
+                    return true;
+                });
+        blender.start();
+
+        Checks checks = new Checks("RoutingTableSyncTest");
+        checks.run("delta older than an applied LEAVE is dropped", RoutingTableSyncTest::olderThanLeave);
+        checks.run("delta older than a LEAVE held ahead of a gap is dropped and synced again",
+                RoutingTableSyncTest::olderThanAhead);
+        checks.run("full table older than our epoch is dropped", RoutingTableSyncTest::olderFullTable);
+        checks.run("full table from a restarted Blender replaces the table", RoutingTableSyncTest::restartedBlender);
+        checks.finish();
+    }
+
+    /**
+     * A SYNC is sent at epoch 5, a LEAVE at epoch 6 is applied while it is in flight, then the answer taken at
+     * epoch 5 arrives still holding Alice
+     */
+    private static void olderThanLeave() throws Exception {
+        RoutingIndex table = new RoutingIndex(List.of(SELF, ALICE, BOB));
+        RoutingTableSync sync = newSync(table, 5);
+
+        inFlight = () -> sync.onLeave(leave(ALICE, 6));
+        answers.add(delta(5, false, List.of(ALICE), List.of()));
+        sync.sync().get(5, TimeUnit.SECONDS);
+
+        check(!table.contains(ALICE.getId()), "Alice left at epoch 6 and should stay gone");
+        checkEquals(6, sync.getEpoch(), "epoch");
+    }
+
+    /**
+     * A LEAVE at epoch 7 arrives while epoch 6 is missing, the delta answering our SYNC was taken at epoch 6 and
+     * still holds Alice. It must be dropped and the SYNC sent again, the second answer fills the gap.
+     */
+    private static void olderThanAhead() throws Exception {
+        RoutingIndex table = new RoutingIndex(List.of(SELF, ALICE, BOB));
+        RoutingTableSync sync = newSync(table, 5);
+
+        sync.onLeave(leave(ALICE, 7));
+        check(!table.contains(ALICE.getId()), "LEAVE ahead of a gap is applied straight away");
+        checkEquals(5, sync.getEpoch(), "epoch while 6 is missing");
+
+        answers.add(delta(6, false, List.of(new Node("10.0.0.3", 5003)), List.of()));
+        answers.add(delta(7, false, List.of(new Node("10.0.0.3", 5003)), List.of(ALICE)));
+        sync.sync().get(5, TimeUnit.SECONDS);
+        checkEquals(1L, sync.getStaleDeltas(), "stale deltas");
+        check(!table.contains(ALICE.getId()), "stale delta should not add Alice back");
+
+        // the second SYNC runs on the sync thread
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sync.getEpoch() != 7 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        checkEquals(7, sync.getEpoch(), "epoch after the second SYNC");
+        check(table.contains(new Node("10.0.0.3", 5003).getId()), "second delta should be applied");
+        check(!table.contains(ALICE.getId()), "Alice should stay gone");
+    }
+
+    /**
+     * A full table taken at epoch 8, for a Jondo that had fallen far behind, arrives after a LEAVE at epoch 9 was
+     * applied while the SYNC was in flight
+     */
+    private static void olderFullTable() throws Exception {
+        RoutingIndex table = new RoutingIndex(List.of(SELF, ALICE, BOB));
+        RoutingTableSync sync = newSync(table, 8);
+
+        inFlight = () -> sync.onLeave(leave(BOB, 9));
+        answers.add(delta(8, true, List.of(SELF, ALICE, BOB), List.of()));
+        sync.sync().get(5, TimeUnit.SECONDS);
+
+        check(!table.contains(BOB.getId()), "Bob left at epoch 9 and should stay gone");
+        checkEquals(9, sync.getEpoch(), "epoch should not move backwards");
+    }
+
+    /**
+     * A Blender that restarted without its membership store numbers from scratch and answers a Jondo ahead of it
+     * with the whole table at its lower epoch
+     */
+    private static void restartedBlender() throws Exception {
+        RoutingIndex table = new RoutingIndex(List.of(SELF, ALICE, BOB));
+        RoutingTableSync sync = newSync(table, 40);
+
+        answers.add(delta(2, true, List.of(SELF, BOB), List.of()));
+        sync.sync().get(5, TimeUnit.SECONDS);
+
+        check(!table.contains(ALICE.getId()), "Alice is not in the restarted Blender's table");
+        checkEquals(2, table.size(), "Jondos in table");
+        checkEquals(2, sync.getEpoch(), "epoch of the restarted Blender");
+    }
+
+    private static RoutingTableSync newSync(RoutingIndex table, int epoch) {
+        answers.clear();
+        inFlight = null;
+        RoutingTableSync sync = new RoutingTableSync(table, new ConnectionPool(), SELF.getAddr(), SELF.getPort(), ADDR,
+                BLENDER_PORT);
+        sync.setEpoch(epoch);
+        return sync;
+    }
+
+    private static Message leave(Node node, int epoch) {
+        return new Message.Builder("LEAVE").setLeave(node.getAddr(), node.getPort()).setEpoch(epoch).build();
+    }
+
+    private static Message delta(int epoch, boolean full, List<Node> added, List<Node> removed) {
+        return new Message.Builder("SYNC_DELTA").setSyncDelta(epoch, full, added, removed).build();
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Model;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Objects;
+
+/**
+ * Runs the checks of a test class and reports each one. Tests are plain classes with a main, like the benchmarks, so
+ * they build with ant and nothing but the jars in lib. A test class exits with status 1 if any check failed, which
+ * fails `ant test`.
+ */
+public class Checks {
+    /**
+     * Name of the test class being run
+     */
+    private String suite;
+    /**
+     * Checks run and checks that failed so far
+     */
+    private int run;
+    private int failed;
+
+    /**
+     * Creates a new runner
+     *
+     * @param _suite String name of the test class
+     */
+    public Checks(String _suite) {
+        suite = _suite;
+    }
+
+    /**
+     * Runs one check, a check fails if it throws anything
+     *
+     * @param name  String what the check shows
+     * @param check Check to run
+     */
+    public void run(String name, Check check) {
+        run++;
+        try {
+            check.run();
+            System.out.println("ok   " + suite + ": " + name);
+        } catch (Throwable e) {
+            failed++;
+            System.out.println("FAIL " + suite + ": " + name);
+            e.printStackTrace(System.out);
+        }
+    }
+
+    /**
+     * Prints how many checks passed and exits, with status 1 if any failed. Exiting also stops any Blender or Jondo
+     * threads the checks left running.
+     */
+    public void finish() {
+        System.out.println(suite + ": " + (run - failed) + " of " + run + " passed");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /**
+     * Fails the running check if a condition does not hold
+     *
+     * @param condition boolean that should be true
+     * @param message   String describing what went wrong
+     */
+    public static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /**
+     * Fails the running check if two values are not equal
+     *
+     * @param expected Object value we should have
+     * @param actual   Object value we have
+     * @param what     String naming the value
+     */
+    public static void checkEquals(Object expected, Object actual, String what) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError(what + " should be " + expected + " but was " + actual);
+        }
+    }
+
+    /**
+     * Fails the running check unless some code throws an exception of a given type
+     *
+     * @param type  Class of exception expected
+     * @param check Check that should throw
+     * @param what  String naming what should fail
+     */
+    public static void checkThrows(Class<? extends Throwable> type, Check check, String what) {
+        try {
+            check.run();
+        } catch (Throwable e) {
+            if (type.isInstance(e)) {
+                return;
+            }
+            throw new AssertionError(what + " should throw " + type.getSimpleName() + " but threw " + e, e);
+        }
+        throw new AssertionError(what + " should throw " + type.getSimpleName());
+    }
+
+    /**
+     * Waits for a server that binds its port on a thread of its own to start listening
+     *
+     * @param addr String IP address of server
+     * @param port int port of server
+     */
+    public static void awaitListening(String addr, int port) throws IOException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            try (Socket probe = new Socket(addr, port)) {
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * One check, throws if it fails
+     */
+    public interface Check {
+        void run() throws Exception;
+    }
+}
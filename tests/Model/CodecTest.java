@@ -0,0 +1,352 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Model;
+
+import Blender.Blender;
+import Jondo.Jondo;
+import merrimackutil.json.JsonIO;
+import merrimackutil.json.types.JSONArray;
+import merrimackutil.json.types.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static Model.Checks.awaitListening;
+import static Model.Checks.check;
+import static Model.Checks.checkEquals;
+import static Model.Checks.checkThrows;
+
+/**
+ * Checks that every message type survives both codecs and a switch between them, and that a Jondo can join a Blender
+ * in every mix of the codecs the two are configured with
+ */
+public class CodecTest {
+    /**
+     * First port the Blenders and Jondos of the join checks listen on
+     */
+    private static final int BASE_PORT = 17100;
+
+    public static void main(String[] args) {
+        Checks checks = new Checks("CodecTest");
+
+        checks.run("every message type has an example", CodecTest::coversEveryType);
+        for (String codec : List.of(MessageCodec.JSON, MessageCodec.BINARY)) {
+            checks.run("round trip in " + codec, () -> roundTrip(codec));
+        }
+        checks.run("json decodes to the same message binary does", CodecTest::crossCodec);
+        checks.run("json frames are one line", CodecTest::jsonOneLine);
+        checks.run("frames of both codecs read from one stream", CodecTest::mixedStream);
+        for (String codec : List.of(MessageCodec.JSON, MessageCodec.BINARY)) {
+            checks.run("nodes from the Blender keep the UID sent, gossiped ones are checked in " + codec,
+                    () -> uidsFromWire(codec));
+        }
+        checks.run("nodes sent without a UID are hashed", CodecTest::uidsMissing);
+
+        int port = BASE_PORT;
+        for (String blenderCodec : List.of(MessageCodec.JSON, MessageCodec.BINARY)) {
+            for (String jondoCodec : List.of(MessageCodec.JSON, MessageCodec.BINARY)) {
+                int blenderPort = port;
+                checks.run("HELLO from a " + jondoCodec + " Jondo to a " + blenderCodec + " Blender",
+                        () -> negotiate(blenderCodec, jondoCodec, blenderPort));
+                port += 10;
+            }
+        }
+
+        checks.finish();
+    }
+
+    /**
+     * Gets one message of every type with every optional field set
+     *
+     * @return List of Message
+     */
+    static List<Message> examples() {
+        Node alice = new Node("10.0.0.1", 5001);
+        Node bob = new Node("10.0.0.2", 5002);
+        Node carol = new Node("10.0.0.3", 5003);
+        ConcurrentHashMap<NodeId, Node> table = new ConcurrentHashMap<>();
+        for (Node node : List.of(alice, bob, carol)) {
+            table.put(node.getId(), node);
+        }
+
+        Vote ballot = new Vote.Builder("vote-1").setSelection("Bob").setVoterId("voter-1")
+                .setTimestamp("2024-11-05T12:00:00Z").build();
+        Vote question = new Vote.Builder("vote-1").setQuestion("Who should lead? \u00fcn\u00efc\u00f8d\u00e9")
+                .setOptions(List.of("Alice", "Bob", "Carol")).build();
+        Vote results = new Vote.Builder("vote-1").setResults(List.of("Alice: 1", "Bob: 2")).build();
+        Vote id = new Vote.Builder("vote-1").build();
+
+        List<Message> messages = new ArrayList<>();
+        messages.add(new Message.Builder("HELLO").setHello("10.0.0.1", 5001).setCodec(MessageCodec.BINARY).build());
+        messages.add(new Message.Builder("WELCOME").setWelcome(table).setCodec(MessageCodec.JSON).setEpoch(7)
+                .build());
+        messages.add(new Message.Builder("BROADCAST").setBroadcast(carol).setEpoch(8).setFanout(3).build());
+        // merrimackutil neither escapes nor unescapes strings, so JSON cannot carry quotes or newlines in a string
+        messages.add(new Message.Builder("DATA").setData("10.0.0.9", 80, "hello world")
+                .setId("0123456789abcdef").setHops(2).setPath("91d2c4e07ab35f68").setTrace("feedfacecafebeef")
+                .build());
+        messages.add(new Message.Builder("VOTE_BROADCAST").setVoteBroadcast(question).build());
+        messages.add(new Message.Builder("VOTE_CAST").setVoteCast("10.0.0.8", 5000, ballot).setHops(1).build());
+        messages.add(new Message.Builder("VOTE_RESULTS_QUERY").setVoteResultsQuery("10.0.0.8", 5000, id, "10.0.0.1",
+                5001).build());
+        messages.add(new Message.Builder("VOTE_RESULTS").setVoteResults(results, "10.0.0.1", 5001, "10.0.0.8", 5000)
+                .setVersion(1729000000000L, 3).build());
+        messages.add(new Message.Builder("ACK").setAck("10.0.0.2", 5002).setId("0123456789abcdef")
+                .setReplyData("reply").setError("Circuit failed").build());
+        messages.add(new Message.Builder("LEAVE").setLeave("10.0.0.2", 5002).setEpoch(9).setFanout(3).build());
+        messages.add(new Message.Builder("SYNC").setId("fedcba9876543210").setEpoch(4).build());
+        messages.add(new Message.Builder("SYNC_DELTA").setSyncDelta(9, false, List.of(carol), List.of(bob))
+                .setId("fedcba9876543210").build());
+        messages.add(new Message.Builder("PATH_OPEN").setPath("91d2c4e07ab35f68").setHops(1).build());
+        messages.add(new Message.Builder("VOTE_CAST_BATCH").setVoteCastBatch("10.0.0.8", 5000, List.of(ballot,
+                ballot)).build());
+        messages.add(new Message.Builder("VOTE_RESULTS_SUBSCRIBE").setVoteResultsSubscribe("10.0.0.8", 5000, id,
+                "10.0.0.1", 5001).setVersion(1729000000000L, 3).build());
+        return messages;
+    }
+
+    /**
+     * Every binary type code has an example, and the code after the last is not a type, so a new type cannot be added
+     * without an example here
+     */
+    private static void coversEveryType() {
+        Set<Integer> codes = new HashSet<>();
+        for (Message message : examples()) {
+            codes.add(Message.typeCode(message.getType()));
+        }
+        for (int code = 1; code <= codes.size(); code++) {
+            check(codes.contains(code), "no example of type code " + code);
+        }
+
+        byte[] frame = {MessageCodec.BINARY_MAGIC, 0, 0, 0, 1, (byte) (codes.size() + 1)};
+        checkThrows(InvalidObjectException.class, () -> MessageCodec.decode(frame, 0, frame.length),
+                "type code " + (codes.size() + 1));
+    }
+
+    private static void roundTrip(String codec) throws IOException {
+        for (Message message : examples()) {
+            byte[] frame = MessageCodec.encode(message, codec);
+            checkEquals(codec, MessageCodec.codecOf(frame[0]), message.getType() + " frame codec");
+            checkEquals(frame.length, MessageCodec.frameLength(frame, 0, frame.length), message.getType()
+                    + " frame length");
+            checkSame(message, MessageCodec.decode(frame, 0, frame.length));
+        }
+    }
+
+    /**
+     * A message read in one codec and written in the other reads back the same, as when a Jondo passes a message
+     * between peers that negotiated different codecs
+     */
+    private static void crossCodec() throws IOException {
+        for (Message message : examples()) {
+            byte[] json = MessageCodec.encode(message, MessageCodec.JSON);
+            byte[] binary = MessageCodec.encode(MessageCodec.decode(json, 0, json.length), MessageCodec.BINARY);
+            checkSame(message, MessageCodec.decode(binary, 0, binary.length));
+
+            binary = MessageCodec.encode(message, MessageCodec.BINARY);
+            json = MessageCodec.encode(MessageCodec.decode(binary, 0, binary.length), MessageCodec.JSON);
+            checkSame(message, MessageCodec.decode(json, 0, json.length));
+        }
+    }
+
+    /**
+     * The blocking reader reads JSON a line at a time, a message spread over several lines cannot be read
+     */
+    private static void jsonOneLine() {
+        for (Message message : examples()) {
+            byte[] frame = MessageCodec.encode(message, MessageCodec.JSON);
+            for (int i = 0; i < frame.length - 1; i++) {
+                check(frame[i] != '\n', message.getType() + " JSON frame has a newline at " + i);
+            }
+            checkEquals((byte) '\n', frame[frame.length - 1], message.getType() + " JSON frame end");
+        }
+    }
+
+    /**
+     * Codecs are detected per frame, so a connection can switch codec between frames
+     */
+    private static void mixedStream() throws IOException {
+        List<Message> messages = examples();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < messages.size() * 2; i++) {
+            stream.write(MessageCodec.encode(messages.get(i % messages.size()), codecOf(i)));
+        }
+
+        MessageReader reader = new MessageReader(new ByteArrayInputStream(stream.toByteArray()));
+        for (int i = 0; i < messages.size() * 2; i++) {
+            checkSame(messages.get(i % messages.size()), reader.read());
+            checkEquals(codecOf(i), reader.getLastCodec(), "codec of frame " + i);
+        }
+        checkEquals(null, reader.read(), "message after the last frame");
+    }
+
+    /**
+     * Nodes in WELCOME and SYNC_DELTA come from the Blender and are read with the UID they were sent with rather than
+     * hashed again. The node here has a UID that is not the hash of its address, so a decoder that hashed would get a
+     * different one. BROADCAST is gossiped by Jondos, so the same node is refused there.
+     *
+     * @param codec String codec to send in
+     */
+    private static void uidsFromWire(String codec) throws IOException {
+        Node node = new Node("10.0.0.4", 5004, NodeId.of("10.0.0.99", 1));
+        ConcurrentHashMap<NodeId, Node> table = new ConcurrentHashMap<>();
+        table.put(node.getId(), node);
+
+        byte[] welcome = MessageCodec.encode(new Message.Builder("WELCOME").setWelcome(table).setCodec(codec)
+                .setEpoch(1).build(), codec);
+        check(MessageCodec.decode(welcome, 0, welcome.length).getRoutingTable().containsKey(node.getId()),
+                "WELCOME should hold the UID sent");
+        // a Jondo joining reads WELCOME with the streaming decoder
+        RoutingIndex.Builder streamed = new RoutingIndex.Builder();
+        new MessageReader(new ByteArrayInputStream(welcome)).readWelcome(streamed);
+        check(streamed.build().contains(node.getId()), "streamed WELCOME should hold the UID sent");
+
+        byte[] forged = MessageCodec.encode(new Message.Builder("BROADCAST").setBroadcast(node).setEpoch(2)
+                .build(), codec);
+        checkThrows(IOException.class, () -> MessageCodec.decode(forged, 0, forged.length),
+                "BROADCAST of a node whose UID is not its hash");
+        Node honest = new Node("10.0.0.4", 5004);
+        byte[] broadcast = MessageCodec.encode(new Message.Builder("BROADCAST").setBroadcast(honest).setEpoch(2)
+                .build(), codec);
+        checkEquals(honest.getId(), MessageCodec.decode(broadcast, 0, broadcast.length).getNewNode().getId(),
+                "UID of BROADCAST node");
+
+        byte[] delta = MessageCodec.encode(new Message.Builder("SYNC_DELTA").setSyncDelta(3, false, List.of(node),
+                List.of(node)).setId("fedcba9876543210").build(), codec);
+        Message decoded = MessageCodec.decode(delta, 0, delta.length);
+        checkEquals(node.getId(), decoded.getAdded().get(0).getId(), "UID of SYNC_DELTA added node");
+        checkEquals(node.getId(), decoded.getRemoved().get(0).getId(), "UID of SYNC_DELTA removed node");
+    }
+
+    /**
+     * Older senders leave the UID out of JSON nodes, the UID is then the hash of address and port
+     */
+    private static void uidsMissing() throws IOException {
+        NodeId hashed = NodeId.of("10.0.0.1", 5001);
+
+        String welcome = "{\"type\":\"WELCOME\",\"routingTable\":[{\"addr\":\"10.0.0.1\",\"port\":5001}],"
+                + "\"codec\":\"json\",\"epoch\":1}";
+        check(MessageCodec.decodeJSON(welcome).getRoutingTable().containsKey(hashed), "WELCOME node UID");
+        RoutingIndex.Builder streamed = new RoutingIndex.Builder();
+        new MessageReader(new ByteArrayInputStream((welcome + "\n").getBytes())).readWelcome(streamed);
+        check(streamed.build().contains(hashed), "streamed WELCOME node UID");
+
+        String broadcast = "{\"type\":\"BROADCAST\",\"newNodeAddr\":\"10.0.0.1\",\"newNodePort\":5001,"
+                + "\"epoch\":2}";
+        checkEquals(hashed, MessageCodec.decodeJSON(broadcast).getNewNode().getId(), "BROADCAST node UID");
+
+        String delta = "{\"type\":\"SYNC_DELTA\",\"id\":\"fedcba9876543210\",\"epoch\":3,\"full\":false,"
+                + "\"added\":[{\"addr\":\"10.0.0.1\",\"port\":5001}],\"removed\":[]}";
+        checkEquals(hashed, MessageCodec.decodeJSON(delta).getAdded().get(0).getId(), "SYNC_DELTA node UID");
+    }
+
+    /**
+     * Codec of the i-th frame of the mixed stream, alternating and swapped on the second pass so each message is read
+     * in both
+     */
+    private static String codecOf(int i) {
+        return (i % examples().size() + i / examples().size()) % 2 == 0 ? MessageCodec.JSON : MessageCodec.BINARY;
+    }
+
+    /**
+     * A Jondo asking for a codec in its JSON HELLO gets binary only if the Blender is configured for it, the WELCOME
+     * comes in that codec and the Jondo can join with it
+     *
+     * @param blenderCodec String codec the Blender is configured with
+     * @param jondoCodec   String codec the Jondo asks for
+     * @param port         int port of the Blender, the Jondos listen on the next ports
+     */
+    private static void negotiate(String blenderCodec, String jondoCodec, int port) throws IOException {
+        String addr = "127.0.0.1";
+        Blender blender = new Blender(new Configuration.Builder("blender").setAddr(addr).setPort(port).setThreads(4)
+                .setCodec(blenderCodec).build());
+        String agreed = blenderCodec.equals(MessageCodec.BINARY) && jondoCodec.equals(MessageCodec.BINARY)
+                ? MessageCodec.BINARY : MessageCodec.JSON;
+        awaitListening(addr, port);
+
+        // a hand written HELLO read back with the reader Jondo connections use for every other message
+        try (Socket sock = new Socket(addr, port)) {
+            PrintWriter send = new PrintWriter(sock.getOutputStream(), true);
+            send.println(new Message.Builder("HELLO").setHello(addr, port + 1).setCodec(jondoCodec).build()
+                    .serialize());
+
+            MessageReader recv = new MessageReader(sock.getInputStream());
+            Message welcome = recv.read();
+            checkEquals("WELCOME", welcome.getType(), "reply to HELLO");
+            checkEquals(agreed, welcome.getCodec(), "codec in WELCOME");
+            checkEquals(agreed, recv.getLastCodec(), "codec WELCOME was sent in");
+            check(welcome.getRoutingTable().containsKey(new Node(addr, port + 1).getId()),
+                    "WELCOME should hold the Jondo that said HELLO");
+        }
+
+        // and a real Jondo joining the same crowd
+        Jondo jondo = new Jondo(new Configuration.Builder("jondo").setAddr(addr).setPort(port + 2).setThreads(2)
+                .setCodec(jondoCodec).setBlender(addr, port).build(), null);
+        checkEquals(2, jondo.getRoutingTable().size(), "Jondos in the routing table of the joined Jondo");
+        checkEquals(2, blender.getRoutingTable().size(), "Jondos in the routing table of the Blender");
+    }
+
+    /**
+     * Fails unless two messages have the same type and fields
+     */
+    static void checkSame(Message expected, Message actual) throws InvalidObjectException {
+        checkEquals(normalize(JsonIO.readObject(expected.serialize())), normalize(JsonIO.readObject(
+                actual.serialize())), expected.getType());
+    }
+
+    /**
+     * Turns parsed JSON into sorted maps and lists so two encodings of a message compare equal. The routing table of
+     * a WELCOME is a map on both ends so its order is not kept, and a vote built without options reads back with an
+     * empty list in either codec, as it always has in JSON.
+     *
+     * @param value Object parsed JSON value
+     * @return Object comparable value
+     */
+    private static Object normalize(Object value) {
+        if (value instanceof JSONObject) {
+            TreeMap<String, Object> sorted = new TreeMap<>();
+            for (Entry<String, Object> entry : ((JSONObject) value).entrySet()) {
+                Object normalized = normalize(entry.getValue());
+                if (entry.getKey().equals("options") && ((List<?>) normalized).isEmpty()) {
+                    continue;
+                }
+                if (entry.getKey().equals("routingTable")) {
+                    List<String> nodes = new ArrayList<>();
+                    for (Object node : (List<?>) normalized) {
+                        nodes.add(node.toString());
+                    }
+                    nodes.sort(null);
+                    normalized = nodes;
+                }
+                sorted.put(entry.getKey(), normalized);
+            }
+            return sorted;
+        }
+        if (value instanceof JSONArray) {
+            List<Object> list = new ArrayList<>();
+            for (Object element : (JSONArray) value) {
+                list.add(normalize(element));
+            }
+            return list;
+        }
+        return value;
+    }
+}
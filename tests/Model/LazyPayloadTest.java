@@ -0,0 +1,242 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Model;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.UnaryOperator;
+
+import static Model.Checks.check;
+import static Model.Checks.checkEquals;
+import static Model.Checks.checkThrows;
+import static Model.CodecTest.checkSame;
+import static Model.CodecTest.examples;
+
+/**
+ * Checks that a message read off the wire leaves its payload as it arrived until a getter asks for it, that copies
+ * made with the Builder carry the payload along undecoded, and that a Builder setter replacing the payload drops the
+ * one copied so the new payload is the one sent
+ */
+public class LazyPayloadTest {
+    private static final List<String> CODECS = List.of(MessageCodec.JSON, MessageCodec.BINARY);
+
+    public static void main(String[] args) {
+        Checks checks = new Checks("LazyPayloadTest");
+        for (String codec : CODECS) {
+            checks.run("invalid " + codec + " payload fails its getter not the read", () -> invalidPayload(codec));
+            checks.run("unread " + codec + " payload is sent in its codec as it came", () -> passedThrough(codec));
+            checks.run(codec + " payload decoded once for every thread", () -> decodedOnce(codec));
+            checks.run("copies of unread " + codec + " messages keep the payload", () -> copies(codec));
+            checks.run("setters replacing a " + codec + " payload drop the one copied", () -> replaced(codec));
+        }
+        checks.finish();
+    }
+
+    /**
+     * A SYNC_DELTA whose node cannot be decoded reads fine, the header is there and only getting the nodes fails.
+     * Every time they are asked for, since a payload that failed is not taken as decoded.
+     */
+    private static void invalidPayload(String codec) throws IOException {
+        byte[] frame = invalidDelta(codec);
+        Message message = MessageCodec.decode(frame, 0, frame.length);
+        checkEquals("SYNC_DELTA", message.getType(), "type");
+        checkEquals("fedcba9876543210", message.getId(), "id");
+        checkEquals(9, message.getEpoch(), "epoch");
+        for (int i = 0; i < 2; i++) {
+            checkThrows(UncheckedIOException.class, message::getAdded, "getting the nodes");
+        }
+        // the other codec has to decode the payload to write it
+        checkThrows(UncheckedIOException.class, () -> MessageCodec.encode(message, other(codec)),
+                "writing it in the other codec");
+    }
+
+    /**
+     * An unread payload, even an invalid one, is written back out in the codec it came in without being decoded,
+     * alone or in a copy with the header changed. Binary comes out byte for byte, JSON keys come out in the order of
+     * the JSONObject they were read into.
+     */
+    private static void passedThrough(String codec) throws IOException {
+        byte[] frame = invalidDelta(codec);
+        Message message = MessageCodec.decode(frame, 0, frame.length);
+        byte[] written = MessageCodec.encode(message, codec);
+        if (codec.equals(MessageCodec.BINARY)) {
+            check(Arrays.equals(frame, written), "frame written differs from the one read");
+        }
+        Message reread = MessageCodec.decode(written, 0, written.length);
+        checkThrows(UncheckedIOException.class, reread::getAdded, "getting the nodes written back out");
+
+        Message copy = new Message.Builder(message).setId("0123456789abcdef").build();
+        byte[] copied = MessageCodec.encode(copy, codec);
+        Message read = MessageCodec.decode(copied, 0, copied.length);
+        checkEquals("0123456789abcdef", read.getId(), "id of the copy");
+        checkThrows(UncheckedIOException.class, read::getAdded, "getting the nodes of the copy");
+    }
+
+    /**
+     * Every getter of a payload hands back the same decoded value, also to threads racing for the first decode
+     */
+    private static void decodedOnce(String codec) throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            for (Message example : examples()) {
+                byte[] frame = MessageCodec.encode(example, codec);
+                Message message = MessageCodec.decode(frame, 0, frame.length);
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<Object>> payloads = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    payloads.add(threads.submit(() -> {
+                        start.await();
+                        return payload(message);
+                    }));
+                }
+                start.countDown();
+
+                Object first = payloads.get(0).get();
+                for (Future<Object> payload : payloads) {
+                    check(payload.get() == first, example.getType() + " payload decoded more than once");
+                }
+                check(payload(message) == first, example.getType() + " payload decoded again");
+            }
+        } finally {
+            threads.shutdown();
+        }
+    }
+
+    /**
+     * A copy of an unread message with a header field changed is the original with that field changed, written in
+     * either codec, and the original still reads its own payload afterwards
+     */
+    private static void copies(String codec) throws IOException {
+        for (Message example : examples()) {
+            byte[] frame = MessageCodec.encode(example, codec);
+            Message message = MessageCodec.decode(frame, 0, frame.length);
+            Message copy = new Message.Builder(message).setTrace("feedfacecafebeef").build();
+            Message expected = new Message.Builder(example).setTrace("feedfacecafebeef").build();
+
+            checkSame(expected, copy);
+            for (String written : CODECS) {
+                byte[] copied = MessageCodec.encode(copy, written);
+                checkSame(expected, MessageCodec.decode(copied, 0, copied.length));
+            }
+            checkSame(example, message);
+        }
+    }
+
+    /**
+     * Each setter that replaces a payload, applied to a copy of an unread message, must leave the new payload in the
+     * copy. Were the payload copied from the message kept, writing the copy in the codec it was read in would send
+     * the old payload.
+     */
+    private static void replaced(String codec) throws IOException {
+        Vote ballot = new Vote.Builder("vote-2").setSelection("Carol").build();
+        Node dave = new Node("10.0.0.4", 5004);
+        ConcurrentHashMap<NodeId, Node> table = new ConcurrentHashMap<>(Map.of(dave.getId(), dave));
+        Map<String, UnaryOperator<Message.Builder>> setters = Map.of(
+                "WELCOME", builder -> builder.setWelcome(table),
+                "DATA", builder -> builder.setData("10.0.0.9", 80, "goodbye"),
+                "VOTE_BROADCAST", builder -> builder.setVoteBroadcast(ballot),
+                "VOTE_CAST", builder -> builder.setVoteCast("10.0.0.8", 5000, ballot),
+                "VOTE_CAST_BATCH", builder -> builder.setVoteCastBatch("10.0.0.8", 5000, List.of(ballot)),
+                "VOTE_RESULTS_QUERY", builder -> builder.setVoteResultsQuery("10.0.0.8", 5000, ballot, "10.0.0.1",
+                        5001),
+                "VOTE_RESULTS", builder -> builder.setVoteResults(ballot, "10.0.0.1", 5001, "10.0.0.8", 5000),
+                "VOTE_RESULTS_SUBSCRIBE", builder -> builder.setVoteResultsSubscribe("10.0.0.8", 5000, ballot,
+                        "10.0.0.1", 5001),
+                "SYNC_DELTA", builder -> builder.setSyncDelta(10, true, List.of(dave), List.of()));
+
+        for (Message example : examples()) {
+            UnaryOperator<Message.Builder> setter = setters.get(example.getType());
+            if (setter == null) {
+                continue;
+            }
+            byte[] frame = MessageCodec.encode(example, codec);
+            Message message = MessageCodec.decode(frame, 0, frame.length);
+            Message copy = setter.apply(new Message.Builder(message)).build();
+            Message expected = setter.apply(new Message.Builder(example)).build();
+
+            checkSame(expected, copy);
+            for (String written : CODECS) {
+                byte[] copied = MessageCodec.encode(copy, written);
+                checkSame(expected, MessageCodec.decode(copied, 0, copied.length));
+            }
+        }
+
+        // replacing a payload that could not be decoded never decodes it
+        byte[] frame = invalidDelta(codec);
+        Message message = MessageCodec.decode(frame, 0, frame.length);
+        Message copy = new Message.Builder(message).setSyncDelta(10, true, List.of(dave), List.of()).build();
+        checkEquals(dave.getId(), copy.getAdded().get(0).getId(), "node of the replaced payload");
+        byte[] copied = MessageCodec.encode(copy, codec);
+        checkEquals(dave.getId(), MessageCodec.decode(copied, 0, copied.length).getAdded().get(0).getId(),
+                "node of the replaced payload sent");
+    }
+
+    /**
+     * Gets the payload field of a message of any type
+     *
+     * @param message Message to get the payload of
+     * @return Object payload, null if the type has none
+     */
+    private static Object payload(Message message) {
+        switch (message.getType()) {
+            case "WELCOME":
+                return message.getRoutingTable();
+            case "DATA":
+                return message.getData();
+            case "VOTE_CAST_BATCH":
+                return message.getVotes();
+            case "SYNC_DELTA":
+                return message.getAdded();
+            case "VOTE_BROADCAST":
+            case "VOTE_CAST":
+            case "VOTE_RESULTS_QUERY":
+            case "VOTE_RESULTS":
+            case "VOTE_RESULTS_SUBSCRIBE":
+                return message.getVote();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Builds a SYNC_DELTA frame whose payload is whole but holds a node that cannot be decoded, one without an address
+     * in binary and one whose UID is not Base64 in JSON
+     *
+     * @param codec String codec of the frame
+     * @return byte[] frame
+     */
+    private static byte[] invalidDelta(String codec) {
+        Node node = new Node("10.0.0.5", 5005);
+        if (codec.equals(MessageCodec.BINARY)) {
+            node = new Node(null, 5005, node.getId());
+        }
+        byte[] frame = MessageCodec.encode(new Message.Builder("SYNC_DELTA").setSyncDelta(9, false, List.of(node),
+                List.of()).setId("fedcba9876543210").build(), codec);
+        if (codec.equals(MessageCodec.JSON)) {
+            frame = new String(frame, StandardCharsets.UTF_8).replace(node.getId().toBase64(), "not-a-uid")
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+        return frame;
+    }
+
+    private static String other(String codec) {
+        return codec.equals(MessageCodec.JSON) ? MessageCodec.BINARY : MessageCodec.JSON;
+    }
+}
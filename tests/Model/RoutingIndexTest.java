@@ -0,0 +1,181 @@
+/*
+ * free (adj.): unencumbered; not under the control of others
+ * Written by Seth Holtzman in 2024 and released into the public domain
+ * with no warranty of any kind, either expressed or implied.
+ * It probably won't make your computer catch on fire, or eat
+ * your children, but it might.  Use at your own risk.
+ *
+ * Oh but what's a constant among friends?
+ */
+package Model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static Model.Checks.check;
+import static Model.Checks.checkEquals;
+
+/**
+ * Checks that the routing index gives back every node as it was added, keeps the Node of a row once it is picked so
+ * picking a next hop again allocates nothing, and that removing and replacing keep each row's id and address together
+ */
+public class RoutingIndexTest {
+    private static final int CROWD = 100;
+
+    public static void main(String[] args) {
+        Checks checks = new Checks("RoutingIndexTest");
+        checks.run("nodes read back as they were added", RoutingIndexTest::roundTrip);
+        checks.run("a row picked again hands out the same Node", RoutingIndexTest::sameInstances);
+        checks.run("removing moves the last node with its UID", RoutingIndexTest::remove);
+        checks.run("replacing the crowd keeps the UIDs sent", RoutingIndexTest::replaceAll);
+        checks.run("a builder appends rows once per UID", RoutingIndexTest::builder);
+        checks.finish();
+    }
+
+    /**
+     * Addresses are packed into columns, IPv6 and host names go in a column of their own
+     */
+    private static void roundTrip() {
+        List<Node> crowd = crowd();
+        crowd.add(new Node("2001:db8::1", 6000));
+        crowd.add(new Node("fe80::1:2:3:4", 6001));
+        crowd.add(new Node("localhost", 6002));
+        crowd.add(new Node("010.0.0.1", 6003));
+        crowd.add(new Node("0.0.0.0", 6004));
+        RoutingIndex index = new RoutingIndex();
+        for (Node node : crowd) {
+            index.putIfAbsent(node);
+        }
+
+        Map<NodeId, Node> added = byId(crowd);
+        checkEquals(added.size(), index.size(), "size");
+        for (Node node : index.getNodes()) {
+            checkSame(added.get(node.getId()), node);
+        }
+        Random rand = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            Node picked = index.pick(rand);
+            checkSame(added.get(picked.getId()), picked);
+        }
+        for (Node node : index.sample(10, rand)) {
+            checkSame(added.get(node.getId()), node);
+        }
+    }
+
+    private static void sameInstances() {
+        RoutingIndex index = new RoutingIndex(crowd());
+        Map<NodeId, Node> picked = new HashMap<>();
+        Random rand = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            Node node = index.pick(rand);
+            Node before = picked.putIfAbsent(node.getId(), node);
+            check(before == null || before == node, "picked a new Node for a row picked before");
+        }
+        checkEquals(CROWD, picked.size(), "rows picked");
+
+        // a row moved by a remove keeps its Node
+        index.remove(index.getNodes().get(0).getId());
+        Map<Node, Boolean> kept = new IdentityHashMap<>();
+        for (Node node : picked.values()) {
+            kept.put(node, true);
+        }
+        for (Node node : index.getNodes()) {
+            check(kept.containsKey(node), "node " + node.getAddr() + " built again after a remove");
+        }
+    }
+
+    private static void remove() {
+        List<Node> crowd = crowd();
+        RoutingIndex index = new RoutingIndex(crowd);
+        for (int i = 0; i < CROWD; i += 3) {
+            check(index.remove(crowd.get(i).getId()), "node " + i + " was not removed");
+        }
+
+        Map<NodeId, Node> kept = new HashMap<>();
+        for (int i = 0; i < CROWD; i++) {
+            checkEquals(i % 3 != 0, index.contains(crowd.get(i).getId()), "node " + i + " in the crowd");
+            if (i % 3 != 0) {
+                kept.put(crowd.get(i).getId(), crowd.get(i));
+            }
+        }
+        checkEquals(kept.size(), index.size(), "size after removing");
+        for (Node node : index.getNodes()) {
+            Node added = kept.remove(node.getId());
+            check(added != null, "node listed twice or not added " + node.getAddr());
+            checkSame(added, node);
+        }
+    }
+
+    /**
+     * Nodes from WELCOME and SYNC_DELTA carry the UID they were sent with, the index must look them up by it
+     */
+    private static void replaceAll() {
+        RoutingIndex index = new RoutingIndex(crowd());
+        List<Node> next = new ArrayList<>();
+        for (int i = 0; i < CROWD / 2; i++) {
+            next.add(new Node("10.1.0." + i, 5000, NodeId.of("elsewhere", i)));
+        }
+
+        Set<NodeId> removed = index.replaceAll(next);
+        checkEquals(CROWD, removed.size(), "nodes removed by the replace");
+        checkEquals(next.size(), index.size(), "size after the replace");
+        Map<NodeId, Node> added = byId(next);
+        for (Node node : next) {
+            check(index.contains(node.getId()), "node " + node.getAddr() + " not found by the UID it was sent with");
+        }
+        Random rand = new Random(2);
+        for (int i = 0; i < 100; i++) {
+            Node picked = index.pick(rand);
+            check(added.containsKey(picked.getId()), "picked a node not in the new crowd");
+            checkSame(added.get(picked.getId()), picked);
+        }
+    }
+
+    /**
+     * A WELCOME is streamed into a builder, a node sent twice must not take two rows
+     */
+    private static void builder() {
+        List<Node> crowd = crowd();
+        RoutingIndex.Builder rows = new RoutingIndex.Builder();
+        for (Node node : crowd) {
+            rows.add(node);
+        }
+        rows.add(new Node("10.0.0.0", 5000));
+        checkEquals(CROWD, rows.size(), "rows after a node sent twice");
+
+        RoutingIndex index = rows.build();
+        checkEquals(CROWD, index.size(), "size");
+        Map<NodeId, Node> added = byId(crowd);
+        for (Node node : index.getNodes()) {
+            checkSame(added.get(node.getId()), node);
+        }
+    }
+
+    private static void checkSame(Node expected, Node actual) {
+        check(expected != null, "node " + actual.getAddr() + " was never added");
+        checkEquals(expected.getAddr(), actual.getAddr(), "address");
+        checkEquals(expected.getPort(), actual.getPort(), "port of " + expected.getAddr());
+        checkEquals(expected.getId(), actual.getId(), "UID of " + expected.getAddr());
+    }
+
+    private static List<Node> crowd() {
+        List<Node> crowd = new ArrayList<>();
+        for (int i = 0; i < CROWD; i++) {
+            crowd.add(new Node("10.0.0." + i, 5000 + i));
+        }
+        return crowd;
+    }
+
+    private static Map<NodeId, Node> byId(List<Node> nodes) {
+        Map<NodeId, Node> byId = new HashMap<>();
+        for (Node node : nodes) {
+            byId.put(node.getId(), node);
+        }
+        return byId;
+    }
+}